@@ -0,0 +1,82 @@
+package firstAgent.jmh;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Compares two result files of the JMH benchmarks, written with -rf csv, and exits with
+ * status 1 if a benchmark is slower than in the baseline by more than the tolerance
+ * (default 0.10, i.e. 10%). A benchmark is identified by its name and its parameters;
+ * those missing from either file are skipped.
+ *
+ * Usage: java -cp target/benchmarks.jar firstAgent.jmh.BaselineCheck baseline.csv current.csv [tolerance]
+ */
+public class BaselineCheck {
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: BaselineCheck <baseline.csv> <current.csv> [tolerance]");
+			System.exit(2);
+		}
+		Map<String, double[]> baseline = read(args[0]);
+		Map<String, double[]> current = read(args[1]);
+		double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+		boolean regression = false;
+		for (Map.Entry<String, double[]> entry : current.entrySet()) {
+			double[] reference = baseline.get(entry.getKey());
+			if (reference == null) {
+				continue;
+			}
+			double before = reference[0];
+			double now = entry.getValue()[0];
+			// A throughput falls when it regresses, a time rises
+			double slowdown = entry.getValue()[1] > 0 ? before / now - 1 : now / before - 1;
+			String verdict = slowdown > tolerance ? "REGRESSION" : "ok";
+			regression |= verdict.equals("REGRESSION");
+			System.out.println(String.format("%-72s %12.3f, baseline %12.3f (%+.1f%% slower) %s",
+					entry.getKey(), now, before, slowdown * 100, verdict));
+		}
+		if (regression) {
+			System.exit(1);
+		}
+	}
+
+	// Maps the name and parameters of each benchmark to its score, and 1 if the score is a
+	// throughput (higher is better), 0 otherwise
+	private static Map<String, double[]> read(String file) throws IOException {
+		List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+		Map<String, double[]> scores = new LinkedHashMap<String, double[]>();
+		if (lines.isEmpty()) {
+			return scores;
+		}
+		String[] header = split(lines.get(0));
+		int mode = Arrays.asList(header).indexOf("Mode");
+		int score = Arrays.asList(header).indexOf("Score");
+		for (String line : lines.subList(1, lines.size())) {
+			String[] fields = split(line);
+			StringBuilder key = new StringBuilder(fields[0]);
+			for (int i = 0; i < header.length && i < fields.length; ++i) {
+				if (header[i].startsWith("Param: ") && !fields[i].isEmpty()) {
+					key.append(' ').append(header[i].substring("Param: ".length())).append('=').append(fields[i]);
+				}
+			}
+			scores.put(key.toString(), new double[] {Double.parseDouble(fields[score]),
+					fields[mode].equals("thrpt") ? 1 : 0});
+		}
+		return scores;
+	}
+
+	// The fields of a line of the CSV file; none of them contains a comma
+	private static String[] split(String line) {
+		String[] fields = line.split(",", -1);
+		for (int i = 0; i < fields.length; ++i) {
+			fields[i] = fields[i].trim();
+			if (fields[i].length() >= 2 && fields[i].startsWith("\"") && fields[i].endsWith("\"")) {
+				fields[i] = fields[i].substring(1, fields[i].length() - 1);
+			}
+		}
+		return fields;
+	}
+}
@@ -0,0 +1,63 @@
+package firstAgent.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import firstAgent.BookState;
+import firstAgent.Catalogue;
+import firstAgent.bench.CatalogueGenerator;
+
+/**
+ * The seller's CFP lookup (Catalogue.findAtLeast) on a generated catalogue:
+ *   exact     the state asked is drawn like the states of the listings, so it is
+ *             usually available;
+ *   fallback  the books are asked in at least Damaged state, which walks all the better
+ *             states to find the cheapest copy.
+ * The titles asked are drawn from the titles of the catalogue, so most lookups hit.
+ * The score is the time of one lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CatalogueLookupBenchmark {
+	private static final int LOOKUPS = 4096;
+
+	@Param({"100000", "1000000"})
+	public int listings;
+
+	private Catalogue catalogue;
+	private String[] titles = new String[LOOKUPS];
+	private BookState[] states = new BookState[LOOKUPS];
+
+	@Setup
+	public void generate() {
+		// Two listings per title on average
+		CatalogueGenerator generator = new CatalogueGenerator(listings / 2, 42);
+		catalogue = generator.catalogue(listings);
+		for (int i = 0; i < LOOKUPS; ++i) {
+			titles[i] = generator.randomTitle();
+			states[i] = generator.randomState();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void exact(Blackhole blackhole) {
+		for (int i = 0; i < LOOKUPS; ++i) {
+			blackhole.consume(catalogue.findAtLeast(titles[i], states[i]));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void fallback(Blackhole blackhole) {
+		for (int i = 0; i < LOOKUPS; ++i) {
+			blackhole.consume(catalogue.findAtLeast(titles[i], BookState.DAMAGED));
+		}
+	}
+}
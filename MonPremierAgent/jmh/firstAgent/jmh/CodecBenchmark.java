@@ -0,0 +1,68 @@
+package firstAgent.jmh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import firstAgent.BookState;
+import firstAgent.BookTradeCodec;
+import firstAgent.Offer;
+
+/**
+ * Round trips through BookTradeCodec of the contents exchanged the most: a CFP, a
+ * proposal, and a price list of prices listings. The score is the time to encode then
+ * decode one content.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+	private static final String TITLE = "The Lord of the Rings: The Fellowship of the Ring";
+
+	@Param({"1000"})
+	public int prices;
+
+	private List<Offer> priceList;
+
+	@Setup
+	public void generate() {
+		BookState[] states = BookState.values();
+		Random random = new Random(3);
+		priceList = new ArrayList<Offer>(prices);
+		for (int i = 0; i < prices; ++i) {
+			priceList.add(new Offer("title number "+i, states[i % states.length], 1 + random.nextInt(200)));
+		}
+	}
+
+	@Benchmark
+	public void callForProposal(Blackhole blackhole) {
+		byte[] content = BookTradeCodec.encodeCallForProposal(TITLE, BookState.GOOD, 1);
+		BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(content, BookTradeCodec.CALL_FOR_PROPOSAL);
+		blackhole.consume(decoder.readTitle());
+		blackhole.consume(decoder.readState());
+		blackhole.consume(decoder.readNumber());
+	}
+
+	@Benchmark
+	public void proposal(Blackhole blackhole) {
+		byte[] content = BookTradeCodec.encodeProposal(42, BookState.USED, 1, 7);
+		BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(content, BookTradeCodec.PROPOSAL);
+		blackhole.consume(decoder.readNumber());
+		blackhole.consume(decoder.readState());
+		blackhole.consume(decoder.readNumber());
+		blackhole.consume(decoder.readLong());
+	}
+
+	@Benchmark
+	public List<Offer> priceList() {
+		byte[] content = BookTradeCodec.encodePrices(BookTradeCodec.PRICE_LIST, 0, priceList);
+		return BookTradeCodec.decodePrices(new BookTradeCodec.Decoder(content, BookTradeCodec.PRICE_LIST));
+	}
+}
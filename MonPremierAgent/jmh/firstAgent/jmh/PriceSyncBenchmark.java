@@ -0,0 +1,57 @@
+package firstAgent.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import firstAgent.BookTradeCodec;
+import firstAgent.Catalogue;
+import firstAgent.Offer;
+import firstAgent.PriceMatcher;
+import firstAgent.bench.CatalogueGenerator;
+
+/**
+ * The price synchronization between sellers, on a generated catalogue:
+ *   match   SendPriceServer: matching a price query of batch listings against the catalogue;
+ *   adjust  AdjustPriceServer: decoding a price list of batch listings and lowering the
+ *           prices of the catalogue. After the first invocation the prices no longer
+ *           change, so this is the cost of a sync without news, the common case.
+ * The score is the time of one query or price list.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PriceSyncBenchmark {
+	@Param({"100000", "1000000"})
+	public int listings;
+
+	@Param({"1000"})
+	public int batch;
+
+	private Catalogue catalogue;
+	private byte[] priceQuery;
+	private byte[] priceList;
+
+	@Setup
+	public void generate() {
+		CatalogueGenerator generator = new CatalogueGenerator(listings / 2, 42);
+		catalogue = generator.catalogue(listings);
+		priceQuery = BookTradeCodec.encodePriceQuery(generator.offers(batch));
+		priceList = BookTradeCodec.encodePrices(BookTradeCodec.PRICE_LIST, 0, generator.offers(batch));
+	}
+
+	@Benchmark
+	public List<Offer> match() {
+		return PriceMatcher.match(catalogue, priceQuery);
+	}
+
+	@Benchmark
+	public List<Offer> adjust() {
+		List<Offer> others = BookTradeCodec.decodePrices(new BookTradeCodec.Decoder(priceList, BookTradeCodec.PRICE_LIST));
+		return catalogue.lowerPrices(others);
+	}
+}
@@ -0,0 +1,56 @@
+package firstAgent.jmh;
+
+import jade.core.AID;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import firstAgent.BookTradeCodec;
+import firstAgent.ProposalSelector;
+import firstAgent.bench.CatalogueGenerator;
+
+/**
+ * The buyer's handling of a CFP round in RequestPerformer: decoding the proposals of
+ * the sellers, keeping the acceptable ones and selecting the cheapest for the copies
+ * wanted. The score is the time of a whole round.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProposalSelectionBenchmark {
+	@Param({"20", "200"})
+	public int sellers;
+
+	@Param({"1", "5"})
+	public int copies;
+
+	private byte[][] proposals;
+	private AID[] sellerAids;
+
+	@Setup
+	public void generate() {
+		CatalogueGenerator generator = new CatalogueGenerator(1000, 42);
+		proposals = new byte[sellers][];
+		sellerAids = new AID[sellers];
+		for (int i = 0; i < sellers; ++i) {
+			proposals[i] = BookTradeCodec.encodeProposal(generator.randomPrice(), generator.randomState(), 1 + i % 3, i + 1);
+			sellerAids[i] = new AID("seller-"+i+"@bench", AID.ISGUID);
+		}
+	}
+
+	@Benchmark
+	public List<ProposalSelector.Proposal> round() {
+		// The prices are up to 100: about half of the proposals are acceptable
+		ProposalSelector selector = new ProposalSelector(50);
+		for (int i = 0; i < sellers; ++i) {
+			BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(proposals[i], BookTradeCodec.PROPOSAL);
+			selector.propose(sellerAids[i], decoder.readNumber(), decoder.readState(), decoder.readNumber(), decoder.readLong());
+		}
+		return selector.select(copies);
+	}
+}
@@ -0,0 +1,81 @@
+package firstAgent.jmh;
+
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import firstAgent.MessageRouter;
+
+/**
+ * The dispatch of the requests of a seller by MessageRouter: the mix of messages a
+ * seller receives (mostly CFPs, then purchase orders, rejections and the messages of
+ * both sync modes) is posted to the mailbox of an agent outside any container, and the
+ * router serves it by batches of batchSize messages. The handlers only count the
+ * messages, so that the score is the cost of queueing and dispatching one message.
+ * DispatchBenchmark compares the router with one behaviour per kind of request, on a
+ * running platform.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouterDispatchBenchmark {
+	private static final int MESSAGES = 1024;
+	// The requests of a seller, as {performative, conversation id, priority}
+	private static final Object[][] KINDS = {
+		{ACLMessage.CFP, "book-trade", MessageRouter.NORMAL},
+		{ACLMessage.ACCEPT_PROPOSAL, "book-trade", MessageRouter.HIGH},
+		{ACLMessage.REJECT_PROPOSAL, "book-trade", MessageRouter.HIGH},
+		{ACLMessage.QUERY_IF, "price-sync", MessageRouter.LOW},
+		{ACLMessage.INFORM, "price-sync", MessageRouter.LOW},
+		{ACLMessage.QUERY_IF, "price-delta", MessageRouter.LOW},
+		{ACLMessage.QUERY_REF, "price-delta", MessageRouter.LOW},
+	};
+	// Out of 16 messages, the kind of each one: mostly CFPs, as in a trading session
+	private static final int[] MIX = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 2, 3, 4, 5, 5, 6};
+
+	@Param({"64"})
+	public int batchSize;
+
+	private Agent agent;
+	private MessageRouter router;
+	private ACLMessage[] messages = new ACLMessage[MESSAGES];
+	private long served = 0;
+
+	@Setup
+	public void prepare() {
+		agent = new Agent();
+		router = new MessageRouter(agent, batchSize);
+		MessageRouter.Handler counter = new MessageRouter.Handler() {
+			public void handle(ACLMessage msg) {
+				served++;
+			}
+		};
+		for (Object[] kind : KINDS) {
+			router.route((Integer) kind[0], (String) kind[1], counter, (Integer) kind[2]);
+		}
+		for (int i = 0; i < MESSAGES; ++i) {
+			Object[] kind = KINDS[MIX[i % MIX.length]];
+			messages[i] = new ACLMessage((Integer) kind[0]);
+			messages[i].setConversationId((String) kind[1]);
+			messages[i].setByteSequenceContent(new byte[] {1, 2, 3});
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public long dispatch() {
+		for (ACLMessage msg : messages) {
+			agent.postMessage(msg);
+		}
+		while (agent.getCurQueueSize() > 0 || router.getQueued() > 0) {
+			router.action();
+		}
+		return served;
+	}
+}
@@ -0,0 +1,129 @@
+package firstAgent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A levelled, asynchronous logger for the behaviours of the agents.
+ * Printing to the console from the agent threads made console I/O the main cost of
+ * serving a CFP, so:
+ *   - the level is OFF by default (start-up option log=error|warn|info|debug), and a
+ *     disabled call returns after a single comparison;
+ *   - the message is formatted and printed by a single writer thread shared by all the
+ *     agents of the JVM, not by the agent thread. The arguments are kept as they are
+ *     until then, so they must not be changed after the call;
+ *   - when the writer cannot keep up, messages are dropped rather than blocking the
+ *     agents; the number of dropped messages is counted (see getDropped).
+ */
+public class AgentLog {
+	public enum Level { OFF, ERROR, WARN, INFO, DEBUG }
+
+	// A message waiting for the writer thread
+	private static class Entry {
+		final String prefix;
+		final String format;
+		final Object[] args;
+
+		Entry(String prefix, String format, Object[] args) {
+			this.prefix = prefix;
+			this.format = format;
+			this.args = args;
+		}
+	}
+
+	private static final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(1 << 16);
+	private static final AtomicLong dropped = new AtomicLong();
+	private static volatile Thread writer;
+
+	private final String name;
+	private volatile Level level;
+
+	public AgentLog(String name, Level level) {
+		this.name = name;
+		this.level = level;
+	}
+
+	/**
+	 * Returns the level of a start-up option value, e.g. "info"; OFF if it is null.
+	 */
+	public static Level parseLevel(String value) {
+		return value == null ? Level.OFF : Level.valueOf(value.trim().toUpperCase());
+	}
+
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+
+	public Level getLevel() {
+		return level;
+	}
+
+	public boolean isEnabled(Level messageLevel) {
+		return messageLevel != Level.OFF && messageLevel.ordinal() <= level.ordinal();
+	}
+
+	public void error(String format, Object... args) {
+		log(Level.ERROR, format, args);
+	}
+
+	public void warn(String format, Object... args) {
+		log(Level.WARN, format, args);
+	}
+
+	public void info(String format, Object... args) {
+		log(Level.INFO, format, args);
+	}
+
+	public void debug(String format, Object... args) {
+		log(Level.DEBUG, format, args);
+	}
+
+	/**
+	 * Queues the message for the writer thread. The format is a String.format() format.
+	 */
+	public void log(Level messageLevel, String format, Object... args) {
+		if (!isEnabled(messageLevel)) {
+			return;
+		}
+		if (writer == null) {
+			startWriter();
+		}
+		if (!queue.offer(new Entry(messageLevel+" "+name+": ", format, args))) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	// The number of messages dropped because the queue was full
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	private static synchronized void startWriter() {
+		if (writer != null) {
+			return;
+		}
+		writer = new Thread("agent-log-writer") {
+			public void run() {
+				StringBuilder line = new StringBuilder();
+				while (true) {
+					try {
+						Entry entry = queue.take();
+						line.setLength(0);
+						line.append(entry.prefix);
+						line.append(entry.args.length == 0 ? entry.format : String.format(entry.format, entry.args));
+						System.out.println(line);
+					}
+					catch (InterruptedException ie) {
+						return;
+					}
+					catch (RuntimeException re) {
+						// A bad format must not stop the logging of the other agents
+						re.printStackTrace();
+					}
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+}
@@ -0,0 +1,195 @@
+package firstAgent;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.*;
+
+/**
+ * The metrics of one agent: counters, gauges and latency histograms, by name.
+ *   - counters are AtomicLongs, registered once at set-up: the behaviours keep them in
+ *     fields and increment them without any lookup;
+ *   - gauges are read when the metrics are read, e.g. the depth of the mailbox;
+ *   - histograms are LatencyRecorders; their count, p50, p99 and max are reported.
+ * The metrics are exposed through JMX, as the attributes of the MBean
+ * firstAgent:type=AgentMetrics,name=<agent local name>, and can be written to a
+ * snapshot file in the properties format (see writeSnapshot).
+ */
+public class AgentMetrics implements DynamicMBean {
+	/**
+	 * A value read when the metrics are read.
+	 */
+	public interface Gauge {
+		long value();
+	}
+
+	private final String agentName;
+	private final ConcurrentSkipListMap<String, AtomicLong> counters = new ConcurrentSkipListMap<String, AtomicLong>();
+	private final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+	private final ConcurrentSkipListMap<String, LatencyRecorder> histograms = new ConcurrentSkipListMap<String, LatencyRecorder>();
+	private ObjectName objectName;
+
+	public AgentMetrics(String agentName) {
+		this.agentName = agentName;
+	}
+
+	/**
+	 * Returns the counter with this name, created if needed.
+	 */
+	public AtomicLong counter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new AtomicLong());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Returns the histogram with this name, created if needed. By convention the name
+	 * ends with the unit, e.g. "cfp.serviceMicros".
+	 */
+	public LatencyRecorder histogram(String name) {
+		return histogram(name, null);
+	}
+
+	/**
+	 * Adds an existing recorder as a histogram, or returns the histogram with this name.
+	 */
+	public LatencyRecorder histogram(String name, LatencyRecorder recorder) {
+		LatencyRecorder histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, recorder != null ? recorder : new LatencyRecorder());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the current values, sorted by name. A histogram h gives h.count, h.p50,
+	 * h.p99 and h.max.
+	 */
+	public SortedMap<String, Long> snapshot() {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+			values.put(counter.getKey(), counter.getValue().get());
+		}
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			values.put(gauge.getKey(), gauge.getValue().value());
+		}
+		for (Map.Entry<String, LatencyRecorder> histogram : histograms.entrySet()) {
+			String name = histogram.getKey();
+			LatencyRecorder recorder = histogram.getValue();
+			values.put(name+".count", recorder.getCount());
+			values.put(name+".p50", recorder.percentile(50));
+			values.put(name+".p99", recorder.percentile(99));
+			values.put(name+".max", recorder.getMax());
+		}
+		return values;
+	}
+
+	/**
+	 * Writes the current values to the file, one name=value line each. The file is
+	 * replaced atomically, so a reader never sees a partial snapshot.
+	 */
+	public void writeSnapshot(File file) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create "+directory);
+		}
+		File temporary = new File(directory, file.getName()+".tmp");
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary),
+				StandardCharsets.UTF_8))) {
+			out.write("# Metrics of "+agentName+" at "+new Date()+"\n");
+			for (Map.Entry<String, Long> value : snapshot().entrySet()) {
+				out.write(value.getKey()+"="+value.getValue()+"\n");
+			}
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Registers the metrics in the platform MBean server.
+	 */
+	public void register() {
+		try {
+			objectName = new ObjectName("firstAgent:type=AgentMetrics,name="+ObjectName.quote(agentName));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				// An agent with the same name was not cleaned up
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+		}
+		catch (JMException jme) {
+			jme.printStackTrace();
+			objectName = null;
+		}
+	}
+
+	public void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch (JMException jme) {
+			jme.printStackTrace();
+		}
+		objectName = null;
+	}
+
+	// DynamicMBean: each value of the snapshot is a read-only attribute
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		SortedMap<String, Long> values = snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Long value = values.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName()+" is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name : snapshot().keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics of the agent "+agentName,
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+}
@@ -0,0 +1,213 @@
+package firstAgent;
+
+import java.awt.GraphicsEnvironment;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * The start-up options of the book-trading agents.
+ * Options are given as agent arguments of the form key=value, for instance
+ *   seller1:firstAgent.BookSellerAgent(gui=false,sync=full)
+ * or in a properties file given with the config=<path> argument. Arguments given
+ * after config= override the values of the file.
+ *
+ * Besides the agent specific options, the file can preload the catalogue of a seller
+ * and the targets of a buyer, one entry per key:
+ *   book.1=The Hobbit;Good;12
+ *   book.2=The Hobbit;Used;8;20        (20 copies)
+ *   target.1=The Hobbit;Used;15
+ *   target.2=The Hobbit;Damaged;10;5   (5 copies)
+ * When the agents are created from code, Offer and PurchaseTarget objects can also be
+ * given directly as arguments.
+ *
+ * Without a display, or with gui=false, the agents run headless.
+ *
+ * Seller options: sync=delta|full|index (index: publish the changes to the price index,
+ * see PriceIndexAgent), syncPeriod=<milliseconds> between two synchronizations,
+ * store=<directory> to persist the catalogue (see CatalogueStore), storeSync=true to
+ * force each flush to the disk, storeMmap=true to memory-map the snapshot on start-up,
+ * storeCompaction=<bytes> for the log size that triggers a snapshot, holds=false to
+ * stop holding the proposed copies (see ReservationTable), holdTtl=<milliseconds> for
+ * the time a proposed copy stays held, import=<file> to bulk import a CSV or JSON-lines
+ * file on start-up and export=<file> to write the catalogue to such a file on
+ * termination (see CatalogueTransfer); the preloaded and imported books are ignored
+ * when the catalogue is recovered from the store,
+ * dispatchBatch=<messages> for the number of requests served in a row (see MessageRouter),
+ * shards=<list> for the shards carried by the seller in a sharded fleet, e.g. 0,3-5
+ * (all by default), titleIndex=false to match the CFPs on the exact titles only (see
+ * TitleIndex), queueCapacity=<messages> for the number of requests waiting per priority
+ * above which they are shed, 0 for no limit (see MessageRouter).
+ * Buyer options: quorum, deadline, negotiations, exitWhenDone, offerCache=false to ask
+ * every seller at each CFP, offerCacheTtl=<milliseconds> for the time a reply of a seller
+ * is remembered and offerCacheSize=<replies> (see OfferCache), basket=<items> to buy the
+ * targets in baskets of up to this many items with a single CFP per basket and
+ * orderCost=<price> for the cost of an order to a seller when a basket is split among
+ * the sellers (see BasketSolver), search=<results> to ask the sellers for the titles
+ * matching the targets rather than the exact titles, up to this many per seller.
+ * Both agents: shardCount=<count> to shard the titles among the sellers (see TitleShards),
+ * log=off|error|warn|info|debug for the log of the behaviours (see AgentLog, off by
+ * default), jmx=false to not register the metrics as an MBean, metrics=<directory>
+ * to write them to <directory>/<agent>.metrics every metricsPeriod milliseconds (see
+ * AgentMetrics), titleDictionary=false for the agent to keep its own copies of the
+ * titles instead of sharing them with the other agents of the JVM (see TitleDictionary),
+ * ledger=<directory> to record the trades, and the reprices of a seller, in
+ * <directory>/<agent> and ledgerSegment=<bytes> for the size of its files (see
+ * TradeLedger and LedgerQuery).
+ */
+public class AgentOptions {
+	private Properties properties = new Properties();
+	// The arguments that are not key=value strings
+	private List<Object> objects = new ArrayList<Object>();
+
+	public AgentOptions(Object[] args) {
+		if (args == null) {
+			return;
+		}
+		for (Object arg : args) {
+			if (!(arg instanceof String) || ((String) arg).indexOf('=') < 0) {
+				objects.add(arg);
+				continue;
+			}
+			String option = (String) arg;
+			String key = option.substring(0, option.indexOf('=')).trim();
+			String value = option.substring(option.indexOf('=') + 1).trim();
+			if (key.equals("config")) {
+				load(value);
+			}
+			else {
+				properties.setProperty(key, value);
+			}
+		}
+	}
+
+	private void load(String path) {
+		try (InputStream in = new FileInputStream(path)) {
+			properties.load(in);
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	public String getString(String key, String defaultValue) {
+		return properties.getProperty(key, defaultValue);
+	}
+
+	public int getInt(String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	public long getLong(String key, long defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * Returns true if the GUI must be shown: gui=true, or a display is available and
+	 * gui=false was not given.
+	 */
+	public boolean isGuiEnabled() {
+		return getBoolean("gui", !GraphicsEnvironment.isHeadless());
+	}
+
+	/**
+	 * Returns the books to preload in a seller's catalogue: the book.* entries
+	 * (title;state;price, or title;state;price;quantity) and the Offer arguments.
+	 */
+	public List<Offer> getOffers() {
+		List<Offer> offers = new ArrayList<Offer>();
+		for (String entry : getEntries("book.")) {
+			String[] fields = splitEntry(entry);
+			offers.add(new Offer(fields[0], BookState.fromLabel(fields[1]), Integer.parseInt(fields[2]),
+					Integer.parseInt(fields[3])));
+		}
+		for (Object object : objects) {
+			if (object instanceof Offer) {
+				offers.add((Offer) object);
+			}
+		}
+		return offers;
+	}
+
+	/**
+	 * Returns the targets of a buyer: the target.* entries (title;state;maxPrice, or
+	 * title;state;maxPrice;quantity) and the PurchaseTarget arguments.
+	 */
+	public List<PurchaseTarget> getTargets() {
+		List<PurchaseTarget> targets = new ArrayList<PurchaseTarget>();
+		for (String entry : getEntries("target.")) {
+			String[] fields = splitEntry(entry);
+			targets.add(new PurchaseTarget(fields[0], BookState.fromLabel(fields[1]), Integer.parseInt(fields[2]),
+					Integer.parseInt(fields[3])));
+		}
+		for (Object object : objects) {
+			if (object instanceof PurchaseTarget) {
+				targets.add((PurchaseTarget) object);
+			}
+		}
+		return targets;
+	}
+
+	// The values of the keys starting with the prefix, in the order of the keys
+	private List<String> getEntries(String prefix) {
+		TreeMap<String, String> entries = new TreeMap<String, String>(new Comparator<String>() {
+			public int compare(String a, String b) {
+				// book.2 comes before book.10
+				return a.length() != b.length() ? a.length() - b.length() : a.compareTo(b);
+			}
+		});
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				entries.put(key, properties.getProperty(key));
+			}
+		}
+		return new ArrayList<String>(entries.values());
+	}
+
+	// Splits title;state;price[;quantity] from the right, so that the title may contain ';'.
+	// The quantity is 1 when it is not given
+	private static String[] splitEntry(String entry) {
+		String[] fields = splitRight(entry, 4);
+		if (fields != null && isState(fields[1])) {
+			return fields;
+		}
+		fields = splitRight(entry, 3);
+		if (fields == null) {
+			throw new IllegalArgumentException("Expected title;state;price but got: "+entry);
+		}
+		return new String[] {fields[0], fields[1], fields[2], "1"};
+	}
+
+	// Splits the entry in count fields at its last count-1 ';', or returns null
+	private static String[] splitRight(String entry, int count) {
+		String[] fields = new String[count];
+		int end = entry.length();
+		for (int i = count - 1; i > 0; --i) {
+			int separator = entry.lastIndexOf(';', end - 1);
+			if (separator <= 0) {
+				return null;
+			}
+			fields[i] = entry.substring(separator + 1, end).trim();
+			end = separator;
+		}
+		fields[0] = entry.substring(0, end).trim();
+		return fields;
+	}
+
+	private static boolean isState(String label) {
+		for (String state : BookState.labels()) {
+			if (state.equals(label)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,141 @@
+package firstAgent;
+
+import jade.core.Profile;
+import jade.core.ProfileException;
+import jade.core.ProfileImpl;
+import jade.core.ResourceManager;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A JADE profile choosing the threads the user agents of a container run on, for the
+ * containers created from code (LoadTest, the benchmarks, a launcher).
+ * JADE runs each agent on its own thread, which spends most of its time waiting in
+ * block() for a message or the next tick. With thousands of agents per container, the
+ * platform threads (their stacks and the context switches) dominate.
+ *   - PLATFORM: the threads of JADE; with a stack size, platform threads with this
+ *     stack size instead.
+ *   - VIRTUAL: virtual threads, run by the JVM on a small work-stealing pool of carrier
+ *     threads (one per core). An agent waiting in block() does not hold a carrier thread.
+ * The scheduler of the behaviours inside each agent is not changed, so the behaviours
+ * keep their semantics: only the thread the agent loop runs on differs. The JADE system
+ * agents (AMS, DF) keep the threads of JADE.
+ * Virtual threads need Java 21 while the agents are built for Java 8, so they are created
+ * through reflection; on an older JVM the VIRTUAL mode falls back to platform threads.
+ * Before Java 24, a virtual thread waiting inside a synchronized block (as JADE does for
+ * the mailbox) pins its carrier thread, which limits the gain.
+ */
+public class AgentThreadProfile extends ProfileImpl {
+	public enum Mode { PLATFORM, VIRTUAL }
+
+	// Thread.ofVirtual() and the methods of Thread.Builder, null before Java 21
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method UNSTARTED;
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		}
+		catch (ReflectiveOperationException roe) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+	}
+
+	private final Mode mode;
+	private final long stackSize;
+	private ResourceManager resourceManager;
+	// The number of threads created for user agents
+	private final AtomicLong threads = new AtomicLong();
+
+	public AgentThreadProfile(boolean isMain, Mode mode, long stackSize) {
+		super(isMain);
+		this.mode = supported(mode);
+		this.stackSize = stackSize;
+	}
+
+	public AgentThreadProfile(String host, int port, String platformId, Mode mode, long stackSize) {
+		super(host, port, platformId);
+		this.mode = supported(mode);
+		this.stackSize = stackSize;
+	}
+
+	private static Mode supported(Mode mode) {
+		if (mode == Mode.VIRTUAL && OF_VIRTUAL == null) {
+			System.out.println("Virtual threads need Java 21: the agents run on platform threads");
+			return Mode.PLATFORM;
+		}
+		return mode;
+	}
+
+	/**
+	 * Returns the mode of an option value, "platform" or "virtual"; PLATFORM if it is null.
+	 */
+	public static Mode parseMode(String value) {
+		return value == null ? Mode.PLATFORM : Mode.valueOf(value.trim().toUpperCase());
+	}
+
+	public static boolean isVirtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	// The mode actually used
+	public Mode getMode() {
+		return mode;
+	}
+
+	public long getThreads() {
+		return threads.get();
+	}
+
+	public ResourceManager getResourceManager() throws ProfileException {
+		if (resourceManager == null) {
+			resourceManager = new AgentThreads(super.getResourceManager());
+		}
+		return resourceManager;
+	}
+
+	// Creates the threads of the user agents, and leaves the others to JADE
+	private class AgentThreads implements ResourceManager {
+		private final ResourceManager jade;
+
+		AgentThreads(ResourceManager jade) {
+			this.jade = jade;
+		}
+
+		public Thread getThread(int type, String name, Runnable runnable) {
+			if (type != USER_AGENTS) {
+				return jade.getThread(type, name, runnable);
+			}
+			threads.incrementAndGet();
+			if (mode == Mode.PLATFORM) {
+				return stackSize > 0 ? new Thread(null, runnable, name, stackSize) : jade.getThread(type, name, runnable);
+			}
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) UNSTARTED.invoke(builder, runnable);
+			}
+			catch (ReflectiveOperationException roe) {
+				roe.printStackTrace();
+				return jade.getThread(type, name, runnable);
+			}
+		}
+
+		public void releaseResources() {
+			jade.releaseResources();
+		}
+
+		public void initialize(Profile profile) {
+			jade.initialize(profile);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package firstAgent;
+
+/**
+ * A line of a basket purchase: copies of one item of the basket, proposed by a seller
+ * or ordered from it. The item is given by its index in the basket CFP and by its title;
+ * a proposal line carries the price of a copy, an order line does not (its price is 0).
+ */
+public final class BasketLine {
+	private final int item;
+	private final String title;
+	private final BookState state;
+	private final int price;
+	private final int quantity;
+	private final long reservation;
+
+	public BasketLine(int item, String title, BookState state, int price, int quantity, long reservation) {
+		this.item = item;
+		this.title = title;
+		this.state = state;
+		this.price = price;
+		this.quantity = quantity;
+		this.reservation = reservation;
+	}
+
+	// The index of the item in the basket
+	public int getItem() {
+		return item;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	// The actual state of the copies
+	public BookState getState() {
+		return state;
+	}
+
+	public int getPrice() {
+		return price;
+	}
+
+	public int getQuantity() {
+		return quantity;
+	}
+
+	// The reservation id given by the seller (0 if none)
+	public long getReservation() {
+		return reservation;
+	}
+
+	/**
+	 * Returns the same line for fewer copies, e.g. the copies ordered from a proposal.
+	 */
+	public BasketLine withQuantity(int quantity) {
+		return new BasketLine(item, title, state, price, quantity, reservation);
+	}
+
+	public String toString() {
+		return quantity+" x "+title+" in "+state.getLabel()+" state"+(price > 0 ? " at "+price : "");
+	}
+}
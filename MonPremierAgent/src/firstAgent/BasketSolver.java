@@ -0,0 +1,215 @@
+package firstAgent;
+
+import jade.core.AID;
+
+import java.util.*;
+
+/**
+ * Chooses, for a basket of books, which copies to order from which seller: the
+ * assignment of the items to the sellers at the lowest total cost, where the cost is
+ * the price of the copies plus an order cost for each seller ordered from (shipping,
+ * handling...).
+ * The proposals received for the basket are kept per item, cheapest first. For a given
+ * set of sellers, the cheapest assignment orders each item from the cheapest sellers of
+ * the set, as ProposalSelector does for a single book; the solver looks for the set of
+ * sellers minimizing the price of this assignment plus the order costs, among the sets
+ * buying as many copies as all the sellers together:
+ *   - without order cost, all the sellers: each copy comes from the cheapest proposal;
+ *   - with up to EXACT_SELLERS sellers, by trying every set of sellers;
+ *   - above that, by removing sellers one at a time from all of them, each time the one
+ *     whose removal lowers the cost the most, as long as the cost decreases.
+ * Proposals above the maximum price of their item are ignored.
+ */
+public class BasketSolver {
+	// The number of sellers up to which all the sets of sellers are tried
+	static final int EXACT_SELLERS = 12;
+
+	// A line proposed by a seller, given by its index among the sellers
+	private static final class Candidate {
+		final BasketLine line;
+		final int seller;
+
+		Candidate(BasketLine line, int seller) {
+			this.line = line;
+			this.seller = seller;
+		}
+	}
+
+	private static final Comparator<Candidate> BY_PRICE = new Comparator<Candidate>() {
+		public int compare(Candidate a, Candidate b) {
+			return Integer.compare(a.line.getPrice(), b.line.getPrice());
+		}
+	};
+
+	private final List<PurchaseTarget> items;
+	private final int orderCost;
+	// The sellers that proposed something acceptable, in the order received
+	private final List<AID> sellers = new ArrayList<AID>();
+	// Per item, the acceptable proposals, in the order received until solve() sorts them
+	private final List<List<Candidate>> proposals;
+
+	/**
+	 * @param items the items of the basket, with their minimum state, maximum price and quantity
+	 * @param orderCost the cost of an order to a seller, added once per seller ordered from
+	 */
+	public BasketSolver(List<PurchaseTarget> items, int orderCost) {
+		this.items = items;
+		this.orderCost = orderCost;
+		this.proposals = new ArrayList<List<Candidate>>(items.size());
+		for (int i = 0; i < items.size(); ++i) {
+			proposals.add(new ArrayList<Candidate>());
+		}
+	}
+
+	/**
+	 * Takes the lines proposed by a seller into account. Returns the number of lines kept:
+	 * the others are above the maximum price of their item or propose no copy.
+	 */
+	public int propose(AID seller, Collection<BasketLine> lines) {
+		int kept = 0;
+		int index = sellers.indexOf(seller);
+		for (BasketLine line : lines) {
+			if (line.getItem() < 0 || line.getItem() >= items.size() || line.getQuantity() <= 0
+					|| line.getPrice() > items.get(line.getItem()).getMaxPrice()) {
+				continue;
+			}
+			if (index < 0) {
+				index = sellers.size();
+				sellers.add(seller);
+			}
+			proposals.get(line.getItem()).add(new Candidate(line, index));
+			kept++;
+		}
+		return kept;
+	}
+
+	/**
+	 * Returns the cheapest assignment: the lines to order from each seller, with the number
+	 * of copies to order. Sellers with nothing to order are not in the map.
+	 */
+	public Map<AID, List<BasketLine>> solve() {
+		for (List<Candidate> candidates : proposals) {
+			// The sort is stable: on equal prices the first proposal received still wins
+			Collections.sort(candidates, BY_PRICE);
+		}
+		boolean[] chosen = new boolean[sellers.size()];
+		Arrays.fill(chosen, true);
+		Assignment all = assign(chosen);
+		Assignment best = all;
+		if (orderCost > 0 && sellers.size() > 1) {
+			best = sellers.size() <= EXACT_SELLERS ? searchAll(all.copies) : removeSellers(all);
+		}
+		Map<AID, List<BasketLine>> orders = new LinkedHashMap<AID, List<BasketLine>>();
+		for (int s = 0; s < sellers.size(); ++s) {
+			if (!best.lines.get(s).isEmpty()) {
+				orders.put(sellers.get(s), best.lines.get(s));
+			}
+		}
+		return orders;
+	}
+
+	/**
+	 * Returns the total cost of an assignment returned by solve(): the prices of the copies
+	 * ordered plus the order costs.
+	 */
+	public long cost(Map<AID, List<BasketLine>> orders) {
+		long cost = (long) orderCost * orders.size();
+		for (List<BasketLine> lines : orders.values()) {
+			for (BasketLine line : lines) {
+				cost += (long) line.getPrice() * line.getQuantity();
+			}
+		}
+		return cost;
+	}
+
+	// Tries every set of sellers buying all the copies
+	private Assignment searchAll(int copies) {
+		int n = sellers.size();
+		boolean[] chosen = new boolean[n];
+		Assignment best = null;
+		for (int set = 1; set < (1 << n); ++set) {
+			for (int s = 0; s < n; ++s) {
+				chosen[s] = (set & (1 << s)) != 0;
+			}
+			Assignment assignment = assign(chosen);
+			if (assignment.copies == copies && (best == null || assignment.cost < best.cost)) {
+				best = assignment;
+			}
+		}
+		return best;
+	}
+
+	// Removes the sellers one at a time while the cost decreases, keeping all the copies
+	private Assignment removeSellers(Assignment all) {
+		int n = sellers.size();
+		boolean[] chosen = new boolean[n];
+		Arrays.fill(chosen, true);
+		Assignment best = all;
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			int removed = -1;
+			Assignment next = best;
+			for (int s = 0; s < n; ++s) {
+				if (!chosen[s]) {
+					continue;
+				}
+				chosen[s] = false;
+				Assignment assignment = assign(chosen);
+				chosen[s] = true;
+				if (assignment.copies == all.copies && assignment.cost < next.cost) {
+					next = assignment;
+					removed = s;
+				}
+			}
+			if (removed >= 0) {
+				chosen[removed] = false;
+				best = next;
+				improved = true;
+			}
+		}
+		return best;
+	}
+
+	// Orders each item from the cheapest chosen sellers
+	private Assignment assign(boolean[] chosen) {
+		Assignment assignment = new Assignment(sellers.size());
+		for (int i = 0; i < items.size(); ++i) {
+			int wanted = items.get(i).getQuantity();
+			for (Candidate candidate : proposals.get(i)) {
+				if (wanted <= 0) {
+					break;
+				}
+				if (!chosen[candidate.seller]) {
+					continue;
+				}
+				BasketLine line = candidate.line;
+				int copies = Math.min(wanted, line.getQuantity());
+				assignment.lines.get(candidate.seller).add(copies == line.getQuantity() ? line : line.withQuantity(copies));
+				assignment.copies += copies;
+				assignment.cost += (long) line.getPrice() * copies;
+				wanted -= copies;
+			}
+		}
+		for (List<BasketLine> lines : assignment.lines) {
+			if (!lines.isEmpty()) {
+				assignment.cost += orderCost;
+			}
+		}
+		return assignment;
+	}
+
+	// The lines ordered from each seller, with the number of copies and the total cost
+	private static final class Assignment {
+		final List<List<BasketLine>> lines;
+		int copies = 0;
+		long cost = 0;
+
+		Assignment(int sellers) {
+			lines = new ArrayList<List<BasketLine>>(sellers);
+			for (int s = 0; s < sellers; ++s) {
+				lines.add(new ArrayList<BasketLine>());
+			}
+		}
+	}
+}
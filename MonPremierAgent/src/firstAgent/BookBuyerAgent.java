@@ -28,58 +28,181 @@ import jade.core.AID;
 import jade.core.behaviours.*;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
-import jade.domain.DFService;
-import jade.domain.FIPAException;
-import jade.domain.FIPAAgentManagement.DFAgentDescription;
-import jade.domain.FIPAAgentManagement.ServiceDescription;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BookBuyerAgent extends Agent {
-	// The title of the book to buy
-	private String targetBookTitle;
-	private String targetBookState;
-	private Integer targetBookMaxPrice;
-	
-	private Boolean agentInit;
-	// The list of known seller agents
-	private AID[] sellerAgents;
+	// The conversation id of the negotiations is this prefix followed by a number
+	static final String CONVERSATION_PREFIX = "book-trade-";
+
+	// The books to buy that are not being negotiated yet
+	private LinkedList<PurchaseTarget> pendingTargets = new LinkedList<PurchaseTarget>();
+	// The books whose last negotiation failed, tried again at the next tick
+	private LinkedList<PurchaseTarget> retryTargets = new LinkedList<PurchaseTarget>();
+	// The sellers that shed a request (see MessageRouter), with the time before which they are not asked again
+	private HashMap<AID, Long> overloadedSellers = new HashMap<AID, Long>();
+	// The number of negotiations running at the same time is bounded
+	private int maxNegotiations = 100;
+	private int runningNegotiations = 0;
+	private int purchasedTargets = 0;
+	// If true, the agent terminates once all its targets are bought
+	private boolean exitWhenDone = true;
+	private long conversationCounter = 0;
+
+	// The cached view of the seller agents registered in the yellow pages
+	private SellerDirectory sellerDirectory;
+	// The titles of the targets are shared with the other agents of the JVM (see TitleDictionary),
+	// unless the start-up option titleDictionary=false is given
+	private TitleDictionary titles;
+	// Records the purchases when the option ledger=<directory> is given (see TradeLedger)
+	private TradeLedger ledger;
+
+	// If positive, the pending targets are bought in baskets of up to this many items,
+	// with a single CFP per basket (start-up option basket=<items>, see BasketPerformer)
+	private int basketSize = 0;
+	// The cost of an order to a seller, weighed against the prices when a basket is split
+	// among the sellers (start-up option orderCost=<price>, see BasketSolver)
+	private int orderCost = 0;
+	// If positive, the CFPs ask for the titles matching the target rather than for the exact
+	// title, and each seller proposes up to this many matches (start-up option search=<results>,
+	// see TitleIndex)
+	private int searchResults = 0;
+
+	// A CFP round is decided after this many replies (0 means all the sellers) ...
+	private int replyQuorum = 0;
+	// ... or after this many milliseconds, whichever comes first
+	private long roundDeadline = 5000;
+	// Maps the reply-with value of the messages whose replies are still awaited
+	// to the negotiation that sent them
+	private HashMap<String, Negotiation> awaitedReplies = new HashMap<String, Negotiation>();
+	// Latency of the CFP rounds, from the CFP to the decision
+	private LatencyRecorder roundLatency = new LatencyRecorder();
+	// The recent replies of the sellers, to choose the sellers of a CFP (see OfferCache).
+	// Null when turned off with the start-up option "offerCache=false"
+	private OfferCache offerCache;
+
+	// The counters and latencies of the negotiations, exposed through JMX (see AgentMetrics)
+	private AgentMetrics metrics;
+	private AtomicLong cfpsSent, proposalsReceived, refusalsReceived, refusalsShed, ordersSent, purchases, copiesPurchased,
+			ordersFailed, ordersUnanswered, negotiationsFailed, lateReplies, sellersSkipped, secondRounds, baskets;
+	// Latency of the purchase orders, from the orders to the last reply
+	private LatencyRecorder orderLatency;
+	// Time from the first CFP of a negotiation to a purchase
+	private LatencyRecorder purchaseLatency;
+	// Written every metricsPeriod milliseconds when the option metrics=<directory> is given
+	private File metricsFile;
+	// The log of the behaviours, off unless the option log=<level> is given (see AgentLog)
+	private AgentLog log;
 	
 	private BookBuyerGui myGui;
 
 	// Put agent initializations here
 	protected void setup() {
-		// Printout a welcome message
-		
-		agentInit = false;
+		// Read the start-up options (see AgentOptions): quorum=<replies>, deadline=<milliseconds>,
+		// negotiations=<max>, exitWhenDone=<true|false>, basket=<items>, orderCost=<price> and the targets
+		AgentOptions options = new AgentOptions(getArguments());
+		replyQuorum = options.getInt("quorum", replyQuorum);
+		roundDeadline = options.getLong("deadline", roundDeadline);
+		maxNegotiations = options.getInt("negotiations", maxNegotiations);
+		exitWhenDone = options.getBoolean("exitWhenDone", exitWhenDone);
+		basketSize = options.getInt("basket", basketSize);
+		orderCost = options.getInt("orderCost", orderCost);
+		searchResults = options.getInt("search", searchResults);
+		if (options.getBoolean("offerCache", true)) {
+			offerCache = new OfferCache(options.getLong("offerCacheTtl", 30000), options.getInt("offerCacheSize", 10000));
+		}
+		log = new AgentLog(getLocalName(), AgentLog.parseLevel(options.getString("log", null)));
+		registerMetrics();
+		if (options.getBoolean("titleDictionary", true)) {
+			titles = TitleDictionary.shared();
+		}
+		for (PurchaseTarget target : options.getTargets()) {
+			pendingTargets.add(shared(target));
+		}
+		// The targets are read: do not keep the arguments, and their titles, for the life of the agent
+		setArguments(null);
 		
-		myGui = new BookBuyerGui(this);
-		myGui.showGui();
+		// By default the GUI is only shown when the targets were not given at start-up
+		if (options.getBoolean("gui", pendingTargets.isEmpty() && options.isGuiEnabled())) {
+			myGui = new BookBuyerGui(this);
+			myGui.showGui();
+		}
 
-		// Add a TickerBehaviour that schedules a request to seller agents every 10 seconds
-		
-		addBehaviour(new TickerBehaviour(this, 10000) {
-			protected void onTick() {
-				if(agentInit) {
-					System.out.println("Trying to buy "+targetBookTitle+" in at least "+targetBookState+" state.");
-					// Update the list of seller agents
-					DFAgentDescription template = new DFAgentDescription();
-					ServiceDescription sd = new ServiceDescription();
-					sd.setType("book-selling");
-					template.addServices(sd);
-					try {
-						DFAgentDescription[] result = DFService.search(myAgent, template); 
-						System.out.println("Found the following seller agents:");
-						sellerAgents = new AID[result.length];
-						for (int i = 0; i < result.length; ++i) {
-							sellerAgents[i] = result[i].getName();
-							System.out.println(sellerAgents[i].getName());
+		// Accept targets from code running outside the agent (see O2AServer)
+		setEnabledO2ACommunication(true, 0);
+		O2AServer o2aServer = new O2AServer();
+		setO2AManager(o2aServer);
+		addBehaviour(o2aServer);
+
+		// Subscribe to the registrations of seller agents in the yellow pages
+		sellerDirectory = new SellerDirectory(this, BookSellerAgent.SERVICE_TYPE, SellerDirectory.DEFAULT_MAX_STALENESS);
+		int shardCount = options.getInt("shardCount", 0);
+		if (shardCount > 0) {
+			// Only ask the sellers of the shard of each title (see TitleShards)
+			sellerDirectory.setShards(new TitleShards(shardCount));
+		}
+		sellerDirectory.start();
+
+		// Dispatch the replies of the sellers to the negotiations
+		addBehaviour(new ReplyDispatcher());
+
+		// Start negotiating the targets given at start-up
+		if (!pendingTargets.isEmpty()) {
+			addBehaviour(new OneShotBehaviour() {
+				public void action() {
+					startNegotiations();
+				}
+			} );
+		}
+
+		// Publish the metrics through JMX and, if asked, in a file
+		if (options.getBoolean("jmx", true)) {
+			metrics.register();
+		}
+		String metricsDirectory = options.getString("metrics", null);
+		if (metricsDirectory != null) {
+			metricsFile = new File(metricsDirectory, getLocalName()+".metrics");
+			addBehaviour(new TickerBehaviour(this, options.getLong("metricsPeriod", 10000)) {
+				protected void onTick() {
+					writeMetrics();
+				}
+			} );
+		}
+
+		// Record the purchases in <ledger>/<agent local name>, written every second
+		String ledgerDirectory = options.getString("ledger", null);
+		if (ledgerDirectory != null) {
+			ledger = new TradeLedger(new File(ledgerDirectory, getLocalName()),
+					options.getLong("ledgerSegment", 64L * 1024 * 1024), 1024);
+			try {
+				ledger.open();
+				addBehaviour(new TickerBehaviour(this, 1000) {
+					protected void onTick() {
+						try {
+							ledger.flush();
+						}
+						catch (IOException ioe) {
+							ioe.printStackTrace();
 						}
 					}
-					catch (FIPAException fe) {
-						fe.printStackTrace();
-					}
-	
-					// Perform the request
-					myAgent.addBehaviour(new RequestPerformer());
+				} );
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace();
+				ledger = null;
+			}
+		}
+
+		// Add a TickerBehaviour that tries again every 10 seconds the targets that could not be bought
+		addBehaviour(new TickerBehaviour(this, 10000) {
+			protected void onTick() {
+				if (!retryTargets.isEmpty()) {
+					pendingTargets.addAll(retryTargets);
+					retryTargets.clear();
+					startNegotiations();
 				}
 			}
 		} );
@@ -88,39 +211,445 @@ public class BookBuyerAgent extends Agent {
 	// Put agent clean-up operations here
 	protected void takeDown() {
 		// Printout a dismissal message and closes the GUI
-		myGui.dispose();
-		System.out.println("Buyer-agent "+getAID().getName()+" terminating.");
+		sellerDirectory.stop();
+		if (myGui != null) {
+			myGui.dispose();
+		}
+		if (metricsFile != null) {
+			writeMetrics();
+		}
+		if (ledger != null) {
+			try {
+				ledger.close();
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+		metrics.unregister();
+		System.out.println("Seller directory of "+getAID().getName()+": "+sellerDirectory.report());
+		System.out.println("CFP rounds of "+getAID().getName()+": "+roundLatency.summary("ms"));
+		System.out.println("Buyer-agent "+getAID().getName()+" terminating after "+purchasedTargets+" copies purchased.");
 	}
 	
+	private void registerMetrics() {
+		metrics = new AgentMetrics(getLocalName());
+		cfpsSent = metrics.counter("cfp.sent");
+		proposalsReceived = metrics.counter("cfp.proposals");
+		refusalsReceived = metrics.counter("cfp.refusals");
+		refusalsShed = metrics.counter("cfp.shed");
+		ordersSent = metrics.counter("orders.sent");
+		purchases = metrics.counter("orders.purchased");
+		copiesPurchased = metrics.counter("orders.copiesPurchased");
+		ordersFailed = metrics.counter("orders.failed");
+		ordersUnanswered = metrics.counter("orders.unanswered");
+		negotiationsFailed = metrics.counter("negotiations.failed");
+		lateReplies = metrics.counter("replies.late");
+		sellersSkipped = metrics.counter("cfp.sellersSkipped");
+		secondRounds = metrics.counter("cfp.secondRounds");
+		baskets = metrics.counter("baskets.started");
+		metrics.histogram("round.latencyMillis", roundLatency);
+		orderLatency = metrics.histogram("order.latencyMillis");
+		purchaseLatency = metrics.histogram("purchase.latencyMillis");
+		metrics.gauge("mailbox.depth", new AgentMetrics.Gauge() {
+			public long value() {
+				return getCurQueueSize();
+			}
+		});
+		metrics.gauge("negotiations.running", new AgentMetrics.Gauge() {
+			public long value() {
+				return runningNegotiations;
+			}
+		});
+		metrics.gauge("targets.pending", new AgentMetrics.Gauge() {
+			public long value() {
+				return pendingTargets.size() + retryTargets.size();
+			}
+		});
+		metrics.gauge("df.searches", new AgentMetrics.Gauge() {
+			public long value() {
+				return sellerDirectory == null ? 0 : sellerDirectory.getDfSearches();
+			}
+		});
+		metrics.gauge("df.savedSearches", new AgentMetrics.Gauge() {
+			public long value() {
+				return sellerDirectory == null ? 0 : sellerDirectory.getSavedSearches();
+			}
+		});
+		metrics.gauge("offerCache.replies", new AgentMetrics.Gauge() {
+			public long value() {
+				return offerCache == null ? 0 : offerCache.size();
+			}
+		});
+		metrics.gauge("offerCache.hits", new AgentMetrics.Gauge() {
+			public long value() {
+				return offerCache == null ? 0 : offerCache.getHits();
+			}
+		});
+		metrics.gauge("offerCache.misses", new AgentMetrics.Gauge() {
+			public long value() {
+				return offerCache == null ? 0 : offerCache.getMisses();
+			}
+		});
+	}
+
+	private void writeMetrics() {
+		try {
+			metrics.writeSnapshot(metricsFile);
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
 	/**
     This is invoked by the GUI when the user enters the target book and its characteristics
 	 */
+	public void updateTarget(final String title, final int price, final String state, final int quantity) {
+		if (quantity <= 0) {
+			throw new IllegalArgumentException("Invalid number of copies: "+quantity);
+		}
+		addTarget(new PurchaseTarget(title, BookState.fromLabel(state), price, quantity));
+	}
+
 	public void updateTarget(final String title, final int price, final String state) {
+		updateTarget(title, price, state, 1);
+	}
+
+	/**
+	   Adds a book to buy. The negotiation starts as soon as fewer than
+	   maxNegotiations negotiations are running.
+	 */
+	public void addTarget(final PurchaseTarget target) {
 		addBehaviour(new OneShotBehaviour() {
 			public void action() {
-				
-				targetBookTitle = title;
-				targetBookState = state;
-				targetBookMaxPrice = price;
-				System.out.println("Hallo! Buyer-agent "+getAID().getName()+" is ready.");
-				System.out.println("Target book is "+targetBookTitle+" in at least "+targetBookState+" state, and max price "+targetBookMaxPrice+".");
-				agentInit = true;
+				log.info("Target book is %s.", target);
+				pendingTargets.add(shared(target));
+				startNegotiations();
+			}
+		} );
+	}
+
+	// Returns the target with the shared instance of its title
+	private PurchaseTarget shared(PurchaseTarget target) {
+		if (titles == null) {
+			return target;
+		}
+		String title = titles.intern(target.getTitle());
+		return title == target.getTitle() ? target
+				: new PurchaseTarget(title, target.getState(), target.getMaxPrice(), target.getQuantity());
+	}
+
+	// If the reply comes from a seller over capacity rather than without the book (see
+	// MessageRouter), the seller is not asked again before its retry-after hint expires.
+	// Returns the time it can be asked again, 0 for a reply without the hint
+	private long backOff(ACLMessage reply) {
+		String hint = reply.getUserDefinedParameter(MessageRouter.RETRY_AFTER);
+		if (hint == null) {
+			return 0;
+		}
+		long millis;
+		try {
+			millis = Math.max(0, Long.parseLong(hint.trim()));
+		}
+		catch (NumberFormatException nfe) {
+			log.warn("Invalid retry-after hint %s from %s", hint, reply.getSender().getName());
+			millis = 1000;
+		}
+		long until = System.currentTimeMillis() + millis;
+		Long previous = overloadedSellers.get(reply.getSender());
+		if (previous == null || previous < until) {
+			overloadedSellers.put(reply.getSender(), until);
+		}
+		return until;
+	}
+
+	// The sellers that can be asked now, i.e. all but those whose retry-after hint has not expired
+	private AID[] available(AID[] sellers) {
+		if (overloadedSellers.isEmpty()) {
+			return sellers;
+		}
+		long now = System.currentTimeMillis();
+		List<AID> available = new ArrayList<AID>(sellers.length);
+		for (AID seller : sellers) {
+			Long until = overloadedSellers.get(seller);
+			if (until != null && until <= now) {
+				overloadedSellers.remove(seller);
+				until = null;
+			}
+			if (until == null) {
+				available.add(seller);
+			}
+		}
+		return available.size() == sellers.length ? sellers : available.toArray(new AID[0]);
+	}
+
+	// The earliest time one of the sellers can be asked again
+	private long firstAvailable(AID[] sellers) {
+		long first = Long.MAX_VALUE;
+		for (AID seller : sellers) {
+			Long until = overloadedSellers.get(seller);
+			first = Math.min(first, until == null ? 0 : until);
+		}
+		return first;
+	}
+
+	// Tries the targets again at the given time rather than at the next tick
+	private void retryAt(final List<PurchaseTarget> targets, long time) {
+		retryTargets.addAll(targets);
+		addBehaviour(new WakerBehaviour(this, Math.max(1, time - System.currentTimeMillis())) {
+			protected void onWake() {
+				boolean retried = false;
+				for (PurchaseTarget target : targets) {
+					if (retryTargets.remove(target)) {
+						pendingTargets.add(target);
+						retried = true;
+					}
+				}
+				if (retried) {
+					startNegotiations();
+				}
 			}
 		} );
 	}
 
+	// Rejects a proposal received once its round was decided, so that the seller releases
+	// the copies it holds for it at once rather than when the hold expires. The seller
+	// only looks up the reservation ids of the rejected lines
+	private void rejectUnused(ACLMessage proposal) {
+		if (proposal.getPerformative() != ACLMessage.PROPOSE) {
+			return;
+		}
+		ACLMessage reject = proposal.createReply();
+		reject.setPerformative(ACLMessage.REJECT_PROPOSAL);
+		try {
+			BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(proposal.getByteSequenceContent(),
+					BookTradeCodec.PROPOSAL, BookTradeCodec.SEARCH_PROPOSAL, BookTradeCodec.BASKET_PROPOSAL);
+			if (decoder.getType() == BookTradeCodec.BASKET_PROPOSAL) {
+				List<BasketLine> held = new ArrayList<BasketLine>();
+				for (BasketLine line : BookTradeCodec.decodeBasketProposal(decoder, null)) {
+					if (line.getReservation() != 0) {
+						held.add(line);
+					}
+				}
+				if (held.isEmpty()) {
+					return;
+				}
+				reject.setByteSequenceContent(BookTradeCodec.encodeBasketOrder(held));
+			}
+			else {
+				// Only the best match of a search is held
+				BasketLine offer;
+				if (decoder.getType() == BookTradeCodec.SEARCH_PROPOSAL) {
+					offer = BookTradeCodec.decodeSearchProposal(decoder).get(0);
+				}
+				else {
+					int price = decoder.readNumber();
+					BookState state = decoder.readState();
+					int quantity = decoder.readNumber();
+					offer = new BasketLine(0, "", state, price, quantity, decoder.readLong());
+				}
+				if (offer.getReservation() == 0) {
+					return;
+				}
+				reject.setByteSequenceContent(BookTradeCodec.encodeOrder(offer.getTitle(), offer.getState(),
+						offer.getQuantity(), offer.getReservation()));
+			}
+		}
+		catch (RuntimeException e) {
+			log.warn("Malformed proposal from %s: %s", proposal.getSender().getName(), e.getMessage());
+			return;
+		}
+		sendMessage(reject);
+	}
+
+	// Sends a message and counts it in the process-wide trade statistics
+	void sendMessage(ACLMessage msg) {
+		send(msg);
+		TradeStats.recordSent(msg);
+	}
+
+	// Starts negotiating pending targets, up to maxNegotiations at the same time
+	private void startNegotiations() {
+		if (pendingTargets.isEmpty() || runningNegotiations >= maxNegotiations) {
+			return;
+		}
+		while (!pendingTargets.isEmpty() && runningNegotiations < maxNegotiations) {
+			runningNegotiations++;
+			if (basketSize > 0) {
+				// The sellers of all the items, each one once
+				List<PurchaseTarget> items = new ArrayList<PurchaseTarget>(Math.min(basketSize, pendingTargets.size()));
+				LinkedHashSet<AID> sellers = new LinkedHashSet<AID>();
+				while (!pendingTargets.isEmpty() && items.size() < basketSize) {
+					PurchaseTarget item = pendingTargets.poll();
+					items.add(item);
+					sellers.addAll(Arrays.asList(sellerDirectory.getSellers(item.getTitle())));
+				}
+				AID[] all = sellers.toArray(new AID[0]);
+				AID[] asked = available(all);
+				if (asked.length == 0 && all.length > 0) {
+					// All the sellers are overloaded: wait for the first one to accept requests again
+					runningNegotiations--;
+					retryAt(items, firstAvailable(all));
+					continue;
+				}
+				addBehaviour(new BasketPerformer(items, asked));
+				continue;
+			}
+			PurchaseTarget target = pendingTargets.poll();
+			AID[] all = sellerDirectory.getSellers(target.getTitle());
+			AID[] asked = available(all);
+			if (asked.length == 0 && all.length > 0) {
+				runningNegotiations--;
+				retryAt(Collections.singletonList(target), firstAvailable(all));
+				continue;
+			}
+			addBehaviour(new RequestPerformer(target, asked));
+		}
+	}
+
+	// Called when a negotiation ends, successfully or not, with the number of copies bought
+	// and the time the sellers that shed its requests can be asked again (0 if none did)
+	private void negotiationDone(PurchaseTarget target, int purchased, long retryTime) {
+		negotiationDone(Collections.singletonList(target), new int[] { purchased }, retryTime);
+	}
+
+	// Called when the negotiation of a basket ends, with the number of copies bought per item
+	private void negotiationDone(List<PurchaseTarget> targets, int[] purchased, long retryTime) {
+		runningNegotiations--;
+		List<PurchaseTarget> missing = new ArrayList<PurchaseTarget>();
+		for (int i = 0; i < targets.size(); ++i) {
+			PurchaseTarget target = targets.get(i);
+			purchasedTargets += purchased[i];
+			if (purchased[i] < target.getQuantity()) {
+				missing.add(target.withQuantity(target.getQuantity() - purchased[i]));
+			}
+			if (purchased[i] == 0) {
+				TradeStats.recordFailedNegotiation();
+				negotiationsFailed.incrementAndGet();
+			}
+		}
+		// Try again later for the copies not bought: once the overloaded sellers accept
+		// requests again, otherwise at the next tick
+		if (retryTime > 0 && !missing.isEmpty()) {
+			retryAt(missing, retryTime);
+		}
+		else {
+			retryTargets.addAll(missing);
+		}
+		startNegotiations();
+		if (exitWhenDone && runningNegotiations == 0 && pendingTargets.isEmpty() && retryTargets.isEmpty()) {
+			// All the books were bought. We can terminate
+			doDelete();
+		}
+	}
+
+	/**
+	   Inner class O2AServer.
+	   This is the behaviour used by Book-buyer agents to receive targets from code
+	   running outside the agent (a launcher, a load test...), through the
+	   object-to-agent channel of JADE.
+	 */
+	private class O2AServer extends CyclicBehaviour {
+		public void action() {
+			Object object = myAgent.getO2AObject();
+			if (object instanceof PurchaseTarget) {
+				pendingTargets.add(shared((PurchaseTarget) object));
+				startNegotiations();
+			}
+			else if (object == null) {
+				block();
+			}
+		}
+	}  // End of inner class O2AServer
+
+	/**
+	   Inner class Negotiation.
+	   The base of the behaviours negotiating with the sellers: the ReplyDispatcher hands
+	   them the replies to the message they await, looking up its reply-with value.
+	 */
+	private abstract class Negotiation extends Behaviour {
+		protected ArrayDeque<ACLMessage> replies = new ArrayDeque<ACLMessage>(); // The replies handed over by the dispatcher
+		protected String replyWith; // The reply-with value of the message being answered
+		protected long retryTime = 0; // When the sellers that shed a request of this negotiation can be asked again
+
+		// Whether the reply comes from an overloaded seller, which is then not asked again
+		// before its retry-after hint expires
+		protected boolean isShed(ACLMessage reply) {
+			long until = backOff(reply);
+			retryTime = Math.max(retryTime, until);
+			return until != 0;
+		}
+
+		// Register this negotiation as the recipient of the replies to a message
+		protected void await(String replyWith) {
+			this.replyWith = replyWith;
+			awaitedReplies.put(replyWith, this);
+		}
+
+		// Called by the ReplyDispatcher when a reply to this negotiation arrives
+		void deliver(ACLMessage reply) {
+			replies.add(reply);
+			restart();
+		}
+	}  // End of inner class Negotiation
+
 	/**
 	   Inner class RequestPerformer.
 	   This is the behaviour used by Book-buyer agents to request seller 
-	   agents the target book.
+	   agents one target book. Several of them run at the same time, each one
+	   with its own conversation id.
+	   The replies are not read from the message queue by the behaviour itself: the
+	   ReplyDispatcher hands them over, looking up the in-reply-to value.
+	   The proposals are compared as soon as replyQuorum replies arrived, or when
+	   the round deadline expires, so that a slow or dead seller cannot stall the purchase.
+	   When several copies are wanted, the order is split among the cheapest sellers
+	   in the same round, and the copies not bought are tried again later.
+	   The sellers hold the copies they propose: once the round is decided, the proposals
+	   not accepted are rejected so that the other sellers release their holds at once.
+	   With the offer cache, the sellers that recently refused the book are not asked. If
+	   the sellers that recently proposed it had enough copies, the CFP is only sent to
+	   them, and to the other sellers in a second round if they no longer do.
+	   In search mode, the sellers propose the titles matching the target, best match
+	   first: the best match of each seller is negotiated, under the seller's own title.
 	 */
-	public class RequestPerformer extends Behaviour {
-		private AID bestSeller; // The agent who provides the best offer 
-		private int bestPrice;  // The best offered price
+	public class RequestPerformer extends Negotiation {
+		private PurchaseTarget target; // The book to buy
+		private AID[] sellerAgents; // The sellers receiving the CFP
+		private List<AID> secondRound = Collections.emptyList(); // The sellers asked if the first round is not enough
+		private int round = 0; // The number of CFP rounds sent
+		private long negotiationStart; // When the first CFP was sent
+		private String conversationId; // The conversation id of this negotiation
+		private ProposalSelector selector; // Keeps the offers received
+		private ArrayList<ACLMessage> heldProposals = new ArrayList<ACLMessage>(); // The proposals carrying a reservation
+		private List<ProposalSelector.Proposal> orders = Collections.emptyList(); // The proposals accepted
 		private int repliesCnt = 0; // The counter of replies from seller agents
-		private MessageTemplate mt; // The template to receive replies
+		private int expectedReplies; // The number of replies needed to decide
 		private int step = 0;
-		private String bestState ; // The state of the book provided by the bestSeller
+		private long roundStart; // When the CFP, then the purchase orders, were sent
+		private long deadline; // When the proposals are compared, even if some are missing
+		private int purchased = 0; // The number of copies bought
+		private List<AID> answered = new ArrayList<AID>(); // The sellers that answered the purchase orders
+		private HashMap<AID, String> matchedTitles = new HashMap<AID, String>(); // In search mode, the title proposed by each seller
+
+		RequestPerformer(PurchaseTarget target, AID[] sellerAgents) {
+			this.target = target;
+			this.sellerAgents = sellerAgents;
+			this.conversationId = CONVERSATION_PREFIX+(++conversationCounter);
+			this.selector = new ProposalSelector(target.getMaxPrice());
+			if (offerCache != null) {
+				OfferCache.Plan plan = offerCache.plan(target.getTitle(), target.getState(), target.getMaxPrice(),
+						target.getQuantity(), sellerAgents, System.currentTimeMillis());
+				sellersSkipped.addAndGet(plan.getSkipped());
+				if (plan.getLikely().isEmpty()) {
+					this.sellerAgents = plan.getOthers().toArray(new AID[0]);
+				}
+				else {
+					this.sellerAgents = plan.getLikely().toArray(new AID[0]);
+					this.secondRound = plan.getOthers();
+				}
+			}
+		}
 		
 		public void action() {
 			switch (step) {
@@ -130,83 +659,542 @@ public class BookBuyerAgent extends Agent {
 				for (int i = 0; i < sellerAgents.length; ++i) {
 					cfp.addReceiver(sellerAgents[i]);
 				} 
-				cfp.setContent(targetBookTitle+";"+targetBookState);
-				cfp.setConversationId("book-trade");
-				cfp.setReplyWith("cfp"+System.currentTimeMillis()); // Unique value
-				myAgent.send(cfp);
-				// Prepare the template to get proposals
-				mt = MessageTemplate.and(MessageTemplate.MatchConversationId("book-trade"),
-						MessageTemplate.MatchInReplyTo(cfp.getReplyWith()));
-				step = 1;
+				if (searchResults > 0) {
+					cfp.setByteSequenceContent(BookTradeCodec.encodeSearchCallForProposal(target.getTitle(),
+							target.getState(), target.getQuantity(), target.getMaxPrice(), searchResults));
+				}
+				else {
+					cfp.setByteSequenceContent(BookTradeCodec.encodeCallForProposal(target.getTitle(), target.getState(),
+							target.getQuantity()));
+				}
+				cfp.setConversationId(conversationId);
+				// Unique value; the replies to the first round are not taken for replies to the second one
+				cfp.setReplyWith((round == 0 ? "cfp-" : "cfp"+(round + 1)+"-")+conversationId);
+				await(cfp.getReplyWith());
+				roundStart = System.currentTimeMillis();
+				if (round++ == 0) {
+					negotiationStart = roundStart;
+				}
+				if (sellerAgents.length > 0) {
+					sendMessage(cfp);
+					cfpsSent.incrementAndGet();
+				}
+				deadline = roundStart + roundDeadline;
+				repliesCnt = 0;
+				expectedReplies = replyQuorum > 0 ? Math.min(replyQuorum, sellerAgents.length) : sellerAgents.length;
+				step = expectedReplies > 0 ? 1 : 2;
+				if (step == 2) {
+					// Nobody to ask: the sellers recently refused the book
+					awaitedReplies.remove(replyWith);
+				}
 				break;
 			case 1:
-				// Receive all proposals/refusals from seller agents
-				ACLMessage reply = myAgent.receive(mt);
+				// Receive the proposals/refusals from seller agents
+				ACLMessage reply = replies.poll();
 				if (reply != null) {
 					// Reply received
 					if (reply.getPerformative() == ACLMessage.PROPOSE) {
 						// This is an offer 
-						int price = Integer.parseInt(reply.getContent().split(";")[0]);
-						String state = reply.getContent().split(";")[1];
-						if ((bestSeller == null || price < bestPrice) && price <= targetBookMaxPrice) {
-							// This is the best offer at present
-							bestPrice = price;
-							bestSeller = reply.getSender();
-							bestState = state;
+						BasketLine offer = decodeProposal(reply);
+						int price = offer.getPrice();
+						int quantity = offer.getQuantity();
+						long reservation = offer.getReservation();
+						selector.propose(reply.getSender(), price, offer.getState(), quantity, reservation);
+						if (!offer.getTitle().equals(target.getTitle())) {
+							matchedTitles.put(reply.getSender(), offer.getTitle());
+						}
+						proposalsReceived.incrementAndGet();
+						if (reservation != 0) {
+							heldProposals.add(reply);
+						}
+						if (offerCache != null) {
+							offerCache.recordProposal(target.getTitle(), target.getState(), reply.getSender(), price,
+									quantity, System.currentTimeMillis());
+						}
+					}
+					else if (isShed(reply)) {
+						// The seller is overloaded, it may have the book: it is asked again once its hint expires
+						refusalsShed.incrementAndGet();
+					}
+					else {
+						refusalsReceived.incrementAndGet();
+						if (offerCache != null) {
+							offerCache.recordRefusal(target.getTitle(), target.getState(), reply.getSender(),
+									System.currentTimeMillis());
 						}
 					}
 					repliesCnt++;
-					if (repliesCnt >= sellerAgents.length) {
-						// We received all replies
+					if (repliesCnt >= expectedReplies) {
+						// We received enough replies
 						step = 2; 
 					}
 				}
+				else if (System.currentTimeMillis() >= deadline) {
+					// The deadline expired: decide with the replies received so far
+					log.warn("Round deadline expired with %d of %d replies.", repliesCnt, sellerAgents.length);
+					step = 2;
+				}
 				else {
-					block();
+					block(deadline - System.currentTimeMillis());
+				}
+				if (step == 2) {
+					// The round is decided: later replies to the CFP will be discarded, and the
+					// proposals among them rejected
+					awaitedReplies.remove(replyWith);
+					for (ACLMessage unused : replies) {
+						rejectUnused(unused);
+					}
+					replies.clear();
+					long latency = System.currentTimeMillis() - roundStart;
+					roundLatency.record(latency);
+					TradeStats.recordRoundLatency(latency);
+					orders = selector.select(target.getQuantity());
+					if (!secondRound.isEmpty() && quantity(orders) < target.getQuantity()) {
+						// The sellers that proposed the book recently no longer have enough copies:
+						// ask the others, keeping the proposals received
+						secondRounds.incrementAndGet();
+						sellerAgents = secondRound.toArray(new AID[0]);
+						secondRound = Collections.emptyList();
+						step = 0;
+					}
+					else {
+						rejectProposals();
+					}
 				}
 				break;
 			case 2:
-				// Send the purchase order to the seller that provided the best offer
-				ACLMessage order = new ACLMessage(ACLMessage.ACCEPT_PROPOSAL);
-				order.addReceiver(bestSeller);
-				order.setContent(targetBookTitle+";"+bestState);
-				order.setConversationId("book-trade");
-				order.setReplyWith("order"+System.currentTimeMillis());
-				myAgent.send(order);
-				// Prepare the template to get the purchase order reply
-				mt = MessageTemplate.and(MessageTemplate.MatchConversationId("book-trade"),
-						MessageTemplate.MatchInReplyTo(order.getReplyWith()));
+				// Send the purchase orders to the sellers that provided the best offers
+				for (ProposalSelector.Proposal proposal : orders) {
+					ACLMessage order = new ACLMessage(ACLMessage.ACCEPT_PROPOSAL);
+					order.addReceiver(proposal.getSeller());
+					order.setByteSequenceContent(BookTradeCodec.encodeOrder(titleOf(proposal.getSeller()),
+							proposal.getState(), proposal.getQuantity(), proposal.getReservation()));
+					order.setConversationId(conversationId);
+					order.setReplyWith("order-"+conversationId);
+					sendMessage(order);
+					ordersSent.incrementAndGet();
+				}
+				await("order-"+conversationId);
+				repliesCnt = 0;
+				roundStart = System.currentTimeMillis();
+				deadline = roundStart + roundDeadline;
 				step = 3;
 				break;
 			case 3:      
-				// Receive the purchase order reply
-				reply = myAgent.receive(mt);
+				// Receive the purchase order replies
+				reply = replies.poll();
 				if (reply != null) {
 					// Purchase order reply received
+					ProposalSelector.Proposal order = findOrder(reply.getSender());
+					if (order == null) {
+						break;
+					}
 					if (reply.getPerformative() == ACLMessage.INFORM) {
-						// Purchase successful. We can terminate
-						System.out.println(targetBookTitle+" successfully purchased from agent "+reply.getSender().getName());
-						System.out.println("Price = "+bestPrice);
-						myAgent.doDelete();
+						// Purchase successful
+						log.info("%d x %s successfully purchased from agent %s. Price = %d",
+								order.getQuantity(), titleOf(reply.getSender()), reply.getSender().getName(), order.getPrice());
+						purchased += order.getQuantity();
+						TradeStats.recordPurchase();
+						purchases.incrementAndGet();
+						copiesPurchased.addAndGet(order.getQuantity());
+						long latency = System.currentTimeMillis() - negotiationStart;
+						purchaseLatency.record(latency);
+						TradeStats.recordPurchaseLatency(latency);
+						if (ledger != null) {
+							ledger.record(TradeLedger.PURCHASE, titleOf(reply.getSender()), order.getState(), order.getPrice(),
+									order.getQuantity(), reply.getSender().getName(), getAID().getName());
+						}
+						if (offerCache != null) {
+							offerCache.recordPurchase(target.getTitle(), target.getState(), reply.getSender(),
+									order.getQuantity());
+						}
+					}
+					else if (isShed(reply)) {
+						log.info("Attempt failed: %s overloaded", reply.getSender().getName());
+						TradeStats.recordFailedOrder();
+						ordersFailed.incrementAndGet();
 					}
 					else {
-						System.out.println("Attempt failed: requested book already sold.");
+						log.info("Attempt failed: %s already sold.", target.getTitle());
+						TradeStats.recordFailedOrder();
+						ordersFailed.incrementAndGet();
+						if (offerCache != null) {
+							offerCache.invalidate(target.getTitle(), target.getState(), reply.getSender());
+						}
+					}
+					answered.add(reply.getSender());
+					if (++repliesCnt >= orders.size()) {
+						awaitedReplies.remove(replyWith);
+						orderLatency.record(System.currentTimeMillis() - roundStart);
+						step = 4;
+					}
+				}
+				else if (System.currentTimeMillis() >= deadline) {
+					log.warn("Attempt failed: %d purchase orders of %s not answered", orders.size() - repliesCnt, target.getTitle());
+					ordersUnanswered.addAndGet(orders.size() - repliesCnt);
+					awaitedReplies.remove(replyWith);
+					if (offerCache != null) {
+						for (ProposalSelector.Proposal order : orders) {
+							if (!answered.contains(order.getSeller())) {
+								offerCache.invalidate(target.getTitle(), target.getState(), order.getSeller());
+							}
+						}
 					}
-
 					step = 4;
 				}
 				else {
-					block();
+					block(deadline - System.currentTimeMillis());
 				}
 				break;
 			}        
 		}
 
+		// The order sent to a seller
+		private ProposalSelector.Proposal findOrder(AID seller) {
+			for (ProposalSelector.Proposal order : orders) {
+				if (order.getSeller().equals(seller)) {
+					return order;
+				}
+			}
+			return null;
+		}
+
+		// The number of copies of the orders
+		private int quantity(List<ProposalSelector.Proposal> orders) {
+			int copies = 0;
+			for (ProposalSelector.Proposal order : orders) {
+				copies += order.getQuantity();
+			}
+			return copies;
+		}
+
+		// Release the copies held by the sellers whose proposal is not accepted
+		private void rejectProposals() {
+			for (ACLMessage proposal : heldProposals) {
+				if (findOrder(proposal.getSender()) != null) {
+					continue;
+				}
+				BasketLine offer = decodeProposal(proposal);
+				ACLMessage reject = proposal.createReply();
+				reject.setPerformative(ACLMessage.REJECT_PROPOSAL);
+				reject.setByteSequenceContent(BookTradeCodec.encodeOrder(offer.getTitle(), offer.getState(),
+						offer.getQuantity(), offer.getReservation()));
+				sendMessage(reject);
+			}
+			heldProposals.clear();
+		}
+
+		// The offer of a PROPOSE: the proposal for the target, or the best match of a search
+		private BasketLine decodeProposal(ACLMessage proposal) {
+			BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(proposal.getByteSequenceContent(),
+					BookTradeCodec.PROPOSAL, BookTradeCodec.SEARCH_PROPOSAL);
+			if (decoder.getType() == BookTradeCodec.SEARCH_PROPOSAL) {
+				List<BasketLine> matches = BookTradeCodec.decodeSearchProposal(decoder);
+				if (matches.size() > 1) {
+					log.debug("%s also proposes %s", proposal.getSender().getName(), matches.subList(1, matches.size()));
+				}
+				return matches.get(0);
+			}
+			int price = decoder.readNumber();
+			BookState state = decoder.readState();
+			int quantity = decoder.readNumber();
+			return new BasketLine(0, target.getTitle(), state, price, quantity, decoder.readLong());
+		}
+
+		// The title under which a seller proposed the target
+		private String titleOf(AID seller) {
+			String title = matchedTitles.get(seller);
+			return title != null ? title : target.getTitle();
+		}
+
 		public boolean done() {
-			if (step == 2 && bestSeller == null) {
-				System.out.println("Attempt failed: "+targetBookTitle+" in "+targetBookState+" state not available for sale");
+			if (step == 2 && orders.isEmpty()) {
+				log.info("Attempt failed: %s in %s state not available for sale", target.getTitle(), target.getState().getLabel());
 			}
-			return ((step == 2 && bestSeller == null) || step == 4);
+			return ((step == 2 && orders.isEmpty()) || step == 4);
+		}
+
+		public int onEnd() {
+			negotiationDone(target, purchased, retryTime);
+			return 0;
 		}
 	}  // End of inner class RequestPerformer
+
+	/**
+	   Inner class BasketPerformer.
+	   This is the behaviour used by Book-buyer agents to buy several books at once.
+	   A single CFP carries all the items of the basket, each with its minimum state,
+	   maximum price and number of copies; each seller answers with a single proposal
+	   for the items it has. Once the round is decided (as in RequestPerformer, after
+	   replyQuorum replies or the round deadline), the BasketSolver chooses which lines
+	   to order from which seller, and the orders are sent to all the chosen sellers at
+	   once, so a basket takes two round trips whatever its number of items.
+	   The proposed lines that are not ordered are rejected, releasing their holds, and
+	   the copies not bought are tried again later, one target at a time or in a new
+	   basket. The offer cache is not used for baskets.
+	 */
+	private class BasketPerformer extends Negotiation {
+		private List<PurchaseTarget> items; // The books to buy
+		private AID[] sellerAgents; // The sellers receiving the CFP
+		private String conversationId; // The conversation id of this negotiation
+		private BasketSolver solver; // Keeps the proposals received
+		private HashMap<AID, List<BasketLine>> heldLines = new HashMap<AID, List<BasketLine>>(); // The lines carrying a reservation
+		private Map<AID, List<BasketLine>> orders = Collections.emptyMap(); // The lines ordered from each seller
+		private int[] purchased; // The number of copies bought per item
+		private int repliesCnt = 0; // The counter of replies from seller agents
+		private int expectedReplies; // The number of replies needed to decide
+		private int step = 0;
+		private long negotiationStart; // When the CFP was sent
+		private long roundStart; // When the CFP, then the purchase orders, were sent
+		private long deadline; // When the proposals are compared, even if some are missing
+
+		BasketPerformer(List<PurchaseTarget> items, AID[] sellerAgents) {
+			this.items = items;
+			this.sellerAgents = sellerAgents;
+			this.conversationId = CONVERSATION_PREFIX+(++conversationCounter);
+			this.solver = new BasketSolver(items, orderCost);
+			this.purchased = new int[items.size()];
+		}
+
+		public void action() {
+			switch (step) {
+			case 0:
+				// Send a single cfp for all the items to all the sellers
+				baskets.incrementAndGet();
+				ACLMessage cfp = new ACLMessage(ACLMessage.CFP);
+				for (AID seller : sellerAgents) {
+					cfp.addReceiver(seller);
+				}
+				cfp.setByteSequenceContent(BookTradeCodec.encodeBasketCallForProposal(items));
+				cfp.setConversationId(conversationId);
+				cfp.setReplyWith("basket-"+conversationId);
+				await(cfp.getReplyWith());
+				negotiationStart = roundStart = System.currentTimeMillis();
+				if (sellerAgents.length > 0) {
+					sendMessage(cfp);
+					cfpsSent.incrementAndGet();
+				}
+				deadline = roundStart + roundDeadline;
+				expectedReplies = replyQuorum > 0 ? Math.min(replyQuorum, sellerAgents.length) : sellerAgents.length;
+				step = expectedReplies > 0 ? 1 : 2;
+				if (step == 2) {
+					awaitedReplies.remove(replyWith);
+				}
+				break;
+			case 1:
+				// Receive the proposals/refusals from seller agents
+				ACLMessage reply = replies.poll();
+				if (reply != null) {
+					if (reply.getPerformative() == ACLMessage.PROPOSE) {
+						List<BasketLine> lines = BookTradeCodec.decodeBasketProposal(new BookTradeCodec.Decoder(
+								reply.getByteSequenceContent(), BookTradeCodec.BASKET_PROPOSAL), items);
+						solver.propose(reply.getSender(), lines);
+						proposalsReceived.incrementAndGet();
+						List<BasketLine> held = new ArrayList<BasketLine>();
+						for (BasketLine line : lines) {
+							if (line.getReservation() != 0) {
+								held.add(line);
+							}
+						}
+						if (!held.isEmpty()) {
+							heldLines.put(reply.getSender(), held);
+						}
+					}
+					else if (isShed(reply)) {
+						refusalsShed.incrementAndGet();
+					}
+					else {
+						refusalsReceived.incrementAndGet();
+					}
+					if (++repliesCnt >= expectedReplies) {
+						step = 2;
+					}
+				}
+				else if (System.currentTimeMillis() >= deadline) {
+					log.warn("Round deadline expired with %d of %d replies.", repliesCnt, sellerAgents.length);
+					step = 2;
+				}
+				else {
+					block(deadline - System.currentTimeMillis());
+				}
+				if (step == 2) {
+					// The round is decided: later replies to the CFP will be discarded, and the
+					// proposals among them rejected
+					awaitedReplies.remove(replyWith);
+					for (ACLMessage unused : replies) {
+						rejectUnused(unused);
+					}
+					replies.clear();
+					long latency = System.currentTimeMillis() - roundStart;
+					roundLatency.record(latency);
+					TradeStats.recordRoundLatency(latency);
+					orders = solver.solve();
+					log.debug("Basket of %d items: %d orders for a total of %d", items.size(), orders.size(),
+							solver.cost(orders));
+					rejectLines();
+				}
+				break;
+			case 2:
+				// Send the purchase orders to all the chosen sellers at once
+				for (Map.Entry<AID, List<BasketLine>> entry : orders.entrySet()) {
+					ACLMessage order = new ACLMessage(ACLMessage.ACCEPT_PROPOSAL);
+					order.addReceiver(entry.getKey());
+					order.setByteSequenceContent(BookTradeCodec.encodeBasketOrder(entry.getValue()));
+					order.setConversationId(conversationId);
+					order.setReplyWith("order-"+conversationId);
+					sendMessage(order);
+					ordersSent.incrementAndGet();
+				}
+				await("order-"+conversationId);
+				repliesCnt = 0;
+				roundStart = System.currentTimeMillis();
+				deadline = roundStart + roundDeadline;
+				step = 3;
+				break;
+			case 3:
+				// Receive the purchase order replies: the lines sold by each seller
+				reply = replies.poll();
+				if (reply != null) {
+					List<BasketLine> ordered = orders.get(reply.getSender());
+					if (ordered == null) {
+						break;
+					}
+					int sold = 0;
+					if (reply.getPerformative() != ACLMessage.INFORM) {
+						// Remember an overloaded seller
+						isShed(reply);
+					}
+					else {
+						long latency = System.currentTimeMillis() - negotiationStart;
+						for (BasketLine line : BookTradeCodec.decodeBasketOrder(new BookTradeCodec.Decoder(
+								reply.getByteSequenceContent(), BookTradeCodec.BASKET_ORDER))) {
+							if (line.getItem() < 0 || line.getItem() >= items.size()) {
+								continue;
+							}
+							log.info("%d x %s successfully purchased from agent %s.", line.getQuantity(), line.getTitle(),
+									reply.getSender().getName());
+							purchased[line.getItem()] += line.getQuantity();
+							sold++;
+							TradeStats.recordPurchase();
+							purchases.incrementAndGet();
+							copiesPurchased.addAndGet(line.getQuantity());
+							purchaseLatency.record(latency);
+							TradeStats.recordPurchaseLatency(latency);
+							if (ledger != null) {
+								ledger.record(TradeLedger.PURCHASE, line.getTitle(), line.getState(), priceOf(ordered, line),
+										line.getQuantity(), reply.getSender().getName(), getAID().getName());
+							}
+						}
+					}
+					for (int i = sold; i < ordered.size(); ++i) {
+						// The lines the seller could not sell any more
+						TradeStats.recordFailedOrder();
+						ordersFailed.incrementAndGet();
+					}
+					if (++repliesCnt >= orders.size()) {
+						awaitedReplies.remove(replyWith);
+						orderLatency.record(System.currentTimeMillis() - roundStart);
+						step = 4;
+					}
+				}
+				else if (System.currentTimeMillis() >= deadline) {
+					log.warn("Attempt failed: %d basket orders not answered", orders.size() - repliesCnt);
+					ordersUnanswered.addAndGet(orders.size() - repliesCnt);
+					awaitedReplies.remove(replyWith);
+					step = 4;
+				}
+				else {
+					block(deadline - System.currentTimeMillis());
+				}
+				break;
+			}
+		}
+
+		// Release the lines held by the sellers that are not ordered
+		private void rejectLines() {
+			for (Map.Entry<AID, List<BasketLine>> entry : heldLines.entrySet()) {
+				List<BasketLine> ordered = orders.get(entry.getKey());
+				List<BasketLine> rejected = new ArrayList<BasketLine>();
+				for (BasketLine line : entry.getValue()) {
+					if (ordered == null || !isOrdered(ordered, line)) {
+						rejected.add(line);
+					}
+				}
+				if (!rejected.isEmpty()) {
+					ACLMessage reject = new ACLMessage(ACLMessage.REJECT_PROPOSAL);
+					reject.addReceiver(entry.getKey());
+					reject.setByteSequenceContent(BookTradeCodec.encodeBasketOrder(rejected));
+					reject.setConversationId(conversationId);
+					sendMessage(reject);
+				}
+			}
+			heldLines.clear();
+		}
+
+		private boolean isOrdered(List<BasketLine> ordered, BasketLine line) {
+			for (BasketLine order : ordered) {
+				if (order.getItem() == line.getItem()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		// The price of the line ordered for the item of a line sold (the order carries no price)
+		private int priceOf(List<BasketLine> ordered, BasketLine line) {
+			for (BasketLine order : ordered) {
+				if (order.getItem() == line.getItem()) {
+					return order.getPrice();
+				}
+			}
+			return 0;
+		}
+
+		public boolean done() {
+			if (step == 2 && orders.isEmpty()) {
+				log.info("Attempt failed: none of the %d items of the basket available for sale", items.size());
+			}
+			return ((step == 2 && orders.isEmpty()) || step == 4);
+		}
+
+		public int onEnd() {
+			negotiationDone(items, purchased, retryTime);
+			return 0;
+		}
+	}  // End of inner class BasketPerformer
+
+	/**
+	   Inner class ReplyDispatcher.
+	   This is the behaviour used by Book-buyer agents to read the replies of the
+	   sellers from the message queue and hand each of them over to the negotiation
+	   awaiting it, with a single map lookup on the in-reply-to value.
+	   Replies to rounds that were already decided are discarded; the proposals among
+	   them are rejected, so that the sellers release the copies they hold for them.
+	 */
+	private class ReplyDispatcher extends CyclicBehaviour {
+		private MessageTemplate mt = new MessageTemplate(new MessageTemplate.MatchExpression() {
+			public boolean match(ACLMessage msg) {
+				String conversationId = msg.getConversationId();
+				return conversationId != null && conversationId.startsWith(CONVERSATION_PREFIX);
+			}
+		});
+
+		public void action() {
+			ACLMessage msg = myAgent.receive(mt);
+			if (msg != null) {
+				Negotiation negotiation = awaitedReplies.get(msg.getInReplyTo());
+				if (negotiation != null) {
+					negotiation.deliver(msg);
+				}
+				else {
+					lateReplies.incrementAndGet();
+					log.debug("Discarded late %s from %s", ACLMessage.getPerformative(msg.getPerformative()), msg.getSender().getName());
+					rejectUnused(msg);
+				}
+			}
+			else {
+				block();
+			}
+		}
+	}  // End of inner class ReplyDispatcher
 }
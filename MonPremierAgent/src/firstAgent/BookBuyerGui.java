@@ -9,7 +9,7 @@ import jade.core.AID;
 public class BookBuyerGui extends JFrame {
 	
 	private BookBuyerAgent myAgent;
-	private JTextField titleField, priceField;
+	private JTextField titleField, priceField, quantityField;
 	private JComboBox<String> stateField;
 
 	BookBuyerGui(BookBuyerAgent a) {
@@ -18,7 +18,7 @@ public class BookBuyerGui extends JFrame {
 		myAgent = a;
 		
 		JPanel p = new JPanel();
-		p.setLayout(new GridLayout(3, 2));
+		p.setLayout(new GridLayout(4, 2));
 		p.add(new JLabel("Target book title:"));
 		titleField = new JTextField(15);
 		p.add(titleField);
@@ -26,9 +26,12 @@ public class BookBuyerGui extends JFrame {
 		priceField = new JTextField(15);
 		p.add(priceField);
 		p.add(new JLabel("The target book should be at least:"));
-		String[] states = {"New","Good","Used","Damaged"};
+		String[] states = BookState.labels();
 		stateField = new JComboBox<String>(states);
 		p.add(stateField);
+		p.add(new JLabel("Number of copies:"));
+		quantityField = new JTextField("1", 15);
+		p.add(quantityField);
 		getContentPane().add(p, BorderLayout.CENTER);
 		
 		JButton addButton = new JButton("Ok");
@@ -38,9 +41,10 @@ public class BookBuyerGui extends JFrame {
 					String title = titleField.getText().trim();
 					String price = priceField.getText().trim();
 					String state = (String)stateField.getSelectedItem();
-					myAgent.updateTarget(title, Integer.parseInt(price),state);
+					myAgent.updateTarget(title, Integer.parseInt(price),state, Integer.parseInt(quantityField.getText().trim()));
 					titleField.setEnabled(false);
 					priceField.setEnabled(false);
+					quantityField.setEnabled(false);
 					stateField.setEnabled(false);
 				}
 				catch (Exception e) {
@@ -33,45 +33,212 @@ import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
-
-import firstAgent.BookBuyerAgent.RequestPerformer;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BookSellerAgent extends Agent {
-	// The catalogue of books for sale (maps the title of a book to its price and state)
-	private Hashtable<String, Integer> catalogue;
-	// The equivalence table between a state (New, Damaged...) and its numerical value
-	// For a state, gives the better state of a book
-	private Hashtable<String, String> better_state;
+	// The catalogue of books for sale (indexed by title, then by state)
+	private Catalogue catalogue;
+	// The search index over the titles of the catalogue (see TitleIndex), so that CFPs match
+	// titles typed differently and search CFPs can be served. Null when turned off with
+	// the start-up option "titleIndex=false"
+	private TitleIndex titleIndex;
 	
 	// The GUI by means of which the user can add books in the catalogue
 	private BookSellerGui myGui;
 	
+	// The type of service registered by seller agents in the yellow pages
+	public static final String SERVICE_TYPE = "book-selling";
+
 	//list of other seller agents (to compare book prices)
-	private ArrayList<AID> otherSellerAgents;
+	private List<AID> otherSellerAgents = new ArrayList<AID>();
+	// The cached view of the seller agents registered in the yellow pages
+	private SellerDirectory sellerDirectory;
+	// In a sharded fleet (start-up options shardCount and shards), the partition of the
+	// titles and the shards carried by this seller; both null otherwise
+	private TitleShards titleShards;
+	private int[] shards;
+
+	// Conversation ids of the price synchronization modes
+	static final String FULL_SYNC = "price-sync";
+	static final String DELTA_SYNC = "price-delta";
+	static final String INDEX_SYNC = "price-index";
+	// If true, only the listings changed since the last tick are sent to the other sellers.
+	// Can be turned off with the start-up option "sync=full"
+	private boolean deltaSync = true;
+	// If true, the changed listings are only sent to the price index (start-up option
+	// "sync=index", see PriceIndexAgent), which tells the seller the lower market prices
+	private boolean indexSync = false;
+	// The price index found in the yellow pages, and the sequence number of the last
+	// listings published to it
+	private SellerDirectory indexDirectory;
+	private AID priceIndex;
+	private long indexSequence = 0;
+	// Sequence number of the last delta sent, and of the last delta received from each peer
+	private long deltaSequence = 0;
+	private HashMap<AID, Long> peerSequences = new HashMap<AID, Long>();
+	// Messages and bytes sent for price synchronization
+	private SyncMetrics syncMetrics = new SyncMetrics();
+	// Persists the catalogue when the option store=<directory> is given
+	private CatalogueStore store;
+	// Records the sales and the prices lowered when the option ledger=<directory> is given
+	private TradeLedger ledger;
+	// Holds the proposed copies until the buyers accept or reject them.
+	// Null when holds are turned off with the start-up option "holds=false"
+	private ReservationTable reservations;
+	// The listings repriced after the price synchronization
+	private AtomicLong pricesLowered;
+	// Runs the bulk imports and exports in their own threads (see importCatalogue)
+	private ThreadedBehaviourFactory transferThreads = new ThreadedBehaviourFactory();
+	// The file the catalogue is written to when the agent terminates (option export=<file>)
+	private String exportFile;
+	// The counters and latencies of the behaviours, exposed through JMX (see AgentMetrics)
+	private AgentMetrics metrics;
+	// Written every metricsPeriod milliseconds when the option metrics=<directory> is given
+	private File metricsFile;
+	// The log of the behaviours, off unless the option log=<level> is given (see AgentLog)
+	private AgentLog log;
+	// Routes the incoming requests to the handlers below (see MessageRouter)
+	private MessageRouter router;
 
 	// Put agent initializations here
 	protected void setup() {
-		// Create the catalogue
-		catalogue = new Hashtable();
-	
-		
-		better_state = new Hashtable();
-		better_state.put("New", "the best");
-		better_state.put("Good", "New");
-		better_state.put("Used", "Good");
-		better_state.put("Damaged", "Used");
+		// Read the start-up options (see AgentOptions)
+		AgentOptions options = new AgentOptions(getArguments());
+
+		// Create the catalogue, sharing its titles with the other agents of the JVM
+		// unless the option titleDictionary=false is given (see TitleDictionary)
+		catalogue = new Catalogue(options.getBoolean("titleDictionary", true) ? TitleDictionary.shared() : null);
+		String syncMode = options.getString("sync", "delta");
+		indexSync = "index".equals(syncMode);
+		deltaSync = !indexSync && !"full".equals(syncMode);
+		// A full sync sends the whole catalogue: the changes are not tracked
+		catalogue.setTrackChanges(deltaSync || indexSync);
+		int shardCount = options.getInt("shardCount", 0);
+		if (shardCount > 0) {
+			titleShards = new TitleShards(shardCount);
+			String carried = options.getString("shards", null);
+			shards = carried == null ? titleShards.all() : titleShards.parse(carried);
+		}
+		log = new AgentLog(getLocalName(), AgentLog.parseLevel(options.getString("log", null)));
+		metrics = new AgentMetrics(getLocalName());
+		pricesLowered = metrics.counter("prices.lowered");
+		if (options.getBoolean("holds", true)) {
+			reservations = new ReservationTable(catalogue, options.getLong("holdTtl", 10000), 200);
+		}
+		// Index the titles before the catalogue is recovered, preloaded or imported
+		if (options.getBoolean("titleIndex", true)) {
+			titleIndex = new TitleIndex();
+			catalogue.addListener(titleIndex);
+		}
+
+		// Recover the catalogue saved by a previous run, in <store>/<agent local name>
+		boolean recovered = false;
+		String storeDirectory = options.getString("store", null);
+		if (storeDirectory != null) {
+			store = new CatalogueStore(new File(storeDirectory, getLocalName()),
+					options.getBoolean("storeSync", false), options.getBoolean("storeMmap", false),
+					options.getLong("storeCompaction", 64L * 1024 * 1024));
+			try {
+				long start = System.currentTimeMillis();
+				long records = store.open(catalogue);
+				System.out.println(catalogue.size()+" books recovered into catalogue of "+getAID().getName()
+						+" from "+records+" records in "+(System.currentTimeMillis() - start)+" ms");
+				recovered = !catalogue.isEmpty();
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace();
+				store = null;
+			}
+		}
+
+		// Preload the catalogue and bulk import a CSV or JSON-lines file (see CatalogueTransfer).
+		// A recovered catalogue already holds them, less the copies sold since: adding them
+		// again would grow the stock on every restart
+		List<Offer> preloaded = options.getOffers();
+		String importFile = options.getString("import", null);
+		if (recovered) {
+			if (!preloaded.isEmpty() || importFile != null) {
+				System.out.println("Catalogue of "+getAID().getName()+" recovered from the store: preloaded and imported books ignored");
+			}
+		}
+		else {
+			for (Offer offer : preloaded) {
+				catalogue.add(offer.getTitle(), offer.getState(), offer.getPrice(), offer.getQuantity());
+			}
+			if (!preloaded.isEmpty()) {
+				System.out.println(preloaded.size()+" books preloaded into catalogue of "+getAID().getName());
+			}
+			if (importFile != null) {
+				importCatalogue(new File(importFile));
+			}
+		}
+		// The offers are in the catalogue: do not keep the arguments, and their titles, for the life of the agent
+		setArguments(null);
+		exportFile = options.getString("export", null);
+
+		// Write the changes of the catalogue to the disk every second
+		if (store != null) {
+			addBehaviour(new TickerBehaviour(this, 1000) {
+				protected void onTick() {
+					try {
+						store.flush();
+					}
+					catch (IOException ioe) {
+						ioe.printStackTrace();
+					}
+				}
+			} );
+		}
+
+		// Record the trades in <ledger>/<agent local name> (see TradeLedger), written every second
+		String ledgerDirectory = options.getString("ledger", null);
+		if (ledgerDirectory != null) {
+			ledger = new TradeLedger(new File(ledgerDirectory, getLocalName()),
+					options.getLong("ledgerSegment", 64L * 1024 * 1024), 1024);
+			try {
+				ledger.open();
+				addBehaviour(new TickerBehaviour(this, 1000) {
+					protected void onTick() {
+						try {
+							ledger.flush();
+						}
+						catch (IOException ioe) {
+							ioe.printStackTrace();
+						}
+					}
+				} );
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace();
+				ledger = null;
+			}
+		}
+
+		// Create and show the GUI, unless the agent runs headless
+		if (options.isGuiEnabled()) {
+			myGui = new BookSellerGui(this);
+			myGui.showGui();
+		}
 
-		// Create and show the GUI 
-		myGui = new BookSellerGui(this);
-		myGui.showGui();
+		// Accept books for sale from code running outside the agent (see O2AServer)
+		setEnabledO2ACommunication(true, 0);
+		O2AServer o2aServer = new O2AServer();
+		setO2AManager(o2aServer);
+		addBehaviour(o2aServer);
 
 		// Register the book-selling service in the yellow pages
 		DFAgentDescription dfd = new DFAgentDescription();
 		dfd.setName(getAID());
 		ServiceDescription sd = new ServiceDescription();
-		sd.setType("book-selling");
+		sd.setType(SERVICE_TYPE);
 		sd.setName("JADE-book-trading");
+		if (titleShards != null) {
+			// Buyers only ask the sellers of the shard of a title
+			titleShards.describe(sd, shards);
+		}
 		dfd.addServices(sd);
 		try {
 			DFService.register(this, dfd);
@@ -80,60 +247,183 @@ public class BookSellerAgent extends Agent {
 			fe.printStackTrace();
 		}
 
-		// Add the behaviour serving queries from buyer agents
-		addBehaviour(new OfferRequestsServer());
+		// A single behaviour serves all the requests, routing them to their handler: the
+		// purchase orders first, then the CFPs, then the price synchronization with the peers.
+		// Above queueCapacity messages waiting per priority, the new ones are shed
+		router = new MessageRouter(this, options.getInt("dispatchBatch", 64), options.getInt("queueCapacity", 1000));
+
+		// Serve queries from buyer agents
+		router.route(ACLMessage.CFP, new OfferRequestsServer(), MessageRouter.NORMAL);
 
-		// Add the behaviour serving purchase orders from buyer agents
-		addBehaviour(new PurchaseOrdersServer());
+		// Serve purchase orders (and rejections of held proposals) from buyer agents
+		PurchaseOrdersServer purchaseOrdersServer = new PurchaseOrdersServer();
+		router.route(ACLMessage.ACCEPT_PROPOSAL, purchaseOrdersServer, MessageRouter.HIGH);
+		router.route(ACLMessage.REJECT_PROPOSAL, purchaseOrdersServer, MessageRouter.HIGH);
+
+		// Release the holds of the proposals neither accepted nor rejected in time
+		if (reservations != null) {
+			addBehaviour(new TickerBehaviour(this, reservations.getTickMillis()) {
+				protected void onTick() {
+					reservations.expire();
+				}
+			} );
+		}
 		
 		/*Add the behaviour to ask other sellers whether they have similar books
-		If yes, send a REQUEST message to know the price
+		If yes, they send their price back
 		If other price is lower than seller's price, lower seller's price
 		*/
-		addBehaviour(new TickerBehaviour(this, 10000) {
-			protected void onTick() {
-				if (!catalogue.isEmpty())
-				{
-					//make list of all other seller agents
-					DFAgentDescription template = new DFAgentDescription();
-					//ServiceDescription sd = new ServiceDescription();
-					//sd.setType("book-selling");
-					template.addServices(sd);
-					try {
-						DFAgentDescription[] result = DFService.search(myAgent, template);
-						otherSellerAgents = new ArrayList(result.length);
-						for (int i = 0; i < result.length; ++i) {
-							otherSellerAgents.add(result[i].getName());
-						}
-						//remove current agent from list
-						otherSellerAgents.remove(getAID());
-					}
-					catch (FIPAException fe) {
-						fe.printStackTrace();
-					}
-					
-					//send them titles in catalogue
-					ACLMessage msg = new ACLMessage(ACLMessage.QUERY_IF);
-					//content of message: all titles;states separated by ','
-					msg.setContent(String.join(",", catalogue.keySet()));
-					for (int i = 0; i < otherSellerAgents.size(); ++i) {
-						msg.addReceiver(otherSellerAgents.get(i));
-					}
-					myAgent.send(msg);
-				}
-			}
-		} );
+		sellerDirectory = new SellerDirectory(this, SERVICE_TYPE, SellerDirectory.DEFAULT_MAX_STALENESS);
+		if (titleShards != null) {
+			sellerDirectory.setShards(titleShards);
+		}
+		sellerDirectory.start();
+		if (indexSync) {
+			indexDirectory = new SellerDirectory(this, PriceIndexAgent.SERVICE_TYPE, SellerDirectory.DEFAULT_MAX_STALENESS);
+			indexDirectory.start();
+		}
+		// The index answers at once, so the changes can be published more often
+		addBehaviour(new PriceSyncTicker(options.getLong("syncPeriod", indexSync ? 1000 : 10000)));
 		
-		// Add the behaviour to answer requests for the prices of similar books
-		addBehaviour(new SendPriceServer());
+		// The price synchronization has the lowest priority. Its messages are dropped when
+		// shed: the full sync is sent again at each tick, and a missed delta is detected by
+		// its sequence number and followed by a snapshot request
+
+		// Answer requests for the prices of similar books
+		router.route(ACLMessage.QUERY_IF, FULL_SYNC, new SendPriceServer(), MessageRouter.LOW);
 		
-		// Add the behaviour to adjust prices of books found in other sellers' catalogue
-		addBehaviour(new AdjustPriceServer());
+		// Adjust prices of books found in other sellers' catalogue, or by the price index
+		AdjustPriceServer adjustPriceServer = new AdjustPriceServer();
+		router.route(ACLMessage.INFORM, FULL_SYNC, adjustPriceServer, MessageRouter.LOW);
+		router.route(ACLMessage.INFORM, INDEX_SYNC, adjustPriceServer, MessageRouter.LOW);
+
+		// Send the whole catalogue to the price index when it missed some changes
+		router.route(ACLMessage.QUERY_REF, INDEX_SYNC, new IndexSnapshotServer(), MessageRouter.LOW);
+
+		// Receive the changes made to other sellers' catalogue
+		DeltaSyncServer deltaSyncServer = new DeltaSyncServer();
+		router.route(ACLMessage.QUERY_IF, DELTA_SYNC, deltaSyncServer, MessageRouter.LOW);
+		router.route(ACLMessage.QUERY_REF, DELTA_SYNC, deltaSyncServer, MessageRouter.LOW);
+		addBehaviour(router);
+
+		// Publish the metrics through JMX and, if asked, in a file
+		registerGauges();
+		if (options.getBoolean("jmx", true)) {
+			metrics.register();
+		}
+		String metricsDirectory = options.getString("metrics", null);
+		if (metricsDirectory != null) {
+			metricsFile = new File(metricsDirectory, getLocalName()+".metrics");
+			addBehaviour(new TickerBehaviour(this, options.getLong("metricsPeriod", 10000)) {
+				protected void onTick() {
+					writeMetrics();
+				}
+			} );
+		}
+	}
+
+	// The values read from the state of the agent when the metrics are read
+	private void registerGauges() {
+		metrics.gauge("mailbox.depth", new AgentMetrics.Gauge() {
+			public long value() {
+				return getCurQueueSize();
+			}
+		});
+		metrics.gauge("router.messages", new AgentMetrics.Gauge() {
+			public long value() {
+				return router.getMessages();
+			}
+		});
+		metrics.gauge("router.batches", new AgentMetrics.Gauge() {
+			public long value() {
+				return router.getBatches();
+			}
+		});
+		metrics.gauge("router.errors", new AgentMetrics.Gauge() {
+			public long value() {
+				return router.getErrors();
+			}
+		});
+		// The overload: the requests waiting in the router queues (mailbox.depth above), and shed
+		metrics.gauge("router.queued", new AgentMetrics.Gauge() {
+			public long value() {
+				return router.getQueued();
+			}
+		});
+		metrics.gauge("router.queued.orders", new AgentMetrics.Gauge() {
+			public long value() {
+				return router.getQueued(MessageRouter.HIGH);
+			}
+		});
+		metrics.gauge("router.shed", new AgentMetrics.Gauge() {
+			public long value() {
+				return router.getShed();
+			}
+		});
+		metrics.gauge("catalogue.listings", new AgentMetrics.Gauge() {
+			public long value() {
+				return catalogue.size();
+			}
+		});
+		metrics.gauge("titleIndex.titles", new AgentMetrics.Gauge() {
+			public long value() {
+				return titleIndex == null ? 0 : titleIndex.size();
+			}
+		});
+		metrics.gauge("df.searches", new AgentMetrics.Gauge() {
+			public long value() {
+				return sellerDirectory.getDfSearches();
+			}
+		});
+		metrics.gauge("df.savedSearches", new AgentMetrics.Gauge() {
+			public long value() {
+				return sellerDirectory.getSavedSearches();
+			}
+		});
+		metrics.gauge("sync.messages", new AgentMetrics.Gauge() {
+			public long value() {
+				return syncMetrics.getTotalMessages();
+			}
+		});
+		metrics.gauge("sync.bytes", new AgentMetrics.Gauge() {
+			public long value() {
+				return syncMetrics.getTotalBytes();
+			}
+		});
+		if (reservations != null) {
+			metrics.gauge("holds.pending", new AgentMetrics.Gauge() {
+				public long value() {
+					return reservations.size();
+				}
+			});
+			metrics.gauge("holds.expired", new AgentMetrics.Gauge() {
+				public long value() {
+					return reservations.getExpired();
+				}
+			});
+		}
+	}
+
+	private void writeMetrics() {
+		try {
+			metrics.writeSnapshot(metricsFile);
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
 	}
 
 	// Put agent clean-up operations here
 	protected void takeDown() {
+		// Leave the price index: an empty snapshot removes all the listings of the seller
+		if (priceIndex != null) {
+			sendMessage(createListings(BookTradeCodec.LISTING_SNAPSHOT, new ArrayList<Offer>()));
+		}
+		if (indexDirectory != null) {
+			indexDirectory.stop();
+		}
 		// Deregister from the yellow pages
+		sellerDirectory.stop();
 		try {
 			DFService.deregister(this);
 		}
@@ -141,147 +431,555 @@ public class BookSellerAgent extends Agent {
 			fe.printStackTrace();
 		}
 		// Close the GUI
-		myGui.dispose();
+		if (myGui != null) {
+			myGui.dispose();
+		}
+		// Export the catalogue
+		if (exportFile != null) {
+			try {
+				CatalogueTransfer transfer = new CatalogueTransfer(catalogue, CatalogueTransfer.DEFAULT_BATCH_SIZE);
+				transfer.exportFile(new File(exportFile));
+				System.out.println("Catalogue of "+getAID().getName()+" exported to "+exportFile+": "+transfer.report());
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+		transferThreads.interrupt();
+		// Write the last changes of the catalogue
+		if (store != null) {
+			try {
+				store.close();
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+		if (ledger != null) {
+			try {
+				ledger.close();
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+		// Write the last metrics
+		if (metricsFile != null) {
+			writeMetrics();
+		}
+		metrics.unregister();
 		// Printout a dismissal message
+		System.out.println("Seller directory of "+getAID().getName()+": "+sellerDirectory.report());
+		if (reservations != null) {
+			System.out.println("Holds of "+getAID().getName()+": "+reservations.size()+" pending, "
+					+reservations.getExpired()+" expired");
+		}
 		System.out.println("Seller-agent "+getAID().getName()+" terminating.");
 	}
 
+	// Answers a request shed by the router (see MessageRouter) with a REFUSE or a FAILURE
+	// telling the buyer when to try again
+	private void refuseOverloaded(ACLMessage msg, int performative, long retryAfter) {
+		ACLMessage reply = msg.createReply();
+		reply.setPerformative(performative);
+		reply.setContent("overloaded");
+		reply.addUserDefinedParameter(MessageRouter.RETRY_AFTER, String.valueOf(retryAfter));
+		sendMessage(reply);
+		TradeStats.recordShed();
+		log.debug("%s from %s shed, retry after %d ms", ACLMessage.getPerformative(msg.getPerformative()),
+				msg.getSender().getName(), retryAfter);
+	}
+
+	// Sends a message and counts it in the process-wide trade statistics
+	void sendMessage(ACLMessage msg) {
+		send(msg);
+		TradeStats.recordSent(msg);
+	}
+
 	/**
      This is invoked by the GUI when the user adds a new book for sale
 	 */
+	public void updateCatalogue(final String title, final int price, final String state, final int quantity) {
+		updateCatalogue(title, price, BookState.fromLabel(state), quantity);
+	}
+
 	public void updateCatalogue(final String title, final int price, final String state) {
+		updateCatalogue(title, price, BookState.fromLabel(state), 1);
+	}
+
+	/**
+     Adds copies of a book for sale; if the book is already in the catalogue in this
+     state, the copies are added and the price of all of them is changed. This can be
+     called from any thread: the catalogue is updated by the agent itself
+	 */
+	public void updateCatalogue(final String title, final int price, final BookState state, final int quantity) {
+		if (quantity <= 0) {
+			throw new IllegalArgumentException("Invalid number of copies: "+quantity);
+		}
 		addBehaviour(new OneShotBehaviour() {
 			public void action() {
-				catalogue.put(title+";"+state, new Integer(price));
-				System.out.println(title+" inserted into catalogue of "+getAID().getName()+". State: "+state+". Price = "+price);
+				catalogue.add(title, state, price, quantity);
+				log.info("%d x %s inserted into catalogue. State: %s. Price = %d. Copies: %d",
+						quantity, title, state.getLabel(), price, catalogue.getQuantity(title, state));
+				if (titleShards != null && Arrays.binarySearch(shards, titleShards.shardOf(title)) < 0) {
+					log.warn("%s is in shard %d, not carried by this seller: buyers will not ask for it",
+							title, titleShards.shardOf(title));
+				}
 			}
 		} );
 	}
-	
+
 	/**
-	 * Inner class SendPriceServer.
-	 * This is the behaviour used by Book-seller agents when other sellers show them their books
-	 * If another seller has the same book in the same state, current seller will send the price of
-	 * their version in an INFORM message.
-	 * Else they won't send anything.
+	 * Adds all the rows of a CSV or JSON-lines file to the catalogue (see CatalogueTransfer).
+	 * The file is read in a dedicated thread, in batches, so that the agent keeps serving
+	 * the buyers during the import. This can be called from any thread.
 	 */
-	private class SendPriceServer extends CyclicBehaviour {
-		public void action() {
-			MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.QUERY_IF);
-			ACLMessage msg = myAgent.receive(mt);
-			if (msg != null) {
-				//QUERY_IF message received.
-				String titles = msg.getContent();
-				String[] all_titles = titles.split(",");
-				for (String one_title : catalogue.keySet()) {
-					if (Arrays.asList(all_titles).contains(one_title)) {
-						ACLMessage reply = msg.createReply();
-						reply.setPerformative(ACLMessage.INFORM);
-						reply.setContent(one_title+":"+catalogue.get(one_title));
-						myAgent.send(reply);
-					}
+	public void importCatalogue(final File file) {
+		addBehaviour(transferThreads.wrap(new OneShotBehaviour() {
+			public void action() {
+				try {
+					CatalogueTransfer transfer = new CatalogueTransfer(catalogue, CatalogueTransfer.DEFAULT_BATCH_SIZE);
+					transfer.importFile(file);
+					System.out.println(file+" imported into catalogue of "+getAID().getName()+": "+transfer.report());
+				}
+				catch (IOException ioe) {
+					ioe.printStackTrace();
 				}
 			}
-			else {
+		} ));
+	}
+
+	/**
+	 * Writes the catalogue to a CSV or JSON-lines file, in a dedicated thread.
+	 * This can be called from any thread.
+	 */
+	public void exportCatalogue(final File file) {
+		addBehaviour(transferThreads.wrap(new OneShotBehaviour() {
+			public void action() {
+				try {
+					CatalogueTransfer transfer = new CatalogueTransfer(catalogue, CatalogueTransfer.DEFAULT_BATCH_SIZE);
+					transfer.exportFile(file);
+					System.out.println("Catalogue of "+getAID().getName()+" exported to "+file+": "+transfer.report());
+				}
+				catch (IOException ioe) {
+					ioe.printStackTrace();
+				}
+			}
+		} ));
+	}
+
+	/**
+	 * Inner class O2AServer.
+	 * This is the behaviour used by Book-seller agents to receive books for sale from
+	 * code running outside the agent (a launcher, a load test...), through the
+	 * object-to-agent channel of JADE: each Offer object is added to the catalogue.
+	 */
+	private class O2AServer extends CyclicBehaviour {
+		public void action() {
+			Object object = myAgent.getO2AObject();
+			if (object instanceof Offer) {
+				Offer offer = (Offer) object;
+				catalogue.add(offer.getTitle(), offer.getState(), offer.getPrice(), offer.getQuantity());
+			}
+			else if (object == null) {
 				block();
 			}
 		}
 	}
 	
+	/**
+	 * Inner class PriceSyncTicker.
+	 * Every 10 seconds (option syncPeriod), sends the books of the catalogue to the other
+	 * sellers so that they can tell whether they sell the same books for less.
+	 * In full mode, all the titles are sent at each tick in a QUERY_IF message.
+	 * In delta mode, only the listings added or repriced since the previous tick are sent,
+	 * with their price and a sequence number: a peer that missed a delta asks for a snapshot.
+	 * In index mode, the changed listings are only sent to the price index, every second.
+	 */
+	private class PriceSyncTicker extends TickerBehaviour {
+		PriceSyncTicker(long period) {
+			super(BookSellerAgent.this, period);
+		}
+
+		protected void onTick() {
+			if (indexSync) {
+				publishListings();
+				String summary = syncMetrics.endTick();
+				log.info("Price sync (index): %s", summary);
+				return;
+			}
+			List<Offer> offers = deltaSync ? catalogue.drainChanges() : catalogue.offers();
+			if (!offers.isEmpty()) {
+				//list of all other seller agents, or of those sharing a shard with this one
+				otherSellerAgents = sellerDirectory.getSellersSharing(shards, getAID());
+				
+				ACLMessage msg;
+				if (deltaSync) {
+					deltaSequence++;
+					msg = createDelta(BookTradeCodec.PRICE_DELTA, offers);
+				}
+				else {
+					//send them titles and states in catalogue
+					msg = new ACLMessage(ACLMessage.QUERY_IF);
+					msg.setConversationId(FULL_SYNC);
+					msg.setByteSequenceContent(BookTradeCodec.encodePriceQuery(offers));
+				}
+				for (int i = 0; i < otherSellerAgents.size(); ++i) {
+					msg.addReceiver(otherSellerAgents.get(i));
+				}
+				sendMessage(msg);
+				syncMetrics.record(msg, otherSellerAgents.size());
+			}
+			String summary = syncMetrics.endTick();
+			log.info("Price sync (%s): %s", deltaSync ? "delta" : "full", summary);
+		}
+	}
+
+	/**
+	 * Sends the listings changed since the previous call to the price index. A new index
+	 * gets a snapshot of the catalogue instead. Until an index is registered in the yellow
+	 * pages, the changes are kept.
+	 */
+	private void publishListings() {
+		AID[] indexes = indexDirectory.getSellers();
+		if (indexes.length == 0) {
+			return;
+		}
+		ACLMessage msg;
+		if (!indexes[0].equals(priceIndex)) {
+			priceIndex = indexes[0];
+			catalogue.drainChanges(true);
+			msg = createListings(BookTradeCodec.LISTING_SNAPSHOT, catalogue.offers());
+		}
+		else {
+			List<Offer> changes = catalogue.drainChanges(true);
+			if (changes.isEmpty()) {
+				return;
+			}
+			indexSequence++;
+			msg = createListings(BookTradeCodec.LISTING_DELTA, changes);
+		}
+		sendMessage(msg);
+		syncMetrics.record(msg, 1);
+	}
+
+	// Builds a message publishing listings (LISTING_DELTA or LISTING_SNAPSHOT) to the price index
+	private ACLMessage createListings(byte type, List<Offer> offers) {
+		ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+		msg.setConversationId(INDEX_SYNC);
+		msg.addReceiver(priceIndex);
+		msg.setByteSequenceContent(BookTradeCodec.encodeListings(type, indexSequence, offers));
+		return msg;
+	}
+
+	// Lowers the prices of the listings sold for less by another seller
+	private void lowerPrices(List<Offer> others) {
+		List<Offer> lowered = catalogue.lowerPrices(others);
+		pricesLowered.addAndGet(lowered.size());
+		if (ledger != null) {
+			for (Offer offer : lowered) {
+				ledger.record(TradeLedger.REPRICE, offer.getTitle(), offer.getState(), offer.getPrice(), 0,
+						getAID().getName(), null);
+			}
+		}
+		if (log.isEnabled(AgentLog.Level.DEBUG)) {
+			for (Offer offer : lowered) {
+				log.debug("%s;%s now costs %d", offer.getTitle(), offer.getState().getLabel(), offer.getPrice());
+			}
+		}
+	}
+
+	/**
+	 * Builds a delta (PRICE_DELTA) or snapshot (PRICE_SNAPSHOT) message: the current
+	 * sequence number followed by the listings with their prices
+	 */
+	private ACLMessage createDelta(byte type, List<Offer> offers) {
+		ACLMessage msg = new ACLMessage(ACLMessage.QUERY_IF);
+		msg.setConversationId(DELTA_SYNC);
+		msg.setByteSequenceContent(BookTradeCodec.encodePrices(type, deltaSequence, offers));
+		return msg;
+	}
+
+	/**
+	 * Inner class DeltaSyncServer.
+	 * This is the handler used by Book-seller agents to receive the listings changed in
+	 * another seller's catalogue (delta sync mode).
+	 * For each book sold by both sellers, the most expensive one lowers their price: the
+	 * current seller directly, the other seller through an INFORM message.
+	 * If a delta was missed, the current seller asks for a snapshot with a QUERY_REF message;
+	 * it answers such requests itself by sending its whole catalogue.
+	 */
+	private class DeltaSyncServer implements MessageRouter.Handler {
+		private final AtomicLong snapshotRequests = metrics.counter("sync.snapshotRequests");
+
+		public void handle(ACLMessage msg) {
+			if (msg.getPerformative() == ACLMessage.QUERY_REF) {
+				// A peer missed one of our deltas: send them a snapshot of the catalogue
+				ACLMessage snapshot = createDelta(BookTradeCodec.PRICE_SNAPSHOT, catalogue.offers());
+				snapshot.addReceiver(msg.getSender());
+				sendMessage(snapshot);
+				syncMetrics.record(snapshot, 1);
+				return;
+			}
+			BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(msg.getByteSequenceContent(),
+					BookTradeCodec.PRICE_DELTA, BookTradeCodec.PRICE_SNAPSHOT);
+			boolean isSnapshot = decoder.getType() == BookTradeCodec.PRICE_SNAPSHOT;
+			long sequence = decoder.readLong();
+			Long last = peerSequences.get(msg.getSender());
+			if (!isSnapshot && sequence != (last == null ? 1 : last + 1)) {
+				// Some changes of this peer are missing: ask for all of them
+				snapshotRequests.incrementAndGet();
+				ACLMessage request = new ACLMessage(ACLMessage.QUERY_REF);
+				request.setConversationId(DELTA_SYNC);
+				request.addReceiver(msg.getSender());
+				sendMessage(request);
+				syncMetrics.record(request, 1);
+			}
+			peerSequences.put(msg.getSender(), sequence);
+
+			List<Offer> others = BookTradeCodec.decodePrices(decoder);
+			lowerPrices(others);
+			List<Offer> cheaper = new ArrayList<Offer>();
+			for (Offer other : others) {
+				Integer price = catalogue.get(other.getTitle(), other.getState());
+				if (price != null && price < other.getPrice()) {
+					cheaper.add(new Offer(other.getTitle(), other.getState(), price));
+				}
+			}
+			if (!cheaper.isEmpty()) {
+				// Tell the other seller about the books we sell for less
+				ACLMessage reply = new ACLMessage(ACLMessage.INFORM);
+				reply.setConversationId(FULL_SYNC);
+				reply.addReceiver(msg.getSender());
+				reply.setByteSequenceContent(BookTradeCodec.encodePrices(BookTradeCodec.PRICE_LIST, 0, cheaper));
+				sendMessage(reply);
+				syncMetrics.record(reply, 1);
+			}
+		}
+	}
+
+	/**
+	 * Inner class IndexSnapshotServer.
+	 * This is the handler used by Book-seller agents to send their whole catalogue to the
+	 * price index when it missed some of their changes (index sync mode).
+	 */
+	private class IndexSnapshotServer implements MessageRouter.Handler {
+		public void handle(ACLMessage msg) {
+			if (!msg.getSender().equals(priceIndex)) {
+				return;
+			}
+			// The snapshot contains the pending changes
+			catalogue.drainChanges(true);
+			ACLMessage snapshot = createListings(BookTradeCodec.LISTING_SNAPSHOT, catalogue.offers());
+			sendMessage(snapshot);
+			syncMetrics.record(snapshot, 1);
+		}
+	}
+
+	/**
+	 * Inner class SendPriceServer.
+	 * This is the handler used by Book-seller agents when other sellers show them their books
+	 * If another seller has the same books in the same state, current seller will send the prices of
+	 * their versions, all of them in a single INFORM message.
+	 * Else they won't send anything.
+	 */
+	private class SendPriceServer implements MessageRouter.Handler {
+		public void handle(ACLMessage msg) {
+			List<Offer> matches = PriceMatcher.match(catalogue, msg.getByteSequenceContent());
+			if (!matches.isEmpty()) {
+				ACLMessage reply = msg.createReply();
+				reply.setPerformative(ACLMessage.INFORM);
+				reply.setByteSequenceContent(BookTradeCodec.encodePrices(BookTradeCodec.PRICE_LIST, 0, matches));
+				sendMessage(reply);
+				syncMetrics.record(reply, 1);
+			}
+		}
+	}
+	
 	
 	/**
 	 * Inner class AdjustPriceServer
-	 * This is the behaviour used by Book-seller to answer INFORM message sent by SendPriceServer
-	 * from another seller agent.
+	 * This is the handler used by Book-seller to answer INFORM message sent by SendPriceServer
+	 * from another seller agent, or by the price index.
 	 * If the other's version of the book is cheaper, current seller agent will lower their own price
 	 * accordingly.
 	 *
 	 */
-	private class AdjustPriceServer extends CyclicBehaviour {
-		public void action() {
-			MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.INFORM);
-			ACLMessage msg = myAgent.receive(mt);
-			if (msg != null) {
-				String content = msg.getContent();
-				String other_title = content.split(":")[0];
-				int other_price = (int)Integer.valueOf(content.split(":")[1]);
-				if (other_price < catalogue.get(other_title))
-					//if the price of the other book is lower
-				{
-					catalogue.put(other_title, other_price);
-					System.out.println(other_title+" now costs "+other_price+" for "+getAID().getName());
-				}
-			}
-			else {
-				block();
-			}
+	private class AdjustPriceServer implements MessageRouter.Handler {
+		public void handle(ACLMessage msg) {
+			//content of message: title;state:price entries separated by ','
+			//all the books that are cheaper at the other seller are repriced in one pass
+			List<Offer> others = BookTradeCodec.decodePrices(
+					new BookTradeCodec.Decoder(msg.getByteSequenceContent(), BookTradeCodec.PRICE_LIST));
+			lowerPrices(others);
 		}
 	}
 
 	/**
 	   Inner class OfferRequestsServer.
-	   This is the behaviour used by Book-seller agents to serve incoming requests 
+	   This is the handler used by Book-seller agents to serve incoming requests 
 	   for offer from buyer agents.
 	   If the requested book is in the local catalogue the seller agent replies 
-	   with a PROPOSE message specifying the price. Otherwise a REFUSE message is
-	   sent back.
+	   with a PROPOSE message specifying the price and the number of copies it can
+	   sell, up to the requested quantity. Otherwise a REFUSE message is sent back.
+	   When holds are on, the proposed copies are held for the buyer and the PROPOSE
+	   carries the reservation id.
+	   A basket CFP asks for several books at once: the seller proposes, in a single
+	   PROPOSE, every item it has in at least the requested state at most at the
+	   maximum price of the item, and refuses only if it has none of them.
+	   With the title index, a title typed differently from the catalogue (case, spaces,
+	   edition) is matched through its normalized key, and a search CFP is answered with
+	   the matching titles, best match first, in a single PROPOSE; only the copies of the
+	   best match are held.
+	   When the seller is overloaded, the CFPs shed by the router are refused with a
+	   retry-after hint.
 	 */
-	private class OfferRequestsServer extends CyclicBehaviour {
-		public void action() {
-			MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.CFP);
-			ACLMessage msg = myAgent.receive(mt);
-			if (msg != null) {
-				// CFP Message received. Process it
-				String key = msg.getContent();
-				System.out.println("recieved the ask for "+msg.getContent());
-				String title = key.split(";")[0];
-				String state = key.split(";")[1];
-				ACLMessage reply = msg.createReply();
-				
-				//searches the catalogue to see if it contains the book with the required state
-				if(catalogue.containsKey(key)) {
-					//the book is in the catalogue for the given state
-					Integer price = (Integer) catalogue.get(key);
-					// The requested book is available for sale. Reply with the price
-					
-					System.out.println("book available from "+getAID().getName());
-					reply.setPerformative(ACLMessage.PROPOSE);
-					reply.setContent(String.valueOf(price.intValue())+";"+state);
+	private class OfferRequestsServer implements MessageRouter.Shedder {
+		private final AtomicLong received = metrics.counter("cfp.received");
+		private final AtomicLong proposals = metrics.counter("cfp.proposals");
+		private final AtomicLong refusals = metrics.counter("cfp.refusals");
+		private final AtomicLong baskets = metrics.counter("cfp.baskets");
+		private final AtomicLong basketLines = metrics.counter("cfp.basketLines");
+		private final AtomicLong searches = metrics.counter("cfp.searches");
+		private final AtomicLong titlesResolved = metrics.counter("cfp.titlesResolved");
+		private final LatencyRecorder serviceTime = metrics.histogram("cfp.serviceMicros");
+
+		public boolean shed(ACLMessage msg, long retryAfter) {
+			refuseOverloaded(msg, ACLMessage.REFUSE, retryAfter);
+			return false;
+		}
+
+		public void handle(ACLMessage msg) {
+			long start = System.nanoTime();
+			received.incrementAndGet();
+			BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(msg.getByteSequenceContent(),
+					BookTradeCodec.CALL_FOR_PROPOSAL, BookTradeCodec.BASKET_CFP, BookTradeCodec.SEARCH_CFP);
+			if (decoder.getType() != BookTradeCodec.CALL_FOR_PROPOSAL) {
+				if (decoder.getType() == BookTradeCodec.BASKET_CFP) {
+					handleBasket(msg, BookTradeCodec.decodeBasketCallForProposal(decoder));
 				}
 				else {
-					System.out.println("book not in the catalogue of "+getAID().getName()+" with this state");
-					Boolean found = true;
-					//maybe the book is in the catalogue with a better state
-					String newState;
-					while (!catalogue.containsKey(key)){
-						newState = (String) better_state.get((String)state);
-						if(newState.equals("the best")) {
-							found = false;
-							break;
-						}
-						//updates the state with the better one
-						key = title+";"+newState;
-						state = newState;
-					}
-					if(found){
-						//The book is in the catalogue at a better state than asked
-						Integer price = (Integer) catalogue.get(key);
-						System.out.println("book available for a better state");
-						reply.setPerformative(ACLMessage.PROPOSE);
-						reply.setContent(String.valueOf(price.intValue())+";"+key.split(";")[1]);
-					}
-					else {
-						//The book is not in the catalogue with at least the required state
-						System.out.println("book not available from "+getAID().getName());
-						reply.setPerformative(ACLMessage.REFUSE);
-						reply.setContent("not-available");
-					}
+					handleSearch(msg, decoder);
 				}
-				myAgent.send(reply);
+				serviceTime.record((System.nanoTime() - start) / 1000);
+				return;
+			}
+			String title = decoder.readTitle();
+			BookState state = decoder.readState();
+			int quantity = decoder.readNumber();
+			ACLMessage reply = msg.createReply();
+			
+			//looks for the cheapest copy of the book in at least the required state
+			BasketLine line = propose(0, title, state, quantity, Integer.MAX_VALUE, msg.getSender(), true);
+			if (line != null) {
+				// The requested book is available for sale. Reply with the price and the actual state
+				log.debug("%d x %s in at least %s state asked: available in %s state",
+						quantity, title, state.getLabel(), line.getState().getLabel());
+				proposals.incrementAndGet();
+				reply.setPerformative(ACLMessage.PROPOSE);
+				reply.setByteSequenceContent(BookTradeCodec.encodeProposal(line.getPrice(), line.getState(),
+						line.getQuantity(), line.getReservation()));
 			}
 			else {
-				block();
+				//The book is not in the catalogue with at least the required state
+				log.debug("%d x %s in at least %s state asked: not available", quantity, title, state.getLabel());
+				refusals.incrementAndGet();
+				reply.setPerformative(ACLMessage.REFUSE);
+				reply.setContent("not-available");
+			}
+			sendMessage(reply);
+			serviceTime.record((System.nanoTime() - start) / 1000);
+		}
+
+		// Proposes the available items of a basket in a single reply
+		private void handleBasket(ACLMessage msg, List<PurchaseTarget> items) {
+			baskets.incrementAndGet();
+			List<BasketLine> lines = new ArrayList<BasketLine>();
+			for (int i = 0; i < items.size(); ++i) {
+				PurchaseTarget item = items.get(i);
+				BasketLine line = propose(i, item.getTitle(), item.getState(), item.getQuantity(), item.getMaxPrice(),
+						msg.getSender(), true);
+				if (line != null) {
+					lines.add(line);
+				}
+			}
+			log.debug("Basket of %d items asked: %d available", items.size(), lines.size());
+			ACLMessage reply = msg.createReply();
+			if (!lines.isEmpty()) {
+				proposals.incrementAndGet();
+				basketLines.addAndGet(lines.size());
+				reply.setPerformative(ACLMessage.PROPOSE);
+				reply.setByteSequenceContent(BookTradeCodec.encodeBasketProposal(lines));
+			}
+			else {
+				refusals.incrementAndGet();
+				reply.setPerformative(ACLMessage.REFUSE);
+				reply.setContent("not-available");
+			}
+			sendMessage(reply);
+		}
+
+		// Proposes the titles matching a query, best match first
+		private void handleSearch(ACLMessage msg, BookTradeCodec.Decoder decoder) {
+			searches.incrementAndGet();
+			String query = decoder.readTitle();
+			BookState state = decoder.readState();
+			int quantity = decoder.readNumber();
+			int maxPrice = decoder.readNumber();
+			int maxResults = decoder.readNumber();
+			List<String> titles = titleIndex != null ? titleIndex.search(query, Integer.MAX_VALUE)
+					: Collections.singletonList(query);
+			List<BasketLine> matches = new ArrayList<BasketLine>();
+			for (String title : titles) {
+				if (matches.size() >= maxResults) {
+					break;
+				}
+				// The buyer orders the best match: only its copies are held
+				BasketLine match = propose(0, title, state, quantity, maxPrice, msg.getSender(), matches.isEmpty());
+				if (match != null) {
+					matches.add(match);
+				}
+			}
+			log.debug("Search for %s in at least %s state: %d matches", query, state.getLabel(), matches.size());
+			ACLMessage reply = msg.createReply();
+			if (!matches.isEmpty()) {
+				proposals.incrementAndGet();
+				reply.setPerformative(ACLMessage.PROPOSE);
+				reply.setByteSequenceContent(BookTradeCodec.encodeSearchProposal(matches));
 			}
+			else {
+				refusals.incrementAndGet();
+				reply.setPerformative(ACLMessage.REFUSE);
+				reply.setContent("not-available");
+			}
+			sendMessage(reply);
+		}
+
+		// Returns the copies proposed for a book, held for the buyer if asked and holds are
+		// on, or null if there is none in at least the state at most at maxPrice
+		private BasketLine propose(int item, String title, BookState state, int quantity, int maxPrice, AID buyer,
+				boolean hold) {
+			Offer offer = catalogue.findAtLeast(title, state);
+			if (offer == null && titleIndex != null) {
+				// The buyer may have typed the title differently from the catalogue
+				for (String listed : titleIndex.resolve(title)) {
+					offer = listed.equals(title) ? null : catalogue.findAtLeast(listed, state);
+					if (offer != null) {
+						titlesResolved.incrementAndGet();
+						break;
+					}
+				}
+			}
+			if (offer == null || offer.getPrice() > maxPrice) {
+				return null;
+			}
+			// Propose as many copies as available, up to the requested quantity
+			int proposed = Math.min(quantity, offer.getQuantity());
+			long reservation = 0;
+			if (reservations != null && hold) {
+				reservation = reservations.reserve(offer.getTitle(), offer.getState(), proposed, buyer);
+			}
+			return new BasketLine(item, offer.getTitle(), offer.getState(), offer.getPrice(), proposed, reservation);
 		}
 	}  // End of inner class OfferRequestsServer
 
@@ -291,37 +989,172 @@ public class BookSellerAgent extends Agent {
 	
 	/**
 	   Inner class PurchaseOrdersServer.
-	   This is the behaviour used by Book-seller agents to serve incoming 
+	   This is the handler used by Book-seller agents to serve incoming 
 	   offer acceptances (i.e. purchase orders) from buyer agents.
 	   The seller agent removes the purchased book from its catalogue 
 	   and replies with an INFORM message to notify the buyer that the
 	   purchase has been sucessfully completed.
+	   It also serves the rejections of held proposals, releasing the holds.
+	   The lines of a basket order are served one by one: the INFORM lists the lines
+	   sold, and a FAILURE is sent back only if none could be.
+	   When the seller is overloaded, the orders shed by the router fail with a
+	   retry-after hint, and the copies held for them are released; the rejections are
+	   served anyway, releasing the holds at once costs less than keeping them until they
+	   expire.
 	 */
-	private class PurchaseOrdersServer extends CyclicBehaviour {
-		public void action() {
-			MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.ACCEPT_PROPOSAL);
-			ACLMessage msg = myAgent.receive(mt);
-			if (msg != null) {
-				// ACCEPT_PROPOSAL Message received. Process it
-				String key =  msg.getContent();
-				String title = msg.getContent().split(";")[0];
-				ACLMessage reply = msg.createReply();
+	private class PurchaseOrdersServer implements MessageRouter.Shedder {
+		private final AtomicLong orders = metrics.counter("orders.received");
+		private final AtomicLong sales = metrics.counter("orders.sold");
+		private final AtomicLong copiesSold = metrics.counter("orders.copiesSold");
+		private final AtomicLong failures = metrics.counter("orders.failed");
+		private final AtomicLong rejections = metrics.counter("proposals.rejected");
+		private final LatencyRecorder serviceTime = metrics.histogram("order.serviceMicros");
 
-				Integer price = (Integer) catalogue.remove(key);
-				if (price != null) {
-					reply.setPerformative(ACLMessage.INFORM);
-					System.out.println(title+" sold to agent "+msg.getSender().getName());
+		public boolean shed(ACLMessage msg, long retryAfter) {
+			if (msg.getPerformative() == ACLMessage.REJECT_PROPOSAL) {
+				handle(msg);
+				return true;
+			}
+			// The order fails: the copies held for it can be proposed to the other buyers at once
+			BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(msg.getByteSequenceContent(),
+					BookTradeCodec.PURCHASE_ORDER, BookTradeCodec.BASKET_ORDER);
+			if (decoder.getType() == BookTradeCodec.BASKET_ORDER) {
+				for (BasketLine line : BookTradeCodec.decodeBasketOrder(decoder)) {
+					release(line.getReservation(), msg.getSender());
 				}
-				else {
-					// The requested book has been sold to another buyer in the meanwhile .
-					reply.setPerformative(ACLMessage.FAILURE);
-					reply.setContent("not-available");
+			}
+			else {
+				decoder.readTitle();
+				decoder.readState();
+				decoder.readNumber();
+				release(decoder.readLong(), msg.getSender());
+			}
+			refuseOverloaded(msg, ACLMessage.FAILURE, retryAfter);
+			return false;
+		}
+
+		public void handle(ACLMessage msg) {
+			long start = System.nanoTime();
+			BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(msg.getByteSequenceContent(),
+					BookTradeCodec.PURCHASE_ORDER, BookTradeCodec.BASKET_ORDER);
+			if (decoder.getType() == BookTradeCodec.BASKET_ORDER) {
+				handleBasket(msg, BookTradeCodec.decodeBasketOrder(decoder));
+				serviceTime.record((System.nanoTime() - start) / 1000);
+				return;
+			}
+			String title = decoder.readTitle();
+			BookState state = decoder.readState();
+			int quantity = decoder.readNumber();
+			long reservation = decoder.readLong();
+			if (msg.getPerformative() == ACLMessage.REJECT_PROPOSAL) {
+				// The buyer bought elsewhere: the held copy can be proposed again
+				reject(reservation, msg.getSender());
+				return;
+			}
+			// Purchase order
+			orders.incrementAndGet();
+			ACLMessage reply = msg.createReply();
+			if (sell(title, state, quantity, reservation, msg.getSender())) {
+				reply.setPerformative(ACLMessage.INFORM);
+				log.info("%d x %s sold to agent %s", quantity, title, msg.getSender().getName());
+			}
+			else {
+				// The requested book has been sold to another buyer in the meanwhile .
+				reply.setPerformative(ACLMessage.FAILURE);
+				reply.setContent("not-available");
+			}
+			sendMessage(reply);
+			serviceTime.record((System.nanoTime() - start) / 1000);
+		}
+
+		// Sells the lines of a basket order, or releases them if the proposal is rejected
+		private void handleBasket(ACLMessage msg, List<BasketLine> lines) {
+			if (msg.getPerformative() == ACLMessage.REJECT_PROPOSAL) {
+				for (BasketLine line : lines) {
+					reject(line.getReservation(), msg.getSender());
+				}
+				return;
+			}
+			List<BasketLine> sold = new ArrayList<BasketLine>(lines.size());
+			for (BasketLine line : lines) {
+				orders.incrementAndGet();
+				if (sell(line.getTitle(), line.getState(), line.getQuantity(), line.getReservation(), msg.getSender())) {
+					sold.add(line);
 				}
-				myAgent.send(reply);
+			}
+			log.info("%d of %d basket lines sold to agent %s", sold.size(), lines.size(), msg.getSender().getName());
+			ACLMessage reply = msg.createReply();
+			if (!sold.isEmpty()) {
+				reply.setPerformative(ACLMessage.INFORM);
+				reply.setByteSequenceContent(BookTradeCodec.encodeBasketOrder(sold));
 			}
 			else {
-				block();
+				reply.setPerformative(ACLMessage.FAILURE);
+				reply.setContent("not-available");
 			}
+			sendMessage(reply);
 		}
-	}  // End of inner class OfferRequestsServer
+
+		private void reject(long reservation, AID buyer) {
+			rejections.incrementAndGet();
+			release(reservation, buyer);
+		}
+
+		// Cancels the hold of a proposal made to the buyer, releasing its copies
+		private void release(long reservation, AID buyer) {
+			if (reservations != null && reservation != 0) {
+				reservations.cancel(reservation, buyer);
+			}
+		}
+
+		// Sells the held copies if the reservation is still valid and was made for the buyer,
+		// otherwise available copies. The order is served entirely or not at all
+		private boolean sell(String title, BookState state, int quantity, long reservation, AID buyer) {
+			Integer price = null;
+			// The title and state sold, which may differ from those of the order
+			String sold = title;
+			BookState soldState = state;
+			ReservationTable.Reservation held = null;
+			if (reservations != null && reservation != 0) {
+				// The listing is not removed between the claim and the sale of its held copies
+				synchronized (catalogue) {
+					held = reservations.claim(reservation, buyer);
+					if (held != null && quantity <= held.getQuantity()) {
+						price = catalogue.removeHeld(held.getTitle(), held.getState(), quantity);
+						sold = held.getTitle();
+						soldState = held.getState();
+						// The buyer may order fewer copies than proposed
+						catalogue.release(held.getTitle(), held.getState(), held.getQuantity() - quantity);
+					}
+					else if (held != null) {
+						catalogue.release(held.getTitle(), held.getState(), held.getQuantity());
+						held = null;
+					}
+				}
+			}
+			if (held == null) {
+				price = catalogue.removeAvailable(title, state, quantity);
+				if (price == null && titleIndex != null) {
+					// The title of the order may be typed differently from the catalogue
+					for (String listed : titleIndex.resolve(title)) {
+						price = listed.equals(title) ? null : catalogue.removeAvailable(listed, state, quantity);
+						if (price != null) {
+							sold = listed;
+							break;
+						}
+					}
+				}
+			}
+			if (price == null) {
+				failures.incrementAndGet();
+				return false;
+			}
+			sales.incrementAndGet();
+			copiesSold.addAndGet(quantity);
+			if (ledger != null) {
+				ledger.record(TradeLedger.SALE, sold, soldState, price, quantity, getAID().getName(), buyer.getName());
+			}
+			return true;
+		}
+	}  // End of inner class PurchaseOrdersServer
 }
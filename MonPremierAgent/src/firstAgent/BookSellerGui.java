@@ -35,7 +35,7 @@ import javax.swing.*;
 class BookSellerGui extends JFrame {	
 	private BookSellerAgent myAgent;
 	
-	private JTextField titleField, priceField;
+	private JTextField titleField, priceField, quantityField;
 	private JComboBox<String> stateField;
 	
 	BookSellerGui(BookSellerAgent a) {
@@ -43,7 +43,7 @@ class BookSellerGui extends JFrame {
 		
 		myAgent = a;
 		JPanel p = new JPanel();
-		p.setLayout(new GridLayout(3, 2));
+		p.setLayout(new GridLayout(4, 2));
 		p.add(new JLabel("Book title:"));
 		titleField = new JTextField(15);
 		p.add(titleField);
@@ -51,9 +51,12 @@ class BookSellerGui extends JFrame {
 		priceField = new JTextField(15);
 		p.add(priceField);
 		p.add(new JLabel("State of the book:"));
-		String[] states = {"New","Good","Used","Damaged"};
+		String[] states = BookState.labels();
 		stateField = new JComboBox<String>(states);
 		p.add(stateField);
+		p.add(new JLabel("Number of copies:"));
+		quantityField = new JTextField("1", 15);
+		p.add(quantityField);
 		getContentPane().add(p, BorderLayout.CENTER);
 		
 		JButton addButton = new JButton("Add");
@@ -63,9 +66,10 @@ class BookSellerGui extends JFrame {
 					String title = titleField.getText().trim();
 					String price = priceField.getText().trim();
 					String state = (String)stateField.getSelectedItem();
-					myAgent.updateCatalogue(title, Integer.parseInt(price),state);
+					myAgent.updateCatalogue(title, Integer.parseInt(price),state, Integer.parseInt(quantityField.getText().trim()));
 					titleField.setText("");
 					priceField.setText("");
+					quantityField.setText("1");
 					stateField.setSelectedIndex(0);
 				}
 				catch (Exception e) {
@@ -0,0 +1,55 @@
+package firstAgent;
+
+/**
+ * The condition of a book, from the best to the worst.
+ * The declaration order matters: a lower ordinal means a better state,
+ * so "at least as good as" is a plain comparison of ordinals.
+ */
+public enum BookState {
+	NEW("New"),
+	GOOD("Good"),
+	USED("Used"),
+	DAMAGED("Damaged");
+
+	private static final BookState[] VALUES = values();
+
+	// The label used in the GUIs and in the messages exchanged by the agents
+	private final String label;
+
+	BookState(String label) {
+		this.label = label;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * Returns true if a book in this state is acceptable for someone
+	 * asking for a book in at least the given state.
+	 */
+	public boolean isAtLeast(BookState required) {
+		return ordinal() <= required.ordinal();
+	}
+
+	public static BookState fromOrdinal(int ordinal) {
+		return VALUES[ordinal];
+	}
+
+	public static BookState fromLabel(String label) {
+		for (BookState state : VALUES) {
+			if (state.label.equals(label)) {
+				return state;
+			}
+		}
+		throw new IllegalArgumentException("Unknown book state: "+label);
+	}
+
+	public static String[] labels() {
+		String[] labels = new String[VALUES.length];
+		for (int i = 0; i < VALUES.length; ++i) {
+			labels[i] = VALUES[i].label;
+		}
+		return labels;
+	}
+}
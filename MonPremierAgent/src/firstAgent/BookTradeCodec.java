@@ -0,0 +1,469 @@
+package firstAgent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The encoding of the contents of the book-trading messages (byte sequence contents).
+ * A content starts with one byte giving its type, followed by fields:
+ *   - numbers (prices, sequence numbers, lengths) as variable length integers,
+ *     7 bits per byte, so that a price under 128 takes a single byte;
+ *   - states as one byte, the ordinal of the BookState;
+ *   - titles as their length followed by their UTF-8 bytes.
+ * Since titles are length-prefixed, they may contain any character, ';', ':' and ','
+ * included, without escaping.
+ *
+ * The contents of the messages are:
+ *   CALL_FOR_PROPOSAL:                 title, state, quantity
+ *   PURCHASE_ORDER:                    title, state, quantity, reservation id (0 if none)
+ *   PROPOSAL:                          price, state, quantity, reservation id (0 if none)
+ *   PRICE_QUERY:                       count, then title, state for each listing
+ *   PRICE_LIST:                        count, then title, state, price for each listing
+ *   PRICE_DELTA, PRICE_SNAPSHOT:       sequence number, then the same as PRICE_LIST
+ *   LISTING_DELTA, LISTING_SNAPSHOT:   sequence number, count, then title, state, price,
+ *                                      quantity for each listing (quantity 0: unlisted)
+ *   BASKET_CFP:                        count, then title, state, quantity, max price for
+ *                                      each item
+ *   BASKET_PROPOSAL:                   count, then item index, price, state, quantity,
+ *                                      reservation id for each item proposed
+ *   BASKET_ORDER:                      count, then item index, title, state, quantity,
+ *                                      reservation id for each line ordered (or sold)
+ *   SEARCH_CFP:                        query, state, quantity, max price, max results
+ *   SEARCH_PROPOSAL:                   count, then title, price, state, quantity,
+ *                                      reservation id for each match, best match first
+ */
+public class BookTradeCodec {
+	public static final byte CALL_FOR_PROPOSAL = 1;
+	public static final byte PROPOSAL = 2;
+	public static final byte PURCHASE_ORDER = 3;
+	public static final byte PRICE_QUERY = 4;
+	public static final byte PRICE_LIST = 5;
+	public static final byte PRICE_DELTA = 6;
+	public static final byte PRICE_SNAPSHOT = 7;
+	public static final byte LISTING_DELTA = 8;
+	public static final byte LISTING_SNAPSHOT = 9;
+	public static final byte BASKET_CFP = 10;
+	public static final byte BASKET_PROPOSAL = 11;
+	public static final byte BASKET_ORDER = 12;
+	public static final byte SEARCH_CFP = 13;
+	public static final byte SEARCH_PROPOSAL = 14;
+
+	/**
+	 * Encodes a call for proposal for a number of copies.
+	 */
+	public static byte[] encodeCallForProposal(String title, BookState state, int quantity) {
+		Encoder encoder = new Encoder(CALL_FOR_PROPOSAL, title.length() + 8);
+		encoder.writeTitle(title);
+		encoder.writeState(state);
+		encoder.writeNumber(quantity);
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Encodes a purchase order (the content of an ACCEPT_PROPOSAL or a REJECT_PROPOSAL).
+	 */
+	public static byte[] encodeOrder(String title, BookState state, int quantity, long reservation) {
+		Encoder encoder = new Encoder(PURCHASE_ORDER, title.length() + 16);
+		encoder.writeTitle(title);
+		encoder.writeState(state);
+		encoder.writeNumber(quantity);
+		encoder.writeNumber(reservation);
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Encodes a proposal: the price of a copy, the state and the number of copies proposed.
+	 */
+	public static byte[] encodeProposal(int price, BookState state, int quantity, long reservation) {
+		Encoder encoder = new Encoder(PROPOSAL, 20);
+		encoder.writeNumber(price);
+		encoder.writeState(state);
+		encoder.writeNumber(quantity);
+		encoder.writeNumber(reservation);
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Encodes the titles and states of the offers (PRICE_QUERY).
+	 */
+	public static byte[] encodePriceQuery(Collection<Offer> offers) {
+		Encoder encoder = new Encoder(PRICE_QUERY, 16 * offers.size() + 8);
+		encoder.writeNumber(offers.size());
+		for (Offer offer : offers) {
+			encoder.writeTitle(offer.getTitle());
+			encoder.writeState(offer.getState());
+		}
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Encodes the offers with their prices. The sequence number is only written for
+	 * PRICE_DELTA and PRICE_SNAPSHOT contents.
+	 */
+	public static byte[] encodePrices(byte type, long sequence, Collection<Offer> offers) {
+		Encoder encoder = new Encoder(type, 18 * offers.size() + 16);
+		if (type != PRICE_LIST) {
+			encoder.writeNumber(sequence);
+		}
+		encoder.writeNumber(offers.size());
+		for (Offer offer : offers) {
+			encoder.writeTitle(offer.getTitle());
+			encoder.writeState(offer.getState());
+			encoder.writeNumber(offer.getPrice());
+		}
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Decodes the listings of a PRICE_LIST content, or of a PRICE_DELTA or PRICE_SNAPSHOT
+	 * content whose sequence number was already read.
+	 */
+	public static List<Offer> decodePrices(Decoder decoder) {
+		int count = decoder.readCount();
+		List<Offer> offers = new ArrayList<Offer>(count);
+		for (int i = 0; i < count; ++i) {
+			String title = decoder.readTitle();
+			BookState state = decoder.readState();
+			offers.add(new Offer(title, state, decoder.readNumber()));
+		}
+		return offers;
+	}
+
+	/**
+	 * Encodes the listings published to the price index (LISTING_DELTA or LISTING_SNAPSHOT):
+	 * the offers with their prices and numbers of copies.
+	 */
+	public static byte[] encodeListings(byte type, long sequence, Collection<Offer> offers) {
+		Encoder encoder = new Encoder(type, 20 * offers.size() + 16);
+		encoder.writeNumber(sequence);
+		encoder.writeNumber(offers.size());
+		for (Offer offer : offers) {
+			encoder.writeTitle(offer.getTitle());
+			encoder.writeState(offer.getState());
+			encoder.writeNumber(offer.getPrice());
+			encoder.writeNumber(offer.getQuantity());
+		}
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Decodes the listings of a LISTING_DELTA or LISTING_SNAPSHOT content whose sequence
+	 * number was already read.
+	 */
+	public static List<Offer> decodeListings(Decoder decoder) {
+		int count = decoder.readCount();
+		List<Offer> offers = new ArrayList<Offer>(count);
+		for (int i = 0; i < count; ++i) {
+			String title = decoder.readTitle();
+			BookState state = decoder.readState();
+			int price = decoder.readNumber();
+			offers.add(new Offer(title, state, price, decoder.readNumber()));
+		}
+		return offers;
+	}
+
+	/**
+	 * Encodes a call for proposal for all the items of a basket: the state and maxPrice of
+	 * each target are the minimum state and the maximum price of a copy.
+	 */
+	public static byte[] encodeBasketCallForProposal(List<PurchaseTarget> items) {
+		Encoder encoder = new Encoder(BASKET_CFP, 24 * items.size() + 8);
+		encoder.writeNumber(items.size());
+		for (PurchaseTarget item : items) {
+			encoder.writeTitle(item.getTitle());
+			encoder.writeState(item.getState());
+			encoder.writeNumber(item.getQuantity());
+			encoder.writeNumber(item.getMaxPrice());
+		}
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Decodes the items of a BASKET_CFP content.
+	 */
+	public static List<PurchaseTarget> decodeBasketCallForProposal(Decoder decoder) {
+		int count = decoder.readCount();
+		List<PurchaseTarget> items = new ArrayList<PurchaseTarget>(count);
+		for (int i = 0; i < count; ++i) {
+			String title = decoder.readTitle();
+			BookState state = decoder.readState();
+			int quantity = decoder.readNumber();
+			items.add(new PurchaseTarget(title, state, decoder.readNumber(), quantity));
+		}
+		return items;
+	}
+
+	/**
+	 * Encodes the lines a seller proposes for the items of a basket (BASKET_PROPOSAL).
+	 * The titles are not written: the buyer knows them from the item indexes.
+	 */
+	public static byte[] encodeBasketProposal(Collection<BasketLine> lines) {
+		Encoder encoder = new Encoder(BASKET_PROPOSAL, 12 * lines.size() + 8);
+		encoder.writeNumber(lines.size());
+		for (BasketLine line : lines) {
+			encoder.writeNumber(line.getItem());
+			encoder.writeNumber(line.getPrice());
+			encoder.writeState(line.getState());
+			encoder.writeNumber(line.getQuantity());
+			encoder.writeNumber(line.getReservation());
+		}
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Decodes the lines of a BASKET_PROPOSAL content, taking their titles from the items
+	 * of the basket. Throws an IllegalArgumentException if an item index is out of the basket.
+	 * Without the items (null), the lines are left untitled.
+	 */
+	public static List<BasketLine> decodeBasketProposal(Decoder decoder, List<PurchaseTarget> items) {
+		int count = decoder.readCount();
+		List<BasketLine> lines = new ArrayList<BasketLine>(count);
+		for (int i = 0; i < count; ++i) {
+			int item = decoder.readNumber();
+			if (items != null && (item < 0 || item >= items.size())) {
+				throw new IllegalArgumentException("No item "+item+" in a basket of "+items.size());
+			}
+			int price = decoder.readNumber();
+			BookState state = decoder.readState();
+			int quantity = decoder.readNumber();
+			String title = items != null ? items.get(item).getTitle() : "";
+			lines.add(new BasketLine(item, title, state, price, quantity, decoder.readLong()));
+		}
+		return lines;
+	}
+
+	/**
+	 * Encodes the lines of a basket ordered from a seller (the content of an ACCEPT_PROPOSAL
+	 * or a REJECT_PROPOSAL), or sold by it (the content of its INFORM).
+	 */
+	public static byte[] encodeBasketOrder(Collection<BasketLine> lines) {
+		Encoder encoder = new Encoder(BASKET_ORDER, 28 * lines.size() + 8);
+		encoder.writeNumber(lines.size());
+		for (BasketLine line : lines) {
+			encoder.writeNumber(line.getItem());
+			encoder.writeTitle(line.getTitle());
+			encoder.writeState(line.getState());
+			encoder.writeNumber(line.getQuantity());
+			encoder.writeNumber(line.getReservation());
+		}
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Decodes the lines of a BASKET_ORDER content; their prices are 0.
+	 */
+	public static List<BasketLine> decodeBasketOrder(Decoder decoder) {
+		int count = decoder.readCount();
+		List<BasketLine> lines = new ArrayList<BasketLine>(count);
+		for (int i = 0; i < count; ++i) {
+			int item = decoder.readNumber();
+			String title = decoder.readTitle();
+			BookState state = decoder.readState();
+			int quantity = decoder.readNumber();
+			lines.add(new BasketLine(item, title, state, 0, quantity, decoder.readLong()));
+		}
+		return lines;
+	}
+
+	/**
+	 * Encodes a call for proposal for the titles matching a query rather than for an exact
+	 * title (see TitleIndex), with the number of matches wanted at most.
+	 */
+	public static byte[] encodeSearchCallForProposal(String query, BookState state, int quantity, int maxPrice,
+			int maxResults) {
+		Encoder encoder = new Encoder(SEARCH_CFP, query.length() + 16);
+		encoder.writeTitle(query);
+		encoder.writeState(state);
+		encoder.writeNumber(quantity);
+		encoder.writeNumber(maxPrice);
+		encoder.writeNumber(maxResults);
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Encodes the matches a seller proposes for a search (SEARCH_PROPOSAL), best match first.
+	 * The item indexes of the lines are not written.
+	 */
+	public static byte[] encodeSearchProposal(Collection<BasketLine> matches) {
+		Encoder encoder = new Encoder(SEARCH_PROPOSAL, 28 * matches.size() + 8);
+		encoder.writeNumber(matches.size());
+		for (BasketLine match : matches) {
+			encoder.writeTitle(match.getTitle());
+			encoder.writeNumber(match.getPrice());
+			encoder.writeState(match.getState());
+			encoder.writeNumber(match.getQuantity());
+			encoder.writeNumber(match.getReservation());
+		}
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Decodes the matches of a SEARCH_PROPOSAL content, best match first; their item
+	 * indexes are 0.
+	 */
+	public static List<BasketLine> decodeSearchProposal(Decoder decoder) {
+		int count = decoder.readCount();
+		List<BasketLine> matches = new ArrayList<BasketLine>(count);
+		for (int i = 0; i < count; ++i) {
+			String title = decoder.readTitle();
+			int price = decoder.readNumber();
+			BookState state = decoder.readState();
+			int quantity = decoder.readNumber();
+			matches.add(new BasketLine(0, title, state, price, quantity, decoder.readLong()));
+		}
+		return matches;
+	}
+
+	/**
+	 * Writes a content into a growable byte array.
+	 */
+	public static class Encoder {
+		private byte[] bytes;
+		private int size = 0;
+
+		public Encoder(byte type, int expectedSize) {
+			bytes = new byte[Math.max(expectedSize, 8)];
+			bytes[size++] = type;
+		}
+
+		public void writeNumber(long value) {
+			ensureCapacity(10);
+			while ((value & ~0x7FL) != 0) {
+				bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[size++] = (byte) value;
+		}
+
+		public void writeState(BookState state) {
+			ensureCapacity(1);
+			bytes[size++] = (byte) state.ordinal();
+		}
+
+		public void writeTitle(String title) {
+			int length = title.length();
+			// Fast path: ASCII titles are copied char by char, without an intermediate array
+			boolean ascii = true;
+			for (int i = 0; i < length && ascii; ++i) {
+				ascii = title.charAt(i) < 0x80;
+			}
+			if (ascii) {
+				writeNumber(length);
+				ensureCapacity(length);
+				for (int i = 0; i < length; ++i) {
+					bytes[size++] = (byte) title.charAt(i);
+				}
+			}
+			else {
+				byte[] utf8 = title.getBytes(StandardCharsets.UTF_8);
+				writeNumber(utf8.length);
+				ensureCapacity(utf8.length);
+				System.arraycopy(utf8, 0, bytes, size, utf8.length);
+				size += utf8.length;
+			}
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public byte[] toByteArray() {
+			return size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+		}
+
+		private void ensureCapacity(int extra) {
+			if (size + extra > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+			}
+		}
+	}
+
+	/**
+	 * Reads the fields of a content one after the other, directly from the byte array.
+	 */
+	public static class Decoder {
+		private final byte[] bytes;
+		private int position = 0;
+
+		/**
+		 * Throws an IllegalArgumentException if the content is not of the expected type.
+		 */
+		public Decoder(byte[] bytes, byte expectedType) {
+			if (bytes == null || bytes.length == 0 || bytes[0] != expectedType) {
+				throw new IllegalArgumentException("Not a book-trading content of type "+expectedType);
+			}
+			this.bytes = bytes;
+			this.position = 1;
+		}
+
+		/**
+		 * Accepts a content of any of the given types; getType() tells which one it is.
+		 */
+		public Decoder(byte[] bytes, byte... expectedTypes) {
+			this(bytes, matchType(bytes, expectedTypes));
+		}
+
+		public byte getType() {
+			return bytes[0];
+		}
+
+		/**
+		 * Returns true if there are fields left to read, e.g. fields added to a record
+		 * after it was written.
+		 */
+		public boolean hasRemaining() {
+			return position < bytes.length;
+		}
+
+		public int readNumber() {
+			return (int) readLong();
+		}
+
+		public long readLong() {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = bytes[position++];
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		/**
+		 * Reads the number of entries of a list. Each entry takes at least one byte, so a
+		 * count larger than the bytes left comes from a corrupt or hostile content: it is
+		 * rejected with an IllegalArgumentException before the list is allocated.
+		 */
+		public int readCount() {
+			long count = readLong();
+			if (count < 0 || count > bytes.length - position) {
+				throw new IllegalArgumentException("Invalid count "+count+" with "+(bytes.length - position)+" bytes left");
+			}
+			return (int) count;
+		}
+
+		public BookState readState() {
+			return BookState.fromOrdinal(bytes[position++]);
+		}
+
+		public String readTitle() {
+			int length = readNumber();
+			String title = new String(bytes, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return title;
+		}
+
+		private static byte matchType(byte[] bytes, byte[] expectedTypes) {
+			if (bytes != null && bytes.length > 0) {
+				for (byte type : expectedTypes) {
+					if (bytes[0] == type) {
+						return type;
+					}
+				}
+			}
+			return expectedTypes.length > 0 ? expectedTypes[0] : 0;
+		}
+	}
+}
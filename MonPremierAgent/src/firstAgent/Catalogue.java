@@ -0,0 +1,459 @@
+package firstAgent;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The catalogue of books for sale of a seller agent.
+ * Offers are indexed by title. For each title the prices and the number of copies
+ * are stored in a single array indexed by the ordinal of the state (best state first),
+ * so looking for the cheapest copy in at least a given state is a single hash lookup
+ * followed by a scan of at most BookState.values().length slots.
+ * A listing is a title in a given state: all its copies have the same price.
+ * The catalogue also remembers which titles changed since the last call to
+ * drainChanges(), so that price synchronization can send only the difference.
+ * Listeners can follow every change, for instance to persist the catalogue.
+ * Copies can be held for a buyer (see ReservationTable): they stay in the catalogue but
+ * are not offered to other buyers until the hold is released or the copies are sold.
+ * The titles can be shared with the other agents of the JVM (see TitleDictionary): the
+ * catalogue then keeps the shared instance of each title it lists or holds.
+ * All the methods are synchronized, like the Hashtable this class replaces.
+ */
+public class Catalogue {
+	/**
+	 * Notified of every change of the catalogue, while the catalogue lock is held,
+	 * so that the notifications are in the order of the changes.
+	 */
+	public interface Listener {
+		// A listing was added, repriced or its number of copies changed
+		void listed(String title, BookState state, int price, int quantity);
+		// A listing was removed (its last copy was sold)
+		void unlisted(String title, BookState state);
+	}
+
+	/**
+	 * Visits the listings of the catalogue one at a time (see forEach), e.g. to write
+	 * them to a file without copying the whole catalogue first.
+	 */
+	public interface Visitor {
+		void visit(String title, BookState state, int price, int quantity) throws IOException;
+	}
+
+	// Marks a state for which the seller has no copy of the title
+	private static final int NONE = -1;
+	private static final int STATES = BookState.values().length;
+	// In the array of a title, the prices come first, then the numbers of copies
+	private static final int QUANTITY = STATES;
+
+	// Maps a title to its prices and numbers of copies, indexed by state ordinal
+	private final HashMap<String, int[]> offers;
+	// The number of (title, state) listings
+	private int size = 0;
+	// Whether the changes are tracked for drainChanges()
+	private boolean trackChanges = true;
+	// Titles added, repriced or sold out since the last call to drainChanges()
+	private LinkedHashSet<String> changed = new LinkedHashSet<String>();
+	// For the titles of which a listing was removed since the last call to drainChanges(),
+	// the states removed, as bit masks of ordinals
+	private HashMap<String, Integer> unlisted = new HashMap<String, Integer>();
+	private List<Listener> listeners = new ArrayList<Listener>();
+	// The copies held for buyers, indexed by state ordinal; only the titles with holds are present
+	private final HashMap<String, int[]> holds = new HashMap<String, int[]>();
+	// The dictionary the titles are shared through, or null to keep the instances received
+	private final TitleDictionary titles;
+
+	public Catalogue() {
+		this(null);
+	}
+
+	/**
+	 * @param titles the dictionary of the titles shared with the other agents, or null
+	 */
+	public Catalogue(TitleDictionary titles) {
+		offers = new HashMap<String, int[]>();
+		this.titles = titles;
+	}
+
+	/**
+	 * Adds copies of a book to the catalogue. If the seller already has the title
+	 * in this state, the copies are added to the listing and the price of the
+	 * listing is changed.
+	 */
+	public synchronized void add(String title, BookState state, int price, int quantity) {
+		if (quantity <= 0) {
+			throw new IllegalArgumentException("Invalid quantity: "+quantity);
+		}
+		int[] listing = offers.get(title);
+		int current = listing == null || listing[state.ordinal()] == NONE ? 0 : listing[QUANTITY + state.ordinal()];
+		put(title, state, price, current + quantity);
+	}
+
+	/**
+	 * Adds the copies of all the offers, under a single lock: a bulk import takes the
+	 * lock once per batch instead of once per row.
+	 */
+	public synchronized void addAll(Collection<Offer> batch) {
+		for (Offer offer : batch) {
+			add(offer.getTitle(), offer.getState(), offer.getPrice(), offer.getQuantity());
+		}
+	}
+
+	/**
+	 * Sets the price and the number of copies of a listing; a quantity of 0 removes
+	 * the listing. This is how a stored catalogue is replayed (see CatalogueStore).
+	 */
+	public synchronized void put(String title, BookState state, int price, int quantity) {
+		if (quantity <= 0) {
+			remove(title, state);
+			return;
+		}
+		int slot = state.ordinal();
+		int[] listing = offers.get(title);
+		if (listing == null) {
+			if (titles != null) {
+				title = titles.intern(title);
+			}
+			listing = new int[2 * STATES];
+			Arrays.fill(listing, 0, STATES, NONE);
+			offers.put(title, listing);
+		}
+		if (listing[slot] == NONE) {
+			size++;
+		}
+		if (listing[slot] != price || listing[QUANTITY + slot] != quantity) {
+			if (listing[slot] != price && trackChanges) {
+				changed.add(title);
+			}
+			listing[slot] = price;
+			listing[QUANTITY + slot] = quantity;
+			for (Listener listener : listeners) {
+				listener.listed(title, state, price, quantity);
+			}
+		}
+	}
+
+	/**
+	 * Returns the price of the title in exactly this state, or null if the
+	 * seller has no such copy.
+	 */
+	public synchronized Integer get(String title, BookState state) {
+		int[] listing = offers.get(title);
+		if (listing == null || listing[state.ordinal()] == NONE) {
+			return null;
+		}
+		return listing[state.ordinal()];
+	}
+
+	/**
+	 * Returns the number of copies of the title in exactly this state, held or not.
+	 */
+	public synchronized int getQuantity(String title, BookState state) {
+		int[] listing = offers.get(title);
+		if (listing == null || listing[state.ordinal()] == NONE) {
+			return 0;
+		}
+		return listing[QUANTITY + state.ordinal()];
+	}
+
+	/**
+	 * Removes all the copies of the title in this state from the catalogue and returns
+	 * their price, or null if the seller had no such copy.
+	 */
+	public synchronized Integer remove(String title, BookState state) {
+		int[] listing = offers.get(title);
+		if (listing == null || listing[state.ordinal()] == NONE) {
+			return null;
+		}
+		int price = listing[state.ordinal()];
+		listing[state.ordinal()] = NONE;
+		listing[QUANTITY + state.ordinal()] = 0;
+		size--;
+		clearHold(title, state.ordinal());
+		if (trackChanges) {
+			changed.add(title);
+			Integer removed = unlisted.get(title);
+			unlisted.put(title, (removed == null ? 0 : removed) | 1 << state.ordinal());
+		}
+		if (isUnlisted(listing)) {
+			offers.remove(title);
+		}
+		for (Listener listener : listeners) {
+			listener.unlisted(title, state);
+		}
+		return price;
+	}
+
+	/**
+	 * Holds copies of the title in this state for a buyer: they will not be offered
+	 * to other buyers. Returns false if fewer copies are available (not already held).
+	 */
+	public synchronized boolean hold(String title, BookState state, int quantity) {
+		if (quantity <= 0 || available(title, state.ordinal()) < quantity) {
+			return false;
+		}
+		int[] held = holds.get(title);
+		if (held == null) {
+			held = new int[STATES];
+			holds.put(titles == null ? title : titles.intern(title), held);
+		}
+		held[state.ordinal()] += quantity;
+		return true;
+	}
+
+	/**
+	 * Releases held copies: they can be offered to any buyer again.
+	 */
+	public synchronized void release(String title, BookState state, int quantity) {
+		int[] held = holds.get(title);
+		if (held != null && held[state.ordinal()] > 0) {
+			held[state.ordinal()] = Math.max(0, held[state.ordinal()] - quantity);
+			if (isUnheld(held)) {
+				holds.remove(title);
+			}
+		}
+	}
+
+	/**
+	 * Sells held copies: removes them and their hold. Returns their price, or null if
+	 * fewer copies are held.
+	 */
+	public synchronized Integer removeHeld(String title, BookState state, int quantity) {
+		int[] held = holds.get(title);
+		if (quantity <= 0 || held == null || held[state.ordinal()] < quantity) {
+			return null;
+		}
+		release(title, state, quantity);
+		return take(title, state, quantity);
+	}
+
+	/**
+	 * Sells copies that are not held for a buyer. Returns their price, or null if
+	 * fewer copies are available: the order is served entirely or not at all.
+	 */
+	public synchronized Integer removeAvailable(String title, BookState state, int quantity) {
+		if (quantity <= 0 || available(title, state.ordinal()) < quantity) {
+			return null;
+		}
+		return take(title, state, quantity);
+	}
+
+	/**
+	 * Lowers the prices of the listings for which the given offers are cheaper, in one
+	 * pass under a single lock. Offers for listings not in the catalogue are ignored,
+	 * and so are their quantities. Returns the offers that were applied.
+	 */
+	public synchronized List<Offer> lowerPrices(Collection<Offer> others) {
+		List<Offer> lowered = new ArrayList<Offer>();
+		for (Offer other : others) {
+			int[] listing = offers.get(other.getTitle());
+			int slot = other.getState().ordinal();
+			if (listing != null && listing[slot] != NONE && other.getPrice() < listing[slot]) {
+				listing[slot] = other.getPrice();
+				if (trackChanges) {
+					changed.add(other.getTitle());
+				}
+				lowered.add(other);
+				for (Listener listener : listeners) {
+					listener.listed(other.getTitle(), other.getState(), other.getPrice(), listing[QUANTITY + slot]);
+				}
+			}
+		}
+		return lowered;
+	}
+
+	/**
+	 * Returns the cheapest listing of the title in at least the required state with
+	 * copies not held for other buyers, or null if there is none. On equal prices the
+	 * better state wins. The quantity of the result is the number of available copies.
+	 */
+	public synchronized Offer findAtLeast(String title, BookState required) {
+		int[] listing = offers.get(title);
+		if (listing == null) {
+			return null;
+		}
+		int[] held = holds.get(title);
+		int best = NONE;
+		for (int i = 0; i <= required.ordinal(); ++i) {
+			if (listing[i] == NONE || (held != null && held[i] >= listing[QUANTITY + i])) {
+				// No copy, or all the copies are held for other buyers
+				continue;
+			}
+			if (best == NONE || listing[i] < listing[best]) {
+				best = i;
+			}
+		}
+		if (best == NONE) {
+			return null;
+		}
+		int available = listing[QUANTITY + best] - (held == null ? 0 : held[best]);
+		return new Offer(title, BookState.fromOrdinal(best), listing[best], available);
+	}
+
+	public synchronized void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public synchronized void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Returns the number of listings, i.e. of (title, state) pairs, whatever their
+	 * number of copies.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns a snapshot of all the listings of the catalogue, with their number of copies.
+	 */
+	public synchronized List<Offer> offers() {
+		List<Offer> result = new ArrayList<Offer>(size);
+		for (Map.Entry<String, int[]> entry : offers.entrySet()) {
+			int[] listing = entry.getValue();
+			for (int i = 0; i < STATES; ++i) {
+				if (listing[i] != NONE) {
+					result.add(new Offer(entry.getKey(), BookState.fromOrdinal(i), listing[i], listing[QUANTITY + i]));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Visits all the listings, the titles of batchSize at a time. The catalogue lock is
+	 * held to copy the titles, then the listings of each batch, but not while the visitor
+	 * runs: a slow visitor, e.g. writing a file, does not stop the agent from serving the
+	 * buyers. The listings visited are those of the titles listed when the visit starts,
+	 * each one as it was when its batch was copied.
+	 */
+	public void forEach(Visitor visitor, int batchSize) throws IOException {
+		String[] titles;
+		synchronized (this) {
+			titles = offers.keySet().toArray(new String[offers.size()]);
+		}
+		List<Offer> batch = new ArrayList<Offer>(batchSize);
+		for (int from = 0; from < titles.length; from += batchSize) {
+			int to = Math.min(titles.length, from + batchSize);
+			batch.clear();
+			synchronized (this) {
+				for (int t = from; t < to; ++t) {
+					int[] listing = offers.get(titles[t]);
+					for (int i = 0; listing != null && i < STATES; ++i) {
+						if (listing[i] != NONE) {
+							batch.add(new Offer(titles[t], BookState.fromOrdinal(i), listing[i], listing[QUANTITY + i]));
+						}
+					}
+				}
+			}
+			for (Offer offer : batch) {
+				visitor.visit(offer.getTitle(), offer.getState(), offer.getPrice(), offer.getQuantity());
+			}
+		}
+	}
+
+	/**
+	 * Starts or stops tracking the changes for drainChanges() (on by default). A seller
+	 * that never drains them, e.g. one sending its whole catalogue at each sync, turns it
+	 * off so that they do not pile up; turning it off forgets the changes tracked so far.
+	 */
+	public synchronized void setTrackChanges(boolean trackChanges) {
+		this.trackChanges = trackChanges;
+		if (!trackChanges) {
+			changed = new LinkedHashSet<String>();
+			unlisted = new HashMap<String, Integer>();
+		}
+	}
+
+	/**
+	 * Returns the current listings of the titles that changed since the previous
+	 * call, and starts tracking changes again from scratch.
+	 * Titles that are no longer for sale have no listing in the result. Selling some
+	 * of the copies of a listing does not count as a change.
+	 */
+	public synchronized List<Offer> drainChanges() {
+		return drainChanges(false);
+	}
+
+	/**
+	 * Same as drainChanges(), but if withUnlisted is true the listings removed since the
+	 * previous call are also in the result, with a price and a quantity of 0, e.g. for
+	 * the price index to forget them.
+	 */
+	public synchronized List<Offer> drainChanges(boolean withUnlisted) {
+		List<Offer> result = new ArrayList<Offer>(changed.size());
+		for (String title : changed) {
+			int[] listing = offers.get(title);
+			Integer removed = withUnlisted ? unlisted.get(title) : null;
+			for (int i = 0; i < STATES; ++i) {
+				if (listing != null && listing[i] != NONE) {
+					result.add(new Offer(title, BookState.fromOrdinal(i), listing[i], listing[QUANTITY + i]));
+				}
+				else if (removed != null && (removed & 1 << i) != 0) {
+					result.add(new Offer(title, BookState.fromOrdinal(i), 0, 0));
+				}
+			}
+		}
+		changed = new LinkedHashSet<String>();
+		unlisted = new HashMap<String, Integer>();
+		return result;
+	}
+
+	// Removes copies of a listing; the caller checked that there are enough of them
+	private Integer take(String title, BookState state, int quantity) {
+		int[] listing = offers.get(title);
+		int left = listing[QUANTITY + state.ordinal()] - quantity;
+		if (left == 0) {
+			return remove(title, state);
+		}
+		int price = listing[state.ordinal()];
+		listing[QUANTITY + state.ordinal()] = left;
+		for (Listener listener : listeners) {
+			listener.listed(title, state, price, left);
+		}
+		return price;
+	}
+
+	// The number of copies of a listing not held for a buyer
+	private int available(String title, int slot) {
+		int[] listing = offers.get(title);
+		if (listing == null || listing[slot] == NONE) {
+			return 0;
+		}
+		int[] held = holds.get(title);
+		return listing[QUANTITY + slot] - (held == null ? 0 : held[slot]);
+	}
+
+	private void clearHold(String title, int slot) {
+		int[] held = holds.get(title);
+		if (held != null && held[slot] > 0) {
+			held[slot] = 0;
+			if (isUnheld(held)) {
+				holds.remove(title);
+			}
+		}
+	}
+
+	private static boolean isUnheld(int[] held) {
+		for (int count : held) {
+			if (count > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isUnlisted(int[] listing) {
+		for (int i = 0; i < STATES; ++i) {
+			if (listing[i] != NONE) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
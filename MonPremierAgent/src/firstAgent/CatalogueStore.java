@@ -0,0 +1,338 @@
+package firstAgent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the catalogue of a seller agent in a directory, so that it survives restarts.
+ * Two files are used:
+ *   - changes.log, an append-only log of the changes of the catalogue: listings added,
+ *     repriced or partly sold with their new price and number of copies (updateCatalogue,
+ *     AdjustPriceServer, PurchaseOrdersServer...) and listings sold out;
+ *   - snapshot.bin, a compacted copy of the whole catalogue. When the log grows over a
+ *     threshold, a new snapshot is written and the log is emptied.
+ * A compaction copies the listings and moves the log aside to changes.old under the
+ * catalogue lock, then writes the snapshot from the copy without the lock, in a thread
+ * of its own when started by flush(): the agents keep trading, their changes going to the
+ * new log, while the snapshot is written and forced to the disk. changes.old is deleted
+ * once the snapshot is in place.
+ * On start-up the snapshot is read, and changes.old, if a compaction did not complete,
+ * then the log are replayed on top of it; replaying the changes already in the snapshot
+ * is harmless, as each record sets a listing rather than updating it. With mmap=true
+ * the snapshot is memory-mapped instead of being read into the heap; as Windows cannot
+ * replace a mapped file, this is only meant for Unix-like systems.
+ *
+ * Each record is framed by its length and followed by the CRC32 of its content: a record
+ * half written during a crash is detected, and the log is truncated after the last
+ * complete record. The log is written through a buffer flushed by flush(); the changes
+ * made since the last flush may be lost in a crash, and with sync=true each flush is also
+ * forced to the disk.
+ * The snapshot is written to a temporary file and then renamed, so a crash during a
+ * compaction leaves the previous snapshot and the full log, in changes.old and changes.log.
+ */
+public class CatalogueStore implements Catalogue.Listener {
+	// Record types, the first byte of each record
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	// First bytes of a snapshot file
+	private static final int SNAPSHOT_MAGIC = 0x42545331; // "BTS1"
+
+	private final File directory;
+	private final File logFile;
+	// The log of the changes before the snapshot being written
+	private final File oldLogFile;
+	private final File snapshotFile;
+	private final boolean sync;
+	private final boolean mmap;
+	private final long compactionThreshold;
+
+	private Catalogue catalogue;
+	private FileOutputStream logOut;
+	private DataOutputStream log;
+	private long logSize = 0;
+	private final CRC32 crc = new CRC32();
+	// The thread writing the snapshot of the compaction started by flush(), if any
+	private Thread compaction;
+
+	/**
+	 * @param directory the directory of the files, created if needed
+	 * @param sync if true, flush() forces the log to the disk
+	 * @param mmap if true, the snapshot is memory-mapped on start-up
+	 * @param compactionThreshold the log size, in bytes, over which a snapshot is written
+	 */
+	public CatalogueStore(File directory, boolean sync, boolean mmap, long compactionThreshold) {
+		this.directory = directory;
+		this.logFile = new File(directory, "changes.log");
+		this.oldLogFile = new File(directory, "changes.old");
+		this.snapshotFile = new File(directory, "snapshot.bin");
+		this.sync = sync;
+		this.mmap = mmap;
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Loads the stored listings into the catalogue, then records all its changes.
+	 * Returns the number of records read.
+	 */
+	public long open(Catalogue catalogue) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create "+directory);
+		}
+		long records = 0;
+		if (snapshotFile.exists()) {
+			records += replay(snapshotFile, catalogue, true);
+		}
+		if (oldLogFile.exists()) {
+			records += replay(oldLogFile, catalogue, false);
+		}
+		if (logFile.exists()) {
+			records += replay(logFile, catalogue, false);
+		}
+		this.catalogue = catalogue;
+		openLog(true);
+		catalogue.addListener(this);
+		return records;
+	}
+
+	public void listed(String title, BookState state, int price, int quantity) {
+		BookTradeCodec.Encoder encoder = new BookTradeCodec.Encoder(PUT, title.length() + 12);
+		encoder.writeTitle(title);
+		encoder.writeState(state);
+		encoder.writeNumber(price);
+		encoder.writeNumber(quantity);
+		append(encoder);
+	}
+
+	public void unlisted(String title, BookState state) {
+		BookTradeCodec.Encoder encoder = new BookTradeCodec.Encoder(REMOVE, title.length() + 4);
+		encoder.writeTitle(title);
+		encoder.writeState(state);
+		append(encoder);
+	}
+
+	/**
+	 * Writes the buffered changes to the log file, and starts a compaction in the
+	 * background if the log is over the threshold.
+	 */
+	public void flush() throws IOException {
+		final List<Offer> offers;
+		synchronized (catalogue) {
+			log.flush();
+			if (sync) {
+				logOut.getFD().sync();
+			}
+			if (logSize <= compactionThreshold || isCompacting()) {
+				return;
+			}
+			offers = rotate();
+		}
+		compaction = new Thread(new Runnable() {
+			public void run() {
+				try {
+					writeSnapshot(offers);
+				}
+				catch (IOException ioe) {
+					// changes.old is kept: the next compaction, or the next start-up, includes it
+					ioe.printStackTrace();
+				}
+			}
+		}, "compaction-"+directory.getName());
+		compaction.setDaemon(true);
+		compaction.start();
+	}
+
+	/**
+	 * Writes a snapshot of the catalogue and empties the log, waiting for the snapshot to
+	 * be on the disk. The catalogue is only locked while its listings are copied.
+	 */
+	public void compact() throws IOException {
+		awaitCompaction();
+		List<Offer> offers;
+		synchronized (catalogue) {
+			offers = rotate();
+		}
+		writeSnapshot(offers);
+	}
+
+	// Whether a compaction started by flush() is writing its snapshot
+	public boolean isCompacting() {
+		return compaction != null && compaction.isAlive();
+	}
+
+	/**
+	 * Waits for the compaction started by flush(), if any, to write its snapshot.
+	 */
+	public void awaitCompaction() throws IOException {
+		if (compaction != null) {
+			try {
+				compaction.join();
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the compaction of "+directory);
+			}
+			compaction = null;
+		}
+	}
+
+	// Called holding the catalogue lock: copies the listings, and moves the log aside so that
+	// the changes made from now on go to a new log. Returns the copy
+	private List<Offer> rotate() throws IOException {
+		List<Offer> offers = catalogue.offers();
+		log.close();
+		if (oldLogFile.exists()) {
+			// A compaction failed: its snapshot is not written, its log must be kept
+			try (FileChannel from = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+					FileChannel to = FileChannel.open(oldLogFile.toPath(), StandardOpenOption.WRITE,
+							StandardOpenOption.APPEND)) {
+				long position = 0;
+				while (position < from.size()) {
+					position += from.transferTo(position, from.size() - position, to);
+				}
+			}
+		}
+		else {
+			Files.move(logFile.toPath(), oldLogFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		openLog(false);
+		return offers;
+	}
+
+	// Writes the listings to a new snapshot, then deletes the log of the changes it includes
+	private void writeSnapshot(List<Offer> offers) throws IOException {
+		File temporary = new File(directory, "snapshot.tmp");
+		// The CRC of the log is used by the agent thread
+		CRC32 check = new CRC32();
+		try (FileOutputStream out = new FileOutputStream(temporary)) {
+			DataOutputStream snapshot = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+			snapshot.writeInt(SNAPSHOT_MAGIC);
+			for (Offer offer : offers) {
+				BookTradeCodec.Encoder encoder = new BookTradeCodec.Encoder(PUT, offer.getTitle().length() + 12);
+				encoder.writeTitle(offer.getTitle());
+				encoder.writeState(offer.getState());
+				encoder.writeNumber(offer.getPrice());
+				encoder.writeNumber(offer.getQuantity());
+				writeRecord(snapshot, encoder, check);
+			}
+			snapshot.flush();
+			out.getFD().sync();
+		}
+		Files.move(temporary.toPath(), snapshotFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.delete(oldLogFile.toPath());
+	}
+
+	public void close() throws IOException {
+		awaitCompaction();
+		synchronized (catalogue) {
+			catalogue.removeListener(this);
+			log.flush();
+			logOut.getFD().sync();
+			log.close();
+		}
+	}
+
+	public long getLogSize() {
+		return logSize;
+	}
+
+	private void openLog(boolean append) throws IOException {
+		logOut = new FileOutputStream(logFile, append);
+		log = new DataOutputStream(new BufferedOutputStream(logOut, 1 << 16));
+		logSize = append ? logFile.length() : 0;
+	}
+
+	private void append(BookTradeCodec.Encoder encoder) {
+		try {
+			logSize += writeRecord(log, encoder, crc);
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	// Writes the length, the content and the CRC32 of a record; returns its size in bytes
+	private static int writeRecord(DataOutputStream out, BookTradeCodec.Encoder encoder, CRC32 crc) throws IOException {
+		byte[] record = encoder.toByteArray();
+		crc.reset();
+		crc.update(record, 0, record.length);
+		out.writeInt(record.length);
+		out.write(record);
+		out.writeInt((int) crc.getValue());
+		return record.length + 8;
+	}
+
+	/**
+	 * Applies the records of a file to the catalogue, up to the first incomplete or
+	 * corrupted record. The log is truncated after the last valid record.
+	 */
+	private long replay(File file, Catalogue catalogue, boolean isSnapshot) throws IOException {
+		long records = 0;
+		try (FileChannel channel = isSnapshot ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+				: FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file+" is too large to be mapped");
+			}
+			ByteBuffer buffer;
+			if (isSnapshot && mmap) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			else {
+				buffer = ByteBuffer.allocate((int) size);
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				}
+				buffer.flip();
+			}
+			if (isSnapshot && (size < 4 || buffer.getInt() != SNAPSHOT_MAGIC)) {
+				throw new IOException(file+" is not a catalogue snapshot");
+			}
+			CRC32 check = new CRC32();
+			long valid = buffer.position();
+			while (buffer.remaining() >= 4) {
+				int length = buffer.getInt();
+				if (length <= 0 || buffer.remaining() < length + 4) {
+					break;
+				}
+				byte[] record = new byte[length];
+				buffer.get(record);
+				check.reset();
+				check.update(record, 0, length);
+				if (buffer.getInt() != (int) check.getValue()) {
+					break;
+				}
+				apply(record, catalogue);
+				records++;
+				valid = buffer.position();
+			}
+			if (valid < size) {
+				if (isSnapshot) {
+					throw new IOException(file+" is corrupted after "+records+" records");
+				}
+				System.out.println("Catalogue log "+file+" truncated after "+records+" valid records ("+(size - valid)+" bytes dropped)");
+				channel.truncate(valid);
+			}
+		}
+		return records;
+	}
+
+	private static void apply(byte[] record, Catalogue catalogue) {
+		BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(record, PUT, REMOVE);
+		String title = decoder.readTitle();
+		BookState state = decoder.readState();
+		if (decoder.getType() == PUT) {
+			int price = decoder.readNumber();
+			// Records written before listings had a quantity are single copies
+			catalogue.put(title, state, price, decoder.hasRemaining() ? decoder.readNumber() : 1);
+		}
+		else {
+			catalogue.remove(title, state);
+		}
+	}
+}
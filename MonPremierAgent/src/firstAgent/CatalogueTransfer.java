@@ -0,0 +1,501 @@
+package firstAgent;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Bulk import and export of a catalogue, as CSV or JSON-lines files of
+ * (title, state, price, quantity) rows:
+ *   CSV:        title,state,price,quantity    the title is quoted if it contains ',' '"'
+ *                                             or a line break; the header line is optional
+ *   JSON lines: {"title":"Dune","state":"Good","price":9,"quantity":3}
+ * The quantity is optional and defaults to 1. The format is given by the extension of
+ * the file: .csv, or .jsonl / .json for JSON lines.
+ *
+ * Files are streamed: an import reads the rows into batches of batchSize offers and adds
+ * each batch to the catalogue under a single lock (see Catalogue.addAll), with no
+ * behaviour and no log line per row; an export copies the listings of batchSize titles
+ * at a time under the lock and writes them without it (see Catalogue.forEach), so the
+ * agent keeps serving buyers while the file is written. Invalid rows are skipped and
+ * counted; the first ones are printed.
+ * The catalogue is thread-safe, so an import can run on its own thread while the seller
+ * agent keeps serving buyers between two batches.
+ *
+ * It can also be run without any agent on a stored catalogue (see CatalogueStore):
+ *   java -cp jade.jar:bin firstAgent.CatalogueTransfer import books.csv store/seller1
+ *   java -cp jade.jar:bin firstAgent.CatalogueTransfer export store/seller1 books.jsonl
+ */
+public class CatalogueTransfer {
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+	private static final String CSV_HEADER = "title,state,price,quantity";
+	// The number of invalid rows printed
+	private static final int PRINTED_ERRORS = 10;
+
+	private final Catalogue catalogue;
+	private final int batchSize;
+	private long rows = 0;
+	private long rejected = 0;
+	private long millis = 0;
+	private long peakHeap = 0;
+
+	public CatalogueTransfer(Catalogue catalogue, int batchSize) {
+		this.catalogue = catalogue;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Adds the rows of the file to the catalogue. Returns the number of rows imported.
+	 */
+	public long importFile(File file) throws IOException {
+		start();
+		try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+			List<Offer> batch = new ArrayList<Offer>(batchSize);
+			if (isJson(file)) {
+				readJsonLines(new BufferedReader(in, 1 << 16), batch);
+			}
+			else {
+				readCsv(new CsvReader(in), batch);
+			}
+			flush(batch);
+		}
+		finally {
+			stop();
+		}
+		return rows;
+	}
+
+	/**
+	 * Writes all the listings of the catalogue to the file. Returns the number of rows written.
+	 */
+	public long exportFile(File file) throws IOException {
+		start();
+		final boolean json = isJson(file);
+		try (final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+				StandardCharsets.UTF_8), 1 << 16)) {
+			if (!json) {
+				out.write(CSV_HEADER);
+				out.write('\n');
+			}
+			catalogue.forEach(new Catalogue.Visitor() {
+				public void visit(String title, BookState state, int price, int quantity) throws IOException {
+					if (json) {
+						out.write("{\"title\":");
+						writeJsonString(out, title);
+						out.write(",\"state\":\"");
+						out.write(state.getLabel());
+						out.write("\",\"price\":");
+						out.write(Integer.toString(price));
+						out.write(",\"quantity\":");
+						out.write(Integer.toString(quantity));
+						out.write("}\n");
+					}
+					else {
+						writeCsvField(out, title);
+						out.write(',');
+						out.write(state.getLabel());
+						out.write(',');
+						out.write(Integer.toString(price));
+						out.write(',');
+						out.write(Integer.toString(quantity));
+						out.write('\n');
+					}
+					rows++;
+				}
+			}, batchSize);
+		}
+		finally {
+			stop();
+		}
+		return rows;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	public long getRejected() {
+		return rejected;
+	}
+
+	public long getMillis() {
+		return millis;
+	}
+
+	// The peak heap usage during the last import or export, in bytes
+	public long getPeakHeap() {
+		return peakHeap;
+	}
+
+	/**
+	 * Returns e.g. "1,000,000 rows (2 rejected) in 1,234 ms, 810,372 rows/s, peak heap 412 MB"
+	 */
+	public String report() {
+		return String.format("%,d rows (%,d rejected) in %,d ms, %,.0f rows/s, peak heap %,d MB",
+				rows, rejected, millis, rows * 1000.0 / Math.max(1, millis), peakHeap / (1024 * 1024));
+	}
+
+	private void start() {
+		rows = 0;
+		rejected = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+		millis = System.currentTimeMillis();
+	}
+
+	private void stop() {
+		millis = System.currentTimeMillis() - millis;
+		peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+	}
+
+	private static boolean isJson(File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".jsonl") || name.endsWith(".json");
+	}
+
+	private void add(Offer offer, List<Offer> batch) {
+		batch.add(offer);
+		if (batch.size() >= batchSize) {
+			flush(batch);
+		}
+	}
+
+	private void flush(List<Offer> batch) {
+		if (!batch.isEmpty()) {
+			catalogue.addAll(batch);
+			rows += batch.size();
+			batch.clear();
+		}
+	}
+
+	private void reject(long line, String reason) {
+		rejected++;
+		if (rejected <= PRINTED_ERRORS) {
+			System.out.println("Row rejected at line "+line+": "+reason);
+		}
+	}
+
+	// Builds an offer from the fields of a row, or throws an IllegalArgumentException
+	private static Offer toOffer(String title, String state, String price, String quantity) {
+		if (title == null || title.isEmpty() || state == null || price == null) {
+			throw new IllegalArgumentException("title, state and price are required");
+		}
+		int copies = quantity == null || quantity.isEmpty() ? 1 : Integer.parseInt(quantity.trim());
+		int value = Integer.parseInt(price.trim());
+		if (copies <= 0 || value < 0) {
+			throw new IllegalArgumentException("invalid price or quantity");
+		}
+		return new Offer(title, BookState.fromLabel(state.trim()), value, copies);
+	}
+
+	private void readCsv(CsvReader in, List<Offer> batch) throws IOException {
+		List<String> fields = new ArrayList<String>(4);
+		boolean first = true;
+		while (in.readRecord(fields)) {
+			if (first) {
+				first = false;
+				if (fields.size() >= 3 && fields.get(0).equals("title") && fields.get(1).equals("state")) {
+					continue;
+				}
+			}
+			if (fields.size() == 1 && fields.get(0).isEmpty()) {
+				continue; // Blank line
+			}
+			try {
+				if (fields.size() < 3 || fields.size() > 4) {
+					throw new IllegalArgumentException("expected "+CSV_HEADER+" but got "+fields.size()+" fields");
+				}
+				add(toOffer(fields.get(0), fields.get(1), fields.get(2), fields.size() > 3 ? fields.get(3) : null), batch);
+			}
+			catch (IllegalArgumentException iae) {
+				reject(in.getRecordLine(), iae.getMessage());
+			}
+		}
+	}
+
+	private void readJsonLines(BufferedReader in, List<Offer> batch) throws IOException {
+		Map<String, String> fields = new HashMap<String, String>();
+		long line = 0;
+		String text;
+		while ((text = in.readLine()) != null) {
+			line++;
+			if (text.trim().isEmpty()) {
+				continue;
+			}
+			try {
+				parseJsonObject(text, fields);
+				add(toOffer(fields.get("title"), fields.get("state"), fields.get("price"), fields.get("quantity")), batch);
+			}
+			catch (IllegalArgumentException iae) {
+				reject(line, iae.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Parses a flat JSON object whose values are strings or numbers. Other values
+	 * (true, false, null) are kept as text; nested objects and arrays are not supported.
+	 */
+	static void parseJsonObject(String text, Map<String, String> fields) {
+		fields.clear();
+		int[] position = {skipSpaces(text, 0)};
+		expect(text, position, '{');
+		if (peek(text, position) == '}') {
+			return;
+		}
+		while (true) {
+			String key = readJsonString(text, position);
+			expect(text, position, ':');
+			String value;
+			if (peek(text, position) == '"') {
+				value = readJsonString(text, position);
+			}
+			else {
+				int start = position[0];
+				int end = start;
+				while (end < text.length() && ",} \t".indexOf(text.charAt(end)) < 0) {
+					end++;
+				}
+				value = text.substring(start, end);
+				position[0] = skipSpaces(text, end);
+			}
+			fields.put(key, value);
+			if (peek(text, position) == ',') {
+				position[0] = skipSpaces(text, position[0] + 1);
+				continue;
+			}
+			expect(text, position, '}');
+			return;
+		}
+	}
+
+	private static int skipSpaces(String text, int position) {
+		while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+			position++;
+		}
+		return position;
+	}
+
+	private static char peek(String text, int[] position) {
+		if (position[0] >= text.length()) {
+			throw new IllegalArgumentException("unexpected end of line");
+		}
+		return text.charAt(position[0]);
+	}
+
+	private static void expect(String text, int[] position, char expected) {
+		if (peek(text, position) != expected) {
+			throw new IllegalArgumentException("expected '"+expected+"' at column "+(position[0] + 1));
+		}
+		position[0] = skipSpaces(text, position[0] + 1);
+	}
+
+	private static String readJsonString(String text, int[] position) {
+		if (peek(text, position) != '"') {
+			throw new IllegalArgumentException("expected a string at column "+(position[0] + 1));
+		}
+		StringBuilder value = new StringBuilder();
+		int i = position[0] + 1;
+		while (true) {
+			if (i >= text.length()) {
+				throw new IllegalArgumentException("unterminated string");
+			}
+			char c = text.charAt(i++);
+			if (c == '"') {
+				break;
+			}
+			if (c != '\\') {
+				value.append(c);
+				continue;
+			}
+			if (i >= text.length()) {
+				throw new IllegalArgumentException("unterminated string");
+			}
+			char escaped = text.charAt(i++);
+			switch (escaped) {
+			case 'n': value.append('\n'); break;
+			case 'r': value.append('\r'); break;
+			case 't': value.append('\t'); break;
+			case 'b': value.append('\b'); break;
+			case 'f': value.append('\f'); break;
+			case 'u':
+				if (i + 4 > text.length()) {
+					throw new IllegalArgumentException("invalid escape");
+				}
+				value.append((char) Integer.parseInt(text.substring(i, i + 4), 16));
+				i += 4;
+				break;
+			default: value.append(escaped); // '"', '\\' and '/'
+			}
+		}
+		position[0] = skipSpaces(text, i);
+		return value.toString();
+	}
+
+	private static void writeJsonString(Writer out, String value) throws IOException {
+		out.write('"');
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.write('\\');
+				out.write(c);
+			}
+			else if (c < 0x20) {
+				out.write(String.format("\\u%04x", (int) c));
+			}
+			else {
+				out.write(c);
+			}
+		}
+		out.write('"');
+	}
+
+	private static void writeCsvField(Writer out, String value) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; ++i) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			out.write(value);
+			return;
+		}
+		out.write('"');
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c == '"') {
+				out.write('"');
+			}
+			out.write(c);
+		}
+		out.write('"');
+	}
+
+	/**
+	 * Reads CSV records (RFC 4180): quoted fields may contain ',', '""' and line breaks.
+	 * It reads its own buffer rather than calling the synchronized Reader.read() per character.
+	 */
+	private static class CsvReader {
+		private final Reader in;
+		private final char[] buffer = new char[1 << 16];
+		private int position = 0;
+		private int limit = 0;
+		private long line = 1;
+		private long recordLine = 1;
+		private final StringBuilder field = new StringBuilder();
+
+		CsvReader(Reader in) {
+			this.in = in;
+		}
+
+		// The line where the last record read starts
+		long getRecordLine() {
+			return recordLine;
+		}
+
+		// Returns the next character, or -1 at the end of the file
+		private int next() throws IOException {
+			if (position == limit) {
+				limit = in.read(buffer, 0, buffer.length);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					return -1;
+				}
+			}
+			return buffer[position++];
+		}
+
+		/**
+		 * Reads the fields of the next record. Returns false at the end of the file.
+		 */
+		boolean readRecord(List<String> fields) throws IOException {
+			fields.clear();
+			field.setLength(0);
+			recordLine = line;
+			int c = next();
+			if (c < 0) {
+				return false;
+			}
+			boolean quoted = false;
+			boolean afterQuote = false;
+			while (true) {
+				if (quoted) {
+					if (c < 0) {
+						throw new IOException("Unterminated quoted field at line "+recordLine);
+					}
+					if (c == '"') {
+						c = next();
+						if (c != '"') {
+							quoted = false;
+							afterQuote = true;
+							continue;
+						}
+					}
+					else if (c == '\n') {
+						line++;
+					}
+					field.append((char) c);
+				}
+				else if (c == ',' ) {
+					fields.add(field.toString());
+					field.setLength(0);
+					afterQuote = false;
+				}
+				else if (c == '\n' || c < 0) {
+					line++;
+					int length = field.length();
+					if (!afterQuote && length > 0 && field.charAt(length - 1) == '\r') {
+						field.setLength(length - 1);
+					}
+					fields.add(field.toString());
+					return true;
+				}
+				else if (c == '"' && field.length() == 0 && !afterQuote) {
+					quoted = true;
+				}
+				else if (!afterQuote || c != '\r') {
+					field.append((char) c);
+				}
+				c = next();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3 || !(args[0].equals("import") || args[0].equals("export"))) {
+			System.out.println("Usage: CatalogueTransfer import <file> <store directory>");
+			System.out.println("       CatalogueTransfer export <store directory> <file>");
+			return;
+		}
+		boolean importing = args[0].equals("import");
+		File file = new File(importing ? args[1] : args[2]);
+		File directory = new File(importing ? args[2] : args[1]);
+		Catalogue catalogue = new Catalogue();
+		CatalogueStore store = new CatalogueStore(directory, false, false, Long.MAX_VALUE);
+		store.open(catalogue);
+		CatalogueTransfer transfer = new CatalogueTransfer(catalogue, DEFAULT_BATCH_SIZE);
+		if (importing) {
+			transfer.importFile(file);
+			// Write a snapshot rather than leaving one log record per row
+			store.compact();
+			System.out.println("Imported "+file+" into "+directory+": "+transfer.report());
+		}
+		else {
+			transfer.exportFile(file);
+			System.out.println("Exported "+directory+" to "+file+": "+transfer.report());
+		}
+		store.close();
+	}
+}
@@ -0,0 +1,60 @@
+package firstAgent;
+
+import java.util.Arrays;
+
+/**
+ * Records latencies and reports their percentiles.
+ * Only the most recent samples are kept (in a ring buffer), so that the memory used
+ * stays bounded and the percentiles follow the current behaviour of the system.
+ */
+public class LatencyRecorder {
+	private final long[] samples;
+	private int next = 0;
+	private long count = 0;
+	private long max = 0;
+
+	public LatencyRecorder(int capacity) {
+		samples = new long[capacity];
+	}
+
+	public LatencyRecorder() {
+		this(10000);
+	}
+
+	public synchronized void record(long latency) {
+		samples[next] = latency;
+		next = (next + 1) % samples.length;
+		count++;
+		max = Math.max(max, latency);
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the given percentile (between 0 and 100) of the kept samples, or 0 if
+	 * nothing was recorded yet.
+	 */
+	public synchronized long percentile(double percentile) {
+		int kept = (int) Math.min(count, samples.length);
+		if (kept == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(samples, kept);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * kept) - 1;
+		return sorted[Math.max(0, Math.min(kept - 1, index))];
+	}
+
+	/**
+	 * Returns the count and the p50 and p99 of the samples, with the given unit.
+	 */
+	public String summary(String unit) {
+		return getCount()+" samples, p50 "+percentile(50)+" "+unit+", p99 "+percentile(99)+" "+unit+", max "+getMax()+" "+unit;
+	}
+}
@@ -0,0 +1,392 @@
+package firstAgent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Analytical queries over the trade ledgers (see TradeLedger) of a directory and its
+ * subdirectories, e.g. the ledger directory given to all the agents of a run: the
+ * records of a type in a time window, grouped by title, state, seller or buyer, with
+ * their number of copies and amount.
+ * The segments are memory-mapped and never copied into the heap. As the records of a
+ * segment are sorted by time, the records of the window are found by binary search; they
+ * are then split into chunks of CHUNK_RECORDS records, scanned by several threads, each
+ * summing into its own table of groups keyed by the 64-bit keys of the records. The
+ * tables are merged, and the keys replaced by the names, at the end. The names are kept
+ * between queries: only the names written since the previous query are read.
+ * A sale is recorded by the seller and the purchase by the buyer: the sales and the
+ * purchases are two views of the same trades, and a query counts one type at a time.
+ */
+public class LedgerQuery {
+	/**
+	 * What the records are grouped by.
+	 */
+	public enum Key { TITLE, STATE, SELLER, BUYER }
+
+	/**
+	 * The records of a group: their number, their copies and their amount (price times copies).
+	 */
+	public static final class Totals {
+		private final long records;
+		private final long copies;
+		private final long amount;
+
+		Totals(long records, long copies, long amount) {
+			this.records = records;
+			this.copies = copies;
+			this.amount = amount;
+		}
+
+		public long getRecords() {
+			return records;
+		}
+
+		public long getCopies() {
+			return copies;
+		}
+
+		public long getAmount() {
+			return amount;
+		}
+
+		// The average price of a copy
+		public double getAveragePrice() {
+			return copies == 0 ? 0 : (double) amount / copies;
+		}
+
+		public String toString() {
+			return String.format("%,d records, %,d copies, average price %.2f", records, copies, getAveragePrice());
+		}
+	}
+
+	// The number of records scanned by a thread at a time
+	static final int CHUNK_RECORDS = 1 << 18;
+	private static final int RECORD_SIZE = TradeLedger.RECORD_SIZE;
+
+	private final File directory;
+	private final int threads;
+	// The names read from the names files, by key, and the bytes read from each file
+	private final HashMap<Long, String> names = new HashMap<Long, String>();
+	private final HashMap<File, Long> namesRead = new HashMap<File, Long>();
+
+	/**
+	 * @param directory the directory of the ledgers, searched recursively
+	 * @param threads the number of threads scanning the records
+	 */
+	public LedgerQuery(File directory, int threads) {
+		this.directory = directory;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Returns the totals of the records of a type whose time is in [from, to), per value of
+	 * the key, the largest number of copies first (for reprices, the most records first).
+	 */
+	public Map<String, Totals> aggregate(byte type, Key key, long from, long to) throws IOException {
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+		for (File file : segments(directory, new ArrayList<File>())) {
+			ByteBuffer records = map(file);
+			if (records == null) {
+				continue;
+			}
+			int first = search(records, from);
+			int last = search(records, to);
+			for (int start = first; start < last; start += CHUNK_RECORDS) {
+				chunks.add(new Chunk(records, start, Math.min(last, start + CHUNK_RECORDS)));
+			}
+		}
+		final byte recordType = type;
+		final Key groupKey = key;
+		final AtomicInteger next = new AtomicInteger();
+		final Groups[] partial = new Groups[Math.min(threads, Math.max(1, chunks.size()))];
+		Thread[] workers = new Thread[partial.length - 1];
+		for (int t = 0; t < partial.length; ++t) {
+			partial[t] = new Groups();
+		}
+		for (int t = 1; t < partial.length; ++t) {
+			final Groups groups = partial[t];
+			workers[t - 1] = new Thread(new Runnable() {
+				public void run() {
+					scanChunks(chunks, next, recordType, groupKey, groups);
+				}
+			}, "ledger-query-"+t);
+			workers[t - 1].start();
+		}
+		// The calling thread scans too
+		scanChunks(chunks, next, recordType, groupKey, partial[0]);
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Ledger query interrupted");
+			}
+		}
+		for (int t = 1; t < partial.length; ++t) {
+			partial[0].addAll(partial[t]);
+		}
+		return totals(partial[0], key);
+	}
+
+	/**
+	 * Returns the number of copies sold per title in [from, to).
+	 */
+	public Map<String, Long> volumeByTitle(long from, long to) throws IOException {
+		Map<String, Long> volumes = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Totals> entry : aggregate(TradeLedger.SALE, Key.TITLE, from, to).entrySet()) {
+			volumes.put(entry.getKey(), entry.getValue().getCopies());
+		}
+		return volumes;
+	}
+
+	/**
+	 * Returns the average sale price of a copy per state in [from, to).
+	 */
+	public Map<String, Double> averagePriceByState(long from, long to) throws IOException {
+		Map<String, Double> prices = new LinkedHashMap<String, Double>();
+		for (Map.Entry<String, Totals> entry : aggregate(TradeLedger.SALE, Key.STATE, from, to).entrySet()) {
+			prices.put(entry.getKey(), entry.getValue().getAveragePrice());
+		}
+		return prices;
+	}
+
+	/**
+	 * Returns the number of sales per seller in [from, to).
+	 */
+	public Map<String, Long> tradesBySeller(long from, long to) throws IOException {
+		Map<String, Long> trades = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Totals> entry : aggregate(TradeLedger.SALE, Key.SELLER, from, to).entrySet()) {
+			trades.put(entry.getKey(), entry.getValue().getRecords());
+		}
+		return trades;
+	}
+
+	// The records [start, end) of a mapped segment, by index (the header is record 0)
+	private static final class Chunk {
+		final ByteBuffer records;
+		final int start;
+		final int end;
+
+		Chunk(ByteBuffer records, int start, int end) {
+			this.records = records;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	// Scans the chunks not taken yet by another thread
+	private static void scanChunks(List<Chunk> chunks, AtomicInteger next, byte type, Key key, Groups groups) {
+		for (int c = next.getAndIncrement(); c < chunks.size(); c = next.getAndIncrement()) {
+			scan(chunks.get(c), type, key, groups);
+		}
+	}
+
+	// Only absolute reads are made on the mapped buffers, so the threads can share them
+	private static void scan(Chunk chunk, byte type, Key key, Groups groups) {
+		ByteBuffer records = chunk.records;
+		int keyOffset = key == Key.TITLE ? 8 : key == Key.SELLER ? 16 : 24;
+		boolean byState = key == Key.STATE;
+		int end = chunk.end * RECORD_SIZE;
+		for (int offset = chunk.start * RECORD_SIZE; offset < end; offset += RECORD_SIZE) {
+			if (records.get(offset + 40) != type) {
+				continue;
+			}
+			long group = byState ? records.get(offset + 41) : records.getLong(offset + keyOffset);
+			groups.add(group, records.getInt(offset + 32), records.getInt(offset + 36));
+		}
+	}
+
+	// Returns the index of the first record at or after the time, or the number of records
+	private static int search(ByteBuffer records, long time) {
+		int low = 1;
+		int high = records.limit() / RECORD_SIZE;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (records.getLong(middle * RECORD_SIZE) < time) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	// Maps the complete records of a segment, or returns null if it has none
+	private static ByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			size -= size % RECORD_SIZE;
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file+" is too large to be mapped");
+			}
+			if (size <= RECORD_SIZE) {
+				return null;
+			}
+			ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (records.getInt(0) != TradeLedger.SEGMENT_MAGIC || records.getInt(4) != RECORD_SIZE) {
+				throw new IOException(file+" is not a trade ledger segment");
+			}
+			return records;
+		}
+	}
+
+	// Replaces the keys by the names, the largest groups first
+	private synchronized Map<String, Totals> totals(Groups groups, Key key) throws IOException {
+		if (key != Key.STATE) {
+			readNames(directory);
+		}
+		List<Map.Entry<String, Totals>> entries = new ArrayList<Map.Entry<String, Totals>>(groups.size);
+		for (int i = 0; i < groups.keys.length; ++i) {
+			if (!groups.used[i]) {
+				continue;
+			}
+			long group = groups.keys[i];
+			String name;
+			if (key == Key.STATE) {
+				name = group >= 0 && group < BookState.values().length ? BookState.values()[(int) group].getLabel() : "#"+group;
+			}
+			else {
+				name = names.get(group);
+				if (name == null) {
+					name = String.format("#%016x", group);
+				}
+			}
+			entries.add(new AbstractMap.SimpleImmutableEntry<String, Totals>(name,
+					new Totals(groups.records[i], groups.copies[i], groups.amounts[i])));
+		}
+		Collections.sort(entries, new Comparator<Map.Entry<String, Totals>>() {
+			public int compare(Map.Entry<String, Totals> a, Map.Entry<String, Totals> b) {
+				int byCopies = Long.compare(b.getValue().getCopies(), a.getValue().getCopies());
+				return byCopies != 0 ? byCopies : Long.compare(b.getValue().getRecords(), a.getValue().getRecords());
+			}
+		});
+		Map<String, Totals> totals = new LinkedHashMap<String, Totals>();
+		for (Map.Entry<String, Totals> entry : entries) {
+			totals.put(entry.getKey(), entry.getValue());
+		}
+		return totals;
+	}
+
+	private static List<File> segments(File directory, List<File> segments) {
+		segments.addAll(Arrays.asList(TradeLedger.segments(directory)));
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					segments(file, segments);
+				}
+			}
+		}
+		return segments;
+	}
+
+	// Reads the names written since the previous query; synchronized as queries may run in parallel
+	private synchronized void readNames(File directory) throws IOException {
+		File namesFile = new File(directory, TradeLedger.NAMES_FILE);
+		Long read = namesRead.get(namesFile);
+		long position = read == null ? 0 : read;
+		if (namesFile.length() > position) {
+			try (FileInputStream file = new FileInputStream(namesFile)) {
+				file.getChannel().position(position);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(file));
+				while (true) {
+					long key = in.readLong();
+					String name = in.readUTF();
+					names.put(key, name);
+					position += TradeLedger.nameLength(name);
+				}
+			}
+			catch (EOFException | UTFDataFormatException eof) {
+				// The end of the file, or a name half written, read again by the next query
+			}
+			namesRead.put(namesFile, position);
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					readNames(file);
+				}
+			}
+		}
+	}
+
+	// The totals of the groups of a thread, in an open-addressing table keyed by the record keys
+	private static final class Groups {
+		long[] keys = new long[64];
+		boolean[] used = new boolean[64];
+		long[] records = new long[64];
+		long[] copies = new long[64];
+		long[] amounts = new long[64];
+		int size = 0;
+
+		void add(long key, int price, int quantity) {
+			add(key, 1, quantity, (long) price * quantity);
+		}
+
+		void add(long key, long count, long quantity, long amount) {
+			int i = slot(key);
+			if (!used[i]) {
+				if (2 * (size + 1) > keys.length) {
+					grow();
+					i = slot(key);
+				}
+				used[i] = true;
+				keys[i] = key;
+				size++;
+			}
+			records[i] += count;
+			copies[i] += quantity;
+			amounts[i] += amount;
+		}
+
+		void addAll(Groups other) {
+			for (int i = 0; i < other.keys.length; ++i) {
+				if (other.used[i]) {
+					add(other.keys[i], other.records[i], other.copies[i], other.amounts[i]);
+				}
+			}
+		}
+
+		// The slot of the key, or the free slot where it goes
+		private int slot(long key) {
+			long hash = key * 0x9e3779b97f4a7c15L;
+			int mask = keys.length - 1;
+			int i = (int) (hash ^ hash >>> 32) & mask;
+			while (used[i] && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			boolean[] oldUsed = used;
+			long[] oldRecords = records;
+			long[] oldCopies = copies;
+			long[] oldAmounts = amounts;
+			int capacity = oldKeys.length * 2;
+			keys = new long[capacity];
+			used = new boolean[capacity];
+			records = new long[capacity];
+			copies = new long[capacity];
+			amounts = new long[capacity];
+			for (int j = 0; j < oldKeys.length; ++j) {
+				if (oldUsed[j]) {
+					int i = slot(oldKeys[j]);
+					used[i] = true;
+					keys[i] = oldKeys[j];
+					records[i] = oldRecords[j];
+					copies[i] = oldCopies[j];
+					amounts[i] = oldAmounts[j];
+				}
+			}
+		}
+	}
+}
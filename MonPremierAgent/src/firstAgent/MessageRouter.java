@@ -0,0 +1,283 @@
+package firstAgent;
+
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A single behaviour serving all the requests of an agent: it drains the mailbox in
+ * batches and hands each message to the handler registered for its performative and
+ * conversation id.
+ * With one CyclicBehaviour per kind of request, every incoming message wakes all of them
+ * and each one scans the mailbox with its own template. The router is the only behaviour
+ * woken, and finds the handler of a message with an array access (performative) and at
+ * most one hash lookup (conversation id).
+ * The messages nobody handles, such as the notifications of the DF subscription, are left
+ * in the mailbox for the behaviours waiting for them.
+ *
+ * Admission control: each route has a priority (HIGH, NORMAL or LOW). The router moves the
+ * routed messages from the mailbox to one queue per priority and serves the highest
+ * priority first, so that e.g. purchase orders are not delayed by a burst of CFPs. The
+ * lower priorities are still served one message per batch, so they are never starved.
+ * With a capacity, a message arriving when the queue of its priority is full is shed:
+ * handed to the shed() of its handler if it is a Shedder, to refuse it with a retry-after
+ * hint (the time to serve the messages queued ahead of it), otherwise dropped. A Shedder
+ * may still serve a message that costs less to serve than to refuse; only the messages
+ * refused or dropped count as shed.
+ */
+public class MessageRouter extends CyclicBehaviour {
+	/**
+	 * Serves one kind of message. Called by the router, in the agent thread.
+	 */
+	public interface Handler {
+		void handle(ACLMessage msg);
+	}
+
+	/**
+	 * A handler that answers the messages shed when its queue is full, e.g. with a REFUSE
+	 * carrying the RETRY_AFTER parameter. Called by the router, in the agent thread.
+	 * Returns true if the message was served anyway rather than refused.
+	 */
+	public interface Shedder extends Handler {
+		boolean shed(ACLMessage msg, long retryAfter);
+	}
+
+	// The priorities of the routes, highest first
+	public static final int HIGH = 0;
+	public static final int NORMAL = 1;
+	public static final int LOW = 2;
+	// The user-defined parameter of a refusal giving the milliseconds to wait before retrying
+	public static final String RETRY_AFTER = "retry-after";
+	// The bounds of the retry-after hint, in milliseconds
+	private static final long MIN_RETRY_AFTER = 100;
+	private static final long MAX_RETRY_AFTER = 10000;
+
+	// A handler and its priority
+	private static final class Route {
+		final Handler handler;
+		final int priority;
+
+		Route(Handler handler, int priority) {
+			this.handler = handler;
+			this.priority = priority;
+		}
+	}
+
+	// ACLMessage performatives are small consecutive integers
+	private static final int PERFORMATIVES = 32;
+
+	private final int batchSize;
+	// The maximum number of messages queued per priority, 0 for no limit
+	private final int capacity;
+	// Indexed by performative: the routes of given conversation ids ...
+	private final HashMap<String, Route>[] byConversation;
+	// ... and the route of any other conversation
+	private final Route[] byPerformative = new Route[PERFORMATIVES];
+	// The messages taken from the mailbox and not served yet, by priority
+	private final ArrayDeque<ACLMessage>[] queues;
+	private final MessageTemplate routed = new MessageTemplate(new MessageTemplate.MatchExpression() {
+		public boolean match(ACLMessage msg) {
+			return lookup(msg) != null;
+		}
+	});
+	private long messages = 0;
+	private long batches = 0;
+	private long errors = 0;
+	private long shed = 0;
+	// The mean time to serve a message, in microseconds (moving average over the batches)
+	private double serviceMicros = 0;
+
+	/**
+	 * @param batchSize the maximum number of messages served before letting the other
+	 * behaviours of the agent run
+	 */
+	public MessageRouter(Agent agent, int batchSize) {
+		this(agent, batchSize, 0);
+	}
+
+	/**
+	 * @param batchSize the maximum number of messages served before letting the other
+	 * behaviours of the agent run
+	 * @param capacity the maximum number of messages waiting per priority, 0 for no limit
+	 */
+	@SuppressWarnings("unchecked")
+	public MessageRouter(Agent agent, int batchSize, int capacity) {
+		super(agent);
+		this.batchSize = batchSize;
+		this.capacity = capacity;
+		this.byConversation = new HashMap[PERFORMATIVES];
+		this.queues = new ArrayDeque[LOW + 1];
+		for (int p = HIGH; p <= LOW; ++p) {
+			queues[p] = new ArrayDeque<ACLMessage>();
+		}
+	}
+
+	/**
+	 * Routes the messages of this performative, whatever their conversation id.
+	 */
+	public void route(int performative, Handler handler) {
+		route(performative, handler, NORMAL);
+	}
+
+	public void route(int performative, Handler handler, int priority) {
+		byPerformative[performative] = new Route(handler, priority);
+	}
+
+	/**
+	 * Routes the messages of this performative and conversation id. This takes
+	 * precedence over a route for the performative alone.
+	 */
+	public void route(int performative, String conversationId, Handler handler) {
+		route(performative, conversationId, handler, NORMAL);
+	}
+
+	public void route(int performative, String conversationId, Handler handler, int priority) {
+		if (byConversation[performative] == null) {
+			byConversation[performative] = new HashMap<String, Route>();
+		}
+		byConversation[performative].put(conversationId, new Route(handler, priority));
+	}
+
+	public void action() {
+		// Queue the messages received since the last batch, shedding those over capacity
+		ACLMessage msg;
+		while ((msg = myAgent.receive(routed)) != null) {
+			Route route = lookup(msg);
+			if (capacity > 0 && queues[route.priority].size() >= capacity) {
+				shed(msg, route);
+			}
+			else {
+				queues[route.priority].add(msg);
+			}
+		}
+		long start = System.nanoTime();
+		int served = 0;
+		// The priorities served in this batch, as a bit mask
+		int servedPriorities = 0;
+		while (served < batchSize && (msg = poll(HIGH)) != null) {
+			servedPriorities |= 1 << serve(msg);
+			served++;
+		}
+		for (int p = NORMAL; p <= LOW; ++p) {
+			if ((servedPriorities & 1 << p) == 0 && (msg = queues[p].poll()) != null) {
+				serve(msg);
+				served++;
+			}
+		}
+		if (served == 0) {
+			block();
+		}
+		else {
+			messages += served;
+			batches++;
+			double micros = (System.nanoTime() - start) / 1000.0 / served;
+			serviceMicros = serviceMicros == 0 ? micros : 0.875 * serviceMicros + 0.125 * micros;
+		}
+	}
+
+	// Takes the next message of the highest priority queue, from this priority down
+	private ACLMessage poll(int from) {
+		for (int p = from; p <= LOW; ++p) {
+			ACLMessage msg = queues[p].poll();
+			if (msg != null) {
+				return msg;
+			}
+		}
+		return null;
+	}
+
+	// Hands the message to its handler; returns its priority
+	private int serve(ACLMessage msg) {
+		Route route = lookup(msg);
+		try {
+			route.handler.handle(msg);
+		}
+		catch (RuntimeException re) {
+			// A malformed message must not stop the agent from serving the others
+			errors++;
+			re.printStackTrace();
+		}
+		return route.priority;
+	}
+
+	private void shed(ACLMessage msg, Route route) {
+		if (route.handler instanceof Shedder) {
+			try {
+				if (((Shedder) route.handler).shed(msg, getRetryAfter(route.priority))) {
+					messages++;
+					return;
+				}
+			}
+			catch (RuntimeException re) {
+				errors++;
+				re.printStackTrace();
+			}
+		}
+		shed++;
+	}
+
+	/**
+	 * Returns the hint given to a shed message of this priority: the milliseconds to serve
+	 * the messages queued ahead of it, between 100 ms and 10 s.
+	 */
+	public long getRetryAfter(int priority) {
+		long ahead = 0;
+		for (int p = HIGH; p <= priority; ++p) {
+			ahead += queues[p].size();
+		}
+		long millis = (long) (ahead * serviceMicros / 1000);
+		return Math.max(MIN_RETRY_AFTER, Math.min(MAX_RETRY_AFTER, millis));
+	}
+
+	private Route lookup(ACLMessage msg) {
+		int performative = msg.getPerformative();
+		if (performative < 0 || performative >= PERFORMATIVES) {
+			return null;
+		}
+		HashMap<String, Route> routes = byConversation[performative];
+		if (routes != null && msg.getConversationId() != null) {
+			Route route = routes.get(msg.getConversationId());
+			if (route != null) {
+				return route;
+			}
+		}
+		return byPerformative[performative];
+	}
+
+	// The number of messages served
+	public long getMessages() {
+		return messages;
+	}
+
+	// The number of non-empty batches: messages / batches is the mean batch size
+	public long getBatches() {
+		return batches;
+	}
+
+	// The number of messages whose handler threw an exception
+	public long getErrors() {
+		return errors;
+	}
+
+	// The number of messages refused or dropped because the queue of their priority was full
+	public long getShed() {
+		return shed;
+	}
+
+	// The number of messages taken from the mailbox and waiting to be served
+	public int getQueued() {
+		int queued = 0;
+		for (ArrayDeque<ACLMessage> queue : queues) {
+			queued += queue.size();
+		}
+		return queued;
+	}
+
+	public int getQueued(int priority) {
+		return queues[priority].size();
+	}
+}
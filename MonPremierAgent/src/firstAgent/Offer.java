@@ -0,0 +1,43 @@
+package firstAgent;
+
+/**
+ * A book available in a catalogue: its title, its state, its price and the number
+ * of copies for sale.
+ */
+public final class Offer {
+	private final String title;
+	private final BookState state;
+	private final int price;
+	private final int quantity;
+
+	public Offer(String title, BookState state, int price) {
+		this(title, state, price, 1);
+	}
+
+	public Offer(String title, BookState state, int price, int quantity) {
+		this.title = title;
+		this.state = state;
+		this.price = price;
+		this.quantity = quantity;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public BookState getState() {
+		return state;
+	}
+
+	public int getPrice() {
+		return price;
+	}
+
+	public int getQuantity() {
+		return quantity;
+	}
+
+	public String toString() {
+		return title+";"+state.getLabel()+" = "+price+(quantity != 1 ? " x"+quantity : "");
+	}
+}
@@ -0,0 +1,224 @@
+package firstAgent;
+
+import jade.core.AID;
+
+import java.util.*;
+
+/**
+ * The recent replies of the sellers to the CFPs of a buyer, per (title, state) asked
+ * and per seller: a proposal (price and number of copies) or a refusal.
+ * The buyer uses them to choose the sellers of its next CFP for the same book:
+ *   - the sellers that refused the book recently are not asked again;
+ *   - if the sellers that recently proposed it at an acceptable price had enough copies,
+ *     only they are asked, and the other sellers only if they no longer do.
+ * A reply is forgotten after the TTL, when the purchase from the seller fails, and when
+ * the cache is full (least recently used books first). The cache is used by the thread
+ * of the buyer agent only.
+ */
+public class OfferCache {
+	// The reply of a seller; a refusal has no copies
+	private static final class Reply {
+		final int price;
+		final int quantity;
+		final long time;
+
+		Reply(int price, int quantity, long time) {
+			this.price = price;
+			this.quantity = quantity;
+			this.time = time;
+		}
+	}
+
+	// A book asked: it refers to the title of the target instead of copying it into a
+	// "title;state" string, so the buyer keeps one instance of each title (see TitleDictionary)
+	private static final class Book {
+		final String title;
+		final BookState state;
+
+		Book(String title, BookState state) {
+			this.title = title;
+			this.state = state;
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof Book && ((Book) other).state == state && ((Book) other).title.equals(title);
+		}
+
+		public int hashCode() {
+			return 31 * title.hashCode() + state.ordinal();
+		}
+	}
+
+	/**
+	 * The sellers to ask for a book: the likely ones first, then the others. The sellers
+	 * that refused the book recently are in neither list.
+	 */
+	public static final class Plan {
+		private final List<AID> likely;
+		private final List<AID> others;
+		private final int skipped;
+
+		Plan(List<AID> likely, List<AID> others, int skipped) {
+			this.likely = likely;
+			this.others = others;
+			this.skipped = skipped;
+		}
+
+		// The sellers that recently proposed enough copies at an acceptable price,
+		// cheapest first; empty if they would not cover the quantity
+		public List<AID> getLikely() {
+			return likely;
+		}
+
+		// The sellers without a recent reply, and those proposing too few copies
+		public List<AID> getOthers() {
+			return others;
+		}
+
+		// The number of sellers not asked because they refused the book recently
+		public int getSkipped() {
+			return skipped;
+		}
+	}
+
+	private final long ttl;
+	private final int maxReplies;
+	// The replies by book, the least recently used book first
+	private final LinkedHashMap<Book, HashMap<AID, Reply>> books =
+			new LinkedHashMap<Book, HashMap<AID, Reply>>(16, 0.75f, true);
+	// The number of replies in the cache
+	private int size = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param ttl the time a reply stays valid, in milliseconds
+	 * @param maxReplies the number of replies above which the least recently used books
+	 * are forgotten
+	 */
+	public OfferCache(long ttl, int maxReplies) {
+		this.ttl = ttl;
+		this.maxReplies = maxReplies;
+	}
+
+	public void recordProposal(String title, BookState state, AID seller, int price, int quantity, long now) {
+		record(title, state, seller, new Reply(price, quantity, now));
+	}
+
+	public void recordRefusal(String title, BookState state, AID seller, long now) {
+		record(title, state, seller, new Reply(0, 0, now));
+	}
+
+	/**
+	 * Takes copies bought from a seller into account: they are no longer for sale.
+	 */
+	public void recordPurchase(String title, BookState state, AID seller, int quantity) {
+		HashMap<AID, Reply> replies = books.get(new Book(title, state));
+		Reply reply = replies == null ? null : replies.get(seller);
+		if (reply != null && reply.quantity > 0) {
+			if (reply.quantity > quantity) {
+				replies.put(seller, new Reply(reply.price, reply.quantity - quantity, reply.time));
+			}
+			else {
+				invalidate(title, state, seller);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the reply of a seller for a book, e.g. when a purchase order failed.
+	 */
+	public void invalidate(String title, BookState state, AID seller) {
+		Book key = new Book(title, state);
+		HashMap<AID, Reply> replies = books.get(key);
+		if (replies != null && replies.remove(seller) != null) {
+			size--;
+			if (replies.isEmpty()) {
+				books.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Splits the sellers into the ones to ask first for a number of copies of a book at
+	 * most at maxPrice, the ones to ask if needed, and the ones not to ask.
+	 */
+	public Plan plan(String title, BookState state, int maxPrice, int quantity, AID[] sellers, long now) {
+		HashMap<AID, Reply> replies = books.get(new Book(title, state));
+		List<AID> others = new ArrayList<AID>(sellers.length);
+		if (replies == null) {
+			misses++;
+			others.addAll(Arrays.asList(sellers));
+			return new Plan(Collections.<AID>emptyList(), others, 0);
+		}
+		hits++;
+		final HashMap<AID, Reply> fresh = new HashMap<AID, Reply>();
+		List<AID> likely = new ArrayList<AID>();
+		int skipped = 0;
+		int copies = 0;
+		for (AID seller : sellers) {
+			Reply reply = replies.get(seller);
+			if (reply == null || now - reply.time > ttl) {
+				others.add(seller);
+			}
+			else if (reply.quantity == 0) {
+				skipped++;
+			}
+			else if (reply.price <= maxPrice) {
+				likely.add(seller);
+				fresh.put(seller, reply);
+				copies += reply.quantity;
+			}
+			else {
+				// Too expensive: ask again only if the others cannot serve the book
+				others.add(seller);
+			}
+		}
+		if (copies < quantity) {
+			// The likely sellers are not enough: ask everybody at once
+			likely.addAll(others);
+			return new Plan(Collections.<AID>emptyList(), likely, skipped);
+		}
+		Collections.sort(likely, new Comparator<AID>() {
+			public int compare(AID a, AID b) {
+				return Integer.compare(fresh.get(a).price, fresh.get(b).price);
+			}
+		});
+		return new Plan(likely, others, skipped);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// The number of plans made with some replies cached for the book, and without
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	private void record(String title, BookState state, AID seller, Reply reply) {
+		Book key = new Book(title, state);
+		HashMap<AID, Reply> replies = books.get(key);
+		if (replies == null) {
+			replies = new HashMap<AID, Reply>();
+			books.put(key, replies);
+		}
+		if (replies.put(seller, reply) == null) {
+			size++;
+		}
+		// Forget the least recently used books, but not the one just recorded
+		Iterator<Map.Entry<Book, HashMap<AID, Reply>>> eldest = books.entrySet().iterator();
+		while (size > maxReplies && eldest.hasNext()) {
+			Map.Entry<Book, HashMap<AID, Reply>> entry = eldest.next();
+			if (entry.getValue() == replies) {
+				break;
+			}
+			size -= entry.getValue().size();
+			eldest.remove();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package firstAgent;
+
+import java.util.*;
+
+/**
+ * The prices of every listing (title, state) of the market, for the price index agent.
+ * For each listing, the prices of its sellers are kept in an array sorted by price and
+ * updated in place when a seller publishes a change, so the market minimum is the first
+ * element of the array: reading it is a single hash lookup.
+ * Publishing a listing subscribes the seller to it: when the minimum of a listing drops,
+ * apply() returns the sellers asking more than the new minimum, so that they can be told.
+ * Sellers are identified by small integers given by the caller. The index is not
+ * synchronized: it is used by the thread of its agent.
+ * The titles decoded from the published listings are replaced by their shared instance
+ * (see TitleDictionary), so the index does not keep a copy of each title per seller.
+ */
+public class PriceIndex {
+	private static final int STATES = BookState.values().length;
+
+	// The sellers of a listing and their prices, cheapest first
+	private static class Sellers {
+		int[] prices = new int[2];
+		int[] ids = new int[2];
+		int size = 0;
+
+		int indexOf(int seller) {
+			for (int i = 0; i < size; ++i) {
+				if (ids[i] == seller) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		void removeAt(int i) {
+			System.arraycopy(prices, i + 1, prices, i, size - i - 1);
+			System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+			size--;
+		}
+
+		// Inserts after the sellers with the same price: the first one keeps the minimum
+		void insert(int seller, int price) {
+			if (size == prices.length) {
+				prices = Arrays.copyOf(prices, size * 2);
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			int i = size;
+			while (i > 0 && prices[i - 1] > price) {
+				prices[i] = prices[i - 1];
+				ids[i] = ids[i - 1];
+				i--;
+			}
+			prices[i] = price;
+			ids[i] = seller;
+			size++;
+		}
+	}
+
+	// Maps a title to the sellers of each state, indexed by state ordinal
+	private final HashMap<String, Sellers[]> listings = new HashMap<String, Sellers[]>();
+	// For each seller, the titles it publishes and their states, as bit masks of ordinals
+	private final ArrayList<HashMap<String, Integer>> published = new ArrayList<HashMap<String, Integer>>();
+	// The number of listings with at least one seller
+	private int size = 0;
+	// The dictionary the titles are shared through, or null to keep the instances published
+	private final TitleDictionary dictionary;
+
+	public PriceIndex() {
+		this(TitleDictionary.shared());
+	}
+
+	/**
+	 * @param dictionary the dictionary of the titles shared with the agents, or null
+	 */
+	public PriceIndex(TitleDictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Returns the lowest price of the title in this state on the market, or null if no
+	 * seller publishes it.
+	 */
+	public Integer getMinimum(String title, BookState state) {
+		Sellers[] sellers = listings.get(title);
+		Sellers listing = sellers == null ? null : sellers[state.ordinal()];
+		return listing == null ? null : listing.prices[0];
+	}
+
+	/**
+	 * Returns the market minimums of the given listings; the listings nobody publishes
+	 * are left out.
+	 */
+	public List<Offer> getMinimums(Collection<Offer> queried) {
+		List<Offer> minimums = new ArrayList<Offer>(queried.size());
+		for (Offer offer : queried) {
+			Integer minimum = getMinimum(offer.getTitle(), offer.getState());
+			if (minimum != null) {
+				minimums.add(new Offer(offer.getTitle(), offer.getState(), minimum));
+			}
+		}
+		return minimums;
+	}
+
+	/**
+	 * Applies the listings published by a seller: a quantity of 0 unlists the listing.
+	 * A snapshot replaces all the listings of the seller, so an empty snapshot removes
+	 * the seller from the index.
+	 * Returns, by seller, the listings they sell above the market minimum, with the price
+	 * of the minimum: the sellers to notify.
+	 */
+	public Map<Integer, List<Offer>> apply(int seller, Collection<Offer> changes, boolean snapshot) {
+		while (published.size() <= seller) {
+			published.add(new HashMap<String, Integer>());
+		}
+		HashMap<String, Integer> titles = published.get(seller);
+		if (snapshot) {
+			// Unlist what the snapshot does not contain
+			HashMap<String, Integer> kept = new HashMap<String, Integer>();
+			for (Offer offer : changes) {
+				if (offer.getQuantity() > 0) {
+					Integer mask = kept.get(offer.getTitle());
+					kept.put(offer.getTitle(), (mask == null ? 0 : mask) | 1 << offer.getState().ordinal());
+				}
+			}
+			for (Map.Entry<String, Integer> entry : new ArrayList<Map.Entry<String, Integer>>(titles.entrySet())) {
+				Integer mask = kept.get(entry.getKey());
+				int gone = entry.getValue() & ~(mask == null ? 0 : mask);
+				for (int i = 0; i < STATES; ++i) {
+					if ((gone & 1 << i) != 0) {
+						unlist(seller, entry.getKey(), i);
+					}
+				}
+			}
+		}
+		Map<Integer, List<Offer>> notifications = new HashMap<Integer, List<Offer>>();
+		for (Offer offer : changes) {
+			if (offer.getQuantity() <= 0) {
+				unlist(seller, offer.getTitle(), offer.getState().ordinal());
+			}
+			else {
+				list(seller, offer.getTitle(), offer.getState(), offer.getPrice(), notifications);
+			}
+		}
+		return notifications;
+	}
+
+	/**
+	 * Returns the number of listings with at least one seller.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void list(int seller, String title, BookState state, int price, Map<Integer, List<Offer>> notifications) {
+		if (dictionary != null) {
+			title = dictionary.intern(title);
+		}
+		int slot = state.ordinal();
+		Sellers[] sellers = listings.get(title);
+		if (sellers == null) {
+			sellers = new Sellers[STATES];
+			listings.put(title, sellers);
+		}
+		Sellers listing = sellers[slot];
+		if (listing == null) {
+			listing = new Sellers();
+			sellers[slot] = listing;
+			size++;
+		}
+		int previousMinimum = listing.size == 0 ? Integer.MAX_VALUE : listing.prices[0];
+		int i = listing.indexOf(seller);
+		if (i >= 0) {
+			listing.removeAt(i);
+		}
+		listing.insert(seller, price);
+		HashMap<String, Integer> titles = published.get(seller);
+		Integer mask = titles.get(title);
+		titles.put(title, (mask == null ? 0 : mask) | 1 << slot);
+
+		int minimum = listing.prices[0];
+		if (minimum < previousMinimum) {
+			// The other sellers were told the previous minimum: tell those above the new one
+			for (int j = listing.size - 1; j >= 0 && listing.prices[j] > minimum; --j) {
+				notify(notifications, listing.ids[j], title, state, minimum);
+			}
+		}
+		else if (price > minimum) {
+			notify(notifications, seller, title, state, minimum);
+		}
+	}
+
+	private void unlist(int seller, String title, int slot) {
+		Sellers[] sellers = listings.get(title);
+		Sellers listing = sellers == null ? null : sellers[slot];
+		int i = listing == null ? -1 : listing.indexOf(seller);
+		if (i < 0) {
+			return;
+		}
+		listing.removeAt(i);
+		if (listing.size == 0) {
+			sellers[slot] = null;
+			size--;
+			if (isEmpty(sellers)) {
+				listings.remove(title);
+			}
+		}
+		HashMap<String, Integer> titles = published.get(seller);
+		int mask = titles.get(title) & ~(1 << slot);
+		if (mask == 0) {
+			titles.remove(title);
+		}
+		else {
+			titles.put(title, mask);
+		}
+	}
+
+	private static void notify(Map<Integer, List<Offer>> notifications, int seller, String title, BookState state,
+			int minimum) {
+		List<Offer> offers = notifications.get(seller);
+		if (offers == null) {
+			offers = new ArrayList<Offer>();
+			notifications.put(seller, offers);
+		}
+		offers.add(new Offer(title, state, minimum));
+	}
+
+	private static boolean isEmpty(Sellers[] sellers) {
+		for (Sellers listing : sellers) {
+			if (listing != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,192 @@
+package firstAgent;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+import jade.domain.DFService;
+import jade.domain.FIPAException;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An optional agent keeping the market price of every listing (see PriceIndex), for the
+ * sellers started with sync=index.
+ * Instead of sending their changes to every other seller, the sellers publish them to
+ * the index only, in an INFORM message (LISTING_DELTA with a sequence number). A seller
+ * asking more than the market minimum for a listing is told the minimum in an INFORM
+ * message (PRICE_LIST), at once: one message per change instead of one per pair of
+ * sellers, and the sellers converge in a single round trip.
+ * If a delta of a seller is missing, the index asks them for a snapshot with a QUERY_REF
+ * message; on termination a seller publishes an empty snapshot to leave the index.
+ * Any agent can ask for the market minimums of listings with a QUERY_REF message whose
+ * content is a PRICE_QUERY; the answer is an INFORM message (PRICE_LIST).
+ * All these messages have the conversation id "price-index".
+ *
+ * Start with e.g. java jade.Boot -agents "index:firstAgent.PriceIndexAgent(log=info)"
+ */
+public class PriceIndexAgent extends Agent {
+	// The type of service registered by the price index in the yellow pages
+	public static final String SERVICE_TYPE = "book-price-index";
+
+	private PriceIndex index;
+	// The sellers publishing to the index, by id (see PriceIndex), and the ids of their AIDs
+	private List<AID> sellers = new ArrayList<AID>();
+	private HashMap<AID, Integer> sellerIds = new HashMap<AID, Integer>();
+	// The sequence number of the last listings received from each seller, by id
+	private List<Long> sequences = new ArrayList<Long>();
+	private AgentMetrics metrics;
+	private AgentLog log;
+
+	protected void setup() {
+		AgentOptions options = new AgentOptions(getArguments());
+		log = new AgentLog(getLocalName(), AgentLog.parseLevel(options.getString("log", null)));
+		metrics = new AgentMetrics(getLocalName());
+		// Share the titles with the agents of the JVM unless titleDictionary=false is given
+		index = new PriceIndex(options.getBoolean("titleDictionary", true) ? TitleDictionary.shared() : null);
+
+		// Register the price index service in the yellow pages
+		DFAgentDescription dfd = new DFAgentDescription();
+		dfd.setName(getAID());
+		ServiceDescription sd = new ServiceDescription();
+		sd.setType(SERVICE_TYPE);
+		sd.setName("JADE-book-trading");
+		dfd.addServices(sd);
+		try {
+			DFService.register(this, dfd);
+		}
+		catch (FIPAException fe) {
+			fe.printStackTrace();
+		}
+
+		MessageRouter router = new MessageRouter(this, options.getInt("dispatchBatch", 64));
+		router.route(ACLMessage.INFORM, BookSellerAgent.INDEX_SYNC, new ListingsServer());
+		router.route(ACLMessage.QUERY_REF, BookSellerAgent.INDEX_SYNC, new MinimumsServer());
+		addBehaviour(router);
+
+		metrics.gauge("index.listings", new AgentMetrics.Gauge() {
+			public long value() {
+				return index.size();
+			}
+		});
+		metrics.gauge("index.sellers", new AgentMetrics.Gauge() {
+			public long value() {
+				return sellers.size();
+			}
+		});
+		if (options.getBoolean("jmx", true)) {
+			metrics.register();
+		}
+		System.out.println("Price index "+getAID().getName()+" is ready.");
+	}
+
+	protected void takeDown() {
+		try {
+			DFService.deregister(this);
+		}
+		catch (FIPAException fe) {
+			fe.printStackTrace();
+		}
+		metrics.unregister();
+		System.out.println("Price index "+getAID().getName()+" terminating: "+index.size()+" listings of "
+				+sellers.size()+" sellers.");
+	}
+
+	// Sends a message and counts it in the process-wide trade statistics
+	void sendMessage(ACLMessage msg) {
+		send(msg);
+		TradeStats.recordSent(msg);
+	}
+
+	// Returns the id of a seller in the index, given on its first publication
+	private int sellerId(AID seller) {
+		Integer id = sellerIds.get(seller);
+		if (id == null) {
+			id = sellers.size();
+			sellers.add(seller);
+			sellerIds.put(seller, id);
+			sequences.add(0L);
+		}
+		return id;
+	}
+
+	/**
+	 * Inner class ListingsServer.
+	 * This is the handler used by the price index to apply the listings published by the
+	 * sellers, and to tell the sellers asking more than a new minimum.
+	 */
+	private class ListingsServer implements MessageRouter.Handler {
+		private final AtomicLong deltas = metrics.counter("index.deltas");
+		private final AtomicLong snapshots = metrics.counter("index.snapshots");
+		private final AtomicLong snapshotRequests = metrics.counter("index.snapshotRequests");
+		private final AtomicLong notifications = metrics.counter("index.notifications");
+		private final LatencyRecorder serviceTime = metrics.histogram("index.serviceMicros");
+
+		public void handle(ACLMessage msg) {
+			long start = System.nanoTime();
+			BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(msg.getByteSequenceContent(),
+					BookTradeCodec.LISTING_DELTA, BookTradeCodec.LISTING_SNAPSHOT);
+			boolean isSnapshot = decoder.getType() == BookTradeCodec.LISTING_SNAPSHOT;
+			long sequence = decoder.readLong();
+			int seller = sellerId(msg.getSender());
+			if (isSnapshot) {
+				snapshots.incrementAndGet();
+			}
+			else {
+				deltas.incrementAndGet();
+				if (sequence != sequences.get(seller) + 1) {
+					// Some listings of this seller are missing: ask for all of them
+					snapshotRequests.incrementAndGet();
+					ACLMessage request = new ACLMessage(ACLMessage.QUERY_REF);
+					request.setConversationId(BookSellerAgent.INDEX_SYNC);
+					request.addReceiver(msg.getSender());
+					sendMessage(request);
+				}
+			}
+			sequences.set(seller, sequence);
+
+			List<Offer> listings = BookTradeCodec.decodeListings(decoder);
+			Map<Integer, List<Offer>> cheaper = index.apply(seller, listings, isSnapshot);
+			for (Map.Entry<Integer, List<Offer>> entry : cheaper.entrySet()) {
+				ACLMessage notification = new ACLMessage(ACLMessage.INFORM);
+				notification.setConversationId(BookSellerAgent.INDEX_SYNC);
+				notification.addReceiver(sellers.get(entry.getKey()));
+				notification.setByteSequenceContent(BookTradeCodec.encodePrices(BookTradeCodec.PRICE_LIST, 0,
+						entry.getValue()));
+				sendMessage(notification);
+			}
+			notifications.addAndGet(cheaper.size());
+			log.debug("%d listings from %s, %d sellers notified", listings.size(), msg.getSender().getLocalName(),
+					cheaper.size());
+			serviceTime.record((System.nanoTime() - start) / 1000);
+		}
+	}
+
+	/**
+	 * Inner class MinimumsServer.
+	 * This is the handler used by the price index to answer the requests for the market
+	 * minimums of listings.
+	 */
+	private class MinimumsServer implements MessageRouter.Handler {
+		private final AtomicLong queries = metrics.counter("index.queries");
+
+		public void handle(ACLMessage msg) {
+			queries.incrementAndGet();
+			BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(msg.getByteSequenceContent(),
+					BookTradeCodec.PRICE_QUERY);
+			int count = decoder.readCount();
+			List<Offer> queried = new ArrayList<Offer>(count);
+			for (int i = 0; i < count; ++i) {
+				String title = decoder.readTitle();
+				queried.add(new Offer(title, decoder.readState(), 0));
+			}
+			ACLMessage reply = msg.createReply();
+			reply.setPerformative(ACLMessage.INFORM);
+			reply.setByteSequenceContent(BookTradeCodec.encodePrices(BookTradeCodec.PRICE_LIST, 0,
+					index.getMinimums(queried)));
+			sendMessage(reply);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package firstAgent;
+
+import java.util.*;
+
+/**
+ * Matches the listings sent by another seller against the local catalogue.
+ * The listings are decoded from the message content one at a time, without building
+ * an intermediate collection; each one is then a single lookup in the hash index of
+ * the catalogue, so a query with n listings costs O(n) whatever the size of the
+ * local catalogue.
+ */
+public class PriceMatcher {
+
+	/**
+	 * Returns the local offers for the listings of a PRICE_QUERY content.
+	 */
+	public static List<Offer> match(Catalogue catalogue, byte[] query) {
+		BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(query, BookTradeCodec.PRICE_QUERY);
+		int count = decoder.readCount();
+		List<Offer> matches = new ArrayList<Offer>();
+		for (int i = 0; i < count; ++i) {
+			String title = decoder.readTitle();
+			BookState state = decoder.readState();
+			Integer price = catalogue.get(title, state);
+			if (price != null) {
+				matches.add(new Offer(title, state, price));
+			}
+		}
+		return matches;
+	}
+}
@@ -0,0 +1,114 @@
+package firstAgent;
+
+import jade.core.AID;
+
+import java.util.*;
+
+/**
+ * Keeps the proposals received by a buyer during a CFP round whose price does not
+ * exceed the maximum price of the target, and the best of them: the cheapest one.
+ * On equal prices the first proposal received wins.
+ * When several copies are wanted, select() splits the order among the sellers,
+ * cheapest proposals first.
+ */
+public class ProposalSelector {
+	/**
+	 * A proposal of a seller: the price of a copy, the state and the number of copies.
+	 */
+	public static final class Proposal {
+		private final AID seller;
+		private final int price;
+		private final BookState state;
+		private final int quantity;
+		private final long reservation;
+
+		Proposal(AID seller, int price, BookState state, int quantity, long reservation) {
+			this.seller = seller;
+			this.price = price;
+			this.state = state;
+			this.quantity = quantity;
+			this.reservation = reservation;
+		}
+
+		public AID getSeller() {
+			return seller;
+		}
+
+		public int getPrice() {
+			return price;
+		}
+
+		public BookState getState() {
+			return state;
+		}
+
+		public int getQuantity() {
+			return quantity;
+		}
+
+		// The reservation id given by the seller (0 if none)
+		public long getReservation() {
+			return reservation;
+		}
+	}
+
+	private static final Comparator<Proposal> BY_PRICE = new Comparator<Proposal>() {
+		public int compare(Proposal a, Proposal b) {
+			return Integer.compare(a.price, b.price);
+		}
+	};
+
+	private final int maxPrice;
+	private Proposal best; // The best offer
+	private List<Proposal> proposals = new ArrayList<Proposal>(); // The acceptable offers, in the order received
+
+	public ProposalSelector(int maxPrice) {
+		this.maxPrice = maxPrice;
+	}
+
+	/**
+	 * Takes a proposal for a single copy into account. Returns true if it is the best
+	 * one at present.
+	 */
+	public boolean propose(AID seller, int price, BookState state, long reservation) {
+		return propose(seller, price, state, 1, reservation);
+	}
+
+	/**
+	 * Takes a proposal into account. Returns true if it is the best one at present.
+	 */
+	public boolean propose(AID seller, int price, BookState state, int quantity, long reservation) {
+		if (price > maxPrice || quantity <= 0) {
+			return false;
+		}
+		Proposal proposal = new Proposal(seller, price, state, quantity, reservation);
+		proposals.add(proposal);
+		if (best == null || price < best.price) {
+			best = proposal;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the proposals to accept to buy up to quantity copies at the lowest total
+	 * price, cheapest first, each with the number of copies to order from the seller.
+	 * Fewer copies are selected if the proposals do not cover the quantity.
+	 */
+	public List<Proposal> select(int quantity) {
+		List<Proposal> sorted = new ArrayList<Proposal>(proposals);
+		// The sort is stable: on equal prices the first proposal received still wins
+		Collections.sort(sorted, BY_PRICE);
+		List<Proposal> selected = new ArrayList<Proposal>();
+		for (Proposal proposal : sorted) {
+			if (quantity <= 0) {
+				break;
+			}
+			int copies = Math.min(quantity, proposal.quantity);
+			selected.add(copies == proposal.quantity ? proposal
+					: new Proposal(proposal.seller, proposal.price, proposal.state, copies, proposal.reservation));
+			quantity -= copies;
+		}
+		return selected;
+	}
+}
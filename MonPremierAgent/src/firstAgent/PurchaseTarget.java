@@ -0,0 +1,52 @@
+package firstAgent;
+
+/**
+ * A book that a buyer agent wants to purchase: its title, the minimum acceptable
+ * state, the maximum price the buyer is willing to pay for a copy and the number of
+ * copies wanted.
+ */
+public final class PurchaseTarget {
+	private final String title;
+	private final BookState state;
+	private final int maxPrice;
+	private final int quantity;
+
+	public PurchaseTarget(String title, BookState state, int maxPrice) {
+		this(title, state, maxPrice, 1);
+	}
+
+	public PurchaseTarget(String title, BookState state, int maxPrice, int quantity) {
+		this.title = title;
+		this.state = state;
+		this.maxPrice = maxPrice;
+		this.quantity = quantity;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public BookState getState() {
+		return state;
+	}
+
+	public int getMaxPrice() {
+		return maxPrice;
+	}
+
+	public int getQuantity() {
+		return quantity;
+	}
+
+	/**
+	 * Returns the same target for fewer copies, e.g. the copies still to buy.
+	 */
+	public PurchaseTarget withQuantity(int quantity) {
+		return new PurchaseTarget(title, state, maxPrice, quantity);
+	}
+
+	public String toString() {
+		return (quantity != 1 ? quantity+" copies of " : "")+title+" in at least "+state.getLabel()
+				+" state, and max price "+maxPrice;
+	}
+}
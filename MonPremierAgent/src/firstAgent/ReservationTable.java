@@ -0,0 +1,205 @@
+package firstAgent;
+
+import jade.core.AID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The holds placed by a seller on the copies it proposed to buyers.
+ * When a seller proposes copies, it holds them in the catalogue for a short time and
+ * gives the buyer a reservation id; the buyer accepts the proposal with this id.
+ * Until then the copies are not proposed to other buyers, so concurrent buyers are not
+ * all told the same copies are available.
+ * Holds expire after their TTL: the expirations are kept in a TimerWheel advanced by
+ * a single periodic behaviour, and an expired hold is released in the catalogue.
+ * The table itself is a ConcurrentHashMap, so it is read without locking.
+ * The table follows the catalogue: when a listing is removed, its holds are cleared and
+ * its reservations dropped, so that they cannot release the copies held later by the
+ * reservations of a listing added again. The reservations are indexed by title for this,
+ * under the catalogue lock, with which the catalogue notifies the removals.
+ */
+public class ReservationTable implements Catalogue.Listener {
+	public static class Reservation {
+		private final long id;
+		private final String title;
+		private final BookState state;
+		private final int quantity;
+		private final AID buyer;
+
+		Reservation(long id, String title, BookState state, int quantity, AID buyer) {
+			this.id = id;
+			this.title = title;
+			this.state = state;
+			this.quantity = quantity;
+			this.buyer = buyer;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public BookState getState() {
+			return state;
+		}
+
+		public int getQuantity() {
+			return quantity;
+		}
+
+		public AID getBuyer() {
+			return buyer;
+		}
+	}
+
+	private final Catalogue catalogue;
+	private final long ttl;
+	private final ConcurrentHashMap<Long, Reservation> reservations = new ConcurrentHashMap<Long, Reservation>();
+	// Reservation ids start at 1: 0 means "no reservation" in the messages
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final TimerWheel<Long> expirations;
+	// The ids of the reservations of each title, guarded by the catalogue lock
+	private final HashMap<String, List<Long>> byTitle = new HashMap<String, List<Long>>();
+	private long expired = 0;
+
+	/**
+	 * @param ttl the time to live of the holds, in milliseconds
+	 * @param tickMillis the precision of the expirations
+	 */
+	public ReservationTable(Catalogue catalogue, long ttl, long tickMillis) {
+		this.catalogue = catalogue;
+		this.ttl = ttl;
+		// Enough slots for the TTL to fit in a single turn of the wheel
+		int slots = (int) Math.max(16, ttl / tickMillis + 1);
+		this.expirations = new TimerWheel<Long>(tickMillis, slots, System.currentTimeMillis());
+		catalogue.addListener(this);
+	}
+
+	/**
+	 * Holds the copies for the buyer and returns the reservation id, or 0 if the copies
+	 * could not be held.
+	 */
+	public long reserve(String title, BookState state, int quantity, AID buyer) {
+		long id;
+		synchronized (catalogue) {
+			if (!catalogue.hold(title, state, quantity)) {
+				return 0;
+			}
+			id = nextId.getAndIncrement();
+			reservations.put(id, new Reservation(id, title, state, quantity, buyer));
+			List<Long> ids = byTitle.get(title);
+			if (ids == null) {
+				ids = new ArrayList<Long>(2);
+				byTitle.put(title, ids);
+			}
+			ids.add(id);
+		}
+		expirations.schedule(id, System.currentTimeMillis() + ttl);
+		return id;
+	}
+
+	/**
+	 * Removes the reservation of the buyer and returns it, or returns null if it does not
+	 * exist (unknown, already claimed or expired) or was made for another buyer: the ids
+	 * are sequential, so they are easily guessed. The copies are still held: the caller
+	 * either sells them or releases them, holding the catalogue lock from the claim on if
+	 * the listing may be removed by another thread meanwhile.
+	 */
+	public Reservation claim(long id, AID buyer) {
+		Reservation reservation = reservations.get(id);
+		if (reservation == null || !reservation.getBuyer().equals(buyer)) {
+			return null;
+		}
+		synchronized (catalogue) {
+			return remove(reservation) ? reservation : null;
+		}
+	}
+
+	/**
+	 * Cancels a reservation of the buyer, for instance when the buyer rejects the proposal.
+	 * The reservations of the other buyers are left as they are.
+	 */
+	public void cancel(long id, AID buyer) {
+		synchronized (catalogue) {
+			Reservation reservation = claim(id, buyer);
+			if (reservation != null) {
+				catalogue.release(reservation.getTitle(), reservation.getState(), reservation.getQuantity());
+			}
+		}
+	}
+
+	/**
+	 * Releases the holds whose TTL elapsed. Returns the number of holds released.
+	 */
+	public int expire() {
+		int released = 0;
+		for (Long id : expirations.advance(System.currentTimeMillis())) {
+			Reservation reservation = reservations.get(id);
+			if (reservation == null) {
+				continue;
+			}
+			synchronized (catalogue) {
+				if (remove(reservation)) {
+					catalogue.release(reservation.getTitle(), reservation.getState(), reservation.getQuantity());
+					released++;
+				}
+			}
+		}
+		expired += released;
+		return released;
+	}
+
+	public void listed(String title, BookState state, int price, int quantity) {
+	}
+
+	// The listing was removed with its holds: its reservations are dropped
+	public void unlisted(String title, BookState state) {
+		List<Long> ids = byTitle.get(title);
+		if (ids == null) {
+			return;
+		}
+		for (Iterator<Long> it = ids.iterator(); it.hasNext();) {
+			Reservation reservation = reservations.get(it.next());
+			if (reservation != null && reservation.getState() == state) {
+				reservations.remove(reservation.getId());
+				it.remove();
+			}
+		}
+		if (ids.isEmpty()) {
+			byTitle.remove(title);
+		}
+	}
+
+	// Removes a reservation from the table and the index; the caller holds the catalogue lock.
+	// Returns false if it was already removed
+	private boolean remove(Reservation reservation) {
+		if (!reservations.remove(reservation.getId(), reservation)) {
+			return false;
+		}
+		List<Long> ids = byTitle.get(reservation.getTitle());
+		if (ids != null) {
+			ids.remove(Long.valueOf(reservation.getId()));
+			if (ids.isEmpty()) {
+				byTitle.remove(reservation.getTitle());
+			}
+		}
+		return true;
+	}
+
+	public int size() {
+		return reservations.size();
+	}
+
+	public long getExpired() {
+		return expired;
+	}
+
+	public long getTickMillis() {
+		return expirations.getTickMillis();
+	}
+}
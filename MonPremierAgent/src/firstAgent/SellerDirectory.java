@@ -0,0 +1,236 @@
+package firstAgent;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.DFService;
+import jade.domain.FIPAException;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.lang.acl.ACLMessage;
+import jade.proto.SubscriptionInitiator;
+import jade.util.leap.Iterator;
+
+import java.util.*;
+
+/**
+ * Local view of the seller agents registered in the yellow pages, shared by the
+ * buyer and the seller agents.
+ * The directory subscribes once to the DF: the DF then notifies every seller
+ * registration and deregistration, and the view is updated incrementally instead
+ * of searching the DF at each tick.
+ * If the view has not been confirmed by the DF for longer than the staleness bound
+ * (for instance because notifications were lost), it is rebuilt with a search.
+ * In a sharded fleet (see TitleShards), the view also knows the shards of each seller
+ * and gives the sellers of a title, or of a list of shards.
+ * The search and the subscription ask for up to MAX_RESULTS sellers: without this the
+ * DF returns at most 100 of them, and a rebuild of the view would lose the others. The DF
+ * also caps the results with its jade_domain_df_maxresult parameter (100 by default), so
+ * a platform with more sellers must be started with it raised, e.g.
+ * -jade_domain_df_maxresult 100000.
+ */
+public class SellerDirectory {
+	// Default staleness bound of the view, in milliseconds
+	public static final long DEFAULT_MAX_STALENESS = 60000;
+	// The number of sellers asked for to the DF (a negative value would mean the DF default)
+	public static final long MAX_RESULTS = 100000;
+
+	private Agent myAgent;
+	private String serviceType;
+	private DFAgentDescription template;
+	private SearchConstraints constraints;
+	private long maxStaleness;
+	private SubscriptionInitiator subscription;
+
+	// The known sellers with their shards (null: all the shards), and an array copy of
+	// them handed out to the behaviours
+	private LinkedHashMap<AID, int[]> sellers = new LinkedHashMap<AID, int[]>();
+	private AID[] snapshot = new AID[0];
+	// The partition of the titles, null if the fleet is not sharded, and the sellers of each shard
+	private TitleShards shards;
+	private AID[][] shardSnapshots;
+	// Last time the view was confirmed by the DF (notification or search)
+	private long lastUpdate = 0;
+
+	// Number of DF searches done, and of requests served without one
+	private long dfSearches = 0;
+	private long savedSearches = 0;
+
+	public SellerDirectory(Agent agent, String serviceType, long maxStaleness) {
+		this.myAgent = agent;
+		this.serviceType = serviceType;
+		this.maxStaleness = maxStaleness;
+		template = new DFAgentDescription();
+		ServiceDescription sd = new ServiceDescription();
+		sd.setType(serviceType);
+		template.addServices(sd);
+		constraints = new SearchConstraints();
+		constraints.setMaxResults(MAX_RESULTS);
+	}
+
+	/**
+	 * Makes the view follow the shards of the sellers. Must be called before start().
+	 */
+	public void setShards(TitleShards shards) {
+		this.shards = shards;
+		shardSnapshots = new AID[shards.getCount()][0];
+	}
+
+	/**
+	 * Subscribes to the DF. Must be called from the setup of the agent.
+	 */
+	public void start() {
+		ACLMessage subscribe = DFService.createSubscriptionMessage(myAgent, myAgent.getDefaultDF(), template, constraints);
+		subscription = new SubscriptionInitiator(myAgent, subscribe) {
+			protected void handleInform(ACLMessage inform) {
+				try {
+					DFAgentDescription[] results = DFService.decodeNotification(inform.getContent());
+					for (DFAgentDescription dfd : results) {
+						// A description without services notifies a deregistration
+						if (dfd.getAllServices().hasNext()) {
+							sellers.put(dfd.getName(), shardsOf(dfd));
+						}
+						else {
+							sellers.remove(dfd.getName());
+						}
+					}
+					updateSnapshot();
+				}
+				catch (FIPAException fe) {
+					fe.printStackTrace();
+				}
+			}
+		};
+		myAgent.addBehaviour(subscription);
+	}
+
+	/**
+	 * Cancels the subscription. Must be called from the takeDown of the agent.
+	 */
+	public void stop() {
+		if (subscription != null) {
+			subscription.cancel(myAgent.getDefaultDF(), true);
+		}
+	}
+
+	/**
+	 * Returns the known sellers. The DF is only searched if the view is older than
+	 * the staleness bound. The returned array must not be modified.
+	 */
+	public AID[] getSellers() {
+		refresh();
+		return snapshot;
+	}
+
+	/**
+	 * Returns the known sellers carrying the shard of the title: all the sellers if the
+	 * fleet is not sharded. The returned array must not be modified.
+	 */
+	public AID[] getSellers(String title) {
+		refresh();
+		return shards == null ? snapshot : shardSnapshots[shards.shardOf(title)];
+	}
+
+	/**
+	 * Returns the known sellers carrying at least one of the shards, except the given
+	 * agent: all of them if the fleet is not sharded or ofShards is null.
+	 */
+	public List<AID> getSellersSharing(int[] ofShards, AID self) {
+		if (shards == null || ofShards == null) {
+			return getSellersExcept(self);
+		}
+		refresh();
+		LinkedHashSet<AID> sharing = new LinkedHashSet<AID>();
+		for (int shard : ofShards) {
+			sharing.addAll(Arrays.asList(shardSnapshots[shard]));
+		}
+		sharing.remove(self);
+		return new ArrayList<AID>(sharing);
+	}
+
+	/**
+	 * Returns the known sellers except the given agent.
+	 */
+	public List<AID> getSellersExcept(AID self) {
+		AID[] all = getSellers();
+		List<AID> others = new ArrayList<AID>(all.length);
+		for (AID aid : all) {
+			if (!aid.equals(self)) {
+				others.add(aid);
+			}
+		}
+		return others;
+	}
+
+	public long getDfSearches() {
+		return dfSearches;
+	}
+
+	public long getSavedSearches() {
+		return savedSearches;
+	}
+
+	public String report() {
+		return sellers.size()+" sellers known, "+dfSearches+" DF searches done, "+savedSearches+" saved";
+	}
+
+	private void refresh() {
+		if (System.currentTimeMillis() - lastUpdate > maxStaleness) {
+			search();
+		}
+		else {
+			savedSearches++;
+		}
+	}
+
+	private void search() {
+		dfSearches++;
+		try {
+			DFAgentDescription[] result = DFService.search(myAgent, template, constraints);
+			sellers = new LinkedHashMap<AID, int[]>(result.length);
+			for (int i = 0; i < result.length; ++i) {
+				sellers.put(result[i].getName(), shardsOf(result[i]));
+			}
+			updateSnapshot();
+		}
+		catch (FIPAException fe) {
+			fe.printStackTrace();
+		}
+	}
+
+	// The shards registered by a seller, null if it carries all of them
+	private int[] shardsOf(DFAgentDescription dfd) {
+		if (shards == null) {
+			return null;
+		}
+		Iterator it = dfd.getAllServices();
+		while (it.hasNext()) {
+			ServiceDescription sd = (ServiceDescription) it.next();
+			if (serviceType.equals(sd.getType())) {
+				return shards.read(sd);
+			}
+		}
+		return null;
+	}
+
+	private void updateSnapshot() {
+		snapshot = sellers.keySet().toArray(new AID[sellers.size()]);
+		if (shards != null) {
+			List<List<AID>> byShard = new ArrayList<List<AID>>(shards.getCount());
+			for (int i = 0; i < shards.getCount(); ++i) {
+				byShard.add(new ArrayList<AID>());
+			}
+			for (Map.Entry<AID, int[]> seller : sellers.entrySet()) {
+				int[] sellerShards = seller.getValue() == null ? shards.all() : seller.getValue();
+				for (int shard : sellerShards) {
+					byShard.get(shard).add(seller.getKey());
+				}
+			}
+			shardSnapshots = new AID[shards.getCount()][];
+			for (int i = 0; i < shards.getCount(); ++i) {
+				shardSnapshots[i] = byShard.get(i).toArray(new AID[0]);
+			}
+		}
+		lastUpdate = System.currentTimeMillis();
+	}
+}
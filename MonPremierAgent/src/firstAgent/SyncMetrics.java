@@ -0,0 +1,45 @@
+package firstAgent;
+
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Counts the messages and bytes sent by a seller agent for price
+ * synchronization, so that the full and delta sync modes can be compared.
+ * A message sent to n receivers counts as n messages.
+ */
+public class SyncMetrics {
+	private long tickMessages = 0;
+	private long tickBytes = 0;
+	private long totalMessages = 0;
+	private long totalBytes = 0;
+	private long ticks = 0;
+
+	public void record(ACLMessage msg, int receivers) {
+		byte[] content = msg.getByteSequenceContent();
+		long bytes = content == null ? 0 : content.length;
+		tickMessages += receivers;
+		tickBytes += bytes * receivers;
+	}
+
+	/**
+	 * Closes the current tick and returns a one line summary of it.
+	 */
+	public String endTick() {
+		ticks++;
+		totalMessages += tickMessages;
+		totalBytes += tickBytes;
+		String report = tickMessages+" messages, "+tickBytes+" bytes this tick ("
+				+(totalMessages / ticks)+" messages, "+(totalBytes / ticks)+" bytes per tick on average)";
+		tickMessages = 0;
+		tickBytes = 0;
+		return report;
+	}
+
+	public long getTotalMessages() {
+		return totalMessages + tickMessages;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes + tickBytes;
+	}
+}
@@ -0,0 +1,80 @@
+package firstAgent;
+
+import java.util.*;
+
+/**
+ * A hashed timer wheel: schedules many timeouts with a single periodic tick instead of
+ * one timer (or one behaviour) per timeout.
+ * Time is divided in ticks of tickMillis; a timeout is stored in the slot of its
+ * deadline tick, modulo the number of slots. Advancing the wheel only visits the slots
+ * of the elapsed ticks, so scheduling is O(1) and expiring costs O(elapsed ticks +
+ * expired items), whatever the number of pending timeouts.
+ * The precision of the timeouts is one tick. This class is not thread-safe: it is
+ * meant to be used by the behaviours of a single agent.
+ */
+public class TimerWheel<T> {
+	private static class Timeout<T> {
+		final T item;
+		final long deadlineTick;
+
+		Timeout(T item, long deadlineTick) {
+			this.item = item;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+
+	private final long tickMillis;
+	private final ArrayList<ArrayDeque<Timeout<T>>> slots;
+	private long currentTick;
+	private int size = 0;
+
+	public TimerWheel(long tickMillis, int slotCount, long now) {
+		this.tickMillis = tickMillis;
+		this.slots = new ArrayList<ArrayDeque<Timeout<T>>>(slotCount);
+		for (int i = 0; i < slotCount; ++i) {
+			slots.add(new ArrayDeque<Timeout<T>>());
+		}
+		this.currentTick = now / tickMillis;
+	}
+
+	/**
+	 * Schedules the item to expire at the given time (in milliseconds).
+	 */
+	public void schedule(T item, long deadline) {
+		// An item is never expired in the tick during which it is scheduled
+		long tick = Math.max(deadline / tickMillis, currentTick + 1);
+		slots.get((int) (tick % slots.size())).add(new Timeout<T>(item, tick));
+		size++;
+	}
+
+	/**
+	 * Advances the wheel to the given time and returns the items that expired.
+	 */
+	public List<T> advance(long now) {
+		List<T> expired = new ArrayList<T>();
+		long targetTick = now / tickMillis;
+		// After a long pause, every slot is visited once
+		long ticks = Math.min(targetTick - currentTick, slots.size());
+		for (long i = 1; i <= ticks; ++i) {
+			ArrayDeque<Timeout<T>> slot = slots.get((int) ((currentTick + i) % slots.size()));
+			for (Iterator<Timeout<T>> it = slot.iterator(); it.hasNext(); ) {
+				Timeout<T> timeout = it.next();
+				if (timeout.deadlineTick <= targetTick) {
+					it.remove();
+					expired.add(timeout.item);
+					size--;
+				}
+			}
+		}
+		currentTick = Math.max(currentTick, targetTick);
+		return expired;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+}
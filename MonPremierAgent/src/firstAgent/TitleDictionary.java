@@ -0,0 +1,92 @@
+package firstAgent;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The titles shared by all the agents of a JVM (of all its JADE containers): intern()
+ * returns a single String instance per title, so that the thousands of sellers and buyers
+ * of a load test listing the same popular titles keep one copy of each title instead of
+ * one per agent and per decoded message.
+ * The catalogue keeps the shared instance of its titles (see Catalogue), the buyer the
+ * shared instance of its targets, and the price index of its listings. A title is kept
+ * while an agent holds it: the entries are weak, and a title sold out and forgotten by
+ * every agent is evicted by the garbage collector.
+ * The dictionary is split into stripes, each with its own lock, so that agents interning
+ * different titles do not wait for each other.
+ */
+public final class TitleDictionary {
+	private static final TitleDictionary SHARED = new TitleDictionary(64);
+
+	// The stripes: the canonical instance of each title, weakly referenced both as key and value
+	private final WeakHashMap<String, WeakReference<String>>[] stripes;
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * @param stripes the number of stripes, rounded up to a power of 2
+	 */
+	@SuppressWarnings("unchecked")
+	public TitleDictionary(int stripes) {
+		int count = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+		this.stripes = new WeakHashMap[count];
+		for (int i = 0; i < count; ++i) {
+			this.stripes[i] = new WeakHashMap<String, WeakReference<String>>();
+		}
+	}
+
+	/**
+	 * Returns the dictionary shared by the agents of the JVM.
+	 */
+	public static TitleDictionary shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns the shared instance of the title: the first instance interned that is still
+	 * held by someone, or the title itself, which becomes the shared instance.
+	 */
+	public String intern(String title) {
+		lookups.incrementAndGet();
+		WeakHashMap<String, WeakReference<String>> stripe = stripeOf(title);
+		synchronized (stripe) {
+			WeakReference<String> entry = stripe.get(title);
+			String shared = entry == null ? null : entry.get();
+			if (shared != null) {
+				hits.incrementAndGet();
+				return shared;
+			}
+			stripe.put(title, new WeakReference<String>(title));
+			return title;
+		}
+	}
+
+	/**
+	 * Returns the number of titles in the dictionary, evicted ones excluded.
+	 */
+	public int size() {
+		int size = 0;
+		for (WeakHashMap<String, WeakReference<String>> stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	// The number of calls to intern(), and of those that returned an instance already shared
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	private WeakHashMap<String, WeakReference<String>> stripeOf(String title) {
+		int hash = title.hashCode();
+		hash ^= hash >>> 16;
+		return stripes[hash & (stripes.length - 1)];
+	}
+}
@@ -0,0 +1,390 @@
+package firstAgent;
+
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * A search index over the titles of a catalogue, so that a buyer does not have to type
+ * a title exactly as the seller entered it.
+ * Titles are normalized into tokens: accents removed, lower case, split on anything that
+ * is not a letter or a digit. Stop words and edition markers ("the", "of", "2nd",
+ * "edition"...) are dropped, so "The Lord of the Rings (2nd edition)" and "lord of the
+ * RINGS" have the same key: "lord rings".
+ * Each token keeps the sorted ids of the titles containing it (a posting list), and the
+ * tokens are kept sorted, so that the titles containing a token starting with a prefix
+ * are found with a range scan of the vocabulary, as with a trie. Each title keeps its
+ * tokens, so that matching and ranking candidates never tokenize a title again.
+ *   - resolve(title) returns the listed titles with the same key as the title;
+ *   - search(query, limit) returns the titles containing every token of the query, the
+ *     last one being possibly a prefix, ranked: same key first, then the titles whose
+ *     key starts with the query, then the others; fewer extra tokens first.
+ * The index follows the catalogue as a Catalogue.Listener: a title is indexed when its
+ * first listing is added and removed with its last listing. The index has its own lock,
+ * never held while calling the catalogue.
+ */
+public class TitleIndex implements Catalogue.Listener {
+	// Tokens too frequent to narrow a search, or telling an edition apart
+	private static final Set<String> STOP_WORDS = new HashSet<String>(Arrays.asList(
+			"a", "an", "and", "of", "the", "le", "la", "les", "l", "de", "des", "du", "d", "et",
+			"edition", "ed", "edn", "revised"));
+	// The minimum length of a prefix: shorter ones match too many tokens to be useful
+	static final int MIN_PREFIX = 2;
+	// The number of candidates ranked by a search at most, besides the ones with the same key
+	static final int MAX_CANDIDATES = 256;
+
+	// A token and the sorted ids of the titles containing it; ids only grow, so adding a
+	// title appends to the lists
+	private static final class Token {
+		final String text;
+		int[] ids = new int[2];
+		int size = 0;
+
+		Token(String text) {
+			this.text = text;
+		}
+
+		void add(int id) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+
+		void remove(int id) {
+			int i = Arrays.binarySearch(ids, 0, size, id);
+			if (i >= 0) {
+				System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+				size--;
+			}
+		}
+
+		boolean contains(int id) {
+			return Arrays.binarySearch(ids, 0, size, id) >= 0;
+		}
+	}
+
+	private static final Comparator<Token> BY_SIZE = new Comparator<Token>() {
+		public int compare(Token a, Token b) {
+			return Integer.compare(a.size, b.size);
+		}
+	};
+
+	// The id of each indexed title
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	// By id: the title (null once removed), its listed states as a bit mask of ordinals,
+	// and its tokens in order
+	private String[] titles = new String[16];
+	private int[] states = new int[16];
+	private Token[][] titleTokens = new Token[16][];
+	private int nextId = 0;
+	// The tokens of all the titles, sorted
+	private final TreeMap<String, Token> tokens = new TreeMap<String, Token>();
+
+	public synchronized void listed(String title, BookState state, int price, int quantity) {
+		Integer id = ids.get(title);
+		if (id == null) {
+			id = add(title);
+		}
+		states[id] |= 1 << state.ordinal();
+	}
+
+	public synchronized void unlisted(String title, BookState state) {
+		Integer id = ids.get(title);
+		if (id == null) {
+			return;
+		}
+		states[id] &= ~(1 << state.ordinal());
+		if (states[id] == 0) {
+			remove(id);
+		}
+	}
+
+	/**
+	 * Returns the number of titles indexed.
+	 */
+	public synchronized int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Returns the number of distinct tokens of the titles indexed.
+	 */
+	public synchronized int tokenCount() {
+		return tokens.size();
+	}
+
+	/**
+	 * Returns the indexed titles with the same normalized key as the title, the title
+	 * itself first if it is indexed. Empty if there is none.
+	 */
+	public List<String> resolve(String title) {
+		List<String> words = tokenize(title);
+		List<String> resolved = new ArrayList<String>(1);
+		synchronized (this) {
+			if (ids.containsKey(title)) {
+				resolved.add(title);
+			}
+			for (int id : matchAll(words, 0, words.size())) {
+				if (rank(id, words) / 1000 == 0 && !titles[id].equals(title)) {
+					resolved.add(titles[id]);
+				}
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * Returns up to limit titles matching the query, best match first.
+	 */
+	public List<String> search(String query, int limit) {
+		List<String> words = tokenize(query);
+		if (words.isEmpty() || limit <= 0) {
+			return Collections.emptyList();
+		}
+		final HashMap<Integer, Integer> ranks = new HashMap<Integer, Integer>();
+		List<Integer> found = new ArrayList<Integer>();
+		synchronized (this) {
+			// The titles with all the words: all the ones that may have the same key, and
+			// up to MAX_CANDIDATES others
+			for (int id : matchAll(words, MAX_CANDIDATES, words.size())) {
+				ranks.put(id, rank(id, words));
+				found.add(id);
+			}
+			String prefix = words.get(words.size() - 1);
+			if (prefix.length() >= MIN_PREFIX) {
+				for (int id : matchPrefix(words.subList(0, words.size() - 1), prefix, MAX_CANDIDATES)) {
+					if (!ranks.containsKey(id)) {
+						ranks.put(id, rank(id, words));
+						found.add(id);
+					}
+				}
+			}
+			Collections.sort(found, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int byRank = Integer.compare(ranks.get(a), ranks.get(b));
+					return byRank != 0 ? byRank : titles[a].compareTo(titles[b]);
+				}
+			});
+			List<String> results = new ArrayList<String>(Math.min(limit, found.size()));
+			for (int i = 0; i < found.size() && i < limit; ++i) {
+				results.add(titles[found.get(i)]);
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * Returns the normalized tokens of a title, in order, stop words and edition markers
+	 * excluded. Two titles with the same tokens are considered the same book.
+	 */
+	public static List<String> tokenize(String title) {
+		List<String> words = new ArrayList<String>(8);
+		String text = title;
+		for (int i = 0; i < text.length(); ++i) {
+			if (text.charAt(i) >= 0x80) {
+				// Split the accented letters, and drop their accents below
+				text = Normalizer.normalize(text, Normalizer.Form.NFD);
+				break;
+			}
+		}
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= text.length(); ++i) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.getType(c) == Character.NON_SPACING_MARK) {
+				continue;
+			}
+			if (Character.isLetterOrDigit(c)) {
+				word.append(Character.toLowerCase(c));
+			}
+			else if (word.length() > 0) {
+				String token = word.toString();
+				if (!STOP_WORDS.contains(token) && !isOrdinal(token)) {
+					words.add(token);
+				}
+				word.setLength(0);
+			}
+		}
+		return words;
+	}
+
+	// "1st", "2nd", "3rd", "4th"...: an edition number
+	private static boolean isOrdinal(String token) {
+		int digits = 0;
+		while (digits < token.length() && Character.isDigit(token.charAt(digits))) {
+			digits++;
+		}
+		if (digits == 0 || token.length() != digits + 2) {
+			return false;
+		}
+		String suffix = token.substring(digits);
+		return suffix.equals("st") || suffix.equals("nd") || suffix.equals("rd") || suffix.equals("th");
+	}
+
+	// 0 if the title has the words as key, 1 if its key starts with them, 2 otherwise;
+	// times 1000, plus the number of tokens of the title
+	private int rank(int id, List<String> words) {
+		Token[] title = titleTokens[id];
+		boolean prefix = title.length >= words.size();
+		for (int i = 0; i < words.size() && prefix; ++i) {
+			prefix = title[i].text.equals(words.get(i));
+		}
+		int rank = !prefix ? 2 : title.length == words.size() ? 0 : 1;
+		return rank * 1000 + Math.min(999, title.length);
+	}
+
+	// The ids of the titles containing all the words, in id order: all the ones with the
+	// given number of tokens, and up to max others
+	private List<Integer> matchAll(List<String> words, int max, int length) {
+		if (words.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Token[] lists = new Token[words.size()];
+		for (int i = 0; i < lists.length; ++i) {
+			lists[i] = tokens.get(words.get(i));
+			if (lists[i] == null) {
+				return Collections.emptyList();
+			}
+		}
+		// Walk the shortest list, looking the ids up in the others
+		Arrays.sort(lists, BY_SIZE);
+		List<Integer> matches = new ArrayList<Integer>();
+		int others = 0;
+		for (int i = 0; i < lists[0].size; ++i) {
+			int id = lists[0].ids[i];
+			boolean sameLength = titleTokens[id].length == length;
+			if (!sameLength && others >= max) {
+				continue;
+			}
+			boolean all = true;
+			for (int l = 1; l < lists.length && all; ++l) {
+				all = lists[l].contains(id);
+			}
+			if (all) {
+				matches.add(id);
+				if (!sameLength) {
+					others++;
+				}
+			}
+		}
+		return matches;
+	}
+
+	// The ids of up to max titles containing all the words and a token starting with prefix
+	private List<Integer> matchPrefix(List<String> words, String prefix, int max) {
+		List<Integer> matches = new ArrayList<Integer>();
+		Collection<Token> expansions = tokens.subMap(prefix, prefix+Character.MAX_VALUE).values();
+		if (expansions.isEmpty()) {
+			return matches;
+		}
+		if (!words.isEmpty()) {
+			// Look for the prefix among the tokens of the titles containing the other words
+			Token[] lists = new Token[words.size()];
+			for (int i = 0; i < lists.length; ++i) {
+				lists[i] = tokens.get(words.get(i));
+				if (lists[i] == null) {
+					return matches;
+				}
+			}
+			Arrays.sort(lists, BY_SIZE);
+			for (int i = 0; i < lists[0].size && matches.size() < max; ++i) {
+				int id = lists[0].ids[i];
+				if (hasTokenStartingWith(id, prefix)) {
+					boolean all = true;
+					for (int l = 1; l < lists.length && all; ++l) {
+						all = lists[l].contains(id);
+					}
+					if (all) {
+						matches.add(id);
+					}
+				}
+			}
+			return matches;
+		}
+		HashSet<Integer> seen = new HashSet<Integer>();
+		for (Token token : expansions) {
+			for (int i = 0; i < token.size && matches.size() < max; ++i) {
+				if (seen.add(token.ids[i])) {
+					matches.add(token.ids[i]);
+				}
+			}
+			if (matches.size() >= max) {
+				break;
+			}
+		}
+		return matches;
+	}
+
+	private boolean hasTokenStartingWith(int id, String prefix) {
+		for (Token token : titleTokens[id]) {
+			if (token.text.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int add(String title) {
+		if (nextId == titles.length) {
+			if (ids.size() < nextId / 2) {
+				// More removed titles than live ones: renumber the live ones
+				compact();
+			}
+			if (nextId == titles.length) {
+				titles = Arrays.copyOf(titles, titles.length * 2);
+				states = Arrays.copyOf(states, states.length * 2);
+				titleTokens = Arrays.copyOf(titleTokens, titleTokens.length * 2);
+			}
+		}
+		int id = nextId++;
+		List<String> words = tokenize(title);
+		Token[] tokenList = new Token[words.size()];
+		for (int i = 0; i < tokenList.length; ++i) {
+			Token token = tokens.get(words.get(i));
+			if (token == null) {
+				token = new Token(words.get(i));
+				tokens.put(token.text, token);
+			}
+			if (token.size == 0 || token.ids[token.size - 1] != id) {
+				// A word repeated in the title is listed once
+				token.add(id);
+			}
+			tokenList[i] = token;
+		}
+		titles[id] = title;
+		states[id] = 0;
+		titleTokens[id] = tokenList;
+		ids.put(title, id);
+		return id;
+	}
+
+	private void remove(int id) {
+		ids.remove(titles[id]);
+		for (Token token : titleTokens[id]) {
+			token.remove(id);
+			if (token.size == 0) {
+				tokens.remove(token.text);
+			}
+		}
+		titles[id] = null;
+		titleTokens[id] = null;
+	}
+
+	// Rebuilds the index with consecutive ids
+	private void compact() {
+		String[] oldTitles = titles;
+		int[] oldStates = states;
+		int oldCount = nextId;
+		ids.clear();
+		tokens.clear();
+		titles = new String[oldTitles.length];
+		states = new int[oldStates.length];
+		titleTokens = new Token[oldTitles.length][];
+		nextId = 0;
+		for (int i = 0; i < oldCount; ++i) {
+			if (oldTitles[i] != null) {
+				int id = add(oldTitles[i]);
+				states[id] = oldStates[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package firstAgent;
+
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.util.leap.Iterator;
+
+import java.util.*;
+
+/**
+ * The partition of the titles into shards, for a sharded fleet of sellers (start-up
+ * option shardCount=<count>).
+ * The hash of a title is mapped onto count equal ranges of the 32-bit hash space, so
+ * doubling the number of shards splits each range in two: a title of shard i moves to
+ * shard 2i or 2i+1, and a seller carrying shard i keeps its titles by carrying both.
+ * A seller registers the shards it carries as properties of its service description in
+ * the yellow pages: buyers send a CFP only to the sellers of the shard of the title, and
+ * sellers synchronize their prices only with the sellers sharing one of their shards.
+ * A seller registered without these properties carries all the shards.
+ */
+public final class TitleShards {
+	// The names of the properties of the service description
+	public static final String SHARD_COUNT = "shardCount";
+	public static final String SHARDS = "shards";
+
+	private final int count;
+
+	public TitleShards(int count) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("Invalid number of shards: "+count);
+		}
+		this.count = count;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the shard of a title, between 0 and count - 1.
+	 */
+	public int shardOf(String title) {
+		// Spread the bits of String.hashCode, which is the same in every JVM
+		int hash = title.hashCode();
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return (int) (((hash & 0xFFFFFFFFL) * count) >>> 32);
+	}
+
+	/**
+	 * Returns all the shards: 0 to count - 1.
+	 */
+	public int[] all() {
+		int[] shards = new int[count];
+		for (int i = 0; i < count; ++i) {
+			shards[i] = i;
+		}
+		return shards;
+	}
+
+	/**
+	 * Parses a list of shards such as "0,3,5-7". Throws an IllegalArgumentException if a
+	 * shard is not between 0 and count - 1.
+	 */
+	public int[] parse(String list) {
+		TreeSet<Integer> shards = new TreeSet<Integer>();
+		for (String item : list.split(",")) {
+			item = item.trim();
+			if (item.isEmpty()) {
+				continue;
+			}
+			int dash = item.indexOf('-', 1);
+			int first = Integer.parseInt(dash < 0 ? item : item.substring(0, dash).trim());
+			int last = dash < 0 ? first : Integer.parseInt(item.substring(dash + 1).trim());
+			for (int shard = first; shard <= last; ++shard) {
+				if (shard < 0 || shard >= count) {
+					throw new IllegalArgumentException("No shard "+shard+" among "+count+" shards");
+				}
+				shards.add(shard);
+			}
+		}
+		int[] result = new int[shards.size()];
+		int i = 0;
+		for (int shard : shards) {
+			result[i++] = shard;
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the number of shards and the shards carried by a seller to its service description.
+	 */
+	public void describe(ServiceDescription sd, int[] shards) {
+		StringBuilder list = new StringBuilder();
+		for (int shard : shards) {
+			if (list.length() > 0) {
+				list.append(',');
+			}
+			list.append(shard);
+		}
+		sd.addProperties(new Property(SHARD_COUNT, String.valueOf(count)));
+		sd.addProperties(new Property(SHARDS, list.toString()));
+	}
+
+	/**
+	 * Returns the shards carried by a seller, read from its service description, or null
+	 * if it carries all the shards: it was registered without shards, or with another
+	 * number of shards.
+	 */
+	public int[] read(ServiceDescription sd) {
+		String shardCount = null;
+		String shards = null;
+		Iterator properties = sd.getAllProperties();
+		while (properties != null && properties.hasNext()) {
+			Property property = (Property) properties.next();
+			if (SHARD_COUNT.equals(property.getName())) {
+				shardCount = String.valueOf(property.getValue());
+			}
+			else if (SHARDS.equals(property.getName())) {
+				shards = String.valueOf(property.getValue());
+			}
+		}
+		if (shards == null || !String.valueOf(count).equals(shardCount)) {
+			return null;
+		}
+		try {
+			return parse(shards);
+		}
+		catch (IllegalArgumentException iae) {
+			iae.printStackTrace();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package firstAgent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+
+/**
+ * An append-only ledger of the trades and reprices of an agent, in a directory of its own,
+ * for later analysis with LedgerQuery. The sellers record their sales and the prices they
+ * lower, the buyers their purchases.
+ * The records have a fixed width (RECORD_SIZE bytes), so that a query can jump to any
+ * record and split a file among several threads:
+ *   0  time, in milliseconds since the epoch
+ *   8  key of the title
+ *   16 key of the seller
+ *   24 key of the buyer, 0 for a reprice
+ *   32 price of a copy, the new price for a reprice
+ *   36 number of copies, 0 for a reprice
+ *   40 type (SALE, PURCHASE or REPRICE)
+ *   41 state ordinal
+ *   42 reserved, 0
+ * The titles and agent names are stored as 64-bit keys (see key()); each name is written
+ * once in names.bin, next to the records, the first time it is used; a name half written
+ * is dropped when the ledger is opened again.
+ * The records are appended to segment files trades-<n>.ledger: when a segment reaches the
+ * segment size, the next records go to a new segment. They are written in batches: the
+ * records recorded since the last flush() may be lost in a crash, and a record half
+ * written is dropped when the ledger is opened again.
+ * The times of the records never decrease, even if the clock is set back, so that the
+ * records of a segment are sorted by time and a query can look for a time window by
+ * binary search.
+ * All the methods are synchronized.
+ */
+public class TradeLedger {
+	// Record types
+	public static final byte SALE = 1;
+	public static final byte PURCHASE = 2;
+	public static final byte REPRICE = 3;
+	public static final int RECORD_SIZE = 48;
+	// The first record of each segment is a header: the magic and the record size
+	static final int SEGMENT_MAGIC = 0x42544c31; // "BTL1"
+	static final String SEGMENT_PREFIX = "trades-";
+	static final String SEGMENT_SUFFIX = ".ledger";
+	static final String NAMES_FILE = "names.bin";
+
+	private final File directory;
+	private final long segmentSize;
+	private final ByteBuffer batch;
+	private FileChannel segment;
+	private int segmentNumber = 0;
+	private long segmentLength = 0;
+	private long lastTime = 0;
+	private long records = 0;
+	// The names written to names.bin, by key
+	private final HashSet<Long> names = new HashSet<Long>();
+	private DataOutputStream namesOut;
+
+	/**
+	 * @param directory the directory of the files, created if needed
+	 * @param segmentSize the size, in bytes, from which a new segment is started
+	 * @param batchRecords the number of records written to the file at once
+	 */
+	public TradeLedger(File directory, long segmentSize, int batchRecords) {
+		this.directory = directory;
+		this.segmentSize = Math.max(2 * RECORD_SIZE, segmentSize - segmentSize % RECORD_SIZE);
+		this.batch = ByteBuffer.allocate(Math.max(1, batchRecords) * RECORD_SIZE);
+	}
+
+	/**
+	 * Opens the last segment to append to it, and reads the names already written.
+	 */
+	public synchronized void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create "+directory);
+		}
+		File namesFile = new File(directory, NAMES_FILE);
+		if (namesFile.exists()) {
+			// The length of the complete names
+			long length = 0;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(namesFile)))) {
+				while (true) {
+					long key = in.readLong();
+					length += nameLength(in.readUTF());
+					names.add(key);
+				}
+			}
+			catch (EOFException | UTFDataFormatException eof) {
+				// A name half written during a crash is written again when next used
+			}
+			if (namesFile.length() > length) {
+				// The next names are appended after the last complete one, not after the garbage
+				System.out.println("Trade ledger "+namesFile+" truncated after its last complete name ("
+						+(namesFile.length() - length)+" bytes dropped)");
+				try (FileChannel channel = FileChannel.open(namesFile.toPath(), StandardOpenOption.WRITE)) {
+					channel.truncate(length);
+				}
+			}
+		}
+		namesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(namesFile, true), 1 << 14));
+		for (File file : segments(directory)) {
+			segmentNumber = Math.max(segmentNumber, segmentNumber(file));
+		}
+		openSegment(Math.max(1, segmentNumber));
+	}
+
+	/**
+	 * Records a trade or a reprice at the current time.
+	 */
+	public void record(byte type, String title, BookState state, int price, int quantity, String seller, String buyer) {
+		record(type, System.currentTimeMillis(), title, state, price, quantity, seller, buyer);
+	}
+
+	/**
+	 * Records a trade or a reprice; the time is raised to the time of the previous record
+	 * if it is earlier. The buyer is null for a reprice.
+	 */
+	public synchronized void record(byte type, long time, String title, BookState state, int price, int quantity,
+			String seller, String buyer) {
+		lastTime = Math.max(lastTime, time);
+		batch.putLong(lastTime);
+		batch.putLong(name(title));
+		batch.putLong(name(seller));
+		batch.putLong(buyer == null ? 0 : name(buyer));
+		batch.putInt(price);
+		batch.putInt(quantity);
+		batch.put(type);
+		batch.put((byte) state.ordinal());
+		batch.putShort((short) 0);
+		batch.putInt(0);
+		records++;
+		if (!batch.hasRemaining()) {
+			try {
+				writeBatch();
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Writes the records recorded since the last flush to the files.
+	 */
+	public synchronized void flush() throws IOException {
+		writeBatch();
+	}
+
+	public synchronized void close() throws IOException {
+		writeBatch();
+		segment.force(false);
+		segment.close();
+		namesOut.close();
+	}
+
+	// The number of records recorded since the ledger was opened
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Returns the key of a title or an agent name: its 64-bit FNV-1a hash, never 0.
+	 */
+	public static long key(String name) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); ++i) {
+			hash ^= name.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+
+	// The length of a name in names.bin: its key, then the name as written by writeUTF
+	static int nameLength(String name) {
+		int length = 10;
+		for (int i = 0; i < name.length(); ++i) {
+			char c = name.charAt(i);
+			length += c >= 0x0001 && c <= 0x007f ? 1 : c <= 0x07ff ? 2 : 3;
+		}
+		return length;
+	}
+
+	// Returns the key of the name, writing the name the first time
+	private long name(String name) {
+		long key = key(name);
+		if (names.add(key)) {
+			try {
+				namesOut.writeLong(key);
+				namesOut.writeUTF(name);
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+		return key;
+	}
+
+	private void writeBatch() throws IOException {
+		if (batch.position() == 0) {
+			return;
+		}
+		// The names first: a record never refers to a name missing from the file
+		namesOut.flush();
+		batch.flip();
+		try {
+			while (batch.hasRemaining()) {
+				int length = (int) Math.min(batch.remaining(), segmentSize - segmentLength);
+				ByteBuffer slice = batch.duplicate();
+				slice.limit(slice.position() + length);
+				while (slice.hasRemaining()) {
+					segment.write(slice);
+				}
+				batch.position(batch.position() + length);
+				segmentLength += length;
+				if (segmentLength >= segmentSize) {
+					segment.close();
+					openSegment(segmentNumber + 1);
+				}
+			}
+		}
+		finally {
+			// On a write error the batch is dropped rather than blocking the next records
+			batch.clear();
+		}
+	}
+
+	// Opens a segment to append to it, after its last complete record
+	private void openSegment(int number) throws IOException {
+		File file = new File(directory, String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+		segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		segmentNumber = number;
+		long size = segment.size();
+		if (size < RECORD_SIZE) {
+			ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE);
+			header.putInt(SEGMENT_MAGIC);
+			header.putInt(RECORD_SIZE);
+			header.clear();
+			segment.truncate(0);
+			while (header.hasRemaining()) {
+				segment.write(header, header.position());
+			}
+			size = RECORD_SIZE;
+		}
+		else if (size % RECORD_SIZE != 0) {
+			System.out.println("Trade ledger "+file+" truncated after its last complete record ("
+					+(size % RECORD_SIZE)+" bytes dropped)");
+			size -= size % RECORD_SIZE;
+			segment.truncate(size);
+		}
+		if (size > RECORD_SIZE) {
+			ByteBuffer time = ByteBuffer.allocate(8);
+			while (time.hasRemaining() && segment.read(time, size - RECORD_SIZE + time.position()) >= 0) {
+			}
+			time.flip();
+			lastTime = Math.max(lastTime, time.getLong());
+		}
+		segment.position(size);
+		segmentLength = size;
+	}
+
+	// The segment files of a ledger directory
+	static File[] segments(File directory) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		return files == null ? new File[0] : files;
+	}
+
+	private static int segmentNumber(File file) {
+		String name = file.getName();
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		}
+		catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package firstAgent;
+
+import jade.lang.acl.ACLMessage;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide statistics of the book-trading agents running in this JVM, read by
+ * the load test harness: messages sent per performative, purchases, failed
+ * negotiations and failed purchase orders, requests shed by overloaded sellers, and the
+ * latency of the CFP rounds and of the purchases of all the buyers.
+ * Agents of the same JVM update it concurrently, so it only uses atomic counters.
+ */
+public class TradeStats {
+	// Indexed by performative; ACLMessage performatives are small consecutive integers
+	private static final int PERFORMATIVES = 32;
+	private static final AtomicLongArray sent = new AtomicLongArray(PERFORMATIVES);
+	// The messages themselves, whatever their number of receivers
+	private static final AtomicLongArray messages = new AtomicLongArray(PERFORMATIVES);
+	private static final AtomicLong purchases = new AtomicLong();
+	private static final AtomicLong failedNegotiations = new AtomicLong();
+	// Purchase orders answered by a FAILURE: the round was won by a copy sold in the meanwhile
+	private static final AtomicLong failedOrders = new AtomicLong();
+	// CFPs and purchase orders refused by sellers over their queue capacity (see MessageRouter)
+	private static final AtomicLong shed = new AtomicLong();
+	private static final LatencyRecorder roundLatency = new LatencyRecorder(100000);
+	// Time from the first CFP of a negotiation to a purchase
+	private static final LatencyRecorder purchaseLatency = new LatencyRecorder(100000);
+
+	/**
+	 * Counts a sent message once per receiver.
+	 */
+	public static void recordSent(ACLMessage msg) {
+		int receivers = 0;
+		for (Iterator<?> it = msg.getAllReceiver(); it.hasNext(); it.next()) {
+			receivers++;
+		}
+		int performative = msg.getPerformative();
+		if (performative >= 0 && performative < PERFORMATIVES) {
+			sent.addAndGet(performative, receivers);
+			messages.incrementAndGet(performative);
+		}
+	}
+
+	public static void recordPurchase() {
+		purchases.incrementAndGet();
+	}
+
+	public static void recordFailedNegotiation() {
+		failedNegotiations.incrementAndGet();
+	}
+
+	public static void recordFailedOrder() {
+		failedOrders.incrementAndGet();
+	}
+
+	public static void recordShed() {
+		shed.incrementAndGet();
+	}
+
+	public static void recordRoundLatency(long millis) {
+		roundLatency.record(millis);
+	}
+
+	public static void recordPurchaseLatency(long millis) {
+		purchaseLatency.record(millis);
+	}
+
+	public static long getSent(int performative) {
+		return sent.get(performative);
+	}
+
+	/**
+	 * Returns the mean number of receivers of the messages of a performative, e.g. the
+	 * number of sellers a CFP is sent to.
+	 */
+	public static double getFanOut(int performative) {
+		long count = messages.get(performative);
+		return count == 0 ? 0 : (double) sent.get(performative) / count;
+	}
+
+	public static long getTotalSent() {
+		long total = 0;
+		for (int i = 0; i < PERFORMATIVES; ++i) {
+			total += sent.get(i);
+		}
+		return total;
+	}
+
+	public static long getPurchases() {
+		return purchases.get();
+	}
+
+	public static long getFailedNegotiations() {
+		return failedNegotiations.get();
+	}
+
+	public static long getFailedOrders() {
+		return failedOrders.get();
+	}
+
+	public static long getShed() {
+		return shed.get();
+	}
+
+	public static LatencyRecorder getRoundLatency() {
+		return roundLatency;
+	}
+
+	public static LatencyRecorder getPurchaseLatency() {
+		return purchaseLatency;
+	}
+
+	/**
+	 * Returns the messages sent per performative, e.g. "CFP=120 PROPOSE=80"
+	 */
+	public static String sentSummary() {
+		StringBuilder summary = new StringBuilder();
+		for (int i = 0; i < PERFORMATIVES; ++i) {
+			long count = sent.get(i);
+			if (count > 0) {
+				summary.append(ACLMessage.getPerformative(i)).append('=').append(count).append(' ');
+			}
+		}
+		return summary.toString().trim();
+	}
+
+	/**
+	 * Resets all the statistics, between two runs of a load test.
+	 */
+	public static void reset() {
+		for (int i = 0; i < PERFORMATIVES; ++i) {
+			sent.set(i, 0);
+			messages.set(i, 0);
+		}
+		purchases.set(0);
+		failedNegotiations.set(0);
+		failedOrders.set(0);
+		shed.set(0);
+	}
+}
@@ -0,0 +1,116 @@
+package firstAgent.bench;
+
+import jade.core.Agent;
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAException;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.lang.acl.ACLMessage;
+import jade.wrapper.AgentContainer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import firstAgent.BookBuyerAgent;
+import firstAgent.BookSellerAgent;
+import firstAgent.BookState;
+import firstAgent.BookTradeCodec;
+import firstAgent.PurchaseTarget;
+
+/**
+ * Measures the number of purchases per second completed by a single BookBuyerAgent
+ * with 1, 100 and 10k targets, negotiated concurrently.
+ * The sellers are stub agents that always have the book in stock, so that the
+ * measure is dominated by the buyer.
+ *
+ * Usage: java -cp jade.jar:bin firstAgent.bench.BuyerThroughputBenchmark [sellers] [negotiations]
+ */
+public class BuyerThroughputBenchmark {
+	private static final int[] TARGETS = {1, 100, 10000};
+
+	// Number of purchase orders confirmed by the stub sellers
+	private static final AtomicInteger sold = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		int sellers = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		String negotiations = args.length > 1 ? args[1] : "100";
+
+		Runtime runtime = Runtime.instance();
+		runtime.setCloseVM(false);
+		Profile profile = new ProfileImpl(true);
+		profile.setParameter(Profile.GUI, "false");
+		profile.setParameter(Profile.NO_MTP, "true");
+		AgentContainer container = runtime.createMainContainer(profile);
+
+		for (int i = 0; i < sellers; ++i) {
+			container.createNewAgent("stock-"+i, InStockSeller.class.getName(), null).start();
+		}
+		// Leave the sellers the time to register in the yellow pages
+		Thread.sleep(2000);
+
+		int run = 0;
+		for (int targets : TARGETS) {
+			Object[] buyerArgs = new Object[targets + 1];
+			buyerArgs[0] = "negotiations="+negotiations;
+			for (int i = 0; i < targets; ++i) {
+				buyerArgs[i + 1] = new PurchaseTarget("title-"+i, BookState.USED, 100);
+			}
+			sold.set(0);
+			long start = System.nanoTime();
+			container.createNewAgent("buyer-"+(run++), BookBuyerAgent.class.getName(), buyerArgs).start();
+			while (sold.get() < targets) {
+				Thread.sleep(1);
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("%,6d targets, %d sellers: %.2f s, %,.0f purchases/s",
+					targets, sellers, seconds, targets / seconds));
+		}
+		container.kill();
+		runtime.shutDown();
+	}
+
+	/**
+	 * A seller that proposes every book at price 1 and confirms every purchase order.
+	 */
+	public static class InStockSeller extends Agent {
+		protected void setup() {
+			DFAgentDescription dfd = new DFAgentDescription();
+			dfd.setName(getAID());
+			ServiceDescription sd = new ServiceDescription();
+			sd.setType(BookSellerAgent.SERVICE_TYPE);
+			sd.setName("JADE-book-trading");
+			dfd.addServices(sd);
+			try {
+				DFService.register(this, dfd);
+			}
+			catch (FIPAException fe) {
+				fe.printStackTrace();
+			}
+			addBehaviour(new CyclicBehaviour(this) {
+				public void action() {
+					ACLMessage msg = myAgent.receive();
+					if (msg == null) {
+						block();
+						return;
+					}
+					ACLMessage reply = msg.createReply();
+					if (msg.getPerformative() == ACLMessage.CFP) {
+						reply.setPerformative(ACLMessage.PROPOSE);
+						reply.setByteSequenceContent(BookTradeCodec.encodeProposal(1, BookState.NEW, 1, 0));
+					}
+					else if (msg.getPerformative() == ACLMessage.ACCEPT_PROPOSAL) {
+						reply.setPerformative(ACLMessage.INFORM);
+						sold.incrementAndGet();
+					}
+					else {
+						return;
+					}
+					myAgent.send(reply);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package firstAgent.bench;
+
+import java.util.*;
+
+import firstAgent.BookState;
+import firstAgent.Catalogue;
+import firstAgent.Offer;
+
+/**
+ * Measures the cost of the seller's CFP lookup ("cheapest copy of this title in
+ * at least this state") on catalogues of 10k, 100k and 1M listings.
+ * The lookup is compared with the former implementation: a Hashtable keyed on
+ * title+";"+state and a walk of the better_state chain.
+ *
+ * Usage: java firstAgent.bench.CatalogueBenchmark [lookups]
+ */
+public class CatalogueBenchmark {
+	private static final int[] SIZES = {10000, 100000, 1000000};
+
+	public static void main(String[] args) {
+		int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		for (int size : SIZES) {
+			run(size, lookups);
+		}
+	}
+
+	private static void run(int size, int lookups) {
+		Random random = new Random(42);
+		BookState[] states = BookState.values();
+		// Roughly two listings per title, so that the state fallback is exercised
+		int titles = Math.max(1, size / 2);
+
+		Catalogue catalogue = new Catalogue();
+		Hashtable<String, Integer> legacy = new Hashtable<String, Integer>();
+		while (catalogue.size() < size) {
+			String title = "title-"+random.nextInt(titles);
+			BookState state = states[random.nextInt(states.length)];
+			int price = 1 + random.nextInt(100);
+			catalogue.put(title, state, price, 1);
+			legacy.put(title+";"+state.getLabel(), price);
+		}
+
+		// Queries are generated once so that both implementations see the same ones
+		String[] queryTitles = new String[lookups];
+		BookState[] queryStates = new BookState[lookups];
+		for (int i = 0; i < lookups; ++i) {
+			// One query out of four asks for a title that is not in the catalogue
+			queryTitles[i] = "title-"+random.nextInt(titles + titles / 3);
+			queryStates[i] = states[random.nextInt(states.length)];
+		}
+
+		Hashtable<String, String> betterState = new Hashtable<String, String>();
+		betterState.put("New", "the best");
+		betterState.put("Good", "New");
+		betterState.put("Used", "Good");
+		betterState.put("Damaged", "Used");
+
+		// Warm up both implementations before measuring
+		for (int round = 0; round < 3; ++round) {
+			lookupCatalogue(catalogue, queryTitles, queryStates);
+			lookupLegacy(legacy, betterState, queryTitles, queryStates);
+		}
+
+		long start = System.nanoTime();
+		long found = lookupCatalogue(catalogue, queryTitles, queryStates);
+		long catalogueTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		long legacyFound = lookupLegacy(legacy, betterState, queryTitles, queryStates);
+		long legacyTime = System.nanoTime() - start;
+
+		System.out.println(String.format("%,9d listings: catalogue %6.1f ns/lookup (%d hits), legacy walk %6.1f ns/lookup (%d hits)",
+				size, (double) catalogueTime / lookups, found, (double) legacyTime / lookups, legacyFound));
+	}
+
+	private static long lookupCatalogue(Catalogue catalogue, String[] titles, BookState[] states) {
+		long found = 0;
+		for (int i = 0; i < titles.length; ++i) {
+			Offer offer = catalogue.findAtLeast(titles[i], states[i]);
+			if (offer != null) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	// The lookup as OfferRequestsServer used to do it
+	private static long lookupLegacy(Hashtable<String, Integer> catalogue, Hashtable<String, String> betterState,
+			String[] titles, BookState[] states) {
+		long found = 0;
+		for (int i = 0; i < titles.length; ++i) {
+			String state = states[i].getLabel();
+			String key = titles[i]+";"+state;
+			while (!catalogue.containsKey(key)) {
+				state = betterState.get(state);
+				if (state.equals("the best")) {
+					key = null;
+					break;
+				}
+				key = titles[i]+";"+state;
+			}
+			if (key != null && catalogue.get(key) != null) {
+				found++;
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,67 @@
+package firstAgent.bench;
+
+import java.util.*;
+
+import firstAgent.BookState;
+import firstAgent.Catalogue;
+import firstAgent.Offer;
+
+/**
+ * Generates synthetic catalogues for the benchmarks and load tests.
+ * Titles are "title-<n>". The states are drawn so that good states are more frequent
+ * than bad ones, which makes the CFP lookup fall back to better states regularly.
+ */
+public class CatalogueGenerator {
+	private final Random random;
+	private final int titles;
+
+	/**
+	 * @param titles the number of distinct titles the listings are drawn from
+	 */
+	public CatalogueGenerator(int titles, long seed) {
+		this.titles = Math.max(1, titles);
+		this.random = new Random(seed);
+	}
+
+	public static String title(int n) {
+		return "title-"+n;
+	}
+
+	public String randomTitle() {
+		return title(random.nextInt(titles));
+	}
+
+	public BookState randomState() {
+		// NEW: 40%, GOOD: 30%, USED: 20%, DAMAGED: 10%
+		int draw = random.nextInt(10);
+		return draw < 4 ? BookState.NEW : draw < 7 ? BookState.GOOD : draw < 9 ? BookState.USED : BookState.DAMAGED;
+	}
+
+	public int randomPrice() {
+		return 1 + random.nextInt(100);
+	}
+
+	public Offer randomOffer() {
+		return new Offer(randomTitle(), randomState(), randomPrice());
+	}
+
+	/**
+	 * Returns a catalogue holding exactly the given number of (title, state) listings.
+	 * There must be at least listings / BookState.values().length titles.
+	 */
+	public Catalogue catalogue(int listings) {
+		Catalogue catalogue = new Catalogue();
+		while (catalogue.size() < listings) {
+			catalogue.add(randomTitle(), randomState(), randomPrice(), 1);
+		}
+		return catalogue;
+	}
+
+	public List<Offer> offers(int count) {
+		List<Offer> offers = new ArrayList<Offer>(count);
+		for (int i = 0; i < count; ++i) {
+			offers.add(randomOffer());
+		}
+		return offers;
+	}
+}
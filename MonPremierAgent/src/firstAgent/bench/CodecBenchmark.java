@@ -0,0 +1,117 @@
+package firstAgent.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import firstAgent.BookState;
+import firstAgent.BookTradeCodec;
+import firstAgent.Offer;
+
+/**
+ * Compares the encode/decode throughput and the payload size of BookTradeCodec with the
+ * former string contents: title;state for CFPs, price;state for proposals and
+ * title;state:price entries separated by ',' for price lists.
+ *
+ * Usage: java firstAgent.bench.CodecBenchmark [iterations]
+ */
+public class CodecBenchmark {
+	// Prevents the JIT from removing the measured code
+	private static long sink = 0;
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		String title = "The Lord of the Rings: The Fellowship of the Ring";
+		BookState[] states = BookState.values();
+
+		List<Offer> prices = new ArrayList<Offer>();
+		Random random = new Random(3);
+		for (int i = 0; i < 1000; ++i) {
+			prices.add(new Offer("title number "+i, states[i % states.length], 1 + random.nextInt(200)));
+		}
+
+		for (int round = 0; round < 2; ++round) {
+			boolean report = round == 1; // the first round is a warm-up
+			measure("CFP", iterations, report, new Case() {
+				int binary() {
+					byte[] content = BookTradeCodec.encodeCallForProposal(title, BookState.GOOD, 1);
+					BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(content, BookTradeCodec.CALL_FOR_PROPOSAL);
+					sink += decoder.readTitle().length() + decoder.readState().ordinal() + decoder.readNumber();
+					return content.length;
+				}
+				int string() {
+					String content = title+";"+BookState.GOOD.getLabel();
+					String parsedTitle = content.split(";")[0];
+					BookState state = BookState.fromLabel(content.split(";")[1]);
+					sink += parsedTitle.length() + state.ordinal();
+					return content.getBytes(StandardCharsets.UTF_8).length;
+				}
+			});
+			measure("proposal", iterations, report, new Case() {
+				int binary() {
+					byte[] content = BookTradeCodec.encodeProposal(42, BookState.USED, 1, 0);
+					BookTradeCodec.Decoder decoder = new BookTradeCodec.Decoder(content, BookTradeCodec.PROPOSAL);
+					sink += decoder.readNumber() + decoder.readState().ordinal() + decoder.readNumber();
+					return content.length;
+				}
+				int string() {
+					String content = String.valueOf(42)+";"+BookState.USED.getLabel();
+					int price = Integer.parseInt(content.split(";")[0]);
+					BookState state = BookState.fromLabel(content.split(";")[1]);
+					sink += price + state.ordinal();
+					return content.getBytes(StandardCharsets.UTF_8).length;
+				}
+			});
+			measure("price list (1000 listings)", iterations / 1000, report, new Case() {
+				int binary() {
+					byte[] content = BookTradeCodec.encodePrices(BookTradeCodec.PRICE_LIST, 0, prices);
+					List<Offer> decoded = BookTradeCodec.decodePrices(
+							new BookTradeCodec.Decoder(content, BookTradeCodec.PRICE_LIST));
+					sink += decoded.size();
+					return content.length;
+				}
+				int string() {
+					StringJoiner joiner = new StringJoiner(",");
+					for (Offer offer : prices) {
+						joiner.add(offer.getTitle()+";"+offer.getState().getLabel()+":"+offer.getPrice());
+					}
+					String content = joiner.toString();
+					List<Offer> decoded = new ArrayList<Offer>();
+					for (String listing : content.split(",")) {
+						String key = listing.split(":")[0];
+						int price = Integer.parseInt(listing.split(":")[1]);
+						decoded.add(new Offer(key.split(";")[0], BookState.fromLabel(key.split(";")[1]), price));
+					}
+					sink += decoded.size();
+					return content.getBytes(StandardCharsets.UTF_8).length;
+				}
+			});
+		}
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	private static abstract class Case {
+		// Both methods encode then decode one content, and return its size in bytes
+		abstract int binary();
+		abstract int string();
+	}
+
+	private static void measure(String name, int iterations, boolean report, Case c) {
+		int binarySize = 0, stringSize = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			binarySize = c.binary();
+		}
+		long binaryTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			stringSize = c.string();
+		}
+		long stringTime = System.nanoTime() - start;
+		if (report) {
+			System.out.println(String.format("%-27s binary %,12.0f round trips/s, %6d bytes | string %,12.0f round trips/s, %6d bytes",
+					name, iterations / (binaryTime / 1e9), binarySize, iterations / (stringTime / 1e9), stringSize));
+		}
+	}
+}
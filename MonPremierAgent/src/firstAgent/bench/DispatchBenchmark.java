@@ -0,0 +1,158 @@
+package firstAgent.bench;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.OneShotBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.wrapper.AgentContainer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import firstAgent.MessageRouter;
+
+/**
+ * Compares the two ways for a seller to serve its mailbox, in messages per second:
+ *   - polling: one CyclicBehaviour per kind of request, each receiving with its own
+ *     template, as the sellers did before MessageRouter;
+ *   - routed: a single MessageRouter serving batches of messages.
+ * Flooder agents send the mix of requests a seller receives (CFPs, purchase orders,
+ * rejections and the messages of both sync modes) to one seller, as fast as they can.
+ * The handlers only count the messages, so that the measure is the cost of dispatching.
+ *
+ * Usage: java -cp jade.jar:bin firstAgent.bench.DispatchBenchmark [messages=200000] [flooders=4] [batch=64]
+ */
+public class DispatchBenchmark {
+	// The requests of a seller, as {performative, conversation id}
+	private static final Object[][] KINDS = {
+		{ACLMessage.CFP, "book-trade"},
+		{ACLMessage.ACCEPT_PROPOSAL, "book-trade"},
+		{ACLMessage.REJECT_PROPOSAL, "book-trade"},
+		{ACLMessage.QUERY_IF, "price-sync"},
+		{ACLMessage.INFORM, "price-sync"},
+		{ACLMessage.QUERY_IF, "price-delta"},
+		{ACLMessage.QUERY_REF, "price-delta"},
+	};
+	// Out of 16 messages, the kind of each one: mostly CFPs, as in a trading session
+	private static final int[] MIX = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 2, 3, 4, 5, 5, 6};
+
+	// Number of messages served by the seller under test
+	private static final AtomicInteger served = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		int messages = 200000;
+		int flooders = 4;
+		String batch = "64";
+		for (String arg : args) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("messages=")) {
+				messages = Integer.parseInt(value);
+			}
+			else if (arg.startsWith("flooders=")) {
+				flooders = Integer.parseInt(value);
+			}
+			else if (arg.startsWith("batch=")) {
+				batch = value;
+			}
+		}
+
+		Runtime runtime = Runtime.instance();
+		runtime.setCloseVM(false);
+		Profile profile = new ProfileImpl(true);
+		profile.setParameter(Profile.GUI, "false");
+		profile.setParameter(Profile.NO_MTP, "true");
+		AgentContainer container = runtime.createMainContainer(profile);
+
+		int run = 0;
+		for (String design : new String[] {"polling", "routed", "polling", "routed"}) {
+			String seller = design+"-"+(run++);
+			String sellerClass = design.equals("polling") ? PollingSeller.class.getName() : RoutedSeller.class.getName();
+			container.createNewAgent(seller, sellerClass, new Object[] {batch}).start();
+			served.set(0);
+			long start = System.nanoTime();
+			for (int i = 0; i < flooders; ++i) {
+				container.createNewAgent(seller+"-flooder-"+i, Flooder.class.getName(),
+						new Object[] {seller, String.valueOf(messages / flooders)}).start();
+			}
+			int expected = messages / flooders * flooders;
+			while (served.get() < expected) {
+				Thread.sleep(1);
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			// The first run of each design warms the JIT up
+			System.out.println(String.format("%-7s %s: %,d messages in %.2f s, %,.0f messages/s per seller",
+					design, run <= 2 ? "(warm-up)" : "         ", expected, seconds, expected / seconds));
+		}
+		container.kill();
+		runtime.shutDown();
+	}
+
+	/**
+	 * Sends its share of the messages to the seller given as first argument.
+	 */
+	public static class Flooder extends Agent {
+		protected void setup() {
+			final AID seller = new AID((String) getArguments()[0], AID.ISLOCALNAME);
+			final int messages = Integer.parseInt((String) getArguments()[1]);
+			addBehaviour(new OneShotBehaviour(this) {
+				public void action() {
+					for (int i = 0; i < messages; ++i) {
+						Object[] kind = KINDS[MIX[i % MIX.length]];
+						ACLMessage msg = new ACLMessage((Integer) kind[0]);
+						msg.addReceiver(seller);
+						msg.setConversationId((String) kind[1]);
+						msg.setByteSequenceContent(new byte[] {1, 2, 3});
+						myAgent.send(msg);
+					}
+					myAgent.doDelete();
+				}
+			});
+		}
+	}
+
+	/**
+	 * A seller with one behaviour per kind of request, each with its own template.
+	 */
+	public static class PollingSeller extends Agent {
+		protected void setup() {
+			for (Object[] kind : KINDS) {
+				final MessageTemplate mt = MessageTemplate.and(
+						MessageTemplate.MatchPerformative((Integer) kind[0]),
+						MessageTemplate.MatchConversationId((String) kind[1]));
+				addBehaviour(new CyclicBehaviour(this) {
+					public void action() {
+						ACLMessage msg = myAgent.receive(mt);
+						if (msg != null) {
+							served.incrementAndGet();
+						}
+						else {
+							block();
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * A seller serving the same requests through a MessageRouter.
+	 */
+	public static class RoutedSeller extends Agent {
+		protected void setup() {
+			MessageRouter router = new MessageRouter(this, Integer.parseInt((String) getArguments()[0]));
+			MessageRouter.Handler count = new MessageRouter.Handler() {
+				public void handle(ACLMessage msg) {
+					served.incrementAndGet();
+				}
+			};
+			for (Object[] kind : KINDS) {
+				router.route((Integer) kind[0], (String) kind[1], count);
+			}
+			addBehaviour(router);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package firstAgent.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+
+import firstAgent.BookState;
+import firstAgent.LedgerQuery;
+import firstAgent.TradeLedger;
+
+/**
+ * Measures the trade ledger (see TradeLedger and LedgerQuery): writes synthetic sales and
+ * reprices to the ledgers of several sellers, as a run with ledger=<directory> would, then
+ * times the queries over the whole period and over a tenth of it, with one thread and with
+ * one thread per processor:
+ *   - volume per title (copies sold per title);
+ *   - average sale price per state;
+ *   - sales per seller.
+ * The records span one day, the titles are drawn from a pool with a skewed popularity.
+ *
+ * Usage: java -Xmx1g firstAgent.bench.LedgerBenchmark [records] [directory]
+ * (hundreds of millions of records take 48 bytes each on the disk)
+ */
+public class LedgerBenchmark {
+	private static final int SELLERS = 8;
+	private static final int TITLES = 100000;
+	private static final long DAY = 24 * 3600 * 1000L;
+
+	public static void main(String[] args) throws IOException {
+		long records = args.length > 0 ? Long.parseLong(args[0]) : 10000000;
+		File directory = args.length > 1 ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"), "ledger-bench");
+		delete(directory);
+
+		Random random = new Random(42);
+		BookState[] states = BookState.values();
+		long start = System.nanoTime();
+		long begin = System.currentTimeMillis() - DAY;
+		for (int s = 0; s < SELLERS; ++s) {
+			String seller = "seller-"+s+"@bench";
+			TradeLedger ledger = new TradeLedger(new File(directory, "seller-"+s), 64L * 1024 * 1024, 1024);
+			ledger.open();
+			long count = records / SELLERS + (s < records % SELLERS ? 1 : 0);
+			for (long i = 0; i < count; ++i) {
+				// The square favors the first titles of the pool
+				double skew = random.nextDouble();
+				String title = "title-"+(int) (skew * skew * TITLES);
+				BookState state = states[random.nextInt(states.length)];
+				long time = begin + i * DAY / count;
+				if (random.nextInt(10) == 0) {
+					ledger.record(TradeLedger.REPRICE, time, title, state, 5 + random.nextInt(90), 0, seller, null);
+				}
+				else {
+					ledger.record(TradeLedger.SALE, time, title, state, 5 + random.nextInt(90), 1 + random.nextInt(3), seller,
+							"buyer-"+random.nextInt(1000)+"@bench");
+				}
+			}
+			ledger.close();
+		}
+		double writeSeconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Wrote %,d records in %.1f s (%,.0f records/s, %,d MB)", records, writeSeconds,
+				records / writeSeconds, records * TradeLedger.RECORD_SIZE / (1024 * 1024)));
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		System.out.println(String.format("%-24s %-8s %8s %10s %14s %8s", "query", "window", "threads", "ms", "records/s", "groups"));
+		for (int threads : processors > 1 ? new int[] {1, processors} : new int[] {1}) {
+			LedgerQuery query = new LedgerQuery(directory, threads);
+			for (int window = 0; window < 2; ++window) {
+				long from = window == 0 ? 0 : begin + DAY / 2;
+				long to = window == 0 ? Long.MAX_VALUE : begin + DAY / 2 + DAY / 10;
+				long scanned = window == 0 ? records : records / 10;
+				String label = window == 0 ? "all" : "10%";
+				// Once to map the files and warm up, then measured
+				query.volumeByTitle(from, to);
+				run("volume by title", label, threads, scanned, query, from, to, 0);
+				run("average price by state", label, threads, scanned, query, from, to, 1);
+				run("sales by seller", label, threads, scanned, query, from, to, 2);
+			}
+		}
+		delete(directory);
+	}
+
+	private static void run(String name, String window, int threads, long scanned, LedgerQuery query, long from, long to,
+			int kind) throws IOException {
+		long start = System.nanoTime();
+		Map<String, ?> result = kind == 0 ? query.volumeByTitle(from, to)
+				: kind == 1 ? query.averagePriceByState(from, to) : query.tradesBySeller(from, to);
+		double millis = (System.nanoTime() - start) / 1e6;
+		System.out.println(String.format("%-24s %-8s %8d %10.1f %,14.0f %8d", name, window, threads, millis,
+				scanned * 1000 / millis, result.size()));
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,226 @@
+package firstAgent.bench;
+
+import jade.core.Profile;
+import jade.core.Runtime;
+import jade.lang.acl.ACLMessage;
+import jade.wrapper.AgentContainer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+
+import firstAgent.AgentThreadProfile;
+import firstAgent.BookBuyerAgent;
+import firstAgent.BookSellerAgent;
+import firstAgent.BookState;
+import firstAgent.Offer;
+import firstAgent.TitleDictionary;
+import firstAgent.PurchaseTarget;
+import firstAgent.SellerDirectory;
+import firstAgent.TitleShards;
+import firstAgent.TradeStats;
+
+/**
+ * End-to-end load test of the book-trading agents, entirely in this JVM.
+ * Starts a JADE main container on localhost, spawns headless sellers with synthetic
+ * catalogues and headless buyers with synthetic targets, lets them trade for a fixed
+ * duration and reports:
+ *   - purchases (transactions) per second, and the orders failed because the copy
+ *     was sold to another buyer in the meanwhile (wasted rounds),
+ *   - CFP round latency and time to purchase percentiles,
+ *   - messages sent per performative, and per purchase, and the CFP fan-out,
+ *   - the CFPs and orders shed by overloaded sellers (see MessageRouter),
+ *   - heap usage and live threads, and the heap retained per agent once they are started:
+ *     run with titleDictionary=false and true to compare the heap without and with the
+ *     titles shared by the agents (see TitleDictionary).
+ *
+ * Options (key=value arguments):
+ *   sellers=10        number of seller agents
+ *   buyers=10         number of buyer agents
+ *   listings=10000    listings per seller
+ *   titles=50000      size of the pool of titles the listings and targets are drawn from
+ *   copies=1          copies per listing
+ *   targets=1000      targets per buyer
+ *   quantity=1        copies wanted per target (bulk buyers)
+ *   negotiations=50   concurrent negotiations per buyer
+ *   deadline=2000     CFP round deadline of the buyers, in milliseconds
+ *   sync=delta        price sync mode of the sellers (delta or full)
+ *   holds=true        whether the sellers hold the copies they propose
+ *   offerCache=true   whether the buyers cache the replies of the sellers (see OfferCache)
+ *   basket=0          items per basket of the buyers (see BasketSolver), 0 to buy one title at a time
+ *   orderCost=0       cost of an order to a seller, weighed by the buyers against the prices
+ *   shards=0          number of title shards (see TitleShards), 0 for no sharding; seller i
+ *                     carries shard i % shards and only lists titles of that shard
+ *   threads=platform  threads of the agents: platform or virtual (see AgentThreadProfile)
+ *   stackSize=0       stack size of the platform threads of the agents, 0 for the default
+ *   titleDictionary=true  whether the agents share their titles (see TitleDictionary)
+ *   queueCapacity=1000    requests waiting per priority in a seller above which they are shed
+ *   duration=60       duration of the measure, in seconds
+ *   port=1099         port of the main container
+ *
+ * Usage: java -cp jade.jar:bin firstAgent.bench.LoadTest sellers=50 buyers=200 duration=120
+ */
+public class LoadTest {
+	private Properties options = new Properties();
+
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0) {
+				test.options.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+			}
+		}
+		test.run();
+	}
+
+	private int option(String key, int defaultValue) {
+		return Integer.parseInt(options.getProperty(key, String.valueOf(defaultValue)));
+	}
+
+	private void run() throws Exception {
+		int sellers = option("sellers", 10);
+		int buyers = option("buyers", 10);
+		int listings = option("listings", 10000);
+		int titles = option("titles", 50000);
+		int targets = option("targets", 1000);
+		int duration = option("duration", 60);
+
+		Runtime runtime = Runtime.instance();
+		runtime.setCloseVM(false);
+		AgentThreadProfile profile = new AgentThreadProfile(null, option("port", 1099), null,
+				AgentThreadProfile.parseMode(options.getProperty("threads")), option("stackSize", 0));
+		profile.setParameter(Profile.MAIN_HOST, "localhost");
+		profile.setParameter(Profile.GUI, "false");
+		profile.setParameter(Profile.NO_MTP, "true");
+		// Otherwise the DF returns the first 100 sellers only
+		profile.setParameter("jade_domain_df_maxresult", String.valueOf(SellerDirectory.MAX_RESULTS));
+		AgentContainer container = runtime.createMainContainer(profile);
+		long heapBefore = retainedHeap();
+		String titleDictionary = options.getProperty("titleDictionary", "true");
+
+		int shardCount = option("shards", 0);
+		TitleShards shards = shardCount > 0 ? new TitleShards(shardCount) : null;
+		System.out.println("Starting "+sellers+" sellers with "+listings+" listings each"
+				+(shards != null ? " in "+shardCount+" shards" : ""));
+		for (int i = 0; i < sellers; ++i) {
+			CatalogueGenerator generator = new CatalogueGenerator(titles, 1000 + i);
+			List<Object> args = new ArrayList<Object>();
+			args.add("gui=false");
+			args.add("sync="+options.getProperty("sync", "delta"));
+			args.add("holds="+options.getProperty("holds", "true"));
+			args.add("titleDictionary="+titleDictionary);
+			args.add("queueCapacity="+option("queueCapacity", 1000));
+			if (shards != null) {
+				args.add("shardCount="+shardCount);
+				args.add("shards="+(i % shardCount));
+			}
+			int copies = option("copies", 1);
+			int listed = 0;
+			while (listed < listings) {
+				Offer offer = generator.randomOffer();
+				if (shards != null && shards.shardOf(offer.getTitle()) != i % shardCount) {
+					continue;
+				}
+				args.add(copies == 1 ? offer : new Offer(offer.getTitle(), offer.getState(), offer.getPrice(), copies));
+				listed++;
+			}
+			container.createNewAgent("seller-"+i, BookSellerAgent.class.getName(), args.toArray()).start();
+		}
+		// Leave the sellers the time to register in the yellow pages
+		Thread.sleep(2000);
+
+		TradeStats.reset();
+		System.out.println("Starting "+buyers+" buyers with "+targets+" targets each");
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < buyers; ++i) {
+			CatalogueGenerator generator = new CatalogueGenerator(titles, 2000 + i);
+			List<Object> args = new ArrayList<Object>();
+			args.add("gui=false");
+			args.add("exitWhenDone=false");
+			args.add("negotiations="+option("negotiations", 50));
+			args.add("deadline="+option("deadline", 2000));
+			args.add("offerCache="+options.getProperty("offerCache", "true"));
+			args.add("basket="+option("basket", 0));
+			args.add("orderCost="+option("orderCost", 0));
+			args.add("titleDictionary="+titleDictionary);
+			if (shards != null) {
+				args.add("shardCount="+shardCount);
+			}
+			for (int t = 0; t < targets; ++t) {
+				// Any state and any price up to 100: every listing of the title is acceptable
+				args.add(new PurchaseTarget(generator.randomTitle(), BookState.DAMAGED, 100, option("quantity", 1)));
+			}
+			container.createNewAgent("buyer-"+i, BookBuyerAgent.class.getName(), args.toArray()).start();
+		}
+		// The heap retained by the agents with their catalogues and targets, before the trades
+		long heapStarted = retainedHeap();
+
+		long lastPurchases = 0;
+		long lastReport = start;
+		while (System.currentTimeMillis() - start < duration * 1000L) {
+			Thread.sleep(5000);
+			long now = System.currentTimeMillis();
+			long purchases = TradeStats.getPurchases();
+			System.out.println(String.format("[%3ds] %,d purchases (%,.1f/s), %,d failed negotiations, heap %,d MB",
+					(now - start) / 1000, purchases, (purchases - lastPurchases) * 1000.0 / (now - lastReport),
+					TradeStats.getFailedNegotiations(), usedHeap() / (1024 * 1024)));
+			lastPurchases = purchases;
+			lastReport = now;
+		}
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+
+		System.out.println();
+		System.out.println("=== Load test: "+sellers+" sellers, "+buyers+" buyers, "+String.format("%.0f", seconds)+" s ===");
+		System.out.println(String.format("Transactions:     %,d (%,.1f/s), %,d failed negotiations",
+				TradeStats.getPurchases(), TradeStats.getPurchases() / seconds, TradeStats.getFailedNegotiations()));
+		long orders = TradeStats.getPurchases() + TradeStats.getFailedOrders();
+		System.out.println(String.format("Purchase orders:  %,d, %.1f%% successful, %,d wasted rounds (holds=%s)",
+				orders, orders > 0 ? TradeStats.getPurchases() * 100.0 / orders : 0.0,
+				TradeStats.getFailedOrders(), options.getProperty("holds", "true")));
+		System.out.println(String.format("Shed requests:    %,d CFPs and orders refused by overloaded sellers (queueCapacity=%d)",
+				TradeStats.getShed(), option("queueCapacity", 1000)));
+		System.out.println("CFP round latency: "+TradeStats.getRoundLatency().summary("ms")
+				+", p90 "+TradeStats.getRoundLatency().percentile(90)+" ms");
+		System.out.println("Time to purchase: "+TradeStats.getPurchaseLatency().summary("ms")
+				+", p90 "+TradeStats.getPurchaseLatency().percentile(90)+" ms (offerCache="
+				+options.getProperty("offerCache", "true")+")");
+		System.out.println(String.format("Messages sent:    %,d (%,.1f/s): %s",
+				TradeStats.getTotalSent(), TradeStats.getTotalSent() / seconds, TradeStats.sentSummary()));
+		System.out.println(String.format("Messages/purchase: %.1f, CFP fan-out %.1f sellers, price sync fan-out %.1f sellers",
+				TradeStats.getPurchases() > 0 ? (double) TradeStats.getTotalSent() / TradeStats.getPurchases() : 0.0,
+				TradeStats.getFanOut(ACLMessage.CFP), TradeStats.getFanOut(ACLMessage.QUERY_IF)));
+		System.out.println(String.format("Heap:             %,d MB used (%,d MB before the agents), %,d MB peak",
+				usedHeap() / (1024 * 1024), heapBefore / (1024 * 1024), peakHeap() / (1024 * 1024)));
+		System.out.println(String.format("Retained heap:    %,d MB by the agents once started (%,d KB per agent), %,d MB at the end"
+				+" (titleDictionary=%s, %,d shared titles)",
+				(heapStarted - heapBefore) / (1024 * 1024), (heapStarted - heapBefore) / 1024 / Math.max(1, sellers + buyers),
+				(retainedHeap() - heapBefore) / (1024 * 1024), titleDictionary, TitleDictionary.shared().size()));
+		System.out.println("Threads:          "+ManagementFactory.getThreadMXBean().getThreadCount()+" live platform threads, "
+				+profile.getThreads()+" agent threads created ("+profile.getMode()+")");
+
+		container.kill();
+		runtime.shutDown();
+	}
+
+	static long usedHeap() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	// The heap used after a full collection: the live objects only
+	static long retainedHeap() {
+		System.gc();
+		return usedHeap();
+	}
+
+	static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+}
@@ -0,0 +1,273 @@
+package firstAgent.bench;
+
+import java.util.*;
+
+import firstAgent.BookState;
+import firstAgent.BookTradeCodec;
+import firstAgent.Catalogue;
+import firstAgent.Offer;
+import firstAgent.PriceIndex;
+import firstAgent.PriceMatcher;
+
+/**
+ * Compares the price synchronization modes of the sellers: how long the sellers take to
+ * align their prices on the market minimum, and how many messages and bytes it costs.
+ * The sellers are simulated without JADE, on a clock advancing by 100 ms: each seller runs
+ * the PriceSyncTicker logic of its mode at its own phase, and the messages are delivered
+ * at once to the same code as the handlers of the agents.
+ *   1. The sellers start with random prices for overlapping listings; the initial
+ *      convergence is the time until every shared listing is at the market minimum.
+ *   2. Then, every 500 ms, a seller undercuts the market on one of its listings; the
+ *      convergence of a cut is the time until all the sellers of the listing match it.
+ * The modes are full and delta (pairwise, every 10 s), and index (through a PriceIndex)
+ * every 10 s and every second.
+ *
+ * Usage: java firstAgent.bench.PriceConvergenceBenchmark [sellers=20] [titles=2000]
+ *   [listings=500] [cuts=100]
+ */
+public class PriceConvergenceBenchmark {
+	private static final long STEP = 100;
+	private static final long CUTS_START = 60000;
+	private static final long CUT_INTERVAL = 500;
+
+	public static void main(String[] args) {
+		Properties options = new Properties();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0) {
+				options.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+			}
+		}
+		int sellers = Integer.parseInt(options.getProperty("sellers", "20"));
+		int titles = Integer.parseInt(options.getProperty("titles", "2000"));
+		int listings = Integer.parseInt(options.getProperty("listings", "500"));
+		int cuts = Integer.parseInt(options.getProperty("cuts", "100"));
+
+		System.out.println(String.format("%d sellers of %d listings each, drawn from %d titles; %d price cuts",
+				sellers, listings, titles, cuts));
+		System.out.println(String.format("%-12s %12s %14s %14s %12s %12s", "mode", "initial (s)",
+				"cut mean (s)", "cut max (s)", "messages", "KB"));
+		run(new FullSync(10000), sellers, titles, listings, cuts);
+		run(new DeltaSync(10000), sellers, titles, listings, cuts);
+		run(new IndexSync(10000), sellers, titles, listings, cuts);
+		run(new IndexSync(1000), sellers, titles, listings, cuts);
+	}
+
+	private static void run(Mode mode, int sellerCount, int titles, int listings, int cuts) {
+		// The same market for every mode
+		Catalogue[] sellers = new Catalogue[sellerCount];
+		List<List<Offer>> initial = new ArrayList<List<Offer>>();
+		HashMap<String, List<Integer>> holders = new HashMap<String, List<Integer>>();
+		for (int s = 0; s < sellerCount; ++s) {
+			sellers[s] = new CatalogueGenerator(titles, s).catalogue(listings);
+			List<Offer> offers = sellers[s].offers();
+			initial.add(offers);
+			for (Offer offer : offers) {
+				String key = offer.getTitle()+";"+offer.getState().getLabel();
+				List<Integer> sellersOfKey = holders.get(key);
+				if (sellersOfKey == null) {
+					sellersOfKey = new ArrayList<Integer>();
+					holders.put(key, sellersOfKey);
+				}
+				sellersOfKey.add(s);
+			}
+		}
+		mode.sellers = sellers;
+		Random random = new Random(42);
+		long[] phases = new long[sellerCount];
+		for (int s = 0; s < sellerCount; ++s) {
+			phases[s] = random.nextInt((int) (mode.period / STEP)) * STEP;
+		}
+
+		long initialConvergence = -1;
+		// The pending cuts: the listing, its target price and the time of the cut
+		List<Offer> pendingCuts = new ArrayList<Offer>();
+		List<Long> pendingTimes = new ArrayList<Long>();
+		long cutLatencySum = 0;
+		long cutLatencyMax = 0;
+		int cutsDone = 0;
+		int cutsConverged = 0;
+		long end = CUTS_START + cuts * CUT_INTERVAL + 10 * mode.period;
+		for (long now = 0; now < end && (initialConvergence < 0 || cutsConverged < cuts); now += STEP) {
+			if (now >= CUTS_START && cutsDone < cuts && (now - CUTS_START) % CUT_INTERVAL == 0) {
+				int s = random.nextInt(sellerCount);
+				Offer listing = initial.get(s).get(random.nextInt(listings));
+				int minimum = minimum(sellers, holders, listing);
+				int price = Math.max(1, minimum - 1 - random.nextInt(5));
+				sellers[s].put(listing.getTitle(), listing.getState(), price, listing.getQuantity());
+				pendingCuts.add(new Offer(listing.getTitle(), listing.getState(), price));
+				pendingTimes.add(now);
+				cutsDone++;
+			}
+			for (int s = 0; s < sellerCount; ++s) {
+				if (now >= phases[s] && (now - phases[s]) % mode.period == 0) {
+					mode.tick(s);
+				}
+			}
+			if (initialConvergence < 0 && isConverged(sellers, holders)) {
+				initialConvergence = now;
+			}
+			for (int i = pendingCuts.size() - 1; i >= 0; --i) {
+				Offer cut = pendingCuts.get(i);
+				if (maximum(sellers, holders, cut) <= cut.getPrice()) {
+					long latency = now - pendingTimes.get(i);
+					cutLatencySum += latency;
+					cutLatencyMax = Math.max(cutLatencyMax, latency);
+					cutsConverged++;
+					pendingCuts.remove(i);
+					pendingTimes.remove(i);
+				}
+			}
+		}
+		System.out.println(String.format("%-12s %12s %14s %14.1f %,12d %,12d", mode.name,
+				initialConvergence < 0 ? "never" : String.format("%.1f", initialConvergence / 1000.0),
+				cutsConverged == 0 ? "-" : String.format("%.2f", cutLatencySum / 1000.0 / cutsConverged),
+				cutLatencyMax / 1000.0, mode.messages, mode.bytes / 1024));
+		if (cutsConverged < cuts) {
+			System.out.println("  "+(cuts - cutsConverged)+" cuts not matched by all the sellers");
+		}
+	}
+
+	private static boolean isConverged(Catalogue[] sellers, HashMap<String, List<Integer>> holders) {
+		for (Map.Entry<String, List<Integer>> entry : holders.entrySet()) {
+			List<Integer> sellersOfKey = entry.getValue();
+			if (sellersOfKey.size() < 2) {
+				continue;
+			}
+			String key = entry.getKey();
+			int separator = key.lastIndexOf(';');
+			String title = key.substring(0, separator);
+			BookState state = BookState.fromLabel(key.substring(separator + 1));
+			Integer first = sellers[sellersOfKey.get(0)].get(title, state);
+			for (int s : sellersOfKey) {
+				if (!first.equals(sellers[s].get(title, state))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static int minimum(Catalogue[] sellers, HashMap<String, List<Integer>> holders, Offer listing) {
+		int minimum = Integer.MAX_VALUE;
+		for (int s : holders.get(listing.getTitle()+";"+listing.getState().getLabel())) {
+			minimum = Math.min(minimum, sellers[s].get(listing.getTitle(), listing.getState()));
+		}
+		return minimum;
+	}
+
+	private static int maximum(Catalogue[] sellers, HashMap<String, List<Integer>> holders, Offer listing) {
+		int maximum = 0;
+		for (int s : holders.get(listing.getTitle()+";"+listing.getState().getLabel())) {
+			maximum = Math.max(maximum, sellers[s].get(listing.getTitle(), listing.getState()));
+		}
+		return maximum;
+	}
+
+	// A price synchronization mode: what a seller does at each tick, and the replies it gets
+	private static abstract class Mode {
+		final String name;
+		final long period;
+		Catalogue[] sellers;
+		long messages = 0;
+		long bytes = 0;
+
+		Mode(String name, long period) {
+			this.name = name+" "+(period / 1000)+"s";
+			this.period = period;
+		}
+
+		abstract void tick(int seller);
+
+		void send(byte[] content, int receivers) {
+			messages += receivers;
+			bytes += (long) content.length * receivers;
+		}
+	}
+
+	// All the listings in a QUERY_IF to every other seller, which answer with their prices
+	private static class FullSync extends Mode {
+		FullSync(long period) {
+			super("full", period);
+		}
+
+		void tick(int seller) {
+			List<Offer> offers = sellers[seller].offers();
+			byte[] query = BookTradeCodec.encodePriceQuery(offers);
+			send(query, sellers.length - 1);
+			for (int peer = 0; peer < sellers.length; ++peer) {
+				if (peer == seller) {
+					continue;
+				}
+				List<Offer> matches = PriceMatcher.match(sellers[peer], query);
+				if (!matches.isEmpty()) {
+					send(BookTradeCodec.encodePrices(BookTradeCodec.PRICE_LIST, 0, matches), 1);
+					sellers[seller].lowerPrices(matches);
+				}
+			}
+		}
+	}
+
+	// The changed listings to every other seller, which lower their prices and answer
+	// with the listings they sell for less
+	private static class DeltaSync extends Mode {
+		private long sequence = 0;
+
+		DeltaSync(long period) {
+			super("delta", period);
+		}
+
+		void tick(int seller) {
+			List<Offer> offers = sellers[seller].drainChanges();
+			if (offers.isEmpty()) {
+				return;
+			}
+			send(BookTradeCodec.encodePrices(BookTradeCodec.PRICE_DELTA, ++sequence, offers), sellers.length - 1);
+			for (int peer = 0; peer < sellers.length; ++peer) {
+				if (peer == seller) {
+					continue;
+				}
+				sellers[peer].lowerPrices(offers);
+				List<Offer> cheaper = new ArrayList<Offer>();
+				for (Offer other : offers) {
+					Integer price = sellers[peer].get(other.getTitle(), other.getState());
+					if (price != null && price < other.getPrice()) {
+						cheaper.add(new Offer(other.getTitle(), other.getState(), price));
+					}
+				}
+				if (!cheaper.isEmpty()) {
+					send(BookTradeCodec.encodePrices(BookTradeCodec.PRICE_LIST, 0, cheaper), 1);
+					sellers[seller].lowerPrices(cheaper);
+				}
+			}
+		}
+	}
+
+	// The changed listings to the price index, which tells the sellers asking more
+	private static class IndexSync extends Mode {
+		private final PriceIndex index = new PriceIndex();
+		private final HashSet<Integer> published = new HashSet<Integer>();
+		private long sequence = 0;
+
+		IndexSync(long period) {
+			super("index", period);
+		}
+
+		void tick(int seller) {
+			boolean snapshot = published.add(seller);
+			List<Offer> offers = sellers[seller].drainChanges(true);
+			if (snapshot) {
+				offers = sellers[seller].offers();
+			}
+			else if (offers.isEmpty()) {
+				return;
+			}
+			send(BookTradeCodec.encodeListings(snapshot ? BookTradeCodec.LISTING_SNAPSHOT : BookTradeCodec.LISTING_DELTA,
+					++sequence, offers), 1);
+			for (Map.Entry<Integer, List<Offer>> entry : index.apply(seller, offers, snapshot).entrySet()) {
+				send(BookTradeCodec.encodePrices(BookTradeCodec.PRICE_LIST, 0, entry.getValue()), 1);
+				sellers[entry.getKey()].lowerPrices(entry.getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package firstAgent.bench;
+
+import java.util.*;
+
+import firstAgent.BookState;
+import firstAgent.BookTradeCodec;
+import firstAgent.Catalogue;
+import firstAgent.Offer;
+import firstAgent.PriceMatcher;
+
+/**
+ * Measures the cost of answering a price sync QUERY_IF (SendPriceServer) and of applying
+ * the reply (AdjustPriceServer), for local and remote catalogues of 1k to 1M titles.
+ * Half of the remote titles are also in the local catalogue.
+ * The former matching (Arrays.asList(all_titles).contains for every local key) is only run
+ * while it stays under a few seconds.
+ *
+ * Usage: java firstAgent.bench.PriceMatchBenchmark
+ */
+public class PriceMatchBenchmark {
+	private static final int[] SIZES = {1000, 10000, 100000, 1000000};
+	// Beyond this number of string comparisons the former matching is skipped
+	private static final long LEGACY_LIMIT = 200000000L;
+
+	public static void main(String[] args) {
+		for (int local : SIZES) {
+			for (int remote : SIZES) {
+				run(local, remote);
+			}
+		}
+	}
+
+	private static void run(int localSize, int remoteSize) {
+		Random random = new Random(7);
+		BookState[] states = BookState.values();
+		Catalogue catalogue = new Catalogue();
+		List<String> localKeys = new ArrayList<String>(localSize);
+		for (int i = 0; i < localSize; ++i) {
+			BookState state = states[i % states.length];
+			catalogue.put("title-"+i, state, 10 + random.nextInt(90), 1);
+			localKeys.add("title-"+i+";"+state.getLabel());
+		}
+		// Half of the remote titles are shared with the local catalogue
+		List<Offer> remote = new ArrayList<Offer>(remoteSize);
+		StringBuilder query = new StringBuilder();
+		for (int i = 0; i < remoteSize; ++i) {
+			int id = i % 2 == 0 ? random.nextInt(localSize) : localSize + i;
+			remote.add(new Offer("title-"+id, states[id % states.length], 0));
+			if (query.length() > 0) {
+				query.append(',');
+			}
+			query.append("title-").append(id).append(';').append(states[id % states.length].getLabel());
+		}
+		byte[] content = BookTradeCodec.encodePriceQuery(remote);
+
+		// Warm up, then measure the matching
+		for (int round = 0; round < 3; ++round) {
+			PriceMatcher.match(catalogue, content);
+		}
+		long start = System.nanoTime();
+		List<Offer> matches = PriceMatcher.match(catalogue, content);
+		long matchTime = System.nanoTime() - start;
+
+		// The reply, as built by SendPriceServer and applied by AdjustPriceServer
+		start = System.nanoTime();
+		byte[] reply = BookTradeCodec.encodePrices(BookTradeCodec.PRICE_LIST, 0, matches);
+		List<Offer> cheaper = new ArrayList<Offer>(matches.size());
+		for (Offer offer : BookTradeCodec.decodePrices(new BookTradeCodec.Decoder(reply, BookTradeCodec.PRICE_LIST))) {
+			cheaper.add(new Offer(offer.getTitle(), offer.getState(), offer.getPrice() - 1));
+		}
+		int lowered = catalogue.lowerPrices(cheaper).size();
+		long applyTime = System.nanoTime() - start;
+
+		String legacy = "skipped";
+		if ((long) localSize * remoteSize <= LEGACY_LIMIT) {
+			start = System.nanoTime();
+			int legacyMatches = matchLegacy(localKeys, query.toString());
+			legacy = String.format("%,d ms (%d matches, %d INFORM messages)",
+					(System.nanoTime() - start) / 1000000, legacyMatches, legacyMatches);
+		}
+
+		System.out.println(String.format("local %,9d / remote %,9d: match %,8d us (%d matches, 1 INFORM message), apply %,8d us (%d repriced), former matching %s",
+				localSize, remoteSize, matchTime / 1000, matches.size(), applyTime / 1000, lowered, legacy));
+	}
+
+	// The matching as SendPriceServer used to do it
+	private static int matchLegacy(List<String> localKeys, String content) {
+		String[] all_titles = content.split(",");
+		int matches = 0;
+		for (String one_title : localKeys) {
+			if (Arrays.asList(all_titles).contains(one_title)) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+}
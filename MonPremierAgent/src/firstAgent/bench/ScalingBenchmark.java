@@ -0,0 +1,160 @@
+package firstAgent.bench;
+
+import jade.core.Profile;
+import jade.core.Runtime;
+import jade.wrapper.AgentContainer;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import firstAgent.AgentThreadProfile;
+import firstAgent.BookBuyerAgent;
+import firstAgent.BookSellerAgent;
+import firstAgent.BookState;
+import firstAgent.Offer;
+import firstAgent.PurchaseTarget;
+import firstAgent.SellerDirectory;
+import firstAgent.TitleShards;
+import firstAgent.TradeStats;
+
+/**
+ * Measures how many trading agents a JVM can run, on the threads of JADE or on virtual
+ * threads (see AgentThreadProfile): the fleet grows by steps, and after each step the
+ * agents trade for a fixed duration while the benchmark reports:
+ *   - the time to start the agents of the step,
+ *   - the heap used after a GC, in total and per agent,
+ *   - the live platform threads,
+ *   - the purchases per second.
+ * One agent in ten is a seller. The titles are sharded (see TitleShards), about ten
+ * sellers per shard in the last step, so that a CFP does not reach every seller of a
+ * large fleet. The sellers have many copies of each listing and the buyers many targets,
+ * so that the trade goes on during the whole measure.
+ * Run it once per thread mode, in separate JVMs, and compare the outputs.
+ *
+ * Options (key=value arguments):
+ *   threads=platform        platform or virtual
+ *   stackSize=0             stack size of the platform threads of the agents, 0 for the default
+ *   steps=1000,5000,10000   number of agents after each step
+ *   duration=20             duration of the measure of each step, in seconds
+ *   listings=100            listings per seller
+ *   targets=200             targets per buyer
+ *   negotiations=5          concurrent negotiations per buyer
+ *   titles=20000            size of the pool of titles
+ *
+ * Usage: java -Xmx8g -cp jade.jar:bin firstAgent.bench.ScalingBenchmark threads=virtual
+ */
+public class ScalingBenchmark {
+	private Properties options = new Properties();
+
+	public static void main(String[] args) throws Exception {
+		ScalingBenchmark benchmark = new ScalingBenchmark();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0) {
+				benchmark.options.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+			}
+		}
+		benchmark.run();
+	}
+
+	private int option(String key, int defaultValue) {
+		return Integer.parseInt(options.getProperty(key, String.valueOf(defaultValue)));
+	}
+
+	private void run() throws Exception {
+		String[] stepList = options.getProperty("steps", "1000,5000,10000").split(",");
+		int[] steps = new int[stepList.length];
+		for (int i = 0; i < steps.length; ++i) {
+			steps[i] = Integer.parseInt(stepList[i].trim());
+		}
+		int duration = option("duration", 20);
+		int titles = option("titles", 20000);
+		// The number of shards is fixed by the last step: the sellers register it once
+		int shardCount = Math.max(1, steps[steps.length - 1] / 10 / 10);
+		TitleShards shards = new TitleShards(shardCount);
+
+		Runtime runtime = Runtime.instance();
+		runtime.setCloseVM(false);
+		AgentThreadProfile profile = new AgentThreadProfile(true,
+				AgentThreadProfile.parseMode(options.getProperty("threads")), option("stackSize", 0));
+		profile.setParameter(Profile.GUI, "false");
+		profile.setParameter(Profile.NO_MTP, "true");
+		// Otherwise the DF returns the first 100 sellers only
+		profile.setParameter("jade_domain_df_maxresult", String.valueOf(SellerDirectory.MAX_RESULTS));
+		AgentContainer container = runtime.createMainContainer(profile);
+		System.out.println("Agent threads: "+profile.getMode()+", "+shardCount+" shards");
+		System.out.println(String.format("%8s %10s %12s %12s %10s %14s", "agents", "start (s)", "heap (MB)",
+				"KB/agent", "threads", "purchases/s"));
+
+		int sellers = 0;
+		int buyers = 0;
+		long heapBefore = usedHeap();
+		for (int agents : steps) {
+			long start = System.currentTimeMillis();
+			// Sellers first, so that the new buyers find them when they subscribe to the DF
+			int sellersWanted = agents / 10;
+			while (sellers < sellersWanted) {
+				container.createNewAgent("seller-"+sellers, BookSellerAgent.class.getName(),
+						sellerArguments(sellers, shards, titles)).start();
+				sellers++;
+			}
+			while (sellers + buyers < agents) {
+				container.createNewAgent("buyer-"+buyers, BookBuyerAgent.class.getName(),
+						buyerArguments(buyers, shardCount, titles)).start();
+				buyers++;
+			}
+			double startSeconds = (System.currentTimeMillis() - start) / 1000.0;
+
+			long purchasesBefore = TradeStats.getPurchases();
+			long measureStart = System.currentTimeMillis();
+			Thread.sleep(duration * 1000L);
+			double seconds = (System.currentTimeMillis() - measureStart) / 1000.0;
+			long purchases = TradeStats.getPurchases() - purchasesBefore;
+			long heap = usedHeap() - heapBefore;
+			System.out.println(String.format("%,8d %10.1f %,12d %,12d %,10d %,14.1f", agents, startSeconds,
+					heap / (1024 * 1024), heap / 1024 / agents, ManagementFactory.getThreadMXBean().getThreadCount(),
+					purchases / seconds));
+		}
+		container.kill();
+		runtime.shutDown();
+	}
+
+	private Object[] sellerArguments(int seller, TitleShards shards, int titles) {
+		CatalogueGenerator generator = new CatalogueGenerator(titles, 1000 + seller);
+		int shard = seller % shards.getCount();
+		List<Object> args = new ArrayList<Object>();
+		args.add("gui=false");
+		args.add("jmx=false");
+		args.add("shardCount="+shards.getCount());
+		args.add("shards="+shard);
+		int listings = option("listings", 100);
+		while (args.size() - 4 < listings) {
+			Offer offer = generator.randomOffer();
+			if (shards.shardOf(offer.getTitle()) == shard) {
+				// Enough copies for the whole measure
+				args.add(new Offer(offer.getTitle(), offer.getState(), offer.getPrice(), 1000000));
+			}
+		}
+		return args.toArray();
+	}
+
+	private Object[] buyerArguments(int buyer, int shardCount, int titles) {
+		CatalogueGenerator generator = new CatalogueGenerator(titles, 2000000 + buyer);
+		List<Object> args = new ArrayList<Object>();
+		args.add("gui=false");
+		args.add("jmx=false");
+		args.add("exitWhenDone=false");
+		args.add("shardCount="+shardCount);
+		args.add("negotiations="+option("negotiations", 5));
+		int targets = option("targets", 200);
+		for (int t = 0; t < targets; ++t) {
+			args.add(new PurchaseTarget(generator.randomTitle(), BookState.DAMAGED, 100));
+		}
+		return args.toArray();
+	}
+
+	static long usedHeap() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
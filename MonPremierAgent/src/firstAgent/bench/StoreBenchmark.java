@@ -0,0 +1,109 @@
+package firstAgent.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import firstAgent.BookState;
+import firstAgent.Catalogue;
+import firstAgent.CatalogueStore;
+import firstAgent.Offer;
+
+/**
+ * Checks the recovery of CatalogueStore and measures the restart time of a seller
+ * for several catalogue sizes. For each size:
+ *   1. a catalogue is stored, compacted into a snapshot, then changed again (reprices
+ *      and sales, which stay in the log);
+ *   2. a half written record is appended to the log, as after a crash;
+ *   3. the store is reopened into an empty catalogue, which must equal the original.
+ * The program exits with status 1 if a recovered catalogue differs.
+ *
+ * Usage: java firstAgent.bench.StoreBenchmark [mmap]
+ */
+public class StoreBenchmark {
+	private static final int[] SIZES = {10000, 100000, 1000000};
+
+	public static void main(String[] args) throws IOException {
+		boolean mmap = args.length > 0 && args[0].equals("mmap");
+		boolean ok = true;
+		for (int size : SIZES) {
+			ok &= run(size, mmap);
+		}
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	private static boolean run(int size, boolean mmap) throws IOException {
+		File directory = Files.createTempDirectory("catalogue-store").toFile();
+		CatalogueGenerator generator = new CatalogueGenerator(size / 2, size);
+
+		Catalogue original = new Catalogue();
+		CatalogueStore store = new CatalogueStore(directory, false, mmap, Long.MAX_VALUE);
+		store.open(original);
+		long start = System.nanoTime();
+		while (original.size() < size) {
+			original.add(generator.randomTitle(), generator.randomState(), generator.randomPrice(), 1);
+		}
+		store.compact();
+		long snapshotTime = System.nanoTime() - start;
+
+		// A tenth of the catalogue is repriced, partly sold or sold out after the snapshot
+		List<Offer> listings = original.offers();
+		Random random = new Random(size);
+		for (int i = 0; i < size / 10; ++i) {
+			Offer offer = listings.get(random.nextInt(listings.size()));
+			switch (random.nextInt(3)) {
+			case 0:
+				original.put(offer.getTitle(), offer.getState(), generator.randomPrice(), offer.getQuantity());
+				break;
+			case 1:
+				original.removeAvailable(offer.getTitle(), offer.getState(), 1);
+				break;
+			default:
+				original.remove(offer.getTitle(), offer.getState());
+			}
+		}
+		store.close();
+		long logSize = new File(directory, "changes.log").length();
+
+		// Simulate a crash in the middle of a record
+		try (FileOutputStream log = new FileOutputStream(new File(directory, "changes.log"), true)) {
+			log.write(new byte[] {0, 0, 0, 20, 1, 5, 't'});
+		}
+
+		Catalogue recovered = new Catalogue();
+		start = System.nanoTime();
+		CatalogueStore reopened = new CatalogueStore(directory, false, mmap, Long.MAX_VALUE);
+		long records = reopened.open(recovered);
+		long recoveryTime = System.nanoTime() - start;
+		reopened.close();
+
+		boolean equal = sameListings(original, recovered);
+		System.out.println(String.format("%,9d listings: logged and compacted in %,5d ms (%,d KB), log %,d KB, restart %,5d ms (%,d records), recovery %s",
+				size, snapshotTime / 1000000, new File(directory, "snapshot.bin").length() / 1024, logSize / 1024,
+				recoveryTime / 1000000, records, equal ? "OK" : "FAILED"));
+
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+		return equal;
+	}
+
+	private static boolean sameListings(Catalogue expected, Catalogue actual) {
+		if (expected.size() != actual.size()) {
+			return false;
+		}
+		for (Offer offer : expected.offers()) {
+			Integer price = actual.get(offer.getTitle(), offer.getState());
+			if (price == null || price != offer.getPrice()
+					|| actual.getQuantity(offer.getTitle(), offer.getState()) != offer.getQuantity()) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,134 @@
+package firstAgent.bench;
+
+import java.util.*;
+
+import firstAgent.BookState;
+import firstAgent.Catalogue;
+import firstAgent.LatencyRecorder;
+import firstAgent.TitleIndex;
+
+/**
+ * Measures the title search index of the sellers (see TitleIndex) on catalogues of 10k,
+ * 100k and 1M titles: the time and memory to index them, and the latency of the lookups
+ * a seller makes for a CFP:
+ *   - resolve: a title typed differently (case, spaces, edition), as for a plain CFP;
+ *   - search full: a search CFP with a whole title;
+ *   - search prefix: the first word of a title and the beginning of the second one;
+ *   - search word: the beginning of a single word, the widest search.
+ * The titles are made of 1 to 5 words drawn from a vocabulary of pronounceable words, so
+ * that words are shared between titles and prefixes match several words.
+ * The index is filled through the catalogue, as in the seller, and half of the titles are
+ * then sold out and listed again, to measure the incremental updates.
+ *
+ * Usage: java -Xmx4g firstAgent.bench.TitleIndexBenchmark [lookups]
+ */
+public class TitleIndexBenchmark {
+	private static final int[] SIZES = {10000, 100000, 1000000};
+	private static final String[] SYLLABLES = {"ka", "lo", "mi", "ren", "sa", "tor", "vi", "dun", "el", "gar",
+			"ith", "mor", "nal", "or", "pe", "qua", "ros", "ta", "ul", "wen", "ya", "zor", "bri", "cel"};
+
+	public static void main(String[] args) {
+		int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		System.out.println(String.format("%9s %10s %10s %10s %12s  %-16s %8s %8s %8s %10s", "titles", "tokens",
+				"index (ms)", "MB", "update (ms)", "lookup", "p50 (us)", "p99 (us)", "max (us)", "matches"));
+		for (int size : SIZES) {
+			run(size, lookups);
+		}
+	}
+
+	private static void run(int size, int lookups) {
+		Random random = new Random(42);
+		String[] vocabulary = new String[Math.max(1000, size / 20)];
+		for (int w = 0; w < vocabulary.length; ++w) {
+			vocabulary[w] = word(random);
+		}
+		LinkedHashSet<String> generated = new LinkedHashSet<String>();
+		while (generated.size() < size) {
+			int words = 1 + random.nextInt(5);
+			StringBuilder title = new StringBuilder();
+			for (int w = 0; w < words; ++w) {
+				String word = vocabulary[random.nextInt(vocabulary.length)];
+				title.append(w == 0 ? "" : " ").append(Character.toUpperCase(word.charAt(0))).append(word.substring(1));
+			}
+			generated.add(title.toString());
+		}
+		String[] titles = generated.toArray(new String[0]);
+		generated = null;
+
+		long heapBefore = usedHeap();
+		Catalogue catalogue = new Catalogue();
+		long start = System.nanoTime();
+		for (String title : titles) {
+			catalogue.put(title, BookState.GOOD, 10, 1);
+		}
+		long catalogueMillis = (System.nanoTime() - start) / 1000000;
+		long catalogueHeap = usedHeap() - heapBefore;
+
+		catalogue = new Catalogue();
+		TitleIndex index = new TitleIndex();
+		catalogue.addListener(index);
+		heapBefore = usedHeap();
+		start = System.nanoTime();
+		for (String title : titles) {
+			catalogue.put(title, BookState.GOOD, 10, 1);
+		}
+		// The time and memory of the index: the catalogue with the index minus the catalogue alone
+		long indexMillis = Math.max(0, (System.nanoTime() - start) / 1000000 - catalogueMillis);
+		long indexHeap = usedHeap() - heapBefore - catalogueHeap;
+		start = System.nanoTime();
+		for (int i = 0; i < titles.length; i += 2) {
+			catalogue.remove(titles[i], BookState.GOOD);
+		}
+		for (int i = 0; i < titles.length; i += 2) {
+			catalogue.put(titles[i], BookState.GOOD, 10, 1);
+		}
+		long updateMillis = (System.nanoTime() - start) / 1000000;
+
+		String[] kinds = {"resolve", "search full", "search prefix", "search word"};
+		for (int kind = 0; kind < kinds.length; ++kind) {
+			LatencyRecorder latency = new LatencyRecorder(lookups);
+			long matches = 0;
+			for (int i = 0; i < lookups; ++i) {
+				String title = titles[random.nextInt(titles.length)];
+				String[] words = title.split(" ");
+				long lookupStart = System.nanoTime();
+				switch (kind) {
+				case 0:
+					matches += index.resolve("  THE "+title.toUpperCase()+" (2nd edition)").size();
+					break;
+				case 1:
+					matches += index.search(title, 10).size();
+					break;
+				case 2:
+					String query = words.length > 1 ? words[0]+" "+words[1].substring(0, Math.min(3, words[1].length()))
+							: words[0].substring(0, Math.min(3, words[0].length()));
+					matches += index.search(query, 10).size();
+					break;
+				default:
+					matches += index.search(words[0].substring(0, Math.min(3, words[0].length())), 10).size();
+					break;
+				}
+				latency.record((System.nanoTime() - lookupStart) / 1000);
+			}
+			System.out.println(String.format("%,9d %,10d %,10d %,10d %,12d  %-16s %8d %8d %8d %10.1f",
+					titles.length, index.tokenCount(), indexMillis, indexHeap / (1024 * 1024), updateMillis, kinds[kind],
+					latency.percentile(50), latency.percentile(99), latency.getMax(), (double) matches / lookups));
+		}
+	}
+
+	// A pronounceable word of 2 to 4 syllables; some words come up several times
+	private static String word(Random random) {
+		StringBuilder word = new StringBuilder();
+		int syllables = 2 + random.nextInt(3);
+		for (int s = 0; s < syllables; ++s) {
+			word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+		}
+		return word.toString();
+	}
+
+	static long usedHeap() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
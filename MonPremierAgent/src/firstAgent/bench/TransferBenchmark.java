@@ -0,0 +1,105 @@
+package firstAgent.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import firstAgent.BookState;
+import firstAgent.Catalogue;
+import firstAgent.CatalogueTransfer;
+import firstAgent.Offer;
+
+/**
+ * Measures the bulk import and export of CatalogueTransfer, in CSV and in JSON lines.
+ * For each format:
+ *   1. a file of rows is generated, with some titles needing quoting or escaping;
+ *   2. it is imported into an empty catalogue (rows/s and peak heap);
+ *   3. the catalogue is exported, and the export is imported again into another
+ *      catalogue, which must equal the first one.
+ * The program exits with status 1 if a round trip changes the catalogue.
+ *
+ * Usage: java firstAgent.bench.TransferBenchmark [rows=1000000] [titles=200000]
+ */
+public class TransferBenchmark {
+	public static void main(String[] args) throws IOException {
+		Properties options = new Properties();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0) {
+				options.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+			}
+		}
+		int rows = Integer.parseInt(options.getProperty("rows", "1000000"));
+		int titles = Integer.parseInt(options.getProperty("titles", "200000"));
+		boolean ok = run("csv", rows, titles);
+		ok &= run("jsonl", rows, titles);
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	private static boolean run(String format, int rows, int titles) throws IOException {
+		File directory = Files.createTempDirectory("catalogue-transfer").toFile();
+		File input = new File(directory, "input."+format);
+		File export = new File(directory, "export."+format);
+		generate(input, format, rows, titles);
+
+		Catalogue imported = new Catalogue();
+		CatalogueTransfer transfer = new CatalogueTransfer(imported, CatalogueTransfer.DEFAULT_BATCH_SIZE);
+		transfer.importFile(input);
+		System.out.println(String.format("%-5s import: %s, %,d KB file, %,d listings",
+				format, transfer.report(), input.length() / 1024, imported.size()));
+
+		transfer.exportFile(export);
+		System.out.println(String.format("%-5s export: %s", format, transfer.report()));
+
+		Catalogue reimported = new Catalogue();
+		new CatalogueTransfer(reimported, CatalogueTransfer.DEFAULT_BATCH_SIZE).importFile(export);
+		boolean equal = sameListings(imported, reimported);
+		System.out.println(String.format("%-5s round trip: %s", format, equal ? "OK" : "FAILED"));
+
+		input.delete();
+		export.delete();
+		directory.delete();
+		return equal;
+	}
+
+	private static void generate(File file, String format, int rows, int titles) throws IOException {
+		CatalogueGenerator generator = new CatalogueGenerator(titles, rows);
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+				StandardCharsets.UTF_8), 1 << 16)) {
+			for (int i = 0; i < rows; ++i) {
+				Offer offer = generator.randomOffer();
+				String title = offer.getTitle();
+				// Every hundredth title contains the separators of the formats
+				if (i % 100 == 0) {
+					title = title+", \"the\" sequel";
+				}
+				int quantity = 1 + i % 5;
+				if (format.equals("csv")) {
+					out.write(title.indexOf(',') >= 0 ? "\""+title.replace("\"", "\"\"")+"\"" : title);
+					out.write(","+offer.getState().getLabel()+","+offer.getPrice()+","+quantity+"\n");
+				}
+				else {
+					out.write("{\"title\":\""+title.replace("\"", "\\\"")+"\",\"state\":\""+offer.getState().getLabel()
+							+"\",\"price\":"+offer.getPrice()+",\"quantity\":"+quantity+"}\n");
+				}
+			}
+		}
+	}
+
+	private static boolean sameListings(Catalogue expected, Catalogue actual) {
+		if (expected.size() != actual.size()) {
+			return false;
+		}
+		for (Offer offer : expected.offers()) {
+			Integer price = actual.get(offer.getTitle(), offer.getState());
+			if (price == null || price != offer.getPrice()
+					|| actual.getQuantity(offer.getTitle(), offer.getState()) != offer.getQuantity()) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,267 @@
+package firstAgent;
+
+import static org.junit.Assert.*;
+
+import jade.core.AID;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * The assignments of BasketSolver, checked against a brute force search over all the
+ * sets of sellers: the exact search (up to EXACT_SELLERS sellers) must find the optimum,
+ * the greedy removal above it must buy as many copies for no more than ordering from
+ * every seller.
+ */
+public class BasketSolverTest {
+	private static final AID A = seller("a");
+	private static final AID B = seller("b");
+	private static final AID C = seller("c");
+
+	@Test
+	public void withoutOrderCostEachCopyComesFromTheCheapestProposal() {
+		List<PurchaseTarget> items = Arrays.asList(target("Dune", 30, 1), target("Emma", 30, 1));
+		BasketSolver solver = new BasketSolver(items, 0);
+		solver.propose(A, Arrays.asList(line(0, 10, 1), line(1, 20, 1)));
+		solver.propose(B, Arrays.asList(line(0, 12, 1), line(1, 15, 1)));
+		Map<AID, List<BasketLine>> orders = solver.solve();
+		assertEquals(25, solver.cost(orders));
+		assertEquals(0, orders.get(A).get(0).getItem());
+		assertEquals(1, orders.get(B).get(0).getItem());
+	}
+
+	@Test
+	public void anOrderCostGroupsTheItemsWithFewerSellers() {
+		List<PurchaseTarget> items = Arrays.asList(target("Dune", 30, 1), target("Emma", 30, 1));
+		BasketSolver solver = new BasketSolver(items, 10);
+		solver.propose(A, Arrays.asList(line(0, 10, 1), line(1, 20, 1)));
+		solver.propose(B, Arrays.asList(line(0, 12, 1), line(1, 15, 1)));
+		Map<AID, List<BasketLine>> orders = solver.solve();
+		// Both from B: 12 + 15 + 10, rather than 10 + 15 + 2 * 10
+		assertEquals(Collections.singleton(B), orders.keySet());
+		assertEquals(37, solver.cost(orders));
+	}
+
+	@Test
+	public void ignoresTheProposalsAboveTheMaximumPrice() {
+		List<PurchaseTarget> items = Arrays.asList(target("Dune", 15, 1));
+		BasketSolver solver = new BasketSolver(items, 0);
+		assertEquals(0, solver.propose(A, Arrays.asList(line(0, 16, 1))));
+		assertEquals(1, solver.propose(B, Arrays.asList(line(0, 15, 1))));
+		assertEquals(0, solver.propose(C, Arrays.asList(line(0, 5, 0), line(3, 5, 1))));
+		Map<AID, List<BasketLine>> orders = solver.solve();
+		assertEquals(Collections.singleton(B), orders.keySet());
+	}
+
+	@Test
+	public void splitsTheCopiesOfAnItemAmongSellers() {
+		List<PurchaseTarget> items = Arrays.asList(target("Dune", 30, 5));
+		BasketSolver solver = new BasketSolver(items, 0);
+		solver.propose(A, Arrays.asList(line(0, 10, 3)));
+		solver.propose(B, Arrays.asList(line(0, 12, 4)));
+		Map<AID, List<BasketLine>> orders = solver.solve();
+		assertEquals(3, orders.get(A).get(0).getQuantity());
+		assertEquals(2, orders.get(B).get(0).getQuantity());
+		assertEquals(3 * 10 + 2 * 12, solver.cost(orders));
+	}
+
+	@Test
+	public void onEqualPricesTheFirstProposalWins() {
+		List<PurchaseTarget> items = Arrays.asList(target("Dune", 30, 1));
+		BasketSolver solver = new BasketSolver(items, 0);
+		solver.propose(B, Arrays.asList(line(0, 10, 1)));
+		solver.propose(A, Arrays.asList(line(0, 10, 1)));
+		assertEquals(Collections.singleton(B), solver.solve().keySet());
+	}
+
+	@Test
+	public void keepsASellerNeededForTheCopies() {
+		// C is the only one with Emma: it stays in the assignment, and A is dropped
+		// as ordering Dune from C too costs less than a second order
+		List<PurchaseTarget> items = Arrays.asList(target("Dune", 50, 1), target("Emma", 50, 1));
+		BasketSolver solver = new BasketSolver(items, 20);
+		solver.propose(A, Arrays.asList(line(0, 10, 1)));
+		solver.propose(C, Arrays.asList(line(0, 25, 1), line(1, 40, 1)));
+		Map<AID, List<BasketLine>> orders = solver.solve();
+		assertEquals(Collections.singleton(C), orders.keySet());
+		assertEquals(2, copies(orders));
+		assertEquals(25 + 40 + 20, solver.cost(orders));
+	}
+
+	@Test
+	public void theExactSearchFindsTheOptimum() {
+		Random random = new Random(7);
+		for (int run = 0; run < 300; ++run) {
+			int sellers = 2 + random.nextInt(BasketSolver.EXACT_SELLERS - 1);
+			Instance instance = new Instance(random, sellers, 1 + random.nextInt(5));
+			BasketSolver solver = instance.solver();
+			Map<AID, List<BasketLine>> orders = solver.solve();
+			Best best = instance.bruteForce();
+			assertEquals("copies, run "+run, best.copies, copies(orders));
+			assertEquals("cost, run "+run, best.cost, solver.cost(orders));
+			assertValid(instance, orders);
+		}
+	}
+
+	@Test
+	public void theGreedySearchBuysAllTheCopiesForNoMoreThanAllTheSellers() {
+		Random random = new Random(11);
+		int optimal = 0;
+		int runs = 100;
+		for (int run = 0; run < runs; ++run) {
+			int sellers = BasketSolver.EXACT_SELLERS + 1 + random.nextInt(3);
+			Instance instance = new Instance(random, sellers, 1 + random.nextInt(5));
+			BasketSolver solver = instance.solver();
+			Map<AID, List<BasketLine>> orders = solver.solve();
+			Best best = instance.bruteForce();
+			long cost = solver.cost(orders);
+			assertEquals("copies, run "+run, best.copies, copies(orders));
+			assertTrue("cost below the optimum, run "+run, cost >= best.cost);
+			assertTrue("cost above all the sellers, run "+run, cost <= instance.allSellersCost());
+			assertValid(instance, orders);
+			if (cost == best.cost) {
+				optimal++;
+			}
+		}
+		// The removal is a heuristic, but it finds the optimum on most random baskets
+		assertTrue(optimal+" optimal assignments out of "+runs, optimal >= runs * 8 / 10);
+	}
+
+	// The lines ordered are proposed lines, for no more copies than proposed or wanted
+	private static void assertValid(Instance instance, Map<AID, List<BasketLine>> orders) {
+		int[] bought = new int[instance.items.size()];
+		for (Map.Entry<AID, List<BasketLine>> entry : orders.entrySet()) {
+			int s = instance.sellers.indexOf(entry.getKey());
+			assertTrue(s >= 0);
+			for (BasketLine line : entry.getValue()) {
+				BasketLine proposed = instance.proposals.get(s).get(line.getItem());
+				assertNotNull(proposed);
+				assertEquals(proposed.getPrice(), line.getPrice());
+				assertTrue(line.getQuantity() > 0 && line.getQuantity() <= proposed.getQuantity());
+				bought[line.getItem()] += line.getQuantity();
+			}
+		}
+		for (int i = 0; i < bought.length; ++i) {
+			assertTrue(bought[i] <= instance.items.get(i).getQuantity());
+		}
+	}
+
+	// A random basket and the proposals of the sellers, at most one line per item and seller
+	private static final class Instance {
+		final List<PurchaseTarget> items = new ArrayList<PurchaseTarget>();
+		final List<AID> sellers = new ArrayList<AID>();
+		// Per seller, the line proposed for each item, if any
+		final List<Map<Integer, BasketLine>> proposals = new ArrayList<Map<Integer, BasketLine>>();
+		final int orderCost;
+
+		Instance(Random random, int sellerCount, int itemCount) {
+			orderCost = random.nextInt(4) == 0 ? 0 : 1 + random.nextInt(30);
+			for (int i = 0; i < itemCount; ++i) {
+				items.add(target("title-"+i, 20 + random.nextInt(40), 1 + random.nextInt(3)));
+			}
+			for (int s = 0; s < sellerCount; ++s) {
+				sellers.add(seller("s"+s));
+				Map<Integer, BasketLine> lines = new HashMap<Integer, BasketLine>();
+				for (int i = 0; i < itemCount; ++i) {
+					if (random.nextInt(3) != 0) {
+						// Some of the prices are above the maximum price of the item
+						lines.put(i, line(i, 5 + random.nextInt(60), 1 + random.nextInt(3)));
+					}
+				}
+				proposals.add(lines);
+			}
+		}
+
+		BasketSolver solver() {
+			BasketSolver solver = new BasketSolver(items, orderCost);
+			for (int s = 0; s < sellers.size(); ++s) {
+				solver.propose(sellers.get(s), new ArrayList<BasketLine>(proposals.get(s).values()));
+			}
+			return solver;
+		}
+
+		// The cheapest way to buy as many copies as possible, over all the sets of sellers
+		Best bruteForce() {
+			Best best = new Best();
+			for (int set = 0; set < (1 << sellers.size()); ++set) {
+				Best assignment = assign(set);
+				if (assignment.copies > best.copies || (assignment.copies == best.copies && assignment.cost < best.cost)) {
+					best = assignment;
+				}
+			}
+			return best;
+		}
+
+		long allSellersCost() {
+			return assign((1 << sellers.size()) - 1).cost;
+		}
+
+		// Buys each item from the cheapest acceptable lines of the set of sellers
+		private Best assign(int set) {
+			Best assignment = new Best();
+			assignment.copies = 0;
+			assignment.cost = 0;
+			boolean[] used = new boolean[sellers.size()];
+			for (int i = 0; i < items.size(); ++i) {
+				PurchaseTarget item = items.get(i);
+				List<int[]> offers = new ArrayList<int[]>();
+				for (int s = 0; s < sellers.size(); ++s) {
+					BasketLine line = proposals.get(s).get(i);
+					if ((set & 1 << s) != 0 && line != null && line.getPrice() <= item.getMaxPrice()) {
+						offers.add(new int[] { line.getPrice(), line.getQuantity(), s });
+					}
+				}
+				Collections.sort(offers, new Comparator<int[]>() {
+					public int compare(int[] a, int[] b) {
+						return Integer.compare(a[0], b[0]);
+					}
+				});
+				int wanted = item.getQuantity();
+				for (int[] offer : offers) {
+					if (wanted == 0) {
+						break;
+					}
+					int copies = Math.min(wanted, offer[1]);
+					assignment.cost += (long) offer[0] * copies;
+					assignment.copies += copies;
+					used[offer[2]] = true;
+					wanted -= copies;
+				}
+			}
+			for (boolean u : used) {
+				if (u) {
+					assignment.cost += orderCost;
+				}
+			}
+			return assignment;
+		}
+	}
+
+	private static final class Best {
+		int copies = -1;
+		long cost = Long.MAX_VALUE;
+	}
+
+	private static int copies(Map<AID, List<BasketLine>> orders) {
+		int copies = 0;
+		for (List<BasketLine> lines : orders.values()) {
+			for (BasketLine line : lines) {
+				copies += line.getQuantity();
+			}
+		}
+		return copies;
+	}
+
+	private static AID seller(String name) {
+		return new AID(name+"@test", AID.ISGUID);
+	}
+
+	private static PurchaseTarget target(String title, int maxPrice, int quantity) {
+		return new PurchaseTarget(title, BookState.USED, maxPrice, quantity);
+	}
+
+	private static BasketLine line(int item, int price, int quantity) {
+		return new BasketLine(item, "title-"+item, BookState.USED, price, quantity, 0);
+	}
+}
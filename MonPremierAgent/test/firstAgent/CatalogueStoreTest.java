@@ -0,0 +1,253 @@
+package firstAgent;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The recovery of CatalogueStore after a clean stop, a crash in the middle of a log
+ * record, a corrupted record and an interrupted compaction.
+ */
+public class CatalogueStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replaysTheLogOnTopOfTheSnapshot() throws IOException {
+		File directory = folder.newFolder();
+		Catalogue catalogue = new Catalogue();
+		CatalogueStore store = open(directory, catalogue);
+		catalogue.add("Dune", BookState.NEW, 20, 3);
+		catalogue.add("Emma", BookState.GOOD, 8, 1);
+		catalogue.add("Ulysses", BookState.DAMAGED, 5, 2);
+		store.compact();
+		// After the snapshot: a reprice, a partial sale, a listing sold out and a new one
+		catalogue.put("Dune", BookState.NEW, 18, 3);
+		catalogue.removeAvailable("Ulysses", BookState.DAMAGED, 1);
+		catalogue.remove("Emma", BookState.GOOD);
+		catalogue.add("Walden", BookState.USED, 12, 4);
+		store.close();
+
+		assertTrue(new File(directory, "snapshot.bin").exists());
+		assertFalse(new File(directory, "changes.old").exists());
+		Catalogue recovered = new Catalogue();
+		open(directory, recovered);
+		assertEquals(listings(catalogue), listings(recovered));
+		assertEquals(18, (int) recovered.get("Dune", BookState.NEW));
+		assertEquals(1, recovered.getQuantity("Ulysses", BookState.DAMAGED));
+		assertNull(recovered.get("Emma", BookState.GOOD));
+	}
+
+	@Test
+	public void dropsARecordHalfWrittenAtTheEndOfTheLog() throws IOException {
+		File directory = folder.newFolder();
+		Catalogue catalogue = new Catalogue();
+		CatalogueStore store = open(directory, catalogue);
+		catalogue.add("Dune", BookState.NEW, 20, 3);
+		catalogue.add("Emma", BookState.GOOD, 8, 1);
+		store.close();
+		File log = new File(directory, "changes.log");
+		long complete = log.length();
+
+		// The crash cuts the last record of the log
+		catalogue = new Catalogue();
+		store = open(directory, catalogue);
+		catalogue.add("Walden", BookState.USED, 12, 4);
+		store.close();
+		truncate(log, log.length() - 3);
+
+		Catalogue recovered = new Catalogue();
+		store = open(directory, recovered);
+		assertEquals(set("Dune/NEW/20/3", "Emma/GOOD/8/1"), listings(recovered));
+		assertEquals("the torn record is cut off", complete, log.length());
+		// The next records follow the last complete one
+		recovered.add("Walden", BookState.USED, 12, 4);
+		store.close();
+		Catalogue again = new Catalogue();
+		open(directory, again);
+		assertEquals(set("Dune/NEW/20/3", "Emma/GOOD/8/1", "Walden/USED/12/4"), listings(again));
+	}
+
+	@Test
+	public void stopsAtARecordWithAWrongCrc() throws IOException {
+		File directory = folder.newFolder();
+		Catalogue catalogue = new Catalogue();
+		CatalogueStore store = open(directory, catalogue);
+		catalogue.add("Dune", BookState.NEW, 20, 3);
+		store.flush();
+		long first = new File(directory, "changes.log").length();
+		catalogue.add("Emma", BookState.GOOD, 8, 1);
+		store.close();
+
+		// Flip a byte of the content of the second record
+		File log = new File(directory, "changes.log");
+		flip(log, first + 6);
+
+		Catalogue recovered = new Catalogue();
+		open(directory, recovered);
+		assertEquals(set("Dune/NEW/20/3"), listings(recovered));
+		assertEquals(first, log.length());
+	}
+
+	@Test
+	public void rejectsACorruptedSnapshot() throws IOException {
+		File directory = folder.newFolder();
+		Catalogue catalogue = new Catalogue();
+		CatalogueStore store = open(directory, catalogue);
+		catalogue.add("Dune", BookState.NEW, 20, 3);
+		catalogue.add("Emma", BookState.GOOD, 8, 1);
+		store.compact();
+		store.close();
+		File snapshot = new File(directory, "snapshot.bin");
+		flip(snapshot, snapshot.length() - 2);
+
+		try {
+			open(directory, new Catalogue());
+			fail("A corrupted snapshot must not be loaded as a partial catalogue");
+		}
+		catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains("corrupted"));
+		}
+		// The snapshot is left as it was, for the operator to look at
+		assertTrue(snapshot.exists());
+	}
+
+	@Test
+	public void rejectsAFileThatIsNotASnapshot() throws IOException {
+		File directory = folder.newFolder();
+		Catalogue catalogue = new Catalogue();
+		CatalogueStore store = open(directory, catalogue);
+		catalogue.add("Dune", BookState.NEW, 20, 3);
+		store.compact();
+		store.close();
+		flip(new File(directory, "snapshot.bin"), 0);
+
+		try {
+			open(directory, new Catalogue());
+			fail("A file without the snapshot magic must be rejected");
+		}
+		catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains("not a catalogue snapshot"));
+		}
+	}
+
+	@Test
+	public void recoversACompactionInterruptedBeforeTheSnapshot() throws IOException {
+		File directory = folder.newFolder();
+		Catalogue catalogue = new Catalogue();
+		CatalogueStore store = open(directory, catalogue);
+		catalogue.add("Dune", BookState.NEW, 20, 3);
+		store.compact();
+		catalogue.add("Emma", BookState.GOOD, 8, 1);
+		catalogue.put("Dune", BookState.NEW, 15, 2);
+		store.close();
+		// The crash happens after the log is moved aside, before the new snapshot is in place
+		File log = new File(directory, "changes.log");
+		assertTrue(log.renameTo(new File(directory, "changes.old")));
+		Catalogue after = new Catalogue();
+		store = open(directory, after);
+		after.add("Walden", BookState.USED, 12, 4);
+		store.close();
+
+		Catalogue recovered = new Catalogue();
+		store = open(directory, recovered);
+		assertEquals(set("Dune/NEW/15/2", "Emma/GOOD/8/1", "Walden/USED/12/4"), listings(recovered));
+		// The next compaction folds both logs into the snapshot
+		store.compact();
+		store.close();
+		assertFalse(new File(directory, "changes.old").exists());
+		Catalogue compacted = new Catalogue();
+		open(directory, compacted);
+		assertEquals(listings(recovered), listings(compacted));
+	}
+
+	@Test
+	public void replaysTheOldLogWhenTheSnapshotIsAlreadyNewer() throws IOException {
+		File directory = folder.newFolder();
+		Catalogue catalogue = new Catalogue();
+		CatalogueStore store = open(directory, catalogue);
+		catalogue.add("Dune", BookState.NEW, 20, 3);
+		catalogue.add("Emma", BookState.GOOD, 8, 1);
+		catalogue.remove("Emma", BookState.GOOD);
+		store.flush();
+		// Keep the log as the compaction moves it aside, as if the crash came before its deletion
+		byte[] log = java.nio.file.Files.readAllBytes(new File(directory, "changes.log").toPath());
+		store.compact();
+		catalogue.put("Dune", BookState.NEW, 17, 1);
+		store.close();
+		java.nio.file.Files.write(new File(directory, "changes.old").toPath(), log);
+
+		Catalogue recovered = new Catalogue();
+		open(directory, recovered);
+		assertEquals(set("Dune/NEW/17/1"), listings(recovered));
+	}
+
+	@Test
+	public void keepsTheChangesMadeDuringABackgroundCompaction() throws IOException {
+		File directory = folder.newFolder();
+		Catalogue catalogue = new Catalogue();
+		CatalogueStore store = new CatalogueStore(directory, false, false, 1024);
+		store.open(catalogue);
+		for (int i = 0; i < 20000; ++i) {
+			catalogue.add("title-"+i, BookState.values()[i % BookState.values().length], 10 + i % 50, 1 + i % 3);
+		}
+		// Over the threshold: the snapshot is written in the background
+		store.flush();
+		for (int i = 0; i < 20000; i += 7) {
+			catalogue.removeAvailable("title-"+i, BookState.values()[i % BookState.values().length], 1);
+		}
+		store.close();
+		assertFalse(store.isCompacting());
+		assertFalse(new File(directory, "changes.old").exists());
+
+		Catalogue recovered = new Catalogue();
+		open(directory, recovered);
+		assertEquals(listings(catalogue), listings(recovered));
+	}
+
+	private static CatalogueStore open(File directory, Catalogue catalogue) throws IOException {
+		CatalogueStore store = new CatalogueStore(directory, false, false, Long.MAX_VALUE);
+		store.open(catalogue);
+		return store;
+	}
+
+	// The listings as title/state/price/quantity, sorted
+	private static Set<String> listings(Catalogue catalogue) {
+		Set<String> listings = new TreeSet<String>();
+		for (Offer offer : catalogue.offers()) {
+			listings.add(offer.getTitle()+"/"+offer.getState()+"/"+offer.getPrice()+"/"+offer.getQuantity());
+		}
+		return listings;
+	}
+
+	private static Set<String> set(String... listings) {
+		Set<String> set = new TreeSet<String>();
+		for (String listing : listings) {
+			set.add(listing);
+		}
+		return set;
+	}
+
+	private static void truncate(File file, long length) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length);
+		}
+	}
+
+	private static void flip(File file, long position) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0xff);
+		}
+	}
+}
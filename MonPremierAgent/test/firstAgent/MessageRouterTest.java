@@ -0,0 +1,228 @@
+package firstAgent;
+
+import static org.junit.Assert.*;
+
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The dispatch of MessageRouter, run on an agent outside any container: the messages are
+ * posted to its mailbox and the router behaviour is run by hand.
+ */
+public class MessageRouterTest {
+	private final Agent agent = new Agent();
+
+	@Test
+	public void routesByConversationIdBeforePerformative() {
+		MessageRouter router = new MessageRouter(agent, 10);
+		Recorder any = new Recorder();
+		Recorder sync = new Recorder();
+		router.route(ACLMessage.QUERY_IF, any);
+		router.route(ACLMessage.QUERY_IF, "sync", sync);
+		post(ACLMessage.QUERY_IF, "sync", "1");
+		post(ACLMessage.QUERY_IF, "other", "2");
+		post(ACLMessage.QUERY_IF, null, "3");
+		router.action();
+		assertEquals(list("1"), sync.contents);
+		assertEquals(list("2", "3"), any.contents);
+		assertEquals(3, router.getMessages());
+		assertEquals(1, router.getBatches());
+	}
+
+	@Test
+	public void servesAtMostABatchPerRun() {
+		MessageRouter router = new MessageRouter(agent, 2);
+		Recorder cfps = new Recorder();
+		router.route(ACLMessage.CFP, cfps);
+		for (int i = 0; i < 5; ++i) {
+			post(ACLMessage.CFP, null, String.valueOf(i));
+		}
+		router.action();
+		assertEquals(list("0", "1"), cfps.contents);
+		router.action();
+		router.action();
+		assertEquals(list("0", "1", "2", "3", "4"), cfps.contents);
+		assertEquals(3, router.getBatches());
+		assertTrue(router.isRunnable());
+		// Nothing left: the router waits for the next message
+		router.action();
+		assertFalse(router.isRunnable());
+	}
+
+	@Test
+	public void leavesTheMessagesNotRoutedInTheMailbox() {
+		MessageRouter router = new MessageRouter(agent, 10);
+		Recorder cfps = new Recorder();
+		router.route(ACLMessage.CFP, cfps);
+		post(ACLMessage.INFORM, "subscription", "df");
+		post(ACLMessage.CFP, null, "1");
+		router.action();
+		assertEquals(list("1"), cfps.contents);
+		assertEquals(1, agent.getCurQueueSize());
+		ACLMessage left = agent.receive();
+		assertEquals(ACLMessage.INFORM, left.getPerformative());
+	}
+
+	@Test
+	public void aFailingHandlerDoesNotStopTheOthers() {
+		MessageRouter router = new MessageRouter(agent, 10);
+		Recorder cfps = new Recorder();
+		router.route(ACLMessage.CFP, cfps);
+		router.route(ACLMessage.PROPOSE, new MessageRouter.Handler() {
+			public void handle(ACLMessage msg) {
+				throw new IllegalArgumentException("malformed");
+			}
+		});
+		post(ACLMessage.PROPOSE, null, "bad");
+		post(ACLMessage.CFP, null, "1");
+		router.action();
+		assertEquals(list("1"), cfps.contents);
+		assertEquals(1, router.getErrors());
+		assertEquals(2, router.getMessages());
+	}
+
+	@Test
+	public void servesTheHighestPriorityFirst() {
+		MessageRouter router = new MessageRouter(agent, 10);
+		Recorder served = new Recorder();
+		router.route(ACLMessage.QUERY_IF, served, MessageRouter.LOW);
+		router.route(ACLMessage.CFP, served, MessageRouter.NORMAL);
+		router.route(ACLMessage.ACCEPT_PROPOSAL, served, MessageRouter.HIGH);
+		post(ACLMessage.QUERY_IF, null, "sync");
+		post(ACLMessage.CFP, null, "cfp");
+		post(ACLMessage.ACCEPT_PROPOSAL, null, "order1");
+		post(ACLMessage.ACCEPT_PROPOSAL, null, "order2");
+		router.action();
+		assertEquals(list("order1", "order2", "cfp", "sync"), served.contents);
+	}
+
+	@Test
+	public void theLowerPrioritiesAreNotStarved() {
+		MessageRouter router = new MessageRouter(agent, 2);
+		Recorder served = new Recorder();
+		router.route(ACLMessage.QUERY_IF, served, MessageRouter.LOW);
+		router.route(ACLMessage.CFP, served, MessageRouter.NORMAL);
+		router.route(ACLMessage.ACCEPT_PROPOSAL, served, MessageRouter.HIGH);
+		post(ACLMessage.QUERY_IF, null, "sync");
+		post(ACLMessage.CFP, null, "cfp");
+		for (int i = 0; i < 6; ++i) {
+			post(ACLMessage.ACCEPT_PROPOSAL, null, "order"+i);
+		}
+		// A full batch of orders, then one message of each lower priority
+		router.action();
+		assertEquals(list("order0", "order1", "cfp", "sync"), served.contents);
+		assertEquals(4, router.getQueued(MessageRouter.HIGH));
+		assertEquals(0, router.getQueued(MessageRouter.NORMAL) + router.getQueued(MessageRouter.LOW));
+	}
+
+	@Test
+	public void shedsTheMessagesOverCapacity() {
+		MessageRouter router = new MessageRouter(agent, 1, 2);
+		Shedder cfps = new Shedder(false);
+		router.route(ACLMessage.CFP, cfps, MessageRouter.NORMAL);
+		for (int i = 0; i < 5; ++i) {
+			post(ACLMessage.CFP, null, String.valueOf(i));
+		}
+		router.action();
+		// Two queued, one of them served; the other three refused
+		assertEquals(list("0"), cfps.contents);
+		assertEquals(list("2", "3", "4"), cfps.shed);
+		assertEquals(3, router.getShed());
+		assertEquals(1, router.getQueued());
+		for (long retryAfter : cfps.retryAfter) {
+			assertTrue(String.valueOf(retryAfter), retryAfter >= 100 && retryAfter <= 10000);
+		}
+		router.action();
+		assertEquals(list("0", "1"), cfps.contents);
+	}
+
+	@Test
+	public void theMessagesServedBySheddingAreNotCountedAsShed() {
+		MessageRouter router = new MessageRouter(agent, 1, 1);
+		Shedder rejections = new Shedder(true);
+		router.route(ACLMessage.REJECT_PROPOSAL, rejections, MessageRouter.HIGH);
+		for (int i = 0; i < 3; ++i) {
+			post(ACLMessage.REJECT_PROPOSAL, null, String.valueOf(i));
+		}
+		router.action();
+		assertEquals(list("1", "2"), rejections.shed);
+		assertEquals(0, router.getShed());
+		assertEquals(3, router.getMessages());
+	}
+
+	@Test
+	public void dropsTheMessagesOverCapacityWithoutShedder() {
+		MessageRouter router = new MessageRouter(agent, 1, 1);
+		Recorder informs = new Recorder();
+		router.route(ACLMessage.INFORM, informs, MessageRouter.LOW);
+		for (int i = 0; i < 3; ++i) {
+			post(ACLMessage.INFORM, null, String.valueOf(i));
+		}
+		router.action();
+		router.action();
+		assertEquals(list("0"), informs.contents);
+		assertEquals(2, router.getShed());
+		assertEquals(0, agent.getCurQueueSize());
+	}
+
+	@Test
+	public void theRetryAfterHintIsBounded() {
+		MessageRouter router = new MessageRouter(agent, 1, 100000);
+		router.route(ACLMessage.CFP, new Recorder(), MessageRouter.NORMAL);
+		assertEquals(100, router.getRetryAfter(MessageRouter.NORMAL));
+		for (int i = 0; i < 50000; ++i) {
+			post(ACLMessage.CFP, null, "");
+		}
+		// Measures the service time, then tens of thousands of messages are queued ahead
+		router.action();
+		long retryAfter = router.getRetryAfter(MessageRouter.NORMAL);
+		assertTrue(String.valueOf(retryAfter), retryAfter >= 100 && retryAfter <= 10000);
+		assertTrue(router.getRetryAfter(MessageRouter.LOW) >= router.getRetryAfter(MessageRouter.HIGH));
+	}
+
+	private void post(int performative, String conversationId, String content) {
+		ACLMessage msg = new ACLMessage(performative);
+		msg.setConversationId(conversationId);
+		msg.setContent(content);
+		agent.postMessage(msg);
+	}
+
+	private static List<String> list(String... contents) {
+		List<String> list = new ArrayList<String>();
+		for (String content : contents) {
+			list.add(content);
+		}
+		return list;
+	}
+
+	// Records the contents of the messages it handles
+	static class Recorder implements MessageRouter.Handler {
+		final List<String> contents = new ArrayList<String>();
+
+		public void handle(ACLMessage msg) {
+			contents.add(msg.getContent());
+		}
+	}
+
+	// Records the messages shed, and serves them anyway if asked to
+	static class Shedder extends Recorder implements MessageRouter.Shedder {
+		final boolean serve;
+		final List<String> shed = new ArrayList<String>();
+		final List<Long> retryAfter = new ArrayList<Long>();
+
+		Shedder(boolean serve) {
+			this.serve = serve;
+		}
+
+		public boolean shed(ACLMessage msg, long retryAfter) {
+			shed.add(msg.getContent());
+			this.retryAfter.add(retryAfter);
+			return serve;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package firstAgent;
+
+import static org.junit.Assert.*;
+
+import jade.core.AID;
+
+import org.junit.Test;
+
+/**
+ * The holds of the catalogue and the reservations placed on them: the copies held for a
+ * buyer are not offered or sold to the others until they are sold, released, cancelled
+ * or expired.
+ */
+public class ReservationTableTest {
+	private static final AID BUYER = new AID("buyer@test", AID.ISGUID);
+
+	@Test
+	public void heldCopiesAreNotAvailableToTheOthers() {
+		Catalogue catalogue = new Catalogue();
+		catalogue.add("Dune", BookState.GOOD, 20, 3);
+		assertTrue(catalogue.hold("Dune", BookState.GOOD, 2));
+		assertEquals(1, catalogue.findAtLeast("Dune", BookState.GOOD).getQuantity());
+		assertFalse(catalogue.hold("Dune", BookState.GOOD, 2));
+		assertFalse(catalogue.hold("Dune", BookState.GOOD, 0));
+		assertNull(catalogue.removeAvailable("Dune", BookState.GOOD, 2));
+		assertEquals(20, (int) catalogue.removeAvailable("Dune", BookState.GOOD, 1));
+		// The held copies are still listed
+		assertEquals(2, catalogue.getQuantity("Dune", BookState.GOOD));
+		assertNull(catalogue.findAtLeast("Dune", BookState.GOOD));
+	}
+
+	@Test
+	public void theStateFallbackSkipsTheStatesAllHeld() {
+		Catalogue catalogue = new Catalogue();
+		catalogue.add("Dune", BookState.NEW, 30, 1);
+		catalogue.add("Dune", BookState.GOOD, 20, 1);
+		assertEquals(BookState.GOOD, catalogue.findAtLeast("Dune", BookState.USED).getState());
+		catalogue.hold("Dune", BookState.GOOD, 1);
+		assertEquals(BookState.NEW, catalogue.findAtLeast("Dune", BookState.USED).getState());
+		catalogue.hold("Dune", BookState.NEW, 1);
+		assertNull(catalogue.findAtLeast("Dune", BookState.USED));
+		catalogue.release("Dune", BookState.GOOD, 1);
+		assertEquals(BookState.GOOD, catalogue.findAtLeast("Dune", BookState.USED).getState());
+	}
+
+	@Test
+	public void sellingHeldCopiesRemovesTheirHold() {
+		Catalogue catalogue = new Catalogue();
+		catalogue.add("Dune", BookState.GOOD, 20, 3);
+		catalogue.hold("Dune", BookState.GOOD, 2);
+		assertNull(catalogue.removeHeld("Dune", BookState.GOOD, 3));
+		assertEquals(20, (int) catalogue.removeHeld("Dune", BookState.GOOD, 2));
+		assertEquals(1, catalogue.getQuantity("Dune", BookState.GOOD));
+		assertEquals(1, catalogue.findAtLeast("Dune", BookState.GOOD).getQuantity());
+		// Selling the last copy removes the listing
+		assertTrue(catalogue.hold("Dune", BookState.GOOD, 1));
+		assertEquals(20, (int) catalogue.removeHeld("Dune", BookState.GOOD, 1));
+		assertNull(catalogue.get("Dune", BookState.GOOD));
+		assertTrue(catalogue.isEmpty());
+	}
+
+	@Test
+	public void removingAListingDropsItsHoldsAndReservations() throws InterruptedException {
+		Catalogue catalogue = new Catalogue();
+		catalogue.add("Dune", BookState.GOOD, 20, 2);
+		catalogue.add("Dune", BookState.NEW, 30, 1);
+		ReservationTable reservations = new ReservationTable(catalogue, 50, 10);
+		long old = reservations.reserve("Dune", BookState.GOOD, 2, BUYER);
+		long otherState = reservations.reserve("Dune", BookState.NEW, 1, BUYER);
+		catalogue.remove("Dune", BookState.GOOD);
+		assertEquals(1, reservations.size());
+		catalogue.add("Dune", BookState.GOOD, 25, 2);
+		assertEquals(2, catalogue.findAtLeast("Dune", BookState.GOOD).getQuantity());
+		// Held again by a new reservation: the old one cannot release its copies
+		long current = reservations.reserve("Dune", BookState.GOOD, 2, BUYER);
+		assertTrue(current > 0);
+		assertNull(reservations.claim(old, BUYER));
+		reservations.cancel(old, BUYER);
+		assertNull(catalogue.findAtLeast("Dune", BookState.GOOD));
+		Thread.sleep(120);
+		// Neither does its expiration; the reservations of the listings still there expire
+		assertEquals(2, reservations.expire());
+		assertEquals(2, catalogue.findAtLeast("Dune", BookState.GOOD).getQuantity());
+		assertEquals(1, catalogue.findAtLeast("Dune", BookState.NEW).getQuantity());
+		assertNull(reservations.claim(otherState, BUYER));
+		assertEquals(0, reservations.size());
+	}
+
+	@Test
+	public void aReservationIsClaimedOnce() {
+		Catalogue catalogue = new Catalogue();
+		catalogue.add("Dune", BookState.GOOD, 20, 3);
+		ReservationTable reservations = new ReservationTable(catalogue, 10000, 100);
+		long id = reservations.reserve("Dune", BookState.GOOD, 2, BUYER);
+		assertTrue(id > 0);
+		assertEquals(0, reservations.reserve("Dune", BookState.GOOD, 2, BUYER));
+		long other = reservations.reserve("Dune", BookState.GOOD, 1, BUYER);
+		assertTrue(other > 0 && other != id);
+
+		ReservationTable.Reservation reservation = reservations.claim(id, BUYER);
+		assertEquals("Dune", reservation.getTitle());
+		assertEquals(2, reservation.getQuantity());
+		assertEquals(BUYER, reservation.getBuyer());
+		assertNull(reservations.claim(id, BUYER));
+		assertNull(reservations.claim(0, BUYER));
+		assertEquals(1, reservations.size());
+	}
+
+	@Test
+	public void cancellingAReservationReleasesItsCopies() {
+		Catalogue catalogue = new Catalogue();
+		catalogue.add("Dune", BookState.GOOD, 20, 2);
+		ReservationTable reservations = new ReservationTable(catalogue, 10000, 100);
+		long id = reservations.reserve("Dune", BookState.GOOD, 2, BUYER);
+		assertNull(catalogue.findAtLeast("Dune", BookState.GOOD));
+		reservations.cancel(id, BUYER);
+		assertEquals(2, catalogue.findAtLeast("Dune", BookState.GOOD).getQuantity());
+		assertEquals(0, reservations.size());
+		// Cancelling twice does not release the copies held by another reservation
+		assertTrue(reservations.reserve("Dune", BookState.GOOD, 2, BUYER) > 0);
+		reservations.cancel(id, BUYER);
+		assertNull(catalogue.findAtLeast("Dune", BookState.GOOD));
+	}
+
+	@Test
+	public void anotherBuyerCannotClaimOrCancelTheReservation() {
+		Catalogue catalogue = new Catalogue();
+		catalogue.add("Dune", BookState.GOOD, 20, 2);
+		ReservationTable reservations = new ReservationTable(catalogue, 10000, 100);
+		AID other = new AID("other@test", AID.ISGUID);
+		long id = reservations.reserve("Dune", BookState.GOOD, 2, BUYER);
+		assertNull(reservations.claim(id, other));
+		reservations.cancel(id, other);
+		// Still held, and still claimable by its buyer
+		assertNull(catalogue.findAtLeast("Dune", BookState.GOOD));
+		assertEquals(1, reservations.size());
+		assertEquals(2, reservations.claim(id, BUYER).getQuantity());
+	}
+
+	@Test
+	public void theHoldsExpireAfterTheirTtl() throws InterruptedException {
+		Catalogue catalogue = new Catalogue();
+		catalogue.add("Dune", BookState.GOOD, 20, 3);
+		ReservationTable reservations = new ReservationTable(catalogue, 50, 10);
+		long expiring = reservations.reserve("Dune", BookState.GOOD, 1, BUYER);
+		long claimed = reservations.reserve("Dune", BookState.GOOD, 2, BUYER);
+		assertNotNull(reservations.claim(claimed, BUYER));
+		assertEquals(0, reservations.expire());
+		Thread.sleep(120);
+		// Only the reservation still pending is released; the claimed copies stay held for the sale
+		assertEquals(1, reservations.expire());
+		assertEquals(1, reservations.getExpired());
+		assertNull(reservations.claim(expiring, BUYER));
+		assertEquals(1, catalogue.findAtLeast("Dune", BookState.GOOD).getQuantity());
+		assertEquals(20, (int) catalogue.removeHeld("Dune", BookState.GOOD, 2));
+	}
+}
@@ -0,0 +1,149 @@
+package firstAgent;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * The normalization, matching and ranking of TitleIndex, on small catalogues and against
+ * a scan of all the titles.
+ */
+public class TitleIndexTest {
+	@Test
+	public void tokenizeDropsAccentsCaseStopWordsAndEditions() {
+		assertEquals(Arrays.asList("lord", "rings"), TitleIndex.tokenize("The Lord of the Rings (2nd edition)"));
+		assertEquals(Arrays.asList("lord", "rings"), TitleIndex.tokenize("  lord OF the RINGS"));
+		assertEquals(Arrays.asList("miserables"), TitleIndex.tokenize("Les Misérables"));
+		assertEquals(Arrays.asList("catch", "22"), TitleIndex.tokenize("Catch-22, revised ed."));
+		assertEquals(Collections.emptyList(), TitleIndex.tokenize("The 3rd"));
+	}
+
+	@Test
+	public void resolveFindsTheTitlesWithTheSameKey() {
+		TitleIndex index = index("The Lord of the Rings", "Lord of the Rings (2nd edition)", "The Lord of the Flies");
+		assertEquals(Arrays.asList("The Lord of the Rings", "Lord of the Rings (2nd edition)"),
+				index.resolve("The Lord of the Rings"));
+		assertEquals(2, index.resolve("lord of the RINGS").size());
+		assertEquals(Collections.emptyList(), index.resolve("Rings"));
+		assertEquals(Collections.emptyList(), index.resolve("Unknown"));
+	}
+
+	@Test
+	public void searchRanksTheSameKeyThenTheKeyPrefixThenTheOthers() {
+		TitleIndex index = index("God Emperor of Dune", "Dune: the Graphic Novel", "Children of Dune", "Dune Messiah",
+				"Dune");
+		assertEquals(Arrays.asList("Dune", "Dune Messiah", "Dune: the Graphic Novel", "Children of Dune",
+				"God Emperor of Dune"), index.search("dune", 10));
+		assertEquals(Arrays.asList("Dune", "Dune Messiah"), index.search("DUNE", 2));
+		assertEquals(Arrays.asList("Children of Dune"), index.search("children dune", 10));
+	}
+
+	@Test
+	public void searchCompletesTheLastWord() {
+		TitleIndex index = index("The Lord of the Rings", "Lord Jim", "The Lord of the Flies");
+		assertEquals(Arrays.asList("The Lord of the Rings"), index.search("lord ri", 10));
+		assertEquals(Arrays.asList("Lord Jim", "The Lord of the Flies", "The Lord of the Rings"), index.search("lo", 10));
+		// Shorter prefixes are not completed
+		assertEquals(Collections.emptyList(), index.search("l", 10));
+		assertEquals(Collections.emptyList(), index.search("lord xy", 10));
+	}
+
+	@Test
+	public void followsTheListingsOfTheCatalogue() {
+		Catalogue catalogue = new Catalogue();
+		TitleIndex index = new TitleIndex();
+		catalogue.addListener(index);
+		catalogue.add("Dune", BookState.NEW, 20, 1);
+		catalogue.add("Dune", BookState.USED, 10, 1);
+		catalogue.add("Dune Messiah", BookState.GOOD, 12, 1);
+		assertEquals(2, index.size());
+		catalogue.remove("Dune", BookState.NEW);
+		// Still listed in another state
+		assertEquals(Arrays.asList("Dune"), index.resolve("dune"));
+		catalogue.removeAvailable("Dune", BookState.USED, 1);
+		assertEquals(Collections.emptyList(), index.resolve("dune"));
+		assertEquals(Arrays.asList("Dune Messiah"), index.search("dune", 10));
+		assertEquals(2, index.tokenCount());
+	}
+
+	@Test
+	public void matchesAScanOfAllTheTitlesAfterManyChanges() {
+		String[] words = {"war", "peace", "night", "day", "sea", "river", "king", "queen", "dark", "light"};
+		Random random = new Random(5);
+		TitleIndex index = new TitleIndex();
+		Set<String> listed = new TreeSet<String>();
+		for (int i = 0; i < 3000; ++i) {
+			StringBuilder title = new StringBuilder();
+			int length = 1 + random.nextInt(4);
+			for (int w = 0; w < length; ++w) {
+				title.append(w == 0 ? "" : random.nextBoolean() ? " " : " of the ").append(words[random.nextInt(words.length)]);
+			}
+			String text = title.toString();
+			// Removing titles renumbers the index from time to time
+			if (random.nextInt(3) == 0 && !listed.isEmpty()) {
+				String removed = listed.iterator().next();
+				index.unlisted(removed, BookState.USED);
+				listed.remove(removed);
+			}
+			index.listed(text, BookState.USED, 10, 1);
+			listed.add(text);
+		}
+		assertEquals(listed.size(), index.size());
+		for (int q = 0; q < 200; ++q) {
+			List<String> query = new ArrayList<String>();
+			for (int w = 1 + random.nextInt(2); w > 0; --w) {
+				query.add(words[random.nextInt(words.length)]);
+			}
+			String text = String.join(" ", query);
+			List<String> expected = scan(listed, query);
+			List<String> found = index.search(text, expected.size() + 10);
+			// Without a prefix to complete (the words are whole tokens), the same titles
+			// are found; the candidates are bounded, so only when there are few of them
+			if (expected.size() < TitleIndex.MAX_CANDIDATES) {
+				assertEquals(text, new TreeSet<String>(expected), new TreeSet<String>(found.subList(0, Math.min(found.size(), expected.size()))));
+			}
+			for (int i = 1; i < found.size(); ++i) {
+				assertTrue(text+": "+found, rank(found.get(i - 1), query) <= rank(found.get(i), query));
+			}
+			assertEquals(text, expectedResolved(listed, query), new TreeSet<String>(index.resolve(text)));
+		}
+	}
+
+	// The listed titles containing all the words of the query
+	private static List<String> scan(Set<String> listed, List<String> query) {
+		List<String> matches = new ArrayList<String>();
+		for (String title : listed) {
+			if (TitleIndex.tokenize(title).containsAll(query)) {
+				matches.add(title);
+			}
+		}
+		return matches;
+	}
+
+	private static Set<String> expectedResolved(Set<String> listed, List<String> query) {
+		Set<String> resolved = new TreeSet<String>();
+		for (String title : listed) {
+			if (TitleIndex.tokenize(title).equals(query)) {
+				resolved.add(title);
+			}
+		}
+		return resolved;
+	}
+
+	// Same key, then key starting with the query, then the others; fewer tokens first
+	private static int rank(String title, List<String> query) {
+		List<String> tokens = TitleIndex.tokenize(title);
+		boolean prefix = tokens.size() >= query.size() && tokens.subList(0, query.size()).equals(query);
+		return (!prefix ? 2 : tokens.size() == query.size() ? 0 : 1) * 1000 + tokens.size();
+	}
+
+	private static TitleIndex index(String... titles) {
+		TitleIndex index = new TitleIndex();
+		for (String title : titles) {
+			index.listed(title, BookState.USED, 10, 1);
+		}
+		return index;
+	}
+}